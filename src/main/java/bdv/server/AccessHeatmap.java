@@ -0,0 +1,503 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Approximate access counts of the cells of a dataset, to find out which cells
+ * clients actually look at, and to warm up the caches with them after a
+ * restart.
+ * <p>
+ * Counts are kept for a fixed number of cells with the Space-Saving
+ * algorithm: an access to an untracked cell replaces the cell with the
+ * lowest count, and inherits its count (which is remembered as the error
+ * bound of the new cell's count). Memory use is therefore independent of
+ * traffic, and every cell with more than {@code total / capacity} accesses is
+ * guaranteed to be tracked. Counts decay exponentially with a half-life of
+ * {@link Constants#ACCESS_HEATMAP_HALF_LIFE_HOURS}, so the heatmap follows
+ * changes in what clients look at.
+ * <p>
+ * {@link #record(CellKey)} is called for every cell request, so it does not
+ * take a lock. Accesses are written to a lock-free ring buffer of
+ * {@link Constants#ACCESS_HEATMAP_BUFFER_SIZE} entries, and counted in batches
+ * by whichever recording thread fills a batch. If the counting falls behind,
+ * accesses are overwritten in the buffer and lost, which only makes the
+ * approximate counts a bit less accurate.
+ * <p>
+ * The heatmap is saved periodically and when the dataset is stopped, and
+ * loaded again when the dataset is served next time.
+ */
+public class AccessHeatmap
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( AccessHeatmap.class );
+
+	private static final int MAGIC = 0x4244484d; // "BDHM"
+
+	private static final int FILE_VERSION = 1;
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor( new DaemonThreadFactory( "heatmap" ) );
+
+	private static final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor( new DaemonThreadFactory( "warmup" ) );
+
+	/**
+	 * Approximate access count of one cell.
+	 */
+	public static final class CellCount
+	{
+		private final CellKey key;
+
+		private double count;
+
+		/**
+		 * Upper bound of the overestimation of {@link #count}.
+		 */
+		private double error;
+
+		/**
+		 * Breaks ties between equal counts.
+		 */
+		private final long seq;
+
+		CellCount( final CellKey key, final double count, final double error, final long seq )
+		{
+			this.key = key;
+			this.count = count;
+			this.error = error;
+			this.seq = seq;
+		}
+
+		CellCount( final CellCount c )
+		{
+			this( c.key, c.count, c.error, c.seq );
+		}
+
+		public CellKey getKey()
+		{
+			return key;
+		}
+
+		public double getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Get an upper bound for the number of accesses that
+		 * {@link #getCount()} may overestimate.
+		 */
+		public double getError()
+		{
+			return error;
+		}
+	}
+
+	private static final Comparator< CellCount > ascending = Comparator
+			.comparingDouble( ( final CellCount c ) -> c.count )
+			.thenComparingLong( c -> c.seq );
+
+	private final String datasetName;
+
+	private final int capacity;
+
+	private final HashMap< CellKey, CellCount > counts;
+
+	/**
+	 * Tracked cells ordered by count. Contains the same {@link CellCount}s as
+	 * {@link #counts}.
+	 */
+	private TreeSet< CellCount > byCount;
+
+	private long nextSeq;
+
+	/**
+	 * Accesses that have not been counted yet. Access {@code i} is written to
+	 * slot {@code i & (buffer size - 1)}.
+	 */
+	private final AtomicReferenceArray< CellKey > buffer = new AtomicReferenceArray<>( Constants.ACCESS_HEATMAP_BUFFER_SIZE );
+
+	/**
+	 * Number of recorded accesses.
+	 */
+	private final AtomicLong numAccesses = new AtomicLong();
+
+	/**
+	 * Number of accesses that have been moved from {@link #buffer} to the
+	 * counts (or lost).
+	 */
+	private long numDrained;
+
+	/**
+	 * Whether a recording thread is counting buffered accesses.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	private boolean modified;
+
+	private final Object saveLock = new Object();
+
+	private Path file;
+
+	private long version;
+
+	private ScheduledFuture< ? > saveTask;
+
+	private Future< ? > warmUpTask;
+
+	/**
+	 * @param datasetName
+	 *            name of the dataset, to create {@link CellKey}s.
+	 * @param capacity
+	 *            maximum number of cells to track.
+	 */
+	public AccessHeatmap( final String datasetName, final int capacity )
+	{
+		this.datasetName = datasetName;
+		this.capacity = capacity;
+		counts = new HashMap<>( 2 * capacity );
+		byCount = new TreeSet<>( ascending );
+	}
+
+	/**
+	 * Load the heatmap of a dataset from {@code file} if it exists and was
+	 * saved for the current version of the dataset, and save it to
+	 * {@code file} every {@link Constants#ACCESS_HEATMAP_SAVE_INTERVAL_SECONDS}
+	 * until {@link #close()}.
+	 */
+	public static AccessHeatmap open( final Path file, final String datasetName, final long version )
+	{
+		final AccessHeatmap heatmap = new AccessHeatmap( datasetName, Constants.ACCESS_HEATMAP_CAPACITY );
+		heatmap.file = file;
+		heatmap.version = version;
+		if ( Files.exists( file ) )
+		{
+			try
+			{
+				heatmap.load();
+			}
+			catch ( final IOException e )
+			{
+				LOG.warn( "Could not read access heatmap \"" + file + "\": " + e.getMessage() );
+			}
+		}
+
+		final long interval = Constants.ACCESS_HEATMAP_SAVE_INTERVAL_SECONDS;
+		final double decay = Math.pow( 0.5, interval / ( 3600.0 * Constants.ACCESS_HEATMAP_HALF_LIFE_HOURS ) );
+		heatmap.saveTask = timer.scheduleAtFixedRate( () -> {
+			heatmap.decay( decay );
+			heatmap.save();
+		}, interval, interval, TimeUnit.SECONDS );
+		return heatmap;
+	}
+
+	/**
+	 * Record an access to a cell.
+	 */
+	public void record( final CellKey key )
+	{
+		final long i = numAccesses.getAndIncrement();
+		buffer.set( ( int ) i & ( Constants.ACCESS_HEATMAP_BUFFER_SIZE - 1 ), key );
+		if ( ( i + 1 ) % Constants.ACCESS_HEATMAP_DRAIN_BATCH == 0 && draining.compareAndSet( false, true ) )
+		{
+			try
+			{
+				synchronized ( this )
+				{
+					drain();
+				}
+			}
+			finally
+			{
+				draining.set( false );
+			}
+		}
+	}
+
+	/**
+	 * Count the accesses in {@link #buffer}. Must be called while holding
+	 * this heatmap's lock.
+	 */
+	private void drain()
+	{
+		final int size = Constants.ACCESS_HEATMAP_BUFFER_SIZE;
+		final long end = numAccesses.get();
+		for ( long i = Math.max( numDrained, end - size ); i < end; ++i )
+		{
+			final CellKey key = buffer.getAndSet( ( int ) i & ( size - 1 ), null );
+			if ( key != null )
+				count( key );
+		}
+		numDrained = end;
+	}
+
+	private void count( final CellKey key )
+	{
+		modified = true;
+		CellCount c = counts.get( key );
+		if ( c != null )
+		{
+			byCount.remove( c );
+			c.count += 1;
+		}
+		else if ( counts.size() < capacity )
+		{
+			c = new CellCount( key, 1, 0, nextSeq++ );
+			counts.put( key, c );
+		}
+		else
+		{
+			final CellCount min = byCount.pollFirst();
+			counts.remove( min.key );
+			c = new CellCount( key, min.count + 1, min.count, nextSeq++ );
+			counts.put( key, c );
+		}
+		byCount.add( c );
+	}
+
+	/**
+	 * Get the {@code n} cells with the highest counts, in descending order.
+	 */
+	public synchronized List< CellCount > getHottest( final int n )
+	{
+		drain();
+		final List< CellCount > hottest = new ArrayList<>( Math.min( n, counts.size() ) );
+		final Iterator< CellCount > it = byCount.descendingIterator();
+		while ( hottest.size() < n && it.hasNext() )
+			hottest.add( new CellCount( it.next() ) );
+		return hottest;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the number of tracked cells.
+	 */
+	public synchronized int size()
+	{
+		drain();
+		return counts.size();
+	}
+
+	/**
+	 * Get the number of accesses recorded since the dataset is served.
+	 */
+	public long getNumAccesses()
+	{
+		return numAccesses.get();
+	}
+
+	/**
+	 * Multiply all counts by {@code factor}.
+	 */
+	synchronized void decay( final double factor )
+	{
+		drain();
+		final TreeSet< CellCount > decayed = new TreeSet<>( ascending );
+		for ( final CellCount c : counts.values() )
+		{
+			c.count *= factor;
+			c.error *= factor;
+			decayed.add( c );
+		}
+		byCount = decayed;
+	}
+
+	/**
+	 * Load the hottest cells into the caches of {@code cells} in the
+	 * background, one at a time, hottest first. Cells whose count is mostly
+	 * inherited from replaced cells (that is, noise) are skipped. While the
+	 * {@code breaker} rejects requests, warming up pauses.
+	 *
+	 * @param breaker
+	 *            circuit breaker of the storage of {@code cells}.
+	 * @param numCells
+	 *            maximum number of cells to load.
+	 */
+	public synchronized void warmUp( final CellAccess cells, final CircuitBreaker breaker, final int numCells )
+	{
+		final List< CellCount > hottest = getHottest( numCells );
+		if ( hottest.isEmpty() )
+			return;
+		LOG.info( "Warming up " + hottest.size() + " cells of dataset \"" + datasetName + "\"" );
+		warmUpTask = warmUpExecutor.submit( () -> {
+			for ( final CellCount c : hottest )
+			{
+				if ( Thread.currentThread().isInterrupted() )
+					return;
+				if ( c.getError() > 0.5 * c.getCount() )
+					continue;
+				final CellKey key = c.getKey();
+				try
+				{
+					while ( !breaker.allowRequest() )
+						Thread.sleep( TimeUnit.SECONDS.toMillis( breaker.getRetryAfterSeconds() ) );
+					if ( cells.exists( key.getTimepoint(), key.getSetup(), key.getLevel() ) )
+						cells.getCellData( key.getTimepoint(), key.getSetup(), key.getLevel(), key.getIndex() );
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+				catch ( final RuntimeException e )
+				{
+					LOG.debug( "Could not warm up cell " + key, e );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Stop saving periodically and warming up, and save the heatmap.
+	 */
+	public void close()
+	{
+		synchronized ( this )
+		{
+			if ( saveTask != null )
+				saveTask.cancel( false );
+			if ( warmUpTask != null )
+				warmUpTask.cancel( true );
+		}
+		save();
+	}
+
+	/**
+	 * Save the heatmap, if it has been modified since it was loaded or saved.
+	 * The file is written without blocking {@link #record(CellKey)}.
+	 */
+	void save()
+	{
+		synchronized ( saveLock )
+		{
+			final List< CellCount > snapshot;
+			synchronized ( this )
+			{
+				drain();
+				if ( file == null || !modified )
+					return;
+				modified = false;
+				snapshot = new ArrayList<>( counts.size() );
+				for ( final CellCount c : byCount )
+					snapshot.add( new CellCount( c ) );
+			}
+			try
+			{
+				write( snapshot );
+			}
+			catch ( final IOException e )
+			{
+				synchronized ( this )
+				{
+					modified = true;
+				}
+				LOG.warn( "Could not write access heatmap \"" + file + "\": " + e.getMessage() );
+			}
+		}
+	}
+
+	/**
+	 * Write cell counts, in ascending order, to {@link #file}.
+	 */
+	private void write( final List< CellCount > snapshot ) throws IOException
+	{
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		Files.createDirectories( file.getParent() );
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( Files.newOutputStream( tmp ) ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( FILE_VERSION );
+			out.writeLong( version );
+			out.writeInt( snapshot.size() );
+			for ( final CellCount c : snapshot )
+			{
+				out.writeInt( c.key.getTimepoint() );
+				out.writeInt( c.key.getSetup() );
+				out.writeInt( c.key.getLevel() );
+				out.writeLong( c.key.getIndex() );
+				out.writeDouble( c.count );
+				out.writeDouble( c.error );
+			}
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private synchronized void load() throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new GZIPInputStream( Files.newInputStream( file ) ) ) ) )
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != FILE_VERSION )
+				throw new IOException( "not an access heatmap" );
+			if ( in.readLong() != version )
+			{
+				LOG.info( "Access heatmap \"" + file + "\" is outdated, discarding it." );
+				return;
+			}
+			final int n = in.readInt();
+			for ( int i = 0; i < n; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				final int level = in.readInt();
+				final long index = in.readLong();
+				final double count = in.readDouble();
+				final double error = in.readDouble();
+				// saved in ascending order, so the cells with the lowest
+				// counts are dropped if the capacity has been reduced
+				if ( i >= n - capacity )
+				{
+					final CellCount c = new CellCount( new CellKey( datasetName, setup, timepoint, level, index ), count, error, nextSeq++ );
+					counts.put( c.key, c );
+					byCount.add( c );
+				}
+			}
+		}
+	}
+}
@@ -69,6 +69,16 @@ import mpicbg.spim.data.SpimDataException;
  *  -s &lt;HOSTNAME&gt;   Hostname of the server.
  *  -t &lt;DIRECTORY&gt;  Directory to store thumbnails. (new temporary directory
  *                  by default.)
+ *  -ms &lt;SIZE&gt;      Budget of the in-memory cell cache shared by all
+ *                  datasets in MB. (default: 1024)
+ *  -c &lt;DIRECTORY&gt;  Directory for the persistent cell cache. (disabled by
+ *                  default.)
+ *  -cs &lt;SIZE&gt;      Maximum size of the persistent cell cache in MB.
+ *                  (default: 10240)
+ *  -cluster &lt;FILE&gt; Cluster file: A plain text file listing the base URLs
+ *                  of all servers in the cluster, one per line.
+ *  -redirect       Redirect requests for cells owned by other cluster
+ *                  nodes instead of proxying them.
  *  -m              enable statistics and manager context. EXPERIMENTAL!
  * </pre>
  *
@@ -102,8 +112,13 @@ public class BigDataServer
 		}
 		final String thumbnailDirectory = null;
 		final String baseUrl = null;
+		final long memoryCacheSizeMB = Constants.CELL_MEMORY_CACHE_DEFAULT_SIZE_MB;
+		final String cellCacheDirectory = null;
+		final long cellCacheSizeMB = Constants.DISK_CELL_CACHE_DEFAULT_SIZE_MB;
+		final String clusterFile = null;
+		final boolean clusterRedirect = false;
 		final boolean enableManagerContext = false;
-		return new Parameters( port, hostname, new HashMap< String, String >(), thumbnailDirectory, baseUrl, enableManagerContext );
+		return new Parameters( port, hostname, new HashMap< String, String >(), thumbnailDirectory, baseUrl, memoryCacheSizeMB, cellCacheDirectory, cellCacheSizeMB, clusterFile, clusterRedirect, enableManagerContext );
 	}
 
 	public static void main( final String[] args ) throws Exception
@@ -124,13 +139,15 @@ public class BigDataServer
 		LOG.info( "Set connectors: " + connector );
 		server.setConnectors( new Connector[] { connector } );
 		final String baseURL = params.getBaseUrl() != null ? params.getBaseUrl() : "http://" + server.getURI().getHost() + ":" + params.getPort();
+		final ServerResources resources = createServerResources( params, baseURL );
 
 		// Handler initialization
 		final HandlerCollection handlers = new HandlerCollection();
 
-		final ContextHandlerCollection datasetHandlers = createHandlers( baseURL, params.getDatasets(), thumbnailsDirectoryName );
+		final ContextHandlerCollection datasetHandlers = createHandlers( baseURL, params.getDatasets(), thumbnailsDirectoryName, resources );
 		handlers.addHandler( datasetHandlers );
 		handlers.addHandler( new JsonDatasetListHandler( server, datasetHandlers ) );
+		handlers.addHandler( new MetricsHandler( resources ) );
 
 		Handler handler = handlers;
 		if ( params.enableManagerContext() )
@@ -141,7 +158,8 @@ public class BigDataServer
 
 			// create StatisticsHandler wrapper and ManagerHandler
 			final StatisticsHandler statHandler = new StatisticsHandler();
-			handlers.addHandler( new ManagerHandler( baseURL, server, connectorStats, statHandler, datasetHandlers, thumbnailsDirectoryName ) );
+			handlers.addHandler( new ManagerHandler( baseURL, server, connectorStats, statHandler, datasetHandlers, thumbnailsDirectoryName, resources ) );
+			handlers.addHandler( new HeatmapHandler() );
 			statHandler.setHandler( handlers );
 			handler = statHandler;
 		}
@@ -172,15 +190,30 @@ public class BigDataServer
 
 		private final String baseUrl;
 
+		private final long memoryCacheSizeMB;
+
+		private final String cellCacheDirectory;
+
+		private final long cellCacheSizeMB;
+
+		private final String clusterFile;
+
+		private final boolean clusterRedirect;
+
 		private final boolean enableManagerContext;
 
-		Parameters( final int port, final String hostname, final Map< String, String > datasetNameToXml, final String thumbnailDirectory, final String baseUrl, final boolean enableManagerContext )
+		Parameters( final int port, final String hostname, final Map< String, String > datasetNameToXml, final String thumbnailDirectory, final String baseUrl, final long memoryCacheSizeMB, final String cellCacheDirectory, final long cellCacheSizeMB, final String clusterFile, final boolean clusterRedirect, final boolean enableManagerContext )
 		{
 			this.port = port;
 			this.hostname = hostname;
 			this.datasetNameToXml = datasetNameToXml;
 			this.thumbnailDirectory = thumbnailDirectory;
 			this.baseUrl = baseUrl;
+			this.memoryCacheSizeMB = memoryCacheSizeMB;
+			this.cellCacheDirectory = cellCacheDirectory;
+			this.cellCacheSizeMB = cellCacheSizeMB;
+			this.clusterFile = clusterFile;
+			this.clusterRedirect = clusterRedirect;
 			this.enableManagerContext = enableManagerContext;
 		}
 
@@ -204,6 +237,43 @@ public class BigDataServer
 			return thumbnailDirectory;
 		}
 
+		public long getMemoryCacheSizeMB()
+		{
+			return memoryCacheSizeMB;
+		}
+
+		/**
+		 * Get the directory of the persistent cell cache.
+		 *
+		 * @return cell cache directory, or {@code null} if the cache is
+		 *         disabled.
+		 */
+		public String getCellCacheDirectory()
+		{
+			return cellCacheDirectory;
+		}
+
+		public long getCellCacheSizeMB()
+		{
+			return cellCacheSizeMB;
+		}
+
+		/**
+		 * Get the cluster file listing the base URLs of all cluster nodes.
+		 *
+		 * @return cluster file, or {@code null} if the server runs
+		 *         stand-alone.
+		 */
+		public String getClusterFile()
+		{
+			return clusterFile;
+		}
+
+		public boolean clusterRedirect()
+		{
+			return clusterRedirect;
+		}
+
 		/**
 		 * Get datasets.
 		 *
@@ -263,10 +333,38 @@ public class BigDataServer
 				.withArgName( "BASEURL" )
 				.create( "b" ) );
 
+		options.addOption( OptionBuilder
+				.withDescription( "Budget of the in-memory cell cache shared by all datasets in MB.\n(default: " + defaultParameters.getMemoryCacheSizeMB() + ")" )
+				.hasArg()
+				.withArgName( "SIZE" )
+				.create( "ms" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Directory for the persistent cell cache. (disabled by default.)" )
+				.hasArg()
+				.withArgName( "DIRECTORY" )
+				.create( "c" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Maximum size of the persistent cell cache in MB.\n(default: " + defaultParameters.getCellCacheSizeMB() + ")" )
+				.hasArg()
+				.withArgName( "SIZE" )
+				.create( "cs" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Cluster file: A plain text file listing the base URLs of all servers in the cluster, one per line." )
+				.hasArg()
+				.withArgName( "FILE" )
+				.create( "cluster" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Redirect requests for cells owned by other cluster nodes instead of proxying them." )
+				.create( "redirect" ) );
+
 		if ( Constants.ENABLE_EXPERIMENTAL_FEATURES )
 		{
 			options.addOption( OptionBuilder
-					.withDescription( "enable statistics and manager context. EXPERIMENTAL!" )
+					.withDescription( "enable statistics, manager, and heatmap contexts. EXPERIMENTAL!" )
 					.create( "m" ) );
 		}
 
@@ -288,6 +386,23 @@ public class BigDataServer
 			// Getting base url option
 			final String baseUrl = cmd.getOptionValue( "b", defaultParameters.getBaseUrl() );
 
+			// Getting cell cache options
+			final String memoryCacheSizeString = cmd.getOptionValue( "ms", Long.toString( defaultParameters.getMemoryCacheSizeMB() ) );
+			final long memoryCacheSizeMB = Long.parseLong( memoryCacheSizeString );
+			if ( memoryCacheSizeMB <= 0 )
+				throw new IllegalArgumentException( "Memory cache size must be positive." );
+			final String cellCacheDirectory = cmd.getOptionValue( "c", defaultParameters.getCellCacheDirectory() );
+			final String cellCacheSizeString = cmd.getOptionValue( "cs", Long.toString( defaultParameters.getCellCacheSizeMB() ) );
+			final long cellCacheSizeMB = Long.parseLong( cellCacheSizeString );
+			if ( cellCacheSizeMB <= 0 )
+				throw new IllegalArgumentException( "Cell cache size must be positive." );
+
+			// Getting cluster options
+			final String clusterFile = cmd.getOptionValue( "cluster", defaultParameters.getClusterFile() );
+			if ( clusterFile != null && Files.notExists( Paths.get( clusterFile ) ) )
+				throw new IllegalArgumentException( "Cluster file does not exist." );
+			final boolean clusterRedirect = cmd.hasOption( "redirect" ) || defaultParameters.clusterRedirect();
+
 			final HashMap< String, String > datasets = new HashMap< String, String >( defaultParameters.getDatasets() );
 
 			boolean enableManagerContext = false;
@@ -300,31 +415,7 @@ public class BigDataServer
 			if ( cmd.hasOption( "d" ) )
 			{
 				// process the file given with "-d"
-				final String datasetFile = cmd.getOptionValue( "d" );
-
-				// check the file presence
-				final Path path = Paths.get( datasetFile );
-
-				if ( Files.notExists( path ) )
-					throw new IllegalArgumentException( "Dataset list file does not exist." );
-
-				// Process dataset list file
-				final List< String > lines = Files.readAllLines( path, StandardCharsets.UTF_8 );
-
-				for ( final String str : lines )
-				{
-					final String[] tokens = str.split( "\\s*\\t\\s*" );
-					if ( tokens.length == 2 && StringUtils.isNotEmpty( tokens[ 0 ].trim() ) && StringUtils.isNotEmpty( tokens[ 1 ].trim() ) )
-					{
-						final String name = tokens[ 0 ].trim();
-						final String xmlpath = tokens[ 1 ].trim();
-						tryAddDataset( datasets, name, xmlpath );
-					}
-					else
-					{
-						LOG.warn( "Invalid dataset file line (will be skipped): {" + str + "}" );
-					}
-				}
+				readDatasetFile( cmd.getOptionValue( "d" ), datasets );
 			}
 
 			// process additional {name, name.xml} pairs given on the
@@ -343,7 +434,7 @@ public class BigDataServer
 			if ( datasets.isEmpty() )
 				throw new IllegalArgumentException( "Dataset list is empty." );
 
-			return new Parameters( port, serverName, datasets, thumbnailDirectory, baseUrl, enableManagerContext );
+			return new Parameters( port, serverName, datasets, thumbnailDirectory, baseUrl, memoryCacheSizeMB, cellCacheDirectory, cellCacheSizeMB, clusterFile, clusterRedirect, enableManagerContext );
 		}
 		catch ( final ParseException | IllegalArgumentException e )
 		{
@@ -355,7 +446,38 @@ public class BigDataServer
 		return null;
 	}
 
-	private static void tryAddDataset( final HashMap< String, String > datasetNameToXML, final String name, final String xmlpath ) throws IllegalArgumentException
+	/**
+	 * Add the datasets listed in a dataset file. Each line of the file is
+	 * formatted as "NAME &lt;TAB&gt; XML".
+	 */
+	static void readDatasetFile( final String datasetFile, final HashMap< String, String > datasets ) throws IOException, IllegalArgumentException
+	{
+		// check the file presence
+		final Path path = Paths.get( datasetFile );
+
+		if ( Files.notExists( path ) )
+			throw new IllegalArgumentException( "Dataset list file does not exist." );
+
+		// Process dataset list file
+		final List< String > lines = Files.readAllLines( path, StandardCharsets.UTF_8 );
+
+		for ( final String str : lines )
+		{
+			final String[] tokens = str.split( "\\s*\\t\\s*" );
+			if ( tokens.length == 2 && StringUtils.isNotEmpty( tokens[ 0 ].trim() ) && StringUtils.isNotEmpty( tokens[ 1 ].trim() ) )
+			{
+				final String name = tokens[ 0 ].trim();
+				final String xmlpath = tokens[ 1 ].trim();
+				tryAddDataset( datasets, name, xmlpath );
+			}
+			else
+			{
+				LOG.warn( "Invalid dataset file line (will be skipped): {" + str + "}" );
+			}
+		}
+	}
+
+	static void tryAddDataset( final HashMap< String, String > datasetNameToXML, final String name, final String xmlpath ) throws IllegalArgumentException
 	{
 		for ( final String reserved : Constants.RESERVED_CONTEXT_NAMES )
 			if ( name.equals( reserved ) )
@@ -400,7 +522,33 @@ public class BigDataServer
 		return thumbnails.toFile().getAbsolutePath();
 	}
 
-	private static ContextHandlerCollection createHandlers( final String baseURL, final Map< String, String > dataSet, final String thumbnailsDirectoryName ) throws SpimDataException, IOException
+	private static ServerResources createServerResources( final Parameters params, final String baseURL ) throws IOException
+	{
+		final CellMemoryCache memoryCache = new CellMemoryCache( params.getMemoryCacheSizeMB() << 20 );
+
+		DiskCellCache diskCellCache = null;
+		if ( params.getCellCacheDirectory() != null )
+			diskCellCache = new DiskCellCache( Paths.get( params.getCellCacheDirectory() ), params.getCellCacheSizeMB() << 20 );
+
+		Cluster cluster = null;
+		if ( params.getClusterFile() != null )
+		{
+			cluster = Cluster.fromFile( Paths.get( params.getClusterFile() ), baseURL, params.clusterRedirect() );
+			LOG.info( "Cluster nodes: " + cluster.getNodes() );
+		}
+
+		final CellRequestScheduler scheduler = new CellRequestScheduler(
+				Constants.CELL_SCHEDULER_MAX_ACTIVE,
+				Constants.CELL_SCHEDULER_MAX_QUEUED,
+				Constants.CELL_SCHEDULER_MAX_ACTIVE_PER_DATASET,
+				Constants.CELL_SCHEDULER_MAX_QUEUED_PER_DATASET,
+				Constants.CELL_SCHEDULER_PRIORITY_CLASSES,
+				Constants.CELL_SCHEDULER_MAX_MEMORY_FRACTION );
+
+		return new ServerResources( memoryCache, diskCellCache, cluster, scheduler );
+	}
+
+	private static ContextHandlerCollection createHandlers( final String baseURL, final Map< String, String > dataSet, final String thumbnailsDirectoryName, final ServerResources resources ) throws SpimDataException, IOException
 	{
 		final ContextHandlerCollection handlers = new ContextHandlerCollection();
 
@@ -409,7 +557,7 @@ public class BigDataServer
 			final String name = entry.getKey();
 			final String xmlpath = entry.getValue();
 			final String context = "/" + name;
-			final CellHandler ctx = new CellHandler( baseURL + context + "/", xmlpath, name, thumbnailsDirectoryName );
+			final CellHandler ctx = new CellHandler( baseURL + context + "/", xmlpath, name, thumbnailsDirectoryName, resources );
 			ctx.setContextPath( context );
 			handlers.addHandler( ctx );
 		}
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Losslessly packs a cell at the smallest bit depth that covers its maximum
+ * value. Most cameras record 12-bit (or less) data, which is otherwise sent as
+ * 16 bits per voxel.
+ * <p>
+ * The encoded format is: one byte bit depth {@code b} (0 to 16), followed by
+ * the values as a big-endian bit stream of {@code b} bits per value, padded
+ * with zero bits to a whole byte. For example, two 12-bit values {@code a},
+ * {@code c} are packed into the three bytes {@code a >> 4},
+ * {@code (a << 4) | (c >> 8)}, {@code c}.
+ * <p>
+ * The common depths 8 and 12 have dedicated loops without data-dependent
+ * branches. The 12-bit loops combine pairs of values into 24-bit words and
+ * move 8 values with one {@code long} and one {@code int} access. 16-bit cells
+ * are copied through a {@link java.nio.ShortBuffer}. Other depths use a
+ * generic bit accumulator that moves 32 bits at a time. See
+ * {@code BitPackedCellCodecBenchmark} for a comparison with the plain 16-bit
+ * copy.
+ * <p>
+ * On Java 17 or later with {@code --add-modules jdk.incubator.vector}, the
+ * 8- and 12-bit loops and {@link #bitsFor(short[])} run on the Vector API
+ * (see {@link PackingKernels}), and the scalar loops only handle the tails.
+ * Without the module, the scalar loops are used.
+ */
+public class BitPackedCellCodec
+{
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle( long[].class, ByteOrder.BIG_ENDIAN );
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle( int[].class, ByteOrder.BIG_ENDIAN );
+
+	/**
+	 * Vector API kernels, or {@code null} if they are not available.
+	 */
+	private static final PackingKernels KERNELS = loadKernels();
+
+	private static PackingKernels loadKernels()
+	{
+		if ( !ModuleLayer.boot().findModule( "jdk.incubator.vector" ).isPresent() )
+			return null;
+		try
+		{
+			return ( PackingKernels ) Class.forName( "bdv.server.VectorPackingKernels" ).getDeclaredConstructor().newInstance();
+		}
+		catch ( final ReflectiveOperationException | LinkageError e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the 8- and 12-bit loops run on the Vector API.
+	 */
+	public static boolean isVectorized()
+	{
+		return KERNELS != null;
+	}
+
+	/**
+	 * The smallest bit depth that covers all values of {@code data},
+	 * interpreted as unsigned shorts. This is the bit length of the bitwise or
+	 * of all values, which takes one pass without branches.
+	 */
+	public static int bitsFor( final short[] data )
+	{
+		int or = 0;
+		if ( KERNELS != null )
+			or = KERNELS.or( data );
+		else
+			for ( int i = 0; i < data.length; ++i )
+				or |= data[ i ];
+		return 32 - Integer.numberOfLeadingZeros( or & 0xffff );
+	}
+
+	/**
+	 * Size of {@code numElements} values packed at {@code bits} bits,
+	 * including the bit depth byte.
+	 */
+	public static long encodedSize( final int numElements, final int bits )
+	{
+		return 1 + ( ( long ) numElements * bits + 7 ) / 8;
+	}
+
+	/**
+	 * Pack {@code data} at {@code bits} bits per value. Higher bits of values
+	 * that do not fit are dropped, use {@link #bitsFor(short[])} to pack
+	 * losslessly.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code bits} is not in 0 to 16.
+	 */
+	public static byte[] encode( final short[] data, final int bits ) throws IllegalArgumentException
+	{
+		if ( bits < 0 || bits > 16 )
+			throw new IllegalArgumentException( "invalid bit depth " + bits );
+
+		final int n = data.length;
+		final byte[] packed = new byte[ ( int ) encodedSize( n, bits ) ];
+		packed[ 0 ] = ( byte ) bits;
+		switch ( bits )
+		{
+		case 0:
+			break;
+		case 8:
+			for ( int i = KERNELS != null ? KERNELS.encode8( data, packed ) : 0; i < n; ++i )
+				packed[ 1 + i ] = ( byte ) data[ i ];
+			break;
+		case 12:
+		{
+			int i = KERNELS != null ? KERNELS.encode12( data, packed ) : 0;
+			int j = 1 + 3 * i / 2;
+			for ( ; i + 8 <= n; i += 8, j += 12 )
+			{
+				final long p01 = ( ( data[ i ] & 0xfff ) << 12 ) | ( data[ i + 1 ] & 0xfff );
+				final long p23 = ( ( data[ i + 2 ] & 0xfff ) << 12 ) | ( data[ i + 3 ] & 0xfff );
+				final long p45 = ( ( data[ i + 4 ] & 0xfff ) << 12 ) | ( data[ i + 5 ] & 0xfff );
+				final long p67 = ( ( data[ i + 6 ] & 0xfff ) << 12 ) | ( data[ i + 7 ] & 0xfff );
+				LONG.set( packed, j, ( p01 << 40 ) | ( p23 << 16 ) | ( p45 >>> 8 ) );
+				INT.set( packed, j + 8, ( int ) ( ( p45 << 24 ) | p67 ) );
+			}
+			for ( ; i + 1 < n; i += 2, j += 3 )
+			{
+				final int a = data[ i ] & 0xfff;
+				final int c = data[ i + 1 ] & 0xfff;
+				packed[ j ] = ( byte ) ( a >> 4 );
+				packed[ j + 1 ] = ( byte ) ( ( a << 4 ) | ( c >> 8 ) );
+				packed[ j + 2 ] = ( byte ) c;
+			}
+			if ( i < n )
+			{
+				final int a = data[ i ] & 0xfff;
+				packed[ j ] = ( byte ) ( a >> 4 );
+				packed[ j + 1 ] = ( byte ) ( a << 4 );
+			}
+			break;
+		}
+		case 16:
+			ByteBuffer.wrap( packed, 1, 2 * n ).asShortBuffer().put( data );
+			break;
+		default:
+		{
+			final int mask = ( 1 << bits ) - 1;
+			long acc = 0;
+			int numBits = 0;
+			int j = 1;
+			for ( int i = 0; i < n; ++i )
+			{
+				acc = ( acc << bits ) | ( data[ i ] & mask );
+				numBits += bits;
+				if ( numBits >= 32 )
+				{
+					numBits -= 32;
+					INT.set( packed, j, ( int ) ( acc >>> numBits ) );
+					j += 4;
+				}
+			}
+			while ( numBits >= 8 )
+			{
+				numBits -= 8;
+				packed[ j++ ] = ( byte ) ( acc >>> numBits );
+			}
+			if ( numBits > 0 )
+				packed[ j ] = ( byte ) ( acc << ( 8 - numBits ) );
+			break;
+		}
+		}
+		return packed;
+	}
+
+	/**
+	 * Decode a cell produced by {@link #encode(short[], int)}.
+	 *
+	 * @param packed
+	 *            the packed cell.
+	 * @param numElements
+	 *            the number of voxels of the cell.
+	 * @return the cell data.
+	 */
+	public static short[] decode( final byte[] packed, final int numElements ) throws DataFormatException
+	{
+		if ( packed.length == 0 )
+			throw new DataFormatException( "missing bit depth" );
+		final int bits = packed[ 0 ] & 0xff;
+		if ( bits > 16 )
+			throw new DataFormatException( "invalid bit depth " + bits );
+		if ( packed.length != encodedSize( numElements, bits ) )
+			throw new DataFormatException( "packed size mismatch" );
+
+		final int n = numElements;
+		final short[] data = new short[ n ];
+		switch ( bits )
+		{
+		case 0:
+			break;
+		case 8:
+			for ( int i = KERNELS != null ? KERNELS.decode8( packed, data ) : 0; i < n; ++i )
+				data[ i ] = ( short ) ( packed[ 1 + i ] & 0xff );
+			break;
+		case 12:
+		{
+			int i = KERNELS != null ? KERNELS.decode12( packed, data ) : 0;
+			int j = 1 + 3 * i / 2;
+			for ( ; i + 8 <= n; i += 8, j += 12 )
+			{
+				final long w = ( long ) LONG.get( packed, j );
+				final int v = ( int ) INT.get( packed, j + 8 );
+				data[ i ] = ( short ) ( w >>> 52 );
+				data[ i + 1 ] = ( short ) ( ( w >>> 40 ) & 0xfff );
+				data[ i + 2 ] = ( short ) ( ( w >>> 28 ) & 0xfff );
+				data[ i + 3 ] = ( short ) ( ( w >>> 16 ) & 0xfff );
+				data[ i + 4 ] = ( short ) ( ( w >>> 4 ) & 0xfff );
+				data[ i + 5 ] = ( short ) ( ( ( w & 0xf ) << 8 ) | ( v >>> 24 ) );
+				data[ i + 6 ] = ( short ) ( ( v >>> 12 ) & 0xfff );
+				data[ i + 7 ] = ( short ) ( v & 0xfff );
+			}
+			for ( ; i + 1 < n; i += 2, j += 3 )
+			{
+				final int b0 = packed[ j ] & 0xff;
+				final int b1 = packed[ j + 1 ] & 0xff;
+				final int b2 = packed[ j + 2 ] & 0xff;
+				data[ i ] = ( short ) ( ( b0 << 4 ) | ( b1 >> 4 ) );
+				data[ i + 1 ] = ( short ) ( ( ( b1 & 0xf ) << 8 ) | b2 );
+			}
+			if ( i < n )
+				data[ i ] = ( short ) ( ( ( packed[ j ] & 0xff ) << 4 ) | ( ( packed[ j + 1 ] & 0xff ) >> 4 ) );
+			break;
+		}
+		case 16:
+			ByteBuffer.wrap( packed, 1, 2 * n ).asShortBuffer().get( data );
+			break;
+		default:
+		{
+			final int mask = ( 1 << bits ) - 1;
+			long acc = 0;
+			int numBits = 0;
+			int j = 1;
+			final int lastInt = packed.length - 4;
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( numBits < bits )
+				{
+					if ( j <= lastInt )
+					{
+						acc = ( acc << 32 ) | ( ( int ) INT.get( packed, j ) & 0xffffffffL );
+						numBits += 32;
+						j += 4;
+					}
+					else
+					{
+						while ( numBits < bits )
+						{
+							acc = ( acc << 8 ) | ( packed[ j++ ] & 0xff );
+							numBits += 8;
+						}
+					}
+				}
+				numBits -= bits;
+				data[ i ] = ( short ) ( ( acc >>> numBits ) & mask );
+			}
+			break;
+		}
+		}
+		return data;
+	}
+}
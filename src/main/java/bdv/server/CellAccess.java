@@ -0,0 +1,316 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.nio.ByteBuffer;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.MipmapInfo;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Access to the cells of the image pyramid provided by a
+ * {@link Hdf5ImageLoader}.
+ * <p>
+ * Cells are addressed by timepoint, setup, mipmap level, and either flattened
+ * cell index or cell grid position. Cell data is returned as the
+ * {@code short[]} storage array of the cell, with X varying fastest. The
+ * array must not be modified.
+ * <p>
+ * Cell data is read directly from the HDF5 file, bypassing the soft-reference
+ * cache of the {@link Hdf5ImageLoader}, and cached in the server-wide
+ * {@link CellMemoryCache}, so that memory use is bounded by its budget. Images
+ * that a {@link DirectCellReader} can handle are read from the memory-mapped
+ * file without going through the HDF5 library.
+ * <p>
+ * Mipmap levels are those of the {@link DatasetIndex}, which may add
+ * {@link SyntheticLevels synthetic levels} below the native pyramid. Cells of
+ * synthetic levels are computed on demand and persisted in the
+ * {@link DiskCellCache}, if it is enabled.
+ */
+public class CellAccess
+{
+	private final Hdf5ImageLoader imgLoader;
+
+	private final DatasetIndex index;
+
+	private final String datasetName;
+
+	private final long version;
+
+	private final CellMemoryCache memoryCache;
+
+	private final DiskCellCache diskCellCache;
+
+	private final DirectCellReader directReader;
+
+	private final CircuitBreaker breaker;
+
+	/**
+	 * @param imgLoader
+	 *            provides the image pyramid.
+	 * @param index
+	 *            image and cell dimensions of the dataset.
+	 * @param datasetName
+	 *            name of the dataset, to identify its cells in the caches.
+	 * @param version
+	 *            version of the dataset, to validate cells in the
+	 *            {@code memoryCache} and the {@code diskCellCache}.
+	 * @param memoryCache
+	 *            cell cache shared by all datasets.
+	 * @param diskCellCache
+	 *            persistent cache for cells of synthetic levels. May be null.
+	 * @param directReader
+	 *            reads uncompressed images without the HDF5 library. May be
+	 *            null.
+	 * @param breaker
+	 *            records the latency and failures of storage reads.
+	 */
+	public CellAccess(
+			final Hdf5ImageLoader imgLoader,
+			final DatasetIndex index,
+			final String datasetName,
+			final long version,
+			final CellMemoryCache memoryCache,
+			final DiskCellCache diskCellCache,
+			final DirectCellReader directReader,
+			final CircuitBreaker breaker )
+	{
+		this.imgLoader = imgLoader;
+		this.index = index;
+		this.datasetName = datasetName;
+		this.version = version;
+		this.memoryCache = memoryCache;
+		this.diskCellCache = diskCellCache;
+		this.directReader = directReader;
+		this.breaker = breaker;
+	}
+
+	public Hdf5ImageLoader getImgLoader()
+	{
+		return imgLoader;
+	}
+
+	/**
+	 * Get the number of mipmap levels of a setup.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there is no setup with the given id.
+	 */
+	public int numLevels( final int setup ) throws IllegalArgumentException
+	{
+		return getMipmapInfo( setup ).getResolutions().length;
+	}
+
+	/**
+	 * Get the downsampling factors of mipmap {@code level} of a setup, relative
+	 * to full resolution.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there is no setup with the given id.
+	 */
+	public double[] getResolution( final int setup, final int level ) throws IllegalArgumentException
+	{
+		return getMipmapInfo( setup ).getResolutions()[ level ];
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if there is no setup with the given id.
+	 */
+	public MipmapInfo getMipmapInfo( final int setup ) throws IllegalArgumentException
+	{
+		final MipmapInfo info = index.getMipmapInfo( setup );
+		if ( info == null )
+			throw new IllegalArgumentException( "unknown setup " + setup );
+		return info;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public AbstractCellImg< UnsignedShortType, ?, ?, ? > getCellImg( final int timepoint, final int setup, final int level )
+	{
+		final RandomAccessibleInterval< ? > image = imgLoader.getSetupImgLoader( setup ).getImage( timepoint, level );
+		return ( AbstractCellImg< UnsignedShortType, ?, ?, ? > ) image;
+	}
+
+	/**
+	 * Whether the image of a (timepoint, setup, level) exists.
+	 */
+	public boolean exists( final int timepoint, final int setup, final int level )
+	{
+		return index.getDimensions( timepoint, setup, level ) != null;
+	}
+
+	/**
+	 * Whether mipmap {@code level} of a setup is computed by the server rather
+	 * than stored in the HDF5 file.
+	 */
+	public boolean isSynthetic( final int setup, final int level )
+	{
+		return level >= index.getNumNativeLevels( setup );
+	}
+
+	/**
+	 * Get the cell grid of a (timepoint, setup, level). For existing images,
+	 * this does not access the HDF5 file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the image of a synthetic level does not exist.
+	 */
+	public CellGrid getCellGrid( final int timepoint, final int setup, final int level ) throws IllegalArgumentException
+	{
+		final long[] dims = index.getDimensions( timepoint, setup, level );
+		final int[] cellDims = index.getCellDimensions( setup, level );
+		if ( dims == null || cellDims == null )
+		{
+			if ( isSynthetic( setup, level ) )
+				throw new IllegalArgumentException( "no such image" );
+			return getCellImg( timepoint, setup, level ).getCellGrid();
+		}
+		return new CellGrid( dims, cellDims );
+	}
+
+	/**
+	 * Get the data of the cell with flattened {@code index}.
+	 */
+	public short[] getCellData( final int timepoint, final int setup, final int level, final long index )
+	{
+		final CellGrid grid = getCellGrid( timepoint, setup, level );
+		final long[] gridpos = new long[ grid.numDimensions() ];
+		grid.getCellGridPositionFlat( index, gridpos );
+		return getCellData( timepoint, setup, level, grid, index, gridpos, true );
+	}
+
+	/**
+	 * Get the data of the cell at grid position {@code gridpos}.
+	 *
+	 * @param grid
+	 *            the cell grid of the given timepoint, setup, and level.
+	 */
+	public short[] getCellData( final int timepoint, final int setup, final int level, final CellGrid grid, final long[] gridpos )
+	{
+		final long index = IntervalIndexer.positionToIndex( gridpos, grid.getGridDimensions() );
+		return getCellData( timepoint, setup, level, grid, index, gridpos, true );
+	}
+
+	/**
+	 * Get the data of the cell at grid position {@code gridpos}, without
+	 * adding it to the {@link CellMemoryCache} if it has to be loaded. Used for
+	 * bulk reads, which would otherwise evict the cells of interactive
+	 * clients. (Cells of synthetic levels are cached nevertheless, because
+	 * they are expensive to compute.)
+	 *
+	 * @param grid
+	 *            the cell grid of the given timepoint, setup, and level.
+	 */
+	public short[] readCellData( final int timepoint, final int setup, final int level, final CellGrid grid, final long[] gridpos )
+	{
+		final long index = IntervalIndexer.positionToIndex( gridpos, grid.getGridDimensions() );
+		return getCellData( timepoint, setup, level, grid, index, gridpos, false );
+	}
+
+	private short[] getCellData( final int timepoint, final int setup, final int level, final CellGrid grid, final long index, final long[] gridpos, final boolean cache )
+	{
+		final CellKey key = new CellKey( datasetName, setup, timepoint, level, index );
+		final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+		lookup.begin();
+		short[] data = memoryCache.get( key );
+		lookup.finish( "memory", key, data == null ? -1 : 2L * data.length );
+		if ( data == null && isSynthetic( setup, level ) )
+		{
+			data = getSyntheticCellData( key, grid, gridpos );
+			memoryCache.put( key, version, data );
+		}
+		else if ( data == null )
+		{
+			final long[] cellMin = new long[ gridpos.length ];
+			final int[] cellDims = new int[ gridpos.length ];
+			grid.getCellDimensions( gridpos, cellMin, cellDims );
+			final ServerEvents.StorageRead event = new ServerEvents.StorageRead();
+			event.begin();
+			final long read = breaker.readStarted();
+			boolean failed = true;
+			boolean direct = false;
+			try
+			{
+				if ( directReader != null )
+				{
+					data = directReader.read( timepoint, setup, level, cellDims, cellMin );
+					direct = data != null;
+				}
+				if ( data == null )
+					data = imgLoader.getShortArrayLoader().loadArray( timepoint, setup, level, cellDims, cellMin ).getCurrentStorageArray();
+				failed = false;
+			}
+			catch ( final InterruptedException e )
+			{
+				failed = false;
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			finally
+			{
+				breaker.readFinished( read, failed );
+			}
+			event.finish( key, direct, 2L * data.length );
+			if ( cache )
+				memoryCache.put( key, version, data );
+		}
+		return data;
+	}
+
+	/**
+	 * Get a cell of a synthetic level from the {@link DiskCellCache}, or
+	 * compute it from the next finer level.
+	 */
+	private short[] getSyntheticCellData( final CellKey key, final CellGrid grid, final long[] gridpos )
+	{
+		if ( diskCellCache != null )
+		{
+			final CellData cached = diskCellCache.get( key, version );
+			if ( cached != null )
+			{
+				final ByteBuffer raw = cached.getRaw();
+				final short[] data = new short[ raw.remaining() / 2 ];
+				raw.asShortBuffer().get( data );
+				return data;
+			}
+		}
+
+		final int setup = key.getSetup();
+		final int level = key.getLevel();
+		final double[] resolution = getResolution( setup, level );
+		final double[] finerResolution = getResolution( setup, level - 1 );
+		final int[] factor = new int[ resolution.length ];
+		for ( int d = 0; d < factor.length; ++d )
+			factor[ d ] = ( int ) Math.round( resolution[ d ] / finerResolution[ d ] );
+		final short[] data = SyntheticLevels.downsample( this, key.getTimepoint(), setup, level, grid, gridpos, factor, !isSynthetic( setup, level - 1 ) );
+
+		if ( diskCellCache != null )
+			diskCellCache.put( key, version, new CellData( key, data ) );
+		return data;
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The data of one cell as big-endian unsigned shorts, together with its
+ * {@link BitPackedCellCodec} encoding.
+ * <p>
+ * The encoding is built at most once, on first use, and then shared: by all
+ * requests that join the load of the cell (see {@link SingleFlight}), and by
+ * all hits of the {@link DiskCellCache}, which stores it next to the raw
+ * data.
+ */
+public class CellData
+{
+	private final CellKey key;
+
+	private final ByteBuffer raw;
+
+	/**
+	 * The cell as shorts, if it was loaded from the image. Dropped once the
+	 * encoding is built. Guarded by {@code this}.
+	 */
+	private short[] values;
+
+	/**
+	 * Whether {@link #packed} has been built. Guarded by {@code this}.
+	 */
+	private boolean packedBuilt;
+
+	/**
+	 * The packed cell, or {@code null} if it needs all 16 bits. Guarded by
+	 * {@code this}.
+	 */
+	private ByteBuffer packed;
+
+	/**
+	 * @param key
+	 *            the cell.
+	 * @param values
+	 *            the cell data. Must not be modified afterwards.
+	 */
+	public CellData( final CellKey key, final short[] values )
+	{
+		this.key = key;
+		final byte[] buf = new byte[ 2 * values.length ];
+		ByteBuffer.wrap( buf ).asShortBuffer().put( values );
+		raw = ByteBuffer.wrap( buf );
+		this.values = values;
+	}
+
+	/**
+	 * @param key
+	 *            the cell.
+	 * @param raw
+	 *            the cell data as big-endian unsigned shorts. Must not be
+	 *            modified afterwards.
+	 */
+	public CellData( final CellKey key, final ByteBuffer raw )
+	{
+		this.key = key;
+		this.raw = raw.slice();
+	}
+
+	/**
+	 * A cell whose encoding is known already.
+	 *
+	 * @param packed
+	 *            the packed cell, or {@code null} if it needs all 16 bits.
+	 */
+	CellData( final CellKey key, final ByteBuffer raw, final ByteBuffer packed )
+	{
+		this( key, raw );
+		this.packed = packed;
+		packedBuilt = true;
+	}
+
+	/**
+	 * Get the cell data as big-endian unsigned shorts.
+	 */
+	public ByteBuffer getRaw()
+	{
+		return raw.duplicate();
+	}
+
+	/**
+	 * Get the cell packed by {@link BitPackedCellCodec}, at the bit depth of
+	 * its maximum. The encoding is built on the first call, concurrent callers
+	 * wait for it.
+	 *
+	 * @return the packed cell, or {@code null} if the cell needs all 16 bits.
+	 */
+	public synchronized ByteBuffer getPacked()
+	{
+		if ( !packedBuilt )
+		{
+			final short[] data = values != null ? values : toShorts( raw );
+			final int bits = BitPackedCellCodec.bitsFor( data );
+			if ( bits < 16 )
+			{
+				final ServerEvents.Compression compression = new ServerEvents.Compression();
+				compression.begin();
+				final byte[] buf = BitPackedCellCodec.encode( data, bits );
+				compression.finish( "pack", key, 2L * data.length, buf.length );
+				packed = ByteBuffer.wrap( buf );
+			}
+			values = null;
+			packedBuilt = true;
+		}
+		return packed == null ? null : packed.duplicate();
+	}
+
+	/**
+	 * Convert big-endian unsigned shorts to cell data.
+	 */
+	private static short[] toShorts( final ByteBuffer buf )
+	{
+		final short[] data = new short[ buf.remaining() / 2 ];
+		buf.duplicate().order( ByteOrder.BIG_ENDIAN ).asShortBuffer().get( data );
+		return data;
+	}
+}
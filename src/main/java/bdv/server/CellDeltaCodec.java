@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes a cell as the difference to the same cell at another (reference)
+ * timepoint.
+ * <p>
+ * The encoded format is: the voxel-wise difference {@code data - reference}
+ * (modulo 2<sup>16</sup>) is zigzag-encoded, such that small positive and
+ * negative differences become small unsigned values. The low bytes of all
+ * values are followed by the high bytes of all values, which puts the (mostly
+ * zero) high bytes into long runs. The result is compressed with
+ * {@link Deflater} (zlib format).
+ * <p>
+ * For slowly changing time-lapse data, most differences are zero or small, so
+ * the encoded delta is much smaller than the cell.
+ */
+public class CellDeltaCodec
+{
+	/**
+	 * Per-thread compressor, reused across requests to avoid reallocating
+	 * the native zlib state.
+	 */
+	private static final ThreadLocal< Deflater > deflater = ThreadLocal.withInitial( () -> new Deflater( Deflater.BEST_SPEED ) );
+
+	/**
+	 * Encode {@code data} as a delta against {@code reference}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code data} and {@code reference} have different sizes.
+	 */
+	public static byte[] encode( final short[] reference, final short[] data ) throws IllegalArgumentException
+	{
+		final int n = data.length;
+		if ( reference.length != n )
+			throw new IllegalArgumentException( "cell size mismatch" );
+
+		final byte[] planes = new byte[ 2 * n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final short d = ( short ) ( data[ i ] - reference[ i ] );
+			final int z = ( ( d << 1 ) ^ ( d >> 15 ) ) & 0xffff;
+			planes[ i ] = ( byte ) z;
+			planes[ n + i ] = ( byte ) ( z >> 8 );
+		}
+
+		final Deflater d = deflater.get();
+		d.reset();
+		d.setInput( planes );
+		d.finish();
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( Math.max( 64, n / 4 ) );
+		final byte[] buf = new byte[ 8192 ];
+		while ( !d.finished() )
+		{
+			final int len = d.deflate( buf );
+			bos.write( buf, 0, len );
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Decode a delta produced by {@link #encode(short[], short[])}.
+	 *
+	 * @param reference
+	 *            the cell data at the reference timepoint.
+	 * @param delta
+	 *            the encoded delta.
+	 * @return the cell data.
+	 */
+	public static short[] decode( final short[] reference, final byte[] delta ) throws DataFormatException
+	{
+		final int n = reference.length;
+		final byte[] planes = new byte[ 2 * n ];
+		final Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput( delta );
+			int off = 0;
+			while ( off < planes.length && !inflater.finished() )
+			{
+				final int len = inflater.inflate( planes, off, planes.length - off );
+				if ( len == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					throw new DataFormatException( "truncated delta" );
+				off += len;
+			}
+			if ( off != planes.length )
+				throw new DataFormatException( "delta size mismatch" );
+		}
+		finally
+		{
+			inflater.end();
+		}
+
+		final short[] data = new short[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final int z = ( planes[ i ] & 0xff ) | ( ( planes[ n + i ] & 0xff ) << 8 );
+			final int d = ( z >>> 1 ) ^ -( z & 1 );
+			data[ i ] = ( short ) ( reference[ i ] + d );
+		}
+		return data;
+	}
+}
@@ -21,184 +21,1777 @@
  */
 package bdv.server;
 
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import javax.imageio.ImageIO;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
 import org.jdom2.Document;
 import org.jdom2.JDOMException;
 import org.jdom2.input.SAXBuilder;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
 
-import com.google.gson.GsonBuilder;
-
 import bdv.BigDataViewer;
 import bdv.cache.SharedQueue;
 import bdv.img.hdf5.Hdf5ImageLoader;
-import bdv.img.remote.AffineTransform3DJsonSerializer;
 import bdv.img.remote.RemoteImageLoader;
 import bdv.img.remote.RemoteImageLoaderMetaData;
+import bdv.server.client.BatchedRemoteImageLoader;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
+import bdv.util.SliceRenderer;
 import bdv.util.ThumbnailGenerator;
 import mpicbg.spim.data.SpimDataException;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
-import net.imglib2.img.cell.AbstractCellImg;
-import net.imglib2.img.cell.Cell;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 public class CellHandler extends ContextHandler
 {
 	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( CellHandler.class );
 
 	/**
-	 * Full path of the dataset xml file this {@link CellHandler} is serving.
+	 * Full path of the dataset xml file this {@link CellHandler} is serving.
+	 */
+	private final String xmlFilename;
+
+	/**
+	 * Full path of the dataset xml file this {@link CellHandler} is serving,
+	 * without the ".xml" suffix.
+	 */
+	private final String baseFilename;
+
+	private final String dataSetURL;
+
+	/**
+	 * Name under which the dataset is served.
+	 */
+	private final String datasetName;
+
+	/**
+	 * Version of the dataset files (latest modification time), used to
+	 * validate cached data.
+	 */
+	private final long version;
+
+	/**
+	 * Cached dataset XML to be send to and opened by {@link BigDataViewer}
+	 * clients.
+	 */
+	private final EncodedResponse datasetXml;
+
+	/**
+	 * Dataset XML advertising the {@link BatchedRemoteImageLoader}, for clients
+	 * that ask for it with {@code loader=batched}.
+	 */
+	private final EncodedResponse batchedDatasetXml;
+
+	/**
+	 * Cached JSON representation of the {@link RemoteImageLoaderMetaData} to be
+	 * send to clients.
+	 */
+	private final EncodedResponse metadataJson;
+
+	/**
+	 * Cached dataset.settings XML to be send to clients. May be null if no
+	 * settings file exists for the dataset.
+	 */
+	private final EncodedResponse settingsXml;
+
+	/**
+	 * Full path to thumbnail png.
+	 */
+	private final String thumbnailFilename;
+
+	private final Hdf5ImageLoader imgLoader;
+
+	/**
+	 * The parsed dataset XML, with {@link #imgLoader}. It is only needed for
+	 * rendering, so it is loaded on demand if the {@link DatasetIndex} was up
+	 * to date.
+	 */
+	private SpimDataMinimal spimData;
+
+	private final CellAccess cells;
+
+	/**
+	 * Reads uncompressed images without the HDF5 library. May be null.
+	 */
+	private final DirectCellReader directReader;
+
+	/**
+	 * Rejects cell loads while the storage of this dataset is slow or failing.
+	 */
+	private final CircuitBreaker breaker;
+
+	/**
+	 * Limits the number of concurrent {@code /slice}, {@code /tile} and
+	 * {@code /projection} requests. See {@link #provideLimited}.
+	 */
+	private final Semaphore renderPermits = new Semaphore( Constants.DATASET_MAX_CONCURRENT_RENDERS );
+
+	/**
+	 * Limits the number of concurrent {@code /export} requests. Exports can run
+	 * for hours, so they do not share {@link #renderPermits}.
+	 */
+	private final Semaphore exportPermits = new Semaphore( Constants.DATASET_MAX_CONCURRENT_EXPORTS );
+
+	/**
+	 * Renderers for {@code /slice} requests.
+	 */
+	private final SliceRendererPool slicePool;
+
+	/**
+	 * Provides section tiles for {@code /tile} requests.
+	 */
+	private final TileProvider tileProvider;
+
+	/**
+	 * Computes projections for {@code /projection} requests.
+	 */
+	private final ProjectionProvider projectionProvider;
+
+	/**
+	 * Streams complete images for {@code /export} requests.
+	 */
+	private final VolumeExporter volumeExporter;
+
+	/**
+	 * Min/max/mean of every cell, used to answer requests for uniform cells
+	 * without loading them.
+	 */
+	private final CellStatsIndex cellStats;
+
+	/**
+	 * Pre-encoded cells written by {@link PackedCellStoreConverter}. May be
+	 * null.
+	 */
+	private final PackedCellStore packedCells;
+
+	/**
+	 * Approximate access counts of the cells of the dataset.
+	 */
+	private final AccessHeatmap heatmap;
+
+	/**
+	 * Coalesces concurrent loads of the same cell, see
+	 * {@link #provideCell(Request, HttpServletRequest, HttpServletResponse, String[], ServerEvents.CellRequest)}.
+	 * The value is the cell data with its packed encoding, which is built once
+	 * for all requests that share the load.
+	 */
+	private final SingleFlight< CellKey, CellData > cellLoads = new SingleFlight<>();
+
+	/**
+	 * Persistent cell cache shared by all datasets. May be null.
+	 */
+	private final DiskCellCache diskCellCache;
+
+	/**
+	 * Cluster this server is part of. May be null.
+	 */
+	private final Cluster cluster;
+
+	/**
+	 * Orders and limits cell loads of all datasets.
+	 */
+	private final CellRequestScheduler scheduler;
+
+	/**
+	 * Accepts WebSocket connections for {@code /stream}, see
+	 * {@link CellStreamSocket}.
+	 */
+	private final WebSocketServerFactory streamFactory;
+
+	/**
+	 * Encoded cell data, and the value of the
+	 * {@value Constants#CELL_ENCODING_HEADER} header ({@code null} for plain
+	 * big-endian unsigned shorts).
+	 */
+	private static final class EncodedCell
+	{
+		final String encoding;
+
+		final ByteBuffer data;
+
+		/**
+		 * The loaded cell, for requests that share the load. May be
+		 * {@code null} if there are none.
+		 */
+		final CellData cell;
+
+		EncodedCell( final String encoding, final byte[] data )
+		{
+			this( encoding, ByteBuffer.wrap( data ), null );
+		}
+
+		EncodedCell( final String encoding, final ByteBuffer data, final CellData cell )
+		{
+			this.encoding = encoding;
+			this.data = data;
+			this.cell = cell;
+		}
+
+		/**
+		 * Encode a loaded cell, packed if {@code pack} and the cell needs
+		 * less than 16 bits.
+		 */
+		static EncodedCell of( final CellData cell, final boolean pack )
+		{
+			final ByteBuffer packed = pack ? cell.getPacked() : null;
+			return packed != null ? new EncodedCell( "packed", packed, cell ) : new EncodedCell( null, cell.getRaw(), cell );
+		}
+	}
+
+	@FunctionalInterface
+	private interface CellLoader
+	{
+		/**
+		 * Load and encode a cell.
+		 *
+		 * @param cancelled
+		 *            to be checked at safe points. If it returns {@code true},
+		 *            the load should be abandoned.
+		 * @return the encoded cell, or {@code null} if the load was abandoned.
+		 */
+		EncodedCell load( BooleanSupplier cancelled );
+	}
+
+	@FunctionalInterface
+	private interface LimitedResponse
+	{
+		void provide() throws IOException;
+	}
+
+	public CellHandler( final String baseUrl, final String xmlFilename, final String datasetName, final String thumbnailsDirectory, final ServerResources resources ) throws SpimDataException, IOException
+	{
+		// dataSetURL property is used for providing the XML file by replace
+		// SequenceDescription>ImageLoader>baseUrl
+		this.xmlFilename = xmlFilename;
+		baseFilename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() ) : xmlFilename;
+		dataSetURL = baseUrl;
+		this.datasetName = datasetName;
+
+		// only parse the XML if the index is outdated or the images are
+		// partitioned. Otherwise everything needed is in the index.
+		final DatasetIndex loadedIndex = DatasetIndex.load( baseFilename, new File( xmlFilename ), baseUrl );
+		final DatasetIndex index;
+		if ( loadedIndex != null && loadedIndex.getHdf5File() != null )
+		{
+			index = loadedIndex;
+			imgLoader = new Hdf5ImageLoader( index.getHdf5File(), new ArrayList<>(), index.getSequenceDescription() );
+		}
+		else
+		{
+			final XmlIoSpimDataMinimal io = new XmlIoSpimDataMinimal();
+			final SpimDataMinimal loaded = io.load( xmlFilename );
+			spimData = loaded;
+			imgLoader = ( Hdf5ImageLoader ) loaded.getSequenceDescription().getImgLoader();
+			index = loadedIndex != null ? loadedIndex : DatasetIndex.build(
+					baseFilename,
+					new File( xmlFilename ),
+					loaded,
+					baseUrl,
+					batched -> buildRemoteDatasetXML( io, loaded, baseUrl, batched ).getBytes( StandardCharsets.UTF_8 ) );
+		}
+		imgLoader.setCreatedSharedQueue( new SharedQueue( 0 ) );
+		final SequenceDescriptionMinimal seq = index.getSequenceDescription();
+		version = Math.max( new File( xmlFilename ).lastModified(), imgLoader.getHdf5File().lastModified() );
+		resources.getCellMemoryCache().invalidate( datasetName, version );
+		directReader = Constants.DIRECT_HDF5_READS ? DirectCellReader.open( imgLoader.getHdf5File(), index.getDirectReadImages() ) : null;
+		breaker = new CircuitBreaker(
+				Constants.CIRCUIT_BREAKER_WINDOW,
+				Constants.CIRCUIT_BREAKER_MIN_READS,
+				Constants.CIRCUIT_BREAKER_MAX_BAD_FRACTION,
+				Constants.CIRCUIT_BREAKER_SLOW_MILLIS,
+				Constants.CIRCUIT_BREAKER_MAX_STALLED,
+				Constants.CIRCUIT_BREAKER_OPEN_MILLIS );
+		cells = new CellAccess( imgLoader, index, datasetName, version, resources.getCellMemoryCache(), resources.getDiskCellCache(), directReader, breaker );
+
+		datasetXml = new EncodedResponse( "application/xml", index.getDatasetXml() );
+		batchedDatasetXml = new EncodedResponse( "application/xml", index.getBatchedDatasetXml() );
+		metadataJson = new EncodedResponse( "application/json", index.getMetadataJson() );
+		final String settings = buildSettingsXML( baseFilename );
+		settingsXml = settings == null ? null : new EncodedResponse( "application/xml", settings );
+		// rendering reads cells through the image loader's own cache, which is
+		// not part of the cell memory budget. It is emptied when no render is
+		// running, so it only holds the cells of the renders in progress.
+		thumbnailFilename = createThumbnail( this::getSpimData, baseFilename, datasetName, thumbnailsDirectory );
+		imgLoader.getCacheControl().clearCache();
+		slicePool = new SliceRendererPool(
+				() -> new SliceRenderer( getSpimData(), baseFilename ),
+				Constants.SLICE_RENDERER_POOL_SIZE,
+				Constants.SLICE_RENDER_QUEUE_SIZE,
+				Constants.SLICE_RENDER_TIMEOUT_MILLIS,
+				imgLoader.getCacheControl()::clearCache );
+		tileProvider = new TileProvider(
+				cells,
+				Paths.get( thumbnailsDirectory, "tiles", datasetName ),
+				Long.toHexString( version ),
+				Constants.TILE_MEMORY_CACHE_BYTES,
+				Constants.TILE_DISK_CACHE_BYTES );
+		projectionProvider = new ProjectionProvider( cells, Constants.PROJECTION_CACHE_BYTES, Constants.PROJECTION_MAX_SIZE, Constants.PROJECTION_TIMEOUT_MILLIS );
+		volumeExporter = new VolumeExporter( cells );
+		cellStats = new CellStatsIndex( cells, breaker, seq, Paths.get( thumbnailsDirectory, "cellstats", datasetName + ".cellstats" ), version );
+		final Path packedCellsDirectory = PackedCellStore.getDefaultDirectory( baseFilename );
+		if ( Files.isDirectory( packedCellsDirectory ) )
+		{
+			LOG.info( "Dataset \"" + datasetName + "\": serving cells from packed cell store " + packedCellsDirectory );
+			packedCells = new PackedCellStore( packedCellsDirectory, version );
+		}
+		else
+			packedCells = null;
+		heatmap = AccessHeatmap.open( Paths.get( thumbnailsDirectory, "heatmaps", datasetName + ".heatmap" ), datasetName, version );
+		heatmap.warmUp( cells, breaker, Constants.ACCESS_HEATMAP_WARMUP_CELLS );
+		diskCellCache = resources.getDiskCellCache();
+		cluster = resources.getCluster();
+		scheduler = resources.getCellRequestScheduler();
+
+		final ViewRegistrations registrations = index.getViewRegistrations();
+		streamFactory = new WebSocketServerFactory( getServletContext() );
+		streamFactory.setCreator( ( req, resp ) -> new CellStreamSocket(
+				datasetName,
+				version,
+				cells,
+				registrations,
+				scheduler,
+				packedCells,
+				diskCellCache,
+				heatmap,
+				cellLoads,
+				breaker,
+				getClientId( req.getHttpServletRequest() ) ) );
+		addBean( streamFactory );
+	}
+
+	@Override
+	public void doHandle( final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		if ( target.equals( "/settings" ) )
+		{
+			if ( settingsXml != null )
+				respondWithDocument( "settings", settingsXml, baseRequest, request, response );
+			return;
+		}
+
+		if ( target.equals( "/png" ) )
+		{
+			provideThumbnail( baseRequest, response );
+			return;
+		}
+
+		if ( target.equals( "/slice" ) )
+		{
+			provideLimited( baseRequest, response, renderPermits, () -> provideSlice( baseRequest, request, response ) );
+			return;
+		}
+
+		if ( target.startsWith( "/tile/" ) )
+		{
+			provideLimited( baseRequest, response, renderPermits, () -> provideTile( baseRequest, target, request, response ) );
+			return;
+		}
+
+		if ( target.equals( "/projection" ) )
+		{
+			provideLimited( baseRequest, response, renderPermits, () -> provideProjection( baseRequest, request, response ) );
+			return;
+		}
+
+		if ( target.equals( "/export" ) )
+		{
+			provideLimited( baseRequest, response, exportPermits, () -> provideExport( baseRequest, request, response ) );
+			return;
+		}
+
+		if ( target.equals( "/stream" ) )
+		{
+			if ( streamFactory.isUpgradeRequest( request, response ) && streamFactory.acceptWebSocket( request, response ) )
+				baseRequest.setHandled( true );
+			else if ( !response.isCommitted() )
+				respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, "expected a WebSocket upgrade request" );
+			return;
+		}
+
+		final String cellString = request.getParameter( "p" );
+
+		if ( cellString == null )
+		{
+			if ( "batched".equals( request.getParameter( "loader" ) ) )
+				respondWithDocument( "xml", batchedDatasetXml, baseRequest, request, response );
+			else
+				respondWithDocument( "xml", datasetXml, baseRequest, request, response );
+			return;
+		}
+
+		final String[] parts = cellString.split( "/" );
+		final ServerEvents.CellRequest event = new ServerEvents.CellRequest();
+		event.begin();
+		if ( parts[ 0 ].equals( "cell" ) )
+		{
+			provideCell( baseRequest, request, response, parts, event );
+		}
+		else if ( parts[ 0 ].equals( "cells" ) )
+		{
+			provideCells( baseRequest, request, response, parts, event );
+		}
+		else if ( parts[ 0 ].equals( "init" ) )
+		{
+			response.setHeader( Constants.SERVER_CAPABILITIES_HEADER, Constants.CAPABILITY_CELL_BATCHES );
+			respondWithDocument( "init", metadataJson, baseRequest, request, response );
+		}
+		else if ( parts[ 0 ].equals( "celldelta" ) )
+		{
+			provideCellDelta( baseRequest, request, response, parts, event );
+		}
+		else if ( parts[ 0 ].equals( "cellstats" ) )
+		{
+			provideCellStats( baseRequest, response, parts );
+		}
+		finishWhenComplete( event, baseRequest, request, response );
+	}
+
+	/**
+	 * Respond with a metadata document and record a
+	 * {@link ServerEvents.MetadataRequest}.
+	 */
+	private void respondWithDocument( final String document, final EncodedResponse encoded, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		final ServerEvents.MetadataRequest event = new ServerEvents.MetadataRequest();
+		event.begin();
+		encoded.respond( baseRequest, request, response );
+		event.finish( datasetName, document, response.getStatus(), baseRequest.getHttpChannel().getBytesWritten() );
+	}
+
+	/**
+	 * Finish a {@link ServerEvents.CellRequest} when the response is complete,
+	 * which for suspended requests is after {@code doHandle} returns.
+	 */
+	private static void finishWhenComplete( final ServerEvents.CellRequest event, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response )
+	{
+		if ( !event.isEnabled() )
+			return;
+		if ( !request.isAsyncStarted() )
+		{
+			event.finish( response.getStatus(), baseRequest.getHttpChannel().getBytesWritten() );
+			return;
+		}
+		request.getAsyncContext().addListener( new AsyncListener()
+		{
+			@Override
+			public void onComplete( final AsyncEvent e ) throws IOException
+			{
+				event.finish( response.getStatus(), baseRequest.getHttpChannel().getBytesWritten() );
+			}
+
+			@Override
+			public void onTimeout( final AsyncEvent e ) throws IOException
+			{}
+
+			@Override
+			public void onError( final AsyncEvent e ) throws IOException
+			{}
+
+			@Override
+			public void onStartAsync( final AsyncEvent e ) throws IOException
+			{}
+		} );
+	}
+
+	/**
+	 * Provide the data of one cell. The request is
+	 * {@code p=cell/<index>/<timepoint>/<setup>/<level>/...}.
+	 * <p>
+	 * If the client lists {@code constant} in the
+	 * {@value Constants#ACCEPT_CELL_ENCODING_HEADER} request header and the
+	 * cell is known to be uniform, the cell is not loaded. Instead, the
+	 * response has {@value Constants#CELL_ENCODING_HEADER}{@code : constant}
+	 * and contains only the value of the cell as one big-endian unsigned short.
+	 * <p>
+	 * If the client lists {@code packed} in the
+	 * {@value Constants#ACCEPT_CELL_ENCODING_HEADER} request header, cells whose
+	 * values fit into less than 16 bits are sent with
+	 * {@value Constants#CELL_ENCODING_HEADER}{@code : packed}, packed by
+	 * {@link BitPackedCellCodec}.
+	 * <p>
+	 * If this server is part of a {@link Cluster} and another node owns the
+	 * cell, the request is forwarded to that node. Otherwise, the cell is
+	 * served from the {@link PackedCellStore} or the {@link DiskCellCache} if
+	 * possible. Cells that are loaded
+	 * from the dataset are added to the cache. Loading is scheduled by the
+	 * {@link CellRequestScheduler}, see
+	 * {@link #scheduleCellLoad(Request, HttpServletRequest, HttpServletResponse, int, SingleFlight.Flight, CellLoader)}.
+	 * <p>
+	 * Concurrent requests for the same cell (also from {@link CellStreamSocket}
+	 * sessions) share a single load: only the first request is scheduled, the
+	 * others wait for its result, see
+	 * {@link #awaitCellLoad(Request, HttpServletRequest, HttpServletResponse, boolean, SingleFlight.Flight)}.
+	 */
+	private void provideCell( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final String[] parts, final ServerEvents.CellRequest event ) throws IOException
+	{
+		final int index = Integer.parseInt( parts[ 1 ] );
+		final int timepoint = Integer.parseInt( parts[ 2 ] );
+		final int setup = Integer.parseInt( parts[ 3 ] );
+		final int level = Integer.parseInt( parts[ 4 ] );
+		event.set( "cell", datasetName, timepoint, setup, level, index, 1 );
+
+		if ( acceptsCellEncoding( request, "constant" ) )
+		{
+			final CellStatsIndex.LevelStats stats = cellStats.getStats( timepoint, setup, level );
+			if ( stats != null && stats.isConstant( index ) )
+			{
+				final byte[] buf = new byte[ 2 ];
+				ByteBuffer.wrap( buf ).putShort( ( short ) stats.getMin( index ) );
+				response.setHeader( Constants.CELL_ENCODING_HEADER, "constant" );
+				respondWithBytes( baseRequest, response, "application/octet-stream", buf );
+				return;
+			}
+		}
+
+		final boolean pack = acceptsCellEncoding( request, "packed" );
+		final CellKey key = new CellKey( datasetName, setup, timepoint, level, index );
+		if ( cluster != null && request.getHeader( Constants.FORWARDED_HEADER ) == null )
+		{
+			final String owner = cluster.getOwner( key );
+			if ( !cluster.isSelf( owner ) && cluster.forward( owner, datasetName, String.join( "/", parts ), baseRequest, request, response ) )
+				return;
+		}
+		heatmap.record( key );
+
+		if ( packedCells != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			final PackedCellStore.Cell cell = packedCells.get( timepoint, setup, level, index );
+			lookup.finish( "packed", key, cell == null ? -1 : cell.getData().remaining() );
+			if ( cell != null )
+			{
+				respondWithPackedCell( baseRequest, request, response, key, cell, pack );
+				return;
+			}
+		}
+
+		if ( diskCellCache != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			final CellData cached = diskCellCache.get( key, version );
+			lookup.finish( "disk", key, cached == null ? -1 : cached.getRaw().remaining() );
+			if ( cached != null )
+			{
+				respondWithCellData( baseRequest, response, cached, pack );
+				return;
+			}
+		}
+
+		final SingleFlight< CellKey, CellData >.Flight flight = cellLoads.join( key );
+		if ( !flight.isLeader() )
+		{
+			awaitCellLoad( baseRequest, request, response, pack, flight );
+			return;
+		}
+		scheduleCellLoad( baseRequest, request, response, level, flight, cancelled -> {
+			final CellData cell = new CellData( key, cells.getCellData( timepoint, setup, level, index ) );
+			if ( diskCellCache != null && !cells.isSynthetic( setup, level ) )
+				diskCellCache.put( key, version, cell );
+			return EncodedCell.of( cell, pack );
+		} );
+	}
+
+	/**
+	 * Provide the data of several cells of one (timepoint, setup, level). The
+	 * request is {@code p=cells/<timepoint>/<setup>/<level>/<index>,<index>,...},
+	 * with at most {@link Constants#CELL_BATCH_MAX_CELLS} cells.
+	 * <p>
+	 * For each requested cell, the response contains big-endian
+	 * {@code int index}, {@code byte encoding}, {@code int length}, and
+	 * {@code length} bytes of cell data. The encoding is
+	 * {@link Constants#CELL_BATCH_ENCODING_RAW},
+	 * {@link Constants#CELL_BATCH_ENCODING_CONSTANT} (only if the client lists
+	 * {@code constant} in the {@value Constants#ACCEPT_CELL_ENCODING_HEADER}
+	 * request header), {@link Constants#CELL_BATCH_ENCODING_PACKED} (only if the
+	 * client lists {@code packed}), or {@link Constants#CELL_BATCH_ENCODING_GZIP}
+	 * (only if the client lists {@code gzip}). Cells that are gzipped in the
+	 * {@link PackedCellStore} are sent as is, other cells are packed and/or
+	 * gzipped, whichever makes them smallest.
+	 * <p>
+	 * All cells are loaded by one load on the {@link CellRequestScheduler}, see
+	 * {@link #scheduleCellLoad(Request, HttpServletRequest, HttpServletResponse, int, SingleFlight.Flight, CellLoader)}.
+	 * <p>
+	 * If this server is part of a {@link Cluster}, a batch whose cells all
+	 * belong to another node is forwarded to that node. Otherwise the cells of
+	 * other nodes are fetched from them (see {@link #fetchRemoteCells}) and
+	 * sent before the local cells, so records are not necessarily in the
+	 * requested order.
+	 */
+	private void provideCells( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final String[] parts, final ServerEvents.CellRequest event ) throws IOException
+	{
+		final int timepoint = Integer.parseInt( parts[ 1 ] );
+		final int setup = Integer.parseInt( parts[ 2 ] );
+		final int level = Integer.parseInt( parts[ 3 ] );
+		final String[] indexStrings = parts[ 4 ].split( "," );
+		event.set( "cells", datasetName, timepoint, setup, level, -1, indexStrings.length );
+		if ( indexStrings.length > Constants.CELL_BATCH_MAX_CELLS )
+		{
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, "too many cells" );
+			return;
+		}
+		int[] indices = new int[ indexStrings.length ];
+		for ( int i = 0; i < indices.length; ++i )
+			indices[ i ] = Integer.parseInt( indexStrings[ i ] );
+
+		final List< byte[] > remoteRecords = new ArrayList<>();
+		if ( cluster != null && request.getHeader( Constants.FORWARDED_HEADER ) == null )
+		{
+			indices = fetchRemoteCells( baseRequest, request, response, parts, timepoint, setup, level, indices, remoteRecords );
+			if ( indices == null )
+				return;
+			if ( indices.length == 0 )
+			{
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				for ( final byte[] records : remoteRecords )
+					bos.write( records );
+				respondWithBytes( baseRequest, response, "application/octet-stream", bos.toByteArray() );
+				return;
+			}
+		}
+		final int[] localIndices = indices;
+
+		final CellStatsIndex.LevelStats stats = acceptsCellEncoding( request, "constant" ) ? cellStats.getStats( timepoint, setup, level ) : null;
+		final boolean pack = acceptsCellEncoding( request, "packed" );
+		final boolean gzip = acceptsCellEncoding( request, "gzip" );
+
+		scheduleCellLoad( baseRequest, request, response, level, null, cancelled -> {
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream( bos );
+			try
+			{
+				for ( final byte[] records : remoteRecords )
+					out.write( records );
+				for ( final int index : localIndices )
+				{
+					if ( cancelled.getAsBoolean() )
+						return null;
+					writeBatchedCell( out, timepoint, setup, level, index, stats, pack, gzip );
+				}
+				out.flush();
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+			return new EncodedCell( null, bos.toByteArray() );
+		} );
+	}
+
+	/**
+	 * Route the cells of a {@code p=cells} request in a {@link Cluster}. If all
+	 * cells belong to one other node, the request is forwarded to it.
+	 * Otherwise, the cells of each other node are fetched from it as one
+	 * batch, and their records are added to {@code remoteRecords}. Cells of
+	 * unreachable nodes are served locally. If another node answers with an
+	 * error, the request is answered with that error.
+	 *
+	 * @return the indices of the cells to serve locally, or {@code null} if
+	 *         the request has been answered.
+	 */
+	private int[] fetchRemoteCells( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final String[] parts, final int timepoint, final int setup, final int level, final int[] indices, final List< byte[] > remoteRecords ) throws IOException
+	{
+		final Map< String, List< Integer > > byOwner = new LinkedHashMap<>();
+		for ( final int index : indices )
+			byOwner.computeIfAbsent( cluster.getOwner( new CellKey( datasetName, setup, timepoint, level, index ) ), k -> new ArrayList<>() ).add( index );
+
+		if ( byOwner.size() == 1 )
+		{
+			final String owner = byOwner.keySet().iterator().next();
+			if ( cluster.isSelf( owner ) || !cluster.forward( owner, datasetName, String.join( "/", parts ), baseRequest, request, response ) )
+				return indices;
+			return null;
+		}
+
+		final List< Integer > local = new ArrayList<>();
+		for ( final Map.Entry< String, List< Integer > > e : byOwner.entrySet() )
+		{
+			final String owner = e.getKey();
+			final List< Integer > ownerIndices = e.getValue();
+			if ( cluster.isSelf( owner ) )
+			{
+				local.addAll( ownerIndices );
+				continue;
+			}
+			final StringJoiner joiner = new StringJoiner( "," );
+			for ( final int index : ownerIndices )
+				joiner.add( Integer.toString( index ) );
+			final Cluster.Reply reply = cluster.fetch( owner, datasetName, String.format( "cells/%d/%d/%d/%s", timepoint, setup, level, joiner ), request );
+			if ( reply == null )
+				local.addAll( ownerIndices );
+			else if ( reply.getStatus() != HttpServletResponse.SC_OK )
+			{
+				if ( reply.getRetryAfter() != null )
+					response.setHeader( "Retry-After", reply.getRetryAfter() );
+				respondWithError( baseRequest, response, reply.getStatus(), "cluster node " + owner + " responded with status " + reply.getStatus() );
+				return null;
+			}
+			else
+				remoteRecords.add( reply.getData() );
+		}
+
+		final int[] localIndices = new int[ local.size() ];
+		for ( int i = 0; i < localIndices.length; ++i )
+			localIndices[ i ] = local.get( i );
+		return localIndices;
+	}
+
+	/**
+	 * Write one cell of a {@code p=cells} response, from the
+	 * {@link PackedCellStore} or the {@link DiskCellCache} if possible.
+	 * Concurrent loads of the same cell are coalesced by {@link #cellLoads}.
+	 *
+	 * @param stats
+	 *            statistics of the level, or {@code null} if the client does
+	 *            not accept constant cells.
+	 * @param pack
+	 *            whether the client accepts packed cells.
+	 * @param gzip
+	 *            whether the client accepts gzipped cells.
+	 */
+	private void writeBatchedCell( final DataOutputStream out, final int timepoint, final int setup, final int level, final int index, final CellStatsIndex.LevelStats stats, final boolean pack, final boolean gzip ) throws IOException
+	{
+		out.writeInt( index );
+		if ( stats != null && stats.isConstant( index ) )
+		{
+			out.writeByte( Constants.CELL_BATCH_ENCODING_CONSTANT );
+			out.writeInt( 2 );
+			out.writeShort( stats.getMin( index ) );
+			return;
+		}
+
+		final CellKey key = new CellKey( datasetName, setup, timepoint, level, index );
+		heatmap.record( key );
+
+		if ( packedCells != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			final PackedCellStore.Cell cell = packedCells.get( timepoint, setup, level, index );
+			lookup.finish( "packed", key, cell == null ? -1 : cell.getData().remaining() );
+			if ( cell != null )
+			{
+				if ( !cell.isGzipped() )
+					writeBatchedCellData( out, key, new CellData( key, cell.getData() ), pack, false );
+				else if ( gzip )
+					writeBatchedCellData( out, Constants.CELL_BATCH_ENCODING_GZIP, cell.getData() );
+				else
+					writeBatchedCellData( out, Constants.CELL_BATCH_ENCODING_RAW, ByteBuffer.wrap( gunzip( key, cell ) ) );
+				return;
+			}
+		}
+
+		CellData data = null;
+		if ( diskCellCache != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			data = diskCellCache.get( key, version );
+			lookup.finish( "disk", key, data == null ? -1 : data.getRaw().remaining() );
+		}
+		if ( data == null )
+		{
+			data = cellLoads.get( key, () -> {
+				final CellData cell = new CellData( key, cells.getCellData( timepoint, setup, level, index ) );
+				if ( diskCellCache != null && !cells.isSynthetic( setup, level ) )
+					diskCellCache.put( key, version, cell );
+				return cell;
+			} );
+		}
+
+		writeBatchedCellData( out, key, data, pack, gzip );
+	}
+
+	/**
+	 * Write unencoded cell data of a {@code p=cells} response, packed and/or
+	 * gzipped, whichever makes it smallest.
+	 */
+	private void writeBatchedCellData( final DataOutputStream out, final CellKey key, final CellData cell, final boolean pack, final boolean gzip ) throws IOException
+	{
+		final ByteBuffer data = cell.getRaw();
+		int encoding = Constants.CELL_BATCH_ENCODING_RAW;
+		ByteBuffer encoded = data;
+		if ( pack )
+		{
+			final ByteBuffer packed = cell.getPacked();
+			if ( packed != null )
+			{
+				encoding = Constants.CELL_BATCH_ENCODING_PACKED;
+				encoded = packed;
+			}
+		}
+		if ( gzip )
+		{
+			final ServerEvents.Compression compression = new ServerEvents.Compression();
+			compression.begin();
+			final byte[] gz = gzip( data.duplicate() );
+			compression.finish( "gzip", key, data.remaining(), gz.length );
+			if ( gz.length < encoded.remaining() )
+			{
+				encoding = Constants.CELL_BATCH_ENCODING_GZIP;
+				encoded = ByteBuffer.wrap( gz );
+			}
+		}
+		writeBatchedCellData( out, encoding, encoded );
+	}
+
+	private static void writeBatchedCellData( final DataOutputStream out, final int encoding, final ByteBuffer data ) throws IOException
+	{
+		out.writeByte( encoding );
+		out.writeInt( data.remaining() );
+		if ( data.hasArray() )
+			out.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+		else
+		{
+			final byte[] buf = new byte[ data.remaining() ];
+			data.duplicate().get( buf );
+			out.write( buf );
+		}
+	}
+
+	/**
+	 * Decompress a gzipped cell from the {@link PackedCellStore}.
+	 */
+	static byte[] gunzip( final CellKey key, final PackedCellStore.Cell cell ) throws IOException
+	{
+		final ServerEvents.Compression compression = new ServerEvents.Compression();
+		compression.begin();
+		final byte[] raw = cell.getRawBytes();
+		compression.finish( "gunzip", key, cell.getData().remaining(), raw.length );
+		return raw;
+	}
+
+	private static byte[] gzip( final ByteBuffer data ) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( data.remaining() );
+		try ( final GZIPOutputStream gz = new GZIPOutputStream( bos ) )
+		{
+			if ( data.hasArray() )
+				gz.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+			else
+			{
+				final byte[] buf = new byte[ data.remaining() ];
+				data.get( buf );
+				gz.write( buf );
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Respond with the result of a cell load that was started by another
+	 * request. The request is suspended until then, or until it times out
+	 * (after {@link Constants#CELL_REQUEST_TIMEOUT_MILLIS}). If the other
+	 * request gave up on the load, this request is answered with "503 Service
+	 * Unavailable", and the client may retry. The cell is packed if
+	 * {@code pack}, see
+	 * {@link #respondWithCellData(Request, HttpServletResponse, CellData, boolean)}.
+	 */
+	private void awaitCellLoad( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final boolean pack, final SingleFlight< CellKey, CellData >.Flight flight ) throws IOException
+	{
+		baseRequest.setHandled( true );
+		final AsyncContext async = request.startAsync();
+		async.setTimeout( Constants.CELL_REQUEST_TIMEOUT_MILLIS );
+		final AtomicBoolean done = new AtomicBoolean();
+
+		async.addListener( new AsyncListener()
+		{
+			@Override
+			public void onTimeout( final AsyncEvent event ) throws IOException
+			{
+				if ( done.compareAndSet( false, true ) )
+				{
+					response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+					respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "cell request timed out" );
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onError( final AsyncEvent event ) throws IOException
+			{
+				if ( done.compareAndSet( false, true ) )
+					async.complete();
+			}
+
+			@Override
+			public void onComplete( final AsyncEvent event ) throws IOException
+			{}
+
+			@Override
+			public void onStartAsync( final AsyncEvent event ) throws IOException
+			{}
+		} );
+
+		flight.getResult().whenCompleteAsync( ( data, failure ) -> {
+			if ( !done.compareAndSet( false, true ) )
+				return;
+			try
+			{
+				if ( failure != null )
+					respondWithError( baseRequest, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "could not load cell" );
+				else if ( data == null )
+				{
+					response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+					respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "cell request cancelled" );
+				}
+				else
+					respondWithCellData( baseRequest, response, data, pack );
+			}
+			catch ( final IOException e )
+			{
+				LOG.ignore( e );
+			}
+			finally
+			{
+				async.complete();
+			}
+		}, getServer().getThreadPool() );
+	}
+
+	/**
+	 * Send cell data. If {@code pack}, the {@link CellData#getPacked() packed
+	 * encoding} of the cell is sent unless it needs all 16 bits.
+	 */
+	private static void respondWithCellData( final Request baseRequest, final HttpServletResponse response, final CellData cell, final boolean pack ) throws IOException
+	{
+		final EncodedCell encoded = EncodedCell.of( cell, pack );
+		if ( encoded.encoding != null )
+			response.setHeader( Constants.CELL_ENCODING_HEADER, encoded.encoding );
+		respondWithBuffer( baseRequest, response, "application/octet-stream", encoded.data );
+	}
+
+	/**
+	 * Send a cell from the {@link PackedCellStore}. Gzipped cells are sent as
+	 * is if the client accepts gzip, and decompressed otherwise. Other cells
+	 * are packed if {@code pack}.
+	 */
+	private void respondWithPackedCell( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final CellKey key, final PackedCellStore.Cell cell, final boolean pack ) throws IOException
+	{
+		if ( !cell.isGzipped() )
+		{
+			respondWithCellData( baseRequest, response, new CellData( key, cell.getData() ), pack );
+			return;
+		}
+
+		response.setHeader( "Vary", "Accept-Encoding" );
+		if ( EncodedResponse.acceptsGzip( request.getHeader( "Accept-Encoding" ) ) )
+		{
+			response.setHeader( "Content-Encoding", "gzip" );
+			respondWithBuffer( baseRequest, response, "application/octet-stream", cell.getData() );
+		}
+		else
+			respondWithBytes( baseRequest, response, "application/octet-stream", gunzip( key, cell ) );
+	}
+
+	/**
+	 * Provide the data of one cell as a delta against the same cell at a
+	 * reference timepoint, which the client already holds. The request is
+	 * {@code p=celldelta/<index>/<timepoint>/<setup>/<level>/<referenceTimepoint>}.
+	 * <p>
+	 * The response has {@value Constants#CELL_ENCODING_HEADER}{@code : delta}
+	 * and contains the delta encoded by {@link CellDeltaCodec}. If the delta is
+	 * not smaller than the cell itself, the plain cell data is sent instead,
+	 * without the encoding header.
+	 * <p>
+	 * Like {@code p=cell} requests, the request is forwarded to the owner of
+	 * the cell if this server is part of a {@link Cluster}.
+	 */
+	private void provideCellDelta( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final String[] parts, final ServerEvents.CellRequest event ) throws IOException
+	{
+		final int index = Integer.parseInt( parts[ 1 ] );
+		final int timepoint = Integer.parseInt( parts[ 2 ] );
+		final int setup = Integer.parseInt( parts[ 3 ] );
+		final int level = Integer.parseInt( parts[ 4 ] );
+		final int referenceTimepoint = Integer.parseInt( parts[ 5 ] );
+		event.set( "celldelta", datasetName, timepoint, setup, level, index, 1 );
+		final CellKey key = new CellKey( datasetName, setup, timepoint, level, index );
+		if ( cluster != null && request.getHeader( Constants.FORWARDED_HEADER ) == null )
+		{
+			final String owner = cluster.getOwner( key );
+			if ( !cluster.isSelf( owner ) && cluster.forward( owner, datasetName, String.join( "/", parts ), baseRequest, request, response ) )
+				return;
+		}
+		heatmap.record( key );
+
+		scheduleCellLoad( baseRequest, request, response, level, null, cancelled -> {
+			final short[] data = cells.getCellData( timepoint, setup, level, index );
+			if ( cancelled.getAsBoolean() )
+				return null;
+			final short[] reference = cells.getCellData( referenceTimepoint, setup, level, index );
+			if ( reference.length == data.length )
+			{
+				final ServerEvents.Compression compression = new ServerEvents.Compression();
+				compression.begin();
+				final byte[] delta = CellDeltaCodec.encode( reference, data );
+				compression.finish( "delta", key, 2L * data.length, delta.length );
+				if ( delta.length < 2 * data.length )
+					return new EncodedCell( "delta", delta );
+			}
+			return new EncodedCell( null, toBytes( data ) );
+		} );
+	}
+
+	/**
+	 * Provide min/max/mean of all cells of one (timepoint, setup, level). The
+	 * request is {@code p=cellstats/<timepoint>/<setup>/<level>}. The response
+	 * contains big-endian {@code int numCells}, followed by {@code numCells}
+	 * unsigned shorts minimum, {@code numCells} unsigned shorts maximum, and
+	 * {@code numCells} floats mean, indexed by flattened cell index.
+	 * <p>
+	 * While the index is being built, requests for statistics that are not yet
+	 * available are answered with "503 Service Unavailable".
+	 */
+	private void provideCellStats( final Request baseRequest, final HttpServletResponse response, final String[] parts ) throws IOException
+	{
+		final int timepoint = Integer.parseInt( parts[ 1 ] );
+		final int setup = Integer.parseInt( parts[ 2 ] );
+		final int level = Integer.parseInt( parts[ 3 ] );
+
+		final CellStatsIndex.LevelStats stats = cellStats.getStats( timepoint, setup, level );
+		if ( stats == null )
+		{
+			if ( cellStats.isComplete() )
+				respondWithError( baseRequest, response, HttpServletResponse.SC_NOT_FOUND, "no such image" );
+			else
+			{
+				response.setHeader( "Retry-After", "60" );
+				respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "cell statistics not available yet" );
+			}
+			return;
+		}
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( 4 + 8 * stats.numCells() );
+		final DataOutputStream out = new DataOutputStream( bos );
+		stats.write( out );
+		out.flush();
+		respondWithBytes( baseRequest, response, "application/octet-stream", bos.toByteArray() );
+	}
+
+	/**
+	 * Run a cell load on the {@link CellRequestScheduler} and respond with its
+	 * result. The request is suspended until then.
+	 * <p>
+	 * The load is cancelled if the request times out (after
+	 * {@link Constants#CELL_REQUEST_TIMEOUT_MILLIS}) or fails, and abandoned at
+	 * the next safe point if the connection is known to be closed. If the
+	 * {@link CircuitBreaker} of the dataset is open, the scheduler rejects the
+	 * load, or the request times out, the request is answered with "503
+	 * Service Unavailable".
+	 * <p>
+	 * Note that Jetty does not read from the connection of a suspended request,
+	 * so a client closing the connection is usually only noticed when the
+	 * response is written (or by another failing write on the connection),
+	 * not while the load is waiting. Registering read interest ourselves is
+	 * not an option, because it would consume pipelined requests. In practice,
+	 * loads of clients that have gone away are therefore mostly cancelled by
+	 * the timeout. Clients that want to withdraw requests promptly should use
+	 * the {@code /stream} endpoint ({@link CellStreamSocket}), which cancels
+	 * loads on viewport changes and detects closed sessions.
+	 * <p>
+	 * If {@code flight} is not {@code null}, it is completed with the loaded
+	 * cell ({@link EncodedCell#cell}), or with {@code null}
+	 * if the load is abandoned. While other requests are waiting for the
+	 * flight, the load is not abandoned when this request's connection is
+	 * closed.
+	 */
+	private void scheduleCellLoad( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response, final int level, final SingleFlight< CellKey, CellData >.Flight flight, final CellLoader loader ) throws IOException
+	{
+		if ( !breaker.allowRequest() )
+		{
+			if ( flight != null )
+				flight.complete( null );
+			response.setHeader( "Retry-After", Integer.toString( breaker.getRetryAfterSeconds() ) );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "dataset unavailable" );
+			return;
+		}
+
+		baseRequest.setHandled( true );
+		final AsyncContext async = request.startAsync();
+		async.setTimeout( Constants.CELL_REQUEST_TIMEOUT_MILLIS );
+		final EndPoint endPoint = baseRequest.getHttpChannel().getEndPoint();
+
+		final CellRequestScheduler.CellLoad load = new CellRequestScheduler.CellLoad()
+		{
+			/**
+			 * Safe point: cancel the load if the connection has been closed.
+			 * This only catches connections that Jetty has already found
+			 * closed, see the limitation documented above.
+			 */
+			private boolean abandoned()
+			{
+				if ( !endPoint.isOpen() && ( flight == null || !flight.hasFollowers() ) && cancel() )
+					async.complete();
+				return isCancelled();
+			}
+
+			@Override
+			public void run()
+			{
+				if ( abandoned() )
+					return;
+				if ( flight != null )
+					flight.start();
+
+				final EncodedCell cell;
+				try
+				{
+					cell = loader.load( this::abandoned );
+				}
+				catch ( final RuntimeException e )
+				{
+					if ( flight != null )
+						flight.fail( e );
+					if ( finish() )
+					{
+						LOG.warn( "Could not load cell", e );
+						try
+						{
+							respondWithError( baseRequest, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "could not load cell" );
+						}
+						catch ( final IOException ioe )
+						{
+							LOG.ignore( ioe );
+						}
+						finally
+						{
+							async.complete();
+						}
+					}
+					return;
+				}
+
+				if ( flight != null && cell != null )
+					flight.complete( cell.cell );
+				if ( cell == null || abandoned() || !finish() )
+					return;
+				try
+				{
+					if ( cell.encoding != null )
+						response.setHeader( Constants.CELL_ENCODING_HEADER, cell.encoding );
+					respondWithBuffer( baseRequest, response, "application/octet-stream", cell.data );
+				}
+				catch ( final IOException e )
+				{
+					LOG.ignore( e );
+				}
+				finally
+				{
+					async.complete();
+				}
+			}
+		};
+
+		async.addListener( new AsyncListener()
+		{
+			@Override
+			public void onTimeout( final AsyncEvent event ) throws IOException
+			{
+				if ( load.cancel() )
+				{
+					response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+					respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "cell request timed out" );
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onError( final AsyncEvent event ) throws IOException
+			{
+				if ( load.cancel() )
+					async.complete();
+			}
+
+			@Override
+			public void onComplete( final AsyncEvent event ) throws IOException
+			{
+				if ( flight != null )
+					flight.complete( null );
+			}
+
+			@Override
+			public void onStartAsync( final AsyncEvent event ) throws IOException
+			{}
+		} );
+
+		if ( !scheduler.submit( datasetName, getClientId( request ), level, load ) )
+		{
+			if ( flight != null )
+				flight.complete( null );
+			response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "server busy" );
+			async.complete();
+		}
+	}
+
+	/**
+	 * Identify the client for fair scheduling: by the
+	 * {@value Constants#CLIENT_ID_HEADER} header if present, otherwise by its
+	 * address.
+	 */
+	static String getClientId( final HttpServletRequest request )
+	{
+		final String id = request.getHeader( Constants.CLIENT_ID_HEADER );
+		return id != null ? id : request.getRemoteAddr();
+	}
+
+	/**
+	 * Whether {@code encoding} is listed in the
+	 * {@value Constants#ACCEPT_CELL_ENCODING_HEADER} request header.
+	 */
+	private static boolean acceptsCellEncoding( final HttpServletRequest request, final String encoding )
+	{
+		final String accepted = request.getHeader( Constants.ACCEPT_CELL_ENCODING_HEADER );
+		if ( accepted == null )
+			return false;
+		for ( final String e : accepted.split( "," ) )
+			if ( e.trim().equals( encoding ) )
+				return true;
+		return false;
+	}
+
+	private void provideThumbnail( final Request baseRequest, final HttpServletResponse response ) throws IOException
+	{
+		final Path path = Paths.get( thumbnailFilename );
+		if ( Files.exists( path ) )
+		{
+			final byte[] imageData = Files.readAllBytes(path);
+			if ( imageData != null )
+			{
+				response.setContentType( "image/png" );
+				response.setContentLength( imageData.length );
+				response.setStatus( HttpServletResponse.SC_OK );
+				baseRequest.setHandled( true );
+
+				final OutputStream os = response.getOutputStream();
+				os.write( imageData );
+				os.close();
+			}
+		}
+	}
+
+	/**
+	 * Provide a response that reads image data outside the
+	 * {@link CellRequestScheduler}, if the storage of the dataset is available
+	 * and a permit for this kind of request is free. Otherwise, respond with
+	 * "503 Service Unavailable".
 	 */
-	private final String xmlFilename;
+	private void provideLimited( final Request baseRequest, final HttpServletResponse response, final Semaphore permits, final LimitedResponse limited ) throws IOException
+	{
+		if ( !breaker.allowRequest() )
+		{
+			response.setHeader( "Retry-After", Integer.toString( breaker.getRetryAfterSeconds() ) );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "dataset unavailable" );
+			return;
+		}
+		if ( !permits.tryAcquire() )
+		{
+			response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many requests" );
+			return;
+		}
+		try
+		{
+			limited.provide();
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
 
 	/**
-	 * Full path of the dataset xml file this {@link CellHandler} is serving,
-	 * without the ".xml" suffix.
+	 * Provide a section tile. The target is
+	 * {@code /tile/<plane>/<setup>/<timepoint>/<slice>/<z>/<x>/<y>.png}, where
+	 * {@code plane} is one of {@code xy}, {@code xz}, {@code yz}, {@code slice}
+	 * is the position of the section in full resolution voxel coordinates, and
+	 * {@code z} is the zoom level (0 is the coarsest mipmap level). See
+	 * {@link TileProvider}.
 	 */
-	private final String baseFilename;
+	private void provideTile( final Request baseRequest, final String target, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		final String[] parts = target.substring( "/tile/".length() ).split( "/" );
+		if ( parts.length != 7 || !parts[ 6 ].endsWith( ".png" ) )
+		{
+			respondWithError( baseRequest, response, HttpServletResponse.SC_NOT_FOUND, "invalid tile path" );
+			return;
+		}
 
-	private final String dataSetURL;
+		final TileProvider.Tile tile;
+		try
+		{
+			final Plane plane = Plane.valueOf( parts[ 0 ].toUpperCase() );
+			final int setup = Integer.parseInt( parts[ 1 ] );
+			final int timepoint = Integer.parseInt( parts[ 2 ] );
+			final long slice = Long.parseLong( parts[ 3 ] );
+			final int zoom = Integer.parseInt( parts[ 4 ] );
+			final long x = Long.parseLong( parts[ 5 ] );
+			final long y = Long.parseLong( parts[ 6 ].substring( 0, parts[ 6 ].length() - ".png".length() ) );
+			tile = tileProvider.getTile( plane, setup, timepoint, zoom, slice, x, y );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			// NB: NumberFormatException is an IllegalArgumentException
+			respondWithError( baseRequest, response, HttpServletResponse.SC_NOT_FOUND, e.getMessage() );
+			return;
+		}
+		if ( tile == null )
+		{
+			respondWithError( baseRequest, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "could not render tile" );
+			return;
+		}
 
-	/**
-	 * Cached dataset XML to be send to and opened by {@link BigDataViewer}
-	 * clients.
-	 */
-	private final String datasetXmlString;
+		response.setHeader( "ETag", tile.getETag() );
+		if ( tile.getETag().equals( request.getHeader( "If-None-Match" ) ) )
+		{
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+			baseRequest.setHandled( true );
+			return;
+		}
+		respondWithBytes( baseRequest, response, "image/png", tile.getData() );
+	}
 
 	/**
-	 * Cached JSON representation of the {@link RemoteImageLoaderMetaData} to be
-	 * send to clients.
+	 * Provide a projection of a (setup, timepoint, level) image along one
+	 * axis. Request parameters:
+	 * <ul>
+	 * <li>{@code setup}: setup id (default 0).</li>
+	 * <li>{@code t}: timepoint index (default 0).</li>
+	 * <li>{@code level}: mipmap level (default 0).</li>
+	 * <li>{@code axis}: projection axis, one of {@code x}, {@code y}, {@code z}
+	 * (default {@code z}).</li>
+	 * <li>{@code mode}: one of {@code max}, {@code mean}, {@code sum} (default
+	 * {@code max}).</li>
+	 * <li>{@code from}, {@code to}: range along the projection axis in voxel
+	 * coordinates of {@code level}, inclusive (default all).</li>
+	 * <li>{@code format}: {@code png} (16-bit grayscale, values are clamped) or
+	 * {@code raw} (float32, big-endian, X varying fastest) (default
+	 * {@code png}).</li>
+	 * </ul>
+	 * The width and height of the result are sent in the
+	 * {@code X-Projection-Width} and {@code X-Projection-Height} headers.
+	 * Projections larger than {@link Constants#PROJECTION_MAX_SIZE} are
+	 * rejected with "400 Bad Request". If the projection is not computed
+	 * within {@link Constants#PROJECTION_TIMEOUT_MILLIS}, the request is
+	 * answered with "503 Service Unavailable".
 	 */
-	private final String metadataJson;
+	private void provideProjection( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		final ProjectionProvider.Projection projection;
+		final String format;
+		try
+		{
+			final int setup = getIntParameter( request, "setup", 0 );
+			final int timepoint = getIntParameter( request, "t", 0 );
+			final int level = getIntParameter( request, "level", 0 );
+			final String axis = request.getParameter( "axis" ) == null ? "z" : request.getParameter( "axis" );
+			final String mode = request.getParameter( "mode" ) == null ? "max" : request.getParameter( "mode" );
+			final long from = getLongParameter( request, "from", 0 );
+			final long to = getLongParameter( request, "to", Long.MAX_VALUE );
+			format = request.getParameter( "format" ) == null ? "png" : request.getParameter( "format" );
+			if ( !format.equals( "png" ) && !format.equals( "raw" ) )
+				throw new IllegalArgumentException( "unknown format \"" + format + "\"" );
+			projection = projectionProvider.getProjection( setup, timepoint, level,
+					Plane.normalTo( axis ),
+					ProjectionProvider.Mode.valueOf( mode.toUpperCase() ),
+					from, to );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+			return;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "interrupted" );
+			return;
+		}
+		catch ( final TimeoutException e )
+		{
+			response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "projection timed out" );
+			return;
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof TimeoutException )
+			{
+				// the computation this request joined timed out
+				response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+				respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "projection timed out" );
+				return;
+			}
+			LOG.warn( "Projection failed", e.getCause() );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "projection failed" );
+			return;
+		}
 
-	/**
-	 * Cached dataset.settings XML to be send to clients. May be null if no
-	 * settings file exists for the dataset.
-	 */
-	private final String settingsXmlString;
+		final int w = projection.getWidth();
+		final int h = projection.getHeight();
+		final float[] values = projection.getValues();
+		final byte[] data;
+		final String contentType;
+		if ( format.equals( "raw" ) )
+		{
+			data = new byte[ 4 * values.length ];
+			ByteBuffer.wrap( data ).asFloatBuffer().put( values );
+			contentType = "application/octet-stream";
+		}
+		else
+		{
+			final BufferedImage img = new BufferedImage( w, h, BufferedImage.TYPE_USHORT_GRAY );
+			final short[] pixels = ( ( DataBufferUShort ) img.getRaster().getDataBuffer() ).getData();
+			for ( int i = 0; i < values.length; ++i )
+				pixels[ i ] = ( short ) Math.min( 0xffff, Math.max( 0, Math.round( values[ i ] ) ) );
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ImageIO.write( img, "png", bos );
+			data = bos.toByteArray();
+			contentType = "image/png";
+		}
+		response.setHeader( "X-Projection-Width", Integer.toString( w ) );
+		response.setHeader( "X-Projection-Height", Integer.toString( h ) );
+		respondWithBytes( baseRequest, response, contentType, data );
+	}
 
 	/**
-	 * Full path to thumbnail png.
+	 * Stream a complete image. Request parameters:
+	 * <ul>
+	 * <li>{@code setup}: setup id (default 0).</li>
+	 * <li>{@code t}: timepoint index (default 0).</li>
+	 * <li>{@code level}: mipmap level (default 0).</li>
+	 * <li>{@code format}: {@code cells} (cell by cell, with a header) or
+	 * {@code raw} (one contiguous array), see {@link VolumeExporter.Format}
+	 * (default {@code cells}).</li>
+	 * </ul>
+	 * The image and cell dimensions are also sent in the
+	 * {@code X-Export-Dimensions} and {@code X-Export-Cell-Dimensions} headers,
+	 * as comma-separated values. At most
+	 * {@link Constants#EXPORT_MAX_CONCURRENT} exports run at a time; further
+	 * requests are answered with "503 Service Unavailable".
+	 * <p>
+	 * If reading a cell fails while streaming, the connection is aborted, so
+	 * the client receives fewer bytes than announced by
+	 * {@code Content-Length}.
 	 */
-	private final String thumbnailFilename;
-
-	private final Hdf5ImageLoader imgLoader;
-
-	public CellHandler( final String baseUrl, final String xmlFilename, final String datasetName, final String thumbnailsDirectory ) throws SpimDataException, IOException
+	private void provideExport( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
 	{
-		final XmlIoSpimDataMinimal io = new XmlIoSpimDataMinimal();
-		final SpimDataMinimal spimData = io.load( xmlFilename );
-		final SequenceDescriptionMinimal seq = spimData.getSequenceDescription();
-		imgLoader = ( Hdf5ImageLoader ) seq.getImgLoader();
-		imgLoader.setCreatedSharedQueue( new SharedQueue( 0 ) );
+		final int setup;
+		final int timepoint;
+		final int level;
+		final VolumeExporter.Format format;
+		final CellGrid grid;
+		try
+		{
+			setup = getIntParameter( request, "setup", 0 );
+			timepoint = getIntParameter( request, "t", 0 );
+			level = getIntParameter( request, "level", 0 );
+			final String f = request.getParameter( "format" ) == null ? "cells" : request.getParameter( "format" );
+			if ( !f.equals( "cells" ) && !f.equals( "raw" ) )
+				throw new IllegalArgumentException( "unknown format \"" + f + "\"" );
+			format = VolumeExporter.Format.valueOf( f.toUpperCase() );
+			grid = volumeExporter.getCellGrid( timepoint, setup, level, format );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+			return;
+		}
 
-		// dataSetURL property is used for providing the XML file by replace
-		// SequenceDescription>ImageLoader>baseUrl
-		this.xmlFilename = xmlFilename;
-		baseFilename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() ) : xmlFilename;
-		dataSetURL = baseUrl;
+		if ( !VolumeExporter.tryAcquire() )
+		{
+			response.setHeader( "Retry-After", "60" );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many exports" );
+			return;
+		}
+		try
+		{
+			final StringJoiner dims = new StringJoiner( "," );
+			final StringJoiner cellDims = new StringJoiner( "," );
+			for ( int d = 0; d < grid.numDimensions(); ++d )
+			{
+				dims.add( Long.toString( grid.imgDimension( d ) ) );
+				cellDims.add( Integer.toString( grid.cellDimension( d ) ) );
+			}
+			response.setHeader( "X-Export-Dimensions", dims.toString() );
+			response.setHeader( "X-Export-Cell-Dimensions", cellDims.toString() );
+			response.setContentType( "application/octet-stream" );
+			response.setContentLengthLong( VolumeExporter.getContentLength( grid, format ) );
+			response.setStatus( HttpServletResponse.SC_OK );
+			baseRequest.setHandled( true );
 
-		datasetXmlString = buildRemoteDatasetXML( io, spimData, baseUrl );
-		metadataJson = buildMetadataJsonString( imgLoader, seq );
-		settingsXmlString = buildSettingsXML( baseFilename );
-		thumbnailFilename = createThumbnail( spimData, baseFilename, datasetName, thumbnailsDirectory );
+			final OutputStream os = response.getOutputStream();
+			volumeExporter.export( timepoint, setup, level, grid, format, os );
+			os.close();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final IOException e )
+		{
+			if ( e.getCause() != null && !( e.getCause() instanceof IOException ) )
+				LOG.warn( "Export of dataset \"" + datasetName + "\" failed", e.getCause() );
+			throw e;
+		}
+		finally
+		{
+			VolumeExporter.release();
+		}
 	}
 
-	@Override
-	public void doHandle( final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	/**
+	 * Render an arbitrary 2D section of the dataset. Request parameters:
+	 * <ul>
+	 * <li>{@code w}, {@code h}: size of the rendered image (default 512x512).</li>
+	 * <li>{@code t}: timepoint index (default 0).</li>
+	 * <li>{@code setups}: comma-separated ids of the visible setups (default
+	 * all).</li>
+	 * <li>{@code transform}: viewer transform, 12 comma-separated values of the
+	 * row-packed {@link AffineTransform3D} (default shows the whole
+	 * dataset).</li>
+	 * <li>{@code format}: one of {@code png}, {@code jpg}, or {@code raw} (ARGB
+	 * ints, big-endian) (default {@code png}).</li>
+	 * </ul>
+	 */
+	private void provideSlice( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
 	{
-		if ( target.equals( "/settings" ) )
+		final int width;
+		final int height;
+		final int timepoint;
+		final int[] setups;
+		final AffineTransform3D transform;
+		final String format;
+		try
+		{
+			width = getIntParameter( request, "w", 512 );
+			height = getIntParameter( request, "h", 512 );
+			timepoint = getIntParameter( request, "t", 0 );
+			setups = getIntArrayParameter( request, "setups" );
+			transform = getTransformParameter( request, "transform" );
+			format = request.getParameter( "format" ) == null ? "png" : request.getParameter( "format" );
+		}
+		catch ( final IllegalArgumentException e )
 		{
-			if ( settingsXmlString != null )
-				respondWithString( baseRequest, response, "application/xml", settingsXmlString );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
 			return;
 		}
-
-		if ( target.equals( "/png" ) )
+		if ( width <= 0 || height <= 0 || width > Constants.SLICE_MAX_SIZE || height > Constants.SLICE_MAX_SIZE )
 		{
-			provideThumbnail( baseRequest, response );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, "invalid image size" );
+			return;
+		}
+		final String contentType;
+		switch ( format )
+		{
+		case "png":
+			contentType = "image/png";
+			break;
+		case "jpg":
+		case "jpeg":
+			contentType = "image/jpeg";
+			break;
+		case "raw":
+			contentType = "application/octet-stream";
+			break;
+		default:
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, "unknown format \"" + format + "\"" );
 			return;
 		}
 
-		final String cellString = request.getParameter( "p" );
+		SliceRenderer renderer = null;
+		try
+		{
+			renderer = slicePool.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		if ( renderer == null )
+		{
+			response.setHeader( "Retry-After", "1" );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many slice requests" );
+			return;
+		}
 
-		if ( cellString == null )
+		final byte[] data;
+		try
+		{
+			final AffineTransform3D viewerTransform = transform != null ? transform : renderer.getDefaultTransform( width, height );
+			final ServerEvents.Render render = new ServerEvents.Render();
+			render.begin();
+			final BufferedImage image = renderer.render( viewerTransform, width, height, timepoint, setups );
+			render.finish( datasetName, "slice", width, height, timepoint );
+			data = encodeImage( image, format );
+		}
+		catch ( final IllegalArgumentException e )
 		{
-			respondWithString( baseRequest, response, "application/xml", datasetXmlString );
+			respondWithError( baseRequest, response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
 			return;
 		}
+		finally
+		{
+			slicePool.release( renderer );
+		}
 
-		final String[] parts = cellString.split( "/" );
-		if ( parts[ 0 ].equals( "cell" ) )
+		respondWithBytes( baseRequest, response, contentType, data );
+	}
+
+	/**
+	 * Encode a rendered image as {@code png}, {@code jpg}, or {@code raw} (ARGB
+	 * ints, big-endian).
+	 */
+	private static byte[] encodeImage( final BufferedImage image, final String format ) throws IOException
+	{
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		if ( format.equals( "raw" ) )
 		{
-			final int index = Integer.parseInt( parts[ 1 ] );
-			final int timepoint = Integer.parseInt( parts[ 2 ] );
-			final int setup = Integer.parseInt( parts[ 3 ] );
-			final int level = Integer.parseInt( parts[ 4 ] );
-
-			final RandomAccessibleInterval< ? > image = imgLoader.getSetupImgLoader( setup ).getImage( timepoint, level );
-			final AbstractCellImg< UnsignedShortType, ?, ?, ? > cellImg = ( AbstractCellImg< UnsignedShortType, ?, ?, ? > ) image;
-			final long[] gridpos = new long[ cellImg.numDimensions() ];
-			cellImg.getCellGrid().getCellGridPositionFlat( index, gridpos );
-			final Cell< ? > cell = cellImg.getCells().getAt( gridpos );
-			final short[] data = ( ( VolatileShortArray ) cell.getData() ).getCurrentStorageArray();
-			final byte[] buf = new byte[ 2 * data.length ];
-			ByteBuffer.wrap( buf ).asShortBuffer().put( data );
+			final int[] argb = image.getRGB( 0, 0, w, h, null, 0, w );
+			final byte[] buf = new byte[ 4 * argb.length ];
+			ByteBuffer.wrap( buf ).asIntBuffer().put( argb );
+			return buf;
+		}
 
-			response.setContentType( "application/octet-stream" );
-			response.setContentLength( buf.length );
-			response.setStatus( HttpServletResponse.SC_OK );
-			baseRequest.setHandled( true );
-			final OutputStream os = response.getOutputStream();
-			os.write( buf );
-			os.close();
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if ( format.equals( "png" ) )
+			ImageIO.write( image, "png", bos );
+		else
+		{
+			// JPEG has no alpha channel
+			final BufferedImage rgb = new BufferedImage( w, h, BufferedImage.TYPE_INT_RGB );
+			final Graphics2D g = rgb.createGraphics();
+			g.drawImage( image, 0, 0, null );
+			g.dispose();
+			ImageIO.write( rgb, "jpg", bos );
 		}
-		else if ( parts[ 0 ].equals( "init" ) )
+		return bos.toByteArray();
+	}
+
+	private static int getIntParameter( final HttpServletRequest request, final String name, final int defaultValue ) throws IllegalArgumentException
+	{
+		final String value = request.getParameter( name );
+		if ( value == null )
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt( value.trim() );
+		}
+		catch ( final NumberFormatException e )
 		{
-			respondWithString( baseRequest, response, "application/json", metadataJson );
+			throw new IllegalArgumentException( "invalid value for parameter \"" + name + "\"" );
 		}
 	}
 
-	private void provideThumbnail( final Request baseRequest, final HttpServletResponse response ) throws IOException
+	private static long getLongParameter( final HttpServletRequest request, final String name, final long defaultValue ) throws IllegalArgumentException
 	{
-		final Path path = Paths.get( thumbnailFilename );
-		if ( Files.exists( path ) )
+		final String value = request.getParameter( name );
+		if ( value == null )
+			return defaultValue;
+		try
 		{
-			final byte[] imageData = Files.readAllBytes(path);
-			if ( imageData != null )
-			{
-				response.setContentType( "image/png" );
-				response.setContentLength( imageData.length );
-				response.setStatus( HttpServletResponse.SC_OK );
-				baseRequest.setHandled( true );
+			return Long.parseLong( value.trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "invalid value for parameter \"" + name + "\"" );
+		}
+	}
 
-				final OutputStream os = response.getOutputStream();
-				os.write( imageData );
-				os.close();
-			}
+	/**
+	 * Parse a comma-separated list of integers.
+	 *
+	 * @return parsed values, or {@code null} if the parameter is not present.
+	 */
+	private static int[] getIntArrayParameter( final HttpServletRequest request, final String name ) throws IllegalArgumentException
+	{
+		final String value = request.getParameter( name );
+		if ( value == null )
+			return null;
+		try
+		{
+			final String[] parts = value.split( "," );
+			final int[] values = new int[ parts.length ];
+			for ( int i = 0; i < parts.length; ++i )
+				values[ i ] = Integer.parseInt( parts[ i ].trim() );
+			return values;
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "invalid value for parameter \"" + name + "\"" );
+		}
+	}
+
+	/**
+	 * Parse 12 comma-separated values of a row-packed {@link AffineTransform3D}.
+	 *
+	 * @return parsed transform, or {@code null} if the parameter is not
+	 *         present.
+	 */
+	private static AffineTransform3D getTransformParameter( final HttpServletRequest request, final String name ) throws IllegalArgumentException
+	{
+		final String value = request.getParameter( name );
+		if ( value == null )
+			return null;
+		final String[] parts = value.split( "," );
+		if ( parts.length != 12 )
+			throw new IllegalArgumentException( "parameter \"" + name + "\" must have 12 values" );
+		try
+		{
+			final double[] values = new double[ 12 ];
+			for ( int i = 0; i < 12; ++i )
+				values[ i ] = Double.parseDouble( parts[ i ].trim() );
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( values );
+			return transform;
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "invalid value for parameter \"" + name + "\"" );
 		}
 	}
 
@@ -217,32 +1810,111 @@ public class CellHandler extends ContextHandler
 		return dataSetURL + "png";
 	}
 
+	/**
+	 * Get the number of bytes held by the pre-encoded dataset XML, metadata
+	 * JSON, and settings XML.
+	 */
+	public long getEncodedResponseBytes()
+	{
+		return datasetXml.getMemoryBytes() + batchedDatasetXml.getMemoryBytes() + metadataJson.getMemoryBytes() + ( settingsXml == null ? 0 : settingsXml.getMemoryBytes() );
+	}
+
+	/**
+	 * Get the name under which the dataset is served.
+	 */
+	public String getDatasetName()
+	{
+		return datasetName;
+	}
+
+	/**
+	 * Get the packed cell store of the dataset, or {@code null} if it has
+	 * none.
+	 */
+	public PackedCellStore getPackedCellStore()
+	{
+		return packedCells;
+	}
+
+	/**
+	 * Get the reader for uncompressed images.
+	 *
+	 * @return the reader, or {@code null} if no image can be read directly.
+	 */
+	public DirectCellReader getDirectCellReader()
+	{
+		return directReader;
+	}
+
+	public CircuitBreaker getCircuitBreaker()
+	{
+		return breaker;
+	}
+
+	/**
+	 * Get the coalescing of concurrent loads of the same cell.
+	 */
+	public SingleFlight< CellKey, CellData > getCellLoads()
+	{
+		return cellLoads;
+	}
+
+	/**
+	 * Get the approximate access counts of the cells of the dataset.
+	 */
+	public AccessHeatmap getHeatmap()
+	{
+		return heatmap;
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		heatmap.close();
+		if ( packedCells != null )
+			packedCells.close();
+		if ( directReader != null )
+			directReader.close();
+		super.doStop();
+	}
+
 	public String getDescription()
 	{
 		throw new UnsupportedOperationException();
 	}
 
 	/**
-	 * Create a JSON representation of the {@link RemoteImageLoaderMetaData}
-	 * (image sizes and resolutions) provided by the given
-	 * {@link Hdf5ImageLoader}.
+	 * Get the parsed dataset XML, with {@link #imgLoader} as image loader.
+	 * Parse it if that has not happened yet.
+	 *
+	 * @throws IllegalStateException
+	 *             if the dataset XML cannot be loaded.
 	 */
-	private static String buildMetadataJsonString( final Hdf5ImageLoader imgLoader, final SequenceDescriptionMinimal seq )
+	private synchronized SpimDataMinimal getSpimData() throws IllegalStateException
 	{
-		final RemoteImageLoaderMetaData metadata = new RemoteImageLoaderMetaData( imgLoader, seq );
-		final GsonBuilder gsonBuilder = new GsonBuilder();
-		gsonBuilder.registerTypeAdapter( AffineTransform3D.class, new AffineTransform3DJsonSerializer() );
-		gsonBuilder.enableComplexMapKeySerialization();
-		return gsonBuilder.create().toJson( metadata );
+		if ( spimData == null )
+		{
+			try
+			{
+				spimData = new SpimDataMinimal( new XmlIoSpimDataMinimal().load( xmlFilename ), imgLoader );
+			}
+			catch ( final SpimDataException e )
+			{
+				throw new IllegalStateException( "Could not load dataset \"" + xmlFilename + "\"", e );
+			}
+		}
+		return spimData;
 	}
 
 	/**
 	 * Create a modified dataset XML by replacing the ImageLoader with an
-	 * {@link RemoteImageLoader} pointing to the data we are serving.
+	 * {@link RemoteImageLoader} (or a {@link BatchedRemoteImageLoader} if
+	 * {@code batched}) pointing to the data we are serving.
 	 */
-	private static String buildRemoteDatasetXML( final XmlIoSpimDataMinimal io, final SpimDataMinimal spimData, final String baseUrl ) throws IOException, SpimDataException
+	private static String buildRemoteDatasetXML( final XmlIoSpimDataMinimal io, final SpimDataMinimal spimData, final String baseUrl, final boolean batched ) throws IOException, SpimDataException
 	{
-		final SpimDataMinimal s = new SpimDataMinimal( spimData, new RemoteImageLoader( baseUrl, false ) );
+		final RemoteImageLoader imgLoader = batched ? new BatchedRemoteImageLoader( baseUrl, false ) : new RemoteImageLoader( baseUrl, false );
+		final SpimDataMinimal s = new SpimDataMinimal( spimData, imgLoader );
 		final Document doc = new Document( io.toXml( s, s.getBasePath() ) );
 		final XMLOutputter xout = new XMLOutputter( Format.getPrettyFormat() );
 		final StringWriter sw = new StringWriter();
@@ -282,13 +1954,16 @@ public class CellHandler extends ContextHandler
 	/**
 	 * Create PNG thumbnail file named "{@code <baseFilename>.png}".
 	 */
-	private static String createThumbnail( final SpimDataMinimal spimData, final String baseFilename, final String datasetName, final String thumbnailsDirectory )
+	private static String createThumbnail( final Supplier< SpimDataMinimal > spimData, final String baseFilename, final String datasetName, final String thumbnailsDirectory )
 	{
 		final String thumbnailFileName = thumbnailsDirectory + "/" + datasetName + ".png";
 		final File thumbnailFile = new File( thumbnailFileName );
 		if ( !thumbnailFile.isFile() ) // do not recreate thumbnail if it already exists
 		{
-			final BufferedImage bi = ThumbnailGenerator.makeThumbnail( spimData, baseFilename, Constants.THUMBNAIL_WIDTH, Constants.THUMBNAIL_HEIGHT );
+			final ServerEvents.Render render = new ServerEvents.Render();
+			render.begin();
+			final BufferedImage bi = ThumbnailGenerator.makeThumbnail( spimData.get(), baseFilename, Constants.THUMBNAIL_WIDTH, Constants.THUMBNAIL_HEIGHT );
+			render.finish( datasetName, "thumbnail", Constants.THUMBNAIL_WIDTH, Constants.THUMBNAIL_HEIGHT, 0 );
 			try
 			{
 				ImageIO.write( bi, "png", thumbnailFile );
@@ -303,17 +1978,50 @@ public class CellHandler extends ContextHandler
 	}
 
 	/**
-	 * Handle request by sending a UTF-8 string.
+	 * Convert cell data to big-endian unsigned shorts.
+	 */
+	private static byte[] toBytes( final short[] data )
+	{
+		final byte[] buf = new byte[ 2 * data.length ];
+		ByteBuffer.wrap( buf ).asShortBuffer().put( data );
+		return buf;
+	}
+
+	/**
+	 * Handle request by sending a byte array.
+	 */
+	private static void respondWithBytes( final Request baseRequest, final HttpServletResponse response, final String contentType, final byte[] data ) throws IOException
+	{
+		response.setContentType( contentType );
+		response.setContentLength( data.length );
+		response.setStatus( HttpServletResponse.SC_OK );
+		baseRequest.setHandled( true );
+
+		final OutputStream os = response.getOutputStream();
+		os.write( data );
+		os.close();
+	}
+
+	/**
+	 * Handle request by sending a (possibly memory-mapped) buffer, without
+	 * copying it.
 	 */
-	private static void respondWithString( final Request baseRequest, final HttpServletResponse response, final String contentType, final String string ) throws IOException
+	private static void respondWithBuffer( final Request baseRequest, final HttpServletResponse response, final String contentType, final ByteBuffer data ) throws IOException
 	{
 		response.setContentType( contentType );
-		response.setCharacterEncoding( "UTF-8" );
+		response.setContentLength( data.remaining() );
 		response.setStatus( HttpServletResponse.SC_OK );
 		baseRequest.setHandled( true );
 
-		final PrintWriter ow = response.getWriter();
-		ow.write( string );
-		ow.close();
+		baseRequest.getResponse().getHttpOutput().sendContent( data );
+	}
+
+	/**
+	 * Handle request by sending an error status with a message.
+	 */
+	private static void respondWithError( final Request baseRequest, final HttpServletResponse response, final int status, final String message ) throws IOException
+	{
+		baseRequest.setHandled( true );
+		response.sendError( status, message );
 	}
 }
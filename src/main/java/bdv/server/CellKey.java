@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+/**
+ * Identifies a cell served by a {@link BigDataServer}: dataset name, setup,
+ * timepoint, mipmap level, and flattened cell index.
+ */
+public final class CellKey
+{
+	private final String dataset;
+
+	private final int setup;
+
+	private final int timepoint;
+
+	private final int level;
+
+	private final long index;
+
+	private final int hashcode;
+
+	public CellKey( final String dataset, final int setup, final int timepoint, final int level, final long index )
+	{
+		this.dataset = dataset;
+		this.setup = setup;
+		this.timepoint = timepoint;
+		this.level = level;
+		this.index = index;
+
+		int h = dataset.hashCode();
+		h = 31 * h + setup;
+		h = 31 * h + timepoint;
+		h = 31 * h + level;
+		h = 31 * h + Long.hashCode( index );
+		hashcode = h;
+	}
+
+	public String getDataset()
+	{
+		return dataset;
+	}
+
+	public int getSetup()
+	{
+		return setup;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public long getIndex()
+	{
+		return index;
+	}
+
+	@Override
+	public boolean equals( final Object obj )
+	{
+		if ( this == obj )
+			return true;
+		if ( !( obj instanceof CellKey ) )
+			return false;
+		final CellKey k = ( CellKey ) obj;
+		return hashcode == k.hashcode && setup == k.setup && timepoint == k.timepoint && level == k.level && index == k.index && dataset.equals( k.dataset );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hashcode;
+	}
+
+	@Override
+	public String toString()
+	{
+		return dataset + "/" + setup + "/" + timepoint + "/" + level + "/" + index;
+	}
+}
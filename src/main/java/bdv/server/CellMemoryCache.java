@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory cache of cell data shared by all datasets, with a fixed budget in
+ * bytes.
+ * <p>
+ * Eviction considers both recency and frequency (segmented LRU): new cells
+ * enter a probation segment, and are promoted to a protected segment when
+ * they are requested again. Cells are evicted from the least recently used
+ * end of the probation segment first. When the protected segment exceeds its
+ * share of the budget, its least recently used cells are demoted back to
+ * probation. So a scan over many cells that are needed only once (e.g., a
+ * bulk export of one dataset) cannot flush the cells that clients of all
+ * datasets keep coming back to.
+ * <p>
+ * Occupancy and hit rates are tracked per dataset.
+ * <p>
+ * When a dataset is redeployed, its cells are removed with
+ * {@link #invalidate(String, long)}. Loads of the previous deployment may
+ * still be running at that point, so cells are put with the version of the
+ * dataset they were read from, and cells of other versions are dropped.
+ */
+public class CellMemoryCache
+{
+	/**
+	 * Estimated heap overhead per cached cell (entry, key, array header, map
+	 * node), in bytes.
+	 */
+	private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+	/**
+	 * Fraction of the budget available to the protected segment.
+	 */
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	/**
+	 * Statistics of the cells of one dataset.
+	 */
+	public static final class DatasetStats
+	{
+		private long hits;
+
+		private long misses;
+
+		private long bytes;
+
+		private int cells;
+
+		private DatasetStats()
+		{}
+
+		private DatasetStats( final DatasetStats s )
+		{
+			hits = s.hits;
+			misses = s.misses;
+			bytes = s.bytes;
+			cells = s.cells;
+		}
+
+		public long getHits()
+		{
+			return hits;
+		}
+
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		/**
+		 * Get the number of bytes occupied by cached cells of the dataset.
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * Get the number of cached cells of the dataset.
+		 */
+		public int getCells()
+		{
+			return cells;
+		}
+	}
+
+	private static final class Entry
+	{
+		final short[] data;
+
+		final DatasetStats stats;
+
+		final long bytes;
+
+		Entry( final short[] data, final DatasetStats stats )
+		{
+			this.data = data;
+			this.stats = stats;
+			bytes = 2L * data.length + ENTRY_OVERHEAD_BYTES;
+		}
+	}
+
+	private final long maxBytes;
+
+	private final long maxProtectedBytes;
+
+	/**
+	 * Cells requested once, in access order.
+	 */
+	private final LinkedHashMap< CellKey, Entry > probation = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/**
+	 * Cells requested more than once, in access order.
+	 */
+	private final LinkedHashMap< CellKey, Entry > protectedSegment = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long probationBytes;
+
+	private long protectedBytes;
+
+	private final Map< String, DatasetStats > datasetStats = new TreeMap<>();
+
+	/**
+	 * Current version of each dataset, as set by
+	 * {@link #invalidate(String, long)}.
+	 */
+	private final Map< String, Long > versions = new HashMap<>();
+
+	private long numEvicted;
+
+	/**
+	 * @param maxBytes
+	 *            budget of the cache in bytes.
+	 */
+	public CellMemoryCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		maxProtectedBytes = ( long ) ( PROTECTED_FRACTION * maxBytes );
+	}
+
+	/**
+	 * Get the data of a cell.
+	 *
+	 * @return the cell data, or {@code null} if the cell is not cached. The
+	 *         array must not be modified.
+	 */
+	public synchronized short[] get( final CellKey key )
+	{
+		final DatasetStats stats = getDatasetStats( key.getDataset() );
+		Entry entry = protectedSegment.get( key );
+		if ( entry == null )
+		{
+			entry = probation.remove( key );
+			if ( entry == null )
+			{
+				++stats.misses;
+				return null;
+			}
+			probationBytes -= entry.bytes;
+			protectedSegment.put( key, entry );
+			protectedBytes += entry.bytes;
+			demote();
+		}
+		++stats.hits;
+		return entry.data;
+	}
+
+	/**
+	 * Add the data of a cell that was not found by {@link #get(CellKey)}. The
+	 * array must not be modified afterwards.
+	 *
+	 * @param version
+	 *            version of the dataset the cell was read from. The cell is
+	 *            dropped if the dataset has been invalidated with a different
+	 *            version since.
+	 */
+	public synchronized void put( final CellKey key, final long version, final short[] data )
+	{
+		final Long current = versions.get( key.getDataset() );
+		if ( current != null && current != version )
+			return;
+		if ( protectedSegment.containsKey( key ) || probation.containsKey( key ) )
+			return;
+		final Entry entry = new Entry( data, getDatasetStats( key.getDataset() ) );
+		if ( entry.bytes > maxBytes - maxProtectedBytes )
+			return;
+		probation.put( key, entry );
+		probationBytes += entry.bytes;
+		entry.stats.bytes += entry.bytes;
+		++entry.stats.cells;
+		evict();
+	}
+
+	/**
+	 * Remove all cells of a dataset, and reset its statistics. Afterwards, only
+	 * cells of the given {@code version} are accepted for the dataset.
+	 */
+	public synchronized void invalidate( final String dataset, final long version )
+	{
+		versions.put( dataset, version );
+		invalidate( probation, dataset, true );
+		invalidate( protectedSegment, dataset, false );
+		datasetStats.remove( dataset );
+	}
+
+	private void invalidate( final LinkedHashMap< CellKey, Entry > segment, final String dataset, final boolean isProbation )
+	{
+		final Iterator< Map.Entry< CellKey, Entry > > it = segment.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< CellKey, Entry > e = it.next();
+			if ( e.getKey().getDataset().equals( dataset ) )
+			{
+				it.remove();
+				if ( isProbation )
+					probationBytes -= e.getValue().bytes;
+				else
+					protectedBytes -= e.getValue().bytes;
+			}
+		}
+	}
+
+	/**
+	 * Move least recently used cells from the protected segment to probation
+	 * while the protected segment is over its budget.
+	 */
+	private void demote()
+	{
+		final Iterator< Map.Entry< CellKey, Entry > > it = protectedSegment.entrySet().iterator();
+		while ( protectedBytes > maxProtectedBytes && it.hasNext() )
+		{
+			final Map.Entry< CellKey, Entry > e = it.next();
+			it.remove();
+			protectedBytes -= e.getValue().bytes;
+			probation.put( e.getKey(), e.getValue() );
+			probationBytes += e.getValue().bytes;
+		}
+		evict();
+	}
+
+	/**
+	 * Remove least recently used cells, from probation first, while the cache
+	 * is over budget.
+	 */
+	private void evict()
+	{
+		evict( probation.entrySet().iterator(), true );
+		evict( protectedSegment.entrySet().iterator(), false );
+	}
+
+	private void evict( final Iterator< Map.Entry< CellKey, Entry > > it, final boolean isProbation )
+	{
+		while ( probationBytes + protectedBytes > maxBytes && it.hasNext() )
+		{
+			final Entry entry = it.next().getValue();
+			it.remove();
+			if ( isProbation )
+				probationBytes -= entry.bytes;
+			else
+				protectedBytes -= entry.bytes;
+			entry.stats.bytes -= entry.bytes;
+			--entry.stats.cells;
+			++numEvicted;
+		}
+	}
+
+	private DatasetStats getDatasetStats( final String dataset )
+	{
+		return datasetStats.computeIfAbsent( dataset, k -> new DatasetStats() );
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Get the number of bytes occupied by all cached cells.
+	 */
+	public synchronized long getSizeBytes()
+	{
+		return probationBytes + protectedBytes;
+	}
+
+	public synchronized int getNumCells()
+	{
+		return probation.size() + protectedSegment.size();
+	}
+
+	public synchronized long getNumEvicted()
+	{
+		return numEvicted;
+	}
+
+	/**
+	 * Get a snapshot of the statistics of all datasets.
+	 *
+	 * @return map from dataset name to statistics.
+	 */
+	public synchronized Map< String, DatasetStats > getDatasetStats()
+	{
+		final Map< String, DatasetStats > snapshot = new TreeMap<>();
+		datasetStats.forEach( ( name, stats ) -> snapshot.put( name, new DatasetStats( stats ) ) );
+		return snapshot;
+	}
+}
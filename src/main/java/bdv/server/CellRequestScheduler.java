@@ -0,0 +1,463 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Runs cell loads with limited concurrency, and decides the order in which
+ * waiting loads run.
+ * <p>
+ * Waiting loads are grouped into priority classes by mipmap level. Coarser
+ * levels (higher level index) give the fastest visual feedback, so their
+ * class is served first. Within a class, each client has its own queue, and
+ * the queues are served round-robin, so that a client requesting many cells
+ * cannot starve other clients.
+ * <p>
+ * Loads belong to a group (the dataset). Each group may only occupy a limited
+ * number of running and waiting loads, so that a dataset on slow storage
+ * cannot take up all threads while loads of other datasets wait (bulkhead).
+ * Waiting loads of a group that has reached its limit are skipped until one of
+ * its loads finishes.
+ * <p>
+ * A load is rejected right away (so that the client can retry later) if too
+ * many loads (of all groups, or of its group) are waiting already, or if the
+ * heap is almost full. Heap occupancy is that of the tenured generation after
+ * its last collection, so garbage that has not been collected yet does not
+ * count.
+ * <p>
+ * Loads can be {@link CellLoad#cancel() cancelled}, e.g., when the client has
+ * gone away. Waiting loads are removed from their queue. Running loads are
+ * expected to check {@link CellLoad#isCancelled()} at safe points and stop
+ * early.
+ */
+public class CellRequestScheduler
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( CellRequestScheduler.class );
+
+	/**
+	 * A cancellable cell load.
+	 * <p>
+	 * Exactly one of {@link #cancel()} and {@link #finish()} succeeds. Whoever
+	 * succeeds is responsible for answering the request.
+	 */
+	public static abstract class CellLoad implements Runnable
+	{
+		private static final int PENDING = 0;
+
+		private static final int CANCELLED = 1;
+
+		private static final int FINISHED = 2;
+
+		private final AtomicInteger state = new AtomicInteger( PENDING );
+
+		private CellRequestScheduler scheduler;
+
+		private String client;
+
+		private PriorityClass priorityClass;
+
+		private Group group;
+
+		/**
+		 * Cancel the load, unless it has finished already.
+		 *
+		 * @return {@code true} if the load was cancelled by this call.
+		 */
+		public boolean cancel()
+		{
+			if ( !state.compareAndSet( PENDING, CANCELLED ) )
+				return false;
+			if ( scheduler != null )
+				scheduler.cancelled( this );
+			return true;
+		}
+
+		/**
+		 * Mark the load as finished, unless it has been cancelled already. To
+		 * be called by the load before it responds.
+		 *
+		 * @return {@code true} if the load was finished by this call.
+		 */
+		public boolean finish()
+		{
+			return state.compareAndSet( PENDING, FINISHED );
+		}
+
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+	}
+
+	private static final class PriorityClass
+	{
+		/**
+		 * Per-client queues, in round-robin order.
+		 */
+		final LinkedHashMap< String, ArrayDeque< CellLoad > > queues = new LinkedHashMap<>();
+
+		int size;
+
+		/**
+		 * Take the first {@code eligible} load of the first client that has
+		 * one.
+		 */
+		CellLoad poll( final Predicate< CellLoad > eligible )
+		{
+			final Iterator< Map.Entry< String, ArrayDeque< CellLoad > > > it = queues.entrySet().iterator();
+			while ( it.hasNext() )
+			{
+				final Map.Entry< String, ArrayDeque< CellLoad > > e = it.next();
+				final ArrayDeque< CellLoad > queue = e.getValue();
+				final Iterator< CellLoad > qit = queue.iterator();
+				while ( qit.hasNext() )
+				{
+					final CellLoad load = qit.next();
+					if ( eligible.test( load ) )
+					{
+						qit.remove();
+						it.remove();
+						if ( !queue.isEmpty() )
+							queues.put( e.getKey(), queue ); // move client to the end
+						--size;
+						return load;
+					}
+				}
+			}
+			return null;
+		}
+
+		boolean remove( final String client, final CellLoad load )
+		{
+			final ArrayDeque< CellLoad > queue = queues.get( client );
+			if ( queue == null || !queue.remove( load ) )
+				return false;
+			--size;
+			if ( queue.isEmpty() )
+				queues.remove( client );
+			return true;
+		}
+	}
+
+	/**
+	 * Loads of one dataset.
+	 */
+	private static final class Group
+	{
+		int numActive;
+
+		int numQueued;
+
+		long numRejected;
+	}
+
+	private final int maxActive;
+
+	private final int maxQueued;
+
+	private final int maxActivePerGroup;
+
+	private final int maxQueuedPerGroup;
+
+	private final double maxMemoryFraction;
+
+	/**
+	 * The memory pool of the tenured generation, or {@code null} if it cannot
+	 * be determined (then loads are never rejected because of memory
+	 * pressure).
+	 */
+	private static final MemoryPoolMXBean tenuredPool = findTenuredPool();
+
+	private final ExecutorService executor;
+
+	/**
+	 * Priority classes indexed by mipmap level. The last class contains all
+	 * levels {@code >= classes.length - 1}.
+	 */
+	private final PriorityClass[] classes;
+
+	private final HashMap< String, Group > groups = new HashMap<>();
+
+	private int numActive;
+
+	private int numQueued;
+
+	private long numRejected;
+
+	private long numCancelledQueued;
+
+	private long numCancelledRunning;
+
+	/**
+	 * @param maxActive
+	 *            maximum number of concurrent cell loads.
+	 * @param maxQueued
+	 *            maximum number of waiting cell loads.
+	 * @param maxActivePerGroup
+	 *            maximum number of concurrent cell loads of one group.
+	 * @param maxQueuedPerGroup
+	 *            maximum number of waiting cell loads of one group.
+	 * @param numPriorityClasses
+	 *            number of priority classes.
+	 * @param maxMemoryFraction
+	 *            loads are rejected instead of queued if more than this
+	 *            fraction of the tenured generation is in use after its last
+	 *            collection.
+	 */
+	public CellRequestScheduler( final int maxActive, final int maxQueued, final int maxActivePerGroup, final int maxQueuedPerGroup, final int numPriorityClasses, final double maxMemoryFraction )
+	{
+		this.maxActive = maxActive;
+		this.maxQueued = maxQueued;
+		this.maxActivePerGroup = maxActivePerGroup;
+		this.maxQueuedPerGroup = maxQueuedPerGroup;
+		this.maxMemoryFraction = maxMemoryFraction;
+		executor = Executors.newFixedThreadPool( maxActive, new DaemonThreadFactory( "cellload" ) );
+		classes = new PriorityClass[ numPriorityClasses ];
+		for ( int i = 0; i < numPriorityClasses; ++i )
+			classes[ i ] = new PriorityClass();
+	}
+
+	/**
+	 * Run a cell load as soon as its turn comes.
+	 *
+	 * @param group
+	 *            identifies the dataset of the requested cell.
+	 * @param client
+	 *            identifies the requesting client.
+	 * @param level
+	 *            mipmap level of the requested cell.
+	 * @param load
+	 *            the load to run.
+	 * @return {@code true} if the load was scheduled, {@code false} if it was
+	 *         rejected.
+	 */
+	public boolean submit( final String group, final String client, final int level, final CellLoad load )
+	{
+		final PriorityClass priorityClass = classes[ Math.max( 0, Math.min( level, classes.length - 1 ) ) ];
+		synchronized ( this )
+		{
+			final Group g = groups.computeIfAbsent( group, k -> new Group() );
+			load.scheduler = this;
+			load.client = client;
+			load.priorityClass = priorityClass;
+			load.group = g;
+			// While threads are idle, all waiting loads belong to groups at
+			// their limit (see next()), so this does not overtake any of them.
+			if ( numActive < maxActive && g.numActive < maxActivePerGroup )
+			{
+				++numActive;
+				++g.numActive;
+				executor.execute( () -> run( load ) );
+				return true;
+			}
+			if ( numQueued >= maxQueued || g.numQueued >= maxQueuedPerGroup || isMemoryLow() )
+			{
+				++numRejected;
+				++g.numRejected;
+				return false;
+			}
+			priorityClass.queues.computeIfAbsent( client, k -> new ArrayDeque<>() ).add( load );
+			++priorityClass.size;
+			++numQueued;
+			++g.numQueued;
+			return true;
+		}
+	}
+
+	private void run( final CellLoad load )
+	{
+		try
+		{
+			if ( !load.isCancelled() )
+				load.run();
+		}
+		catch ( final RuntimeException e )
+		{
+			LOG.warn( "Cell load failed", e );
+		}
+		finally
+		{
+			next( load );
+		}
+	}
+
+	/**
+	 * Start the next waiting load whose group is below its limit, if any, in
+	 * place of one that has just finished.
+	 */
+	private synchronized void next( final CellLoad finished )
+	{
+		--finished.group.numActive;
+		for ( int i = classes.length - 1; i >= 0; --i )
+		{
+			if ( classes[ i ].size > 0 )
+			{
+				final CellLoad load = classes[ i ].poll( l -> l.group.numActive < maxActivePerGroup );
+				if ( load != null )
+				{
+					--numQueued;
+					--load.group.numQueued;
+					++load.group.numActive;
+					executor.execute( () -> run( load ) );
+					return;
+				}
+			}
+		}
+		--numActive;
+	}
+
+	private synchronized void cancelled( final CellLoad load )
+	{
+		if ( load.priorityClass.remove( load.client, load ) )
+		{
+			--numQueued;
+			--load.group.numQueued;
+			++numCancelledQueued;
+		}
+		else
+			++numCancelledRunning;
+	}
+
+	public synchronized int getNumActive()
+	{
+		return numActive;
+	}
+
+	public int getMaxActive()
+	{
+		return maxActive;
+	}
+
+	public synchronized int getNumQueued()
+	{
+		return numQueued;
+	}
+
+	/**
+	 * Number of running cell loads of a group.
+	 */
+	public synchronized int getNumActive( final String group )
+	{
+		final Group g = groups.get( group );
+		return g == null ? 0 : g.numActive;
+	}
+
+	public int getMaxActivePerGroup()
+	{
+		return maxActivePerGroup;
+	}
+
+	/**
+	 * Number of waiting cell loads of a group.
+	 */
+	public synchronized int getNumQueued( final String group )
+	{
+		final Group g = groups.get( group );
+		return g == null ? 0 : g.numQueued;
+	}
+
+	/**
+	 * Number of cell loads of a group rejected because of queue or memory
+	 * pressure.
+	 */
+	public synchronized long getNumRejected( final String group )
+	{
+		final Group g = groups.get( group );
+		return g == null ? 0 : g.numRejected;
+	}
+
+	/**
+	 * Get the number of waiting cell loads in each priority class. Element
+	 * {@code i} is the number of waiting loads of level {@code i}, and the
+	 * last element includes all coarser levels.
+	 */
+	public synchronized int[] getQueueDepths()
+	{
+		final int[] depths = new int[ classes.length ];
+		for ( int i = 0; i < classes.length; ++i )
+			depths[ i ] = classes[ i ].size;
+		return depths;
+	}
+
+	/**
+	 * Number of cell loads rejected because of queue or memory pressure.
+	 */
+	public synchronized long getNumRejected()
+	{
+		return numRejected;
+	}
+
+	/**
+	 * Number of cell loads cancelled while waiting.
+	 */
+	public synchronized long getNumCancelledQueued()
+	{
+		return numCancelledQueued;
+	}
+
+	/**
+	 * Number of cell loads cancelled while running.
+	 */
+	public synchronized long getNumCancelledRunning()
+	{
+		return numCancelledRunning;
+	}
+
+	private boolean isMemoryLow()
+	{
+		if ( tenuredPool == null )
+			return false;
+		final MemoryUsage usage = tenuredPool.getCollectionUsage();
+		if ( usage == null )
+			return false;
+		final long max = usage.getMax() >= 0 ? usage.getMax() : Runtime.getRuntime().maxMemory();
+		return usage.getUsed() > maxMemoryFraction * max;
+	}
+
+	/**
+	 * Find the heap pool of the tenured generation: it is the one that
+	 * supports usage thresholds (young generation pools do not). For
+	 * single-generation collectors, this is the whole heap.
+	 */
+	private static MemoryPoolMXBean findTenuredPool()
+	{
+		for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+			if ( pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported() )
+				return pool;
+		return null;
+	}
+}
@@ -0,0 +1,469 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.util.log.Log;
+
+import bdv.img.hdf5.ViewLevelId;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Index of minimum, maximum, and mean value of every cell at every mipmap
+ * level of a dataset.
+ * <p>
+ * The index is built once in the background and persisted to a file in the
+ * server's thumbnail directory (the data directory may be read-only). If the
+ * file cannot be written, the index is kept in memory only. The file records
+ * the version (modification time) of the dataset files it was built from,
+ * and is rebuilt if the dataset changes. While the index is being built, the
+ * statistics of each (timepoint, setup, level) become available as soon as
+ * they are computed, and are appended to the file. If the server is stopped
+ * before the index is complete, the build resumes after the last complete
+ * (timepoint, setup, level) on the next start.
+ * <p>
+ * The build reads cells without adding them to the {@link CellMemoryCache},
+ * and pauses while the {@link CircuitBreaker} of the dataset is open.
+ */
+public class CellStatsIndex
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( CellStatsIndex.class );
+
+	private static final int MAGIC = 0x42445653; // "BDVS"
+
+	private static final int FILE_VERSION = 2;
+
+	/**
+	 * Size of the file header: magic, file version, dataset version.
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * In place of a timepoint, marks the end of a complete index.
+	 */
+	private static final int END = -1;
+
+	/**
+	 * Builds indices of all datasets, one at a time, to limit the load on
+	 * storage.
+	 */
+	private static final ExecutorService builder = Executors.newSingleThreadExecutor( new DaemonThreadFactory( "cellstats" ) );
+
+	/**
+	 * Statistics of all cells of one (timepoint, setup, level). Arrays are
+	 * indexed by flattened cell index.
+	 */
+	public static final class LevelStats
+	{
+		private final short[] min;
+
+		private final short[] max;
+
+		private final float[] mean;
+
+		LevelStats( final int numCells )
+		{
+			min = new short[ numCells ];
+			max = new short[ numCells ];
+			mean = new float[ numCells ];
+		}
+
+		public int numCells()
+		{
+			return min.length;
+		}
+
+		/**
+		 * Minimum value of cell {@code index} (unsigned).
+		 */
+		public int getMin( final int index )
+		{
+			return min[ index ] & 0xffff;
+		}
+
+		/**
+		 * Maximum value of cell {@code index} (unsigned).
+		 */
+		public int getMax( final int index )
+		{
+			return max[ index ] & 0xffff;
+		}
+
+		public float getMean( final int index )
+		{
+			return mean[ index ];
+		}
+
+		/**
+		 * Whether all values of cell {@code index} are the same.
+		 */
+		public boolean isConstant( final int index )
+		{
+			return min[ index ] == max[ index ];
+		}
+
+		/**
+		 * Serialize as big-endian {@code int numCells}, followed by
+		 * {@code numCells} unsigned shorts minimum, {@code numCells} unsigned
+		 * shorts maximum, and {@code numCells} floats mean.
+		 */
+		void write( final DataOutputStream out ) throws IOException
+		{
+			out.writeInt( min.length );
+			for ( final short v : min )
+				out.writeShort( v );
+			for ( final short v : max )
+				out.writeShort( v );
+			for ( final float v : mean )
+				out.writeFloat( v );
+		}
+
+		static LevelStats read( final DataInputStream in ) throws IOException
+		{
+			final LevelStats stats = new LevelStats( in.readInt() );
+			for ( int i = 0; i < stats.min.length; ++i )
+				stats.min[ i ] = in.readShort();
+			for ( int i = 0; i < stats.max.length; ++i )
+				stats.max[ i ] = in.readShort();
+			for ( int i = 0; i < stats.mean.length; ++i )
+				stats.mean[ i ] = in.readFloat();
+			return stats;
+		}
+	}
+
+	private final CellAccess cells;
+
+	private final CircuitBreaker breaker;
+
+	private final SequenceDescriptionMinimal seq;
+
+	private final File file;
+
+	private final long version;
+
+	private final Map< ViewLevelId, LevelStats > stats;
+
+	private volatile boolean complete;
+
+	/**
+	 * Load the index from {@code file} if it is up to date, and start building
+	 * (the rest of) it in the background if it is not complete.
+	 *
+	 * @param cells
+	 *            provides the image data.
+	 * @param breaker
+	 *            circuit breaker of the dataset.
+	 * @param seq
+	 *            timepoints and setups of the dataset.
+	 * @param file
+	 *            file to persist the index. Its directory is created if
+	 *            necessary.
+	 * @param version
+	 *            modification time of the dataset files.
+	 */
+	public CellStatsIndex( final CellAccess cells, final CircuitBreaker breaker, final SequenceDescriptionMinimal seq, final Path file, final long version )
+	{
+		this.cells = cells;
+		this.breaker = breaker;
+		this.seq = seq;
+		this.version = version;
+		this.file = file.toFile();
+		stats = new ConcurrentHashMap<>();
+		complete = false;
+
+		final long validLength = load();
+		if ( !complete )
+			builder.submit( () -> build( validLength ) );
+	}
+
+	/**
+	 * Whether the index has been built completely.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Get the statistics of all cells of a (timepoint, setup, level).
+	 *
+	 * @return statistics, or {@code null} if they are not (yet) available.
+	 */
+	public LevelStats getStats( final int timepoint, final int setup, final int level )
+	{
+		return stats.get( new ViewLevelId( timepoint, setup, level ) );
+	}
+
+	/**
+	 * Read the records of an up-to-date index file.
+	 *
+	 * @return the length of the valid part of the file (up to the last
+	 *         complete record), or -1 if there is no up-to-date file.
+	 */
+	private long load()
+	{
+		if ( !file.isFile() )
+			return -1;
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != FILE_VERSION || in.readLong() != version )
+			{
+				LOG.info( "Cell statistics \"" + file + "\" are outdated, rebuilding." );
+				return -1;
+			}
+			long length = HEADER_SIZE;
+			try
+			{
+				while ( true )
+				{
+					final int timepoint = in.readInt();
+					if ( timepoint == END )
+					{
+						complete = true;
+						return length + 4;
+					}
+					final int setup = in.readInt();
+					final int level = in.readInt();
+					final byte[] record = new byte[ in.readInt() ];
+					in.readFully( record );
+					try ( final DataInputStream rin = new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( record ) ) ) )
+					{
+						stats.put( new ViewLevelId( timepoint, setup, level ), LevelStats.read( rin ) );
+					}
+					length += 16 + record.length;
+				}
+			}
+			catch ( final EOFException e )
+			{
+				// the last record is incomplete, the build was interrupted
+				LOG.info( "Resuming cell statistics \"" + file + "\" (" + stats.size() + " images done)." );
+				return length;
+			}
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not read cell statistics \"" + file + "\": " + e.getMessage() );
+			stats.clear();
+			return -1;
+		}
+	}
+
+	/**
+	 * Compute the statistics of all images that are not in the index yet, and
+	 * append each to the file as soon as it is complete. If the file cannot be
+	 * written, the statistics are only kept in memory.
+	 *
+	 * @param validLength
+	 *            length of the valid part of the file, as returned by
+	 *            {@link #load()}.
+	 */
+	private void build( final long validLength )
+	{
+		RandomAccessFile out = open( validLength );
+		try
+		{
+			for ( final TimePoint timepoint : seq.getTimePoints().getTimePointsOrdered() )
+			{
+				for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+				{
+					final int t = timepoint.getId();
+					final int s = setup.getId();
+					for ( int level = 0; level < cells.numLevels( s ); ++level )
+					{
+						final ViewLevelId key = new ViewLevelId( t, s, level );
+						if ( !cells.exists( t, s, level ) || stats.containsKey( key ) )
+							continue;
+						final LevelStats levelStats = computeStats( t, s, level );
+						stats.put( key, levelStats );
+						if ( out != null )
+						{
+							try
+							{
+								append( out, t, s, level, levelStats );
+							}
+							catch ( final IOException e )
+							{
+								LOG.warn( "Could not write cell statistics \"" + file + "\", keeping them in memory: " + e.getMessage() );
+								close( out );
+								out = null;
+							}
+						}
+					}
+				}
+			}
+			if ( out != null )
+				out.writeInt( END );
+			complete = true;
+			LOG.info( "Cell statistics complete: \"" + file + "\"" );
+		}
+		catch ( final InterruptedException e )
+		{
+			LOG.info( "Cell statistics interrupted: \"" + file + "\"" );
+		}
+		catch ( final IOException e )
+		{
+			// writing the end marker failed, the statistics are complete in memory
+			complete = true;
+			LOG.warn( "Could not write cell statistics \"" + file + "\": " + e.getMessage() );
+		}
+		catch ( final RuntimeException e )
+		{
+			LOG.warn( "Could not compute cell statistics for \"" + file + "\"", e );
+		}
+		finally
+		{
+			if ( out != null )
+				close( out );
+		}
+	}
+
+	/**
+	 * Open the file for appending the statistics that are not in the index
+	 * yet. If {@code validLength < 0}, the file is started over with a new
+	 * header.
+	 *
+	 * @return the file positioned at the end of the valid part, or
+	 *         {@code null} if it cannot be written.
+	 */
+	private RandomAccessFile open( final long validLength )
+	{
+		RandomAccessFile out = null;
+		try
+		{
+			Files.createDirectories( file.toPath().getParent() );
+			out = new RandomAccessFile( file, "rw" );
+			if ( validLength < 0 )
+			{
+				out.setLength( 0 );
+				out.writeInt( MAGIC );
+				out.writeInt( FILE_VERSION );
+				out.writeLong( version );
+			}
+			else
+			{
+				out.setLength( validLength );
+				out.seek( validLength );
+			}
+			return out;
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not write cell statistics \"" + file + "\", keeping them in memory: " + e.getMessage() );
+			if ( out != null )
+				close( out );
+			return null;
+		}
+	}
+
+	private void close( final RandomAccessFile out )
+	{
+		try
+		{
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not close cell statistics \"" + file + "\": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Compute the statistics of all cells of a (timepoint, setup, level).
+	 * Cells are read with {@link CellAccess#readCellData}, so that they are not
+	 * added to the {@link CellMemoryCache}, and only while the
+	 * {@link CircuitBreaker} of the dataset allows requests.
+	 */
+	private LevelStats computeStats( final int timepoint, final int setup, final int level ) throws InterruptedException
+	{
+		final CellGrid grid = cells.getCellGrid( timepoint, setup, level );
+		final long[] gridDims = new long[ grid.numDimensions() ];
+		grid.getGridDimensions( gridDims );
+		long numCells = 1;
+		for ( final long d : gridDims )
+			numCells *= d;
+
+		final LevelStats levelStats = new LevelStats( ( int ) numCells );
+		final long[] gridpos = new long[ grid.numDimensions() ];
+		for ( int index = 0; index < numCells; ++index )
+		{
+			while ( !breaker.allowRequest() )
+				Thread.sleep( TimeUnit.SECONDS.toMillis( breaker.getRetryAfterSeconds() ) );
+			grid.getCellGridPositionFlat( index, gridpos );
+			final short[] data = cells.readCellData( timepoint, setup, level, grid, gridpos );
+			int min = 0xffff;
+			int max = 0;
+			long sum = 0;
+			for ( final short s : data )
+			{
+				final int v = s & 0xffff;
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+				sum += v;
+			}
+			levelStats.min[ index ] = ( short ) min;
+			levelStats.max[ index ] = ( short ) max;
+			levelStats.mean[ index ] = data.length == 0 ? 0 : ( float ) ( ( double ) sum / data.length );
+		}
+		return levelStats;
+	}
+
+	/**
+	 * Append the record of one (timepoint, setup, level): big-endian
+	 * {@code int timepoint, setup, level, length}, followed by {@code length}
+	 * bytes of gzipped {@link LevelStats#write}.
+	 */
+	private static void append( final RandomAccessFile out, final int timepoint, final int setup, final int level, final LevelStats levelStats ) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try ( final DataOutputStream rout = new DataOutputStream( new GZIPOutputStream( bos ) ) )
+		{
+			levelStats.write( rout );
+		}
+		final byte[] record = bos.toByteArray();
+		final ByteBuffer buf = ByteBuffer.allocate( 16 + record.length );
+		buf.putInt( timepoint ).putInt( setup ).putInt( level ).putInt( record.length ).put( record );
+		out.write( buf.array() );
+	}
+}
@@ -0,0 +1,444 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * WebSocket session pushing the cells needed for the client's current view.
+ * <p>
+ * The client sends its view as a text message
+ *
+ * <pre>
+ * {"id": 7, "timepoint": 0, "setups": [0, 1], "width": 800, "height": 600,
+ *  "transform": [m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23]}
+ * </pre>
+ *
+ * where {@code transform} is the row-packed viewer transform from global to
+ * screen coordinates. The server determines the needed cells with
+ * {@link VisibleCells} and sends each as a binary message consisting of
+ * big-endian {@code int} index, timepoint, setup, and level, followed by the
+ * cell data as big-endian unsigned shorts. When all cells of a view have been
+ * sent, the server sends {@code {"complete": <id>}}.
+ * <p>
+ * A new view replaces the previous one immediately: cells that are not needed
+ * anymore and have not been loaded yet are cancelled, and the new cells are
+ * sent coarse-to-fine. Cells are sent at most once per session (the client is
+ * expected to cache them), unless they have been forgotten in the meantime.
+ * <p>
+ * Loads go through the {@link CellRequestScheduler}. At most
+ * {@link Constants#STREAM_MAX_IN_FLIGHT} cells per session are being loaded
+ * or written at any time, and the next cell is only started when the socket
+ * has accepted a previous one. So a slow client only slows down its own
+ * stream, and does not make the server buffer cells.
+ */
+public class CellStreamSocket implements WebSocketListener
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( CellStreamSocket.class );
+
+	/**
+	 * Retries loads rejected by the {@link CellRequestScheduler}.
+	 */
+	private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor( new DaemonThreadFactory( "cellstream" ) );
+
+	/**
+	 * A view, as sent by the client.
+	 */
+	private static final class View
+	{
+		int id;
+
+		int timepoint;
+
+		int[] setups;
+
+		double[] transform;
+
+		int width;
+
+		int height;
+	}
+
+	private final String datasetName;
+
+	private final long version;
+
+	private final CellAccess cells;
+
+	private final ViewRegistrations registrations;
+
+	private final CellRequestScheduler scheduler;
+
+	private final PackedCellStore packedCells;
+
+	private final DiskCellCache diskCellCache;
+
+	private final AccessHeatmap heatmap;
+
+	private final SingleFlight< CellKey, CellData > cellLoads;
+
+	private final CircuitBreaker breaker;
+
+	private final String clientId;
+
+	private volatile Session session;
+
+	/**
+	 * Cells of the current view that have not been started yet, in order.
+	 */
+	private final ArrayDeque< CellKey > pending = new ArrayDeque<>();
+
+	/**
+	 * Cells that are being loaded or written.
+	 */
+	private final Map< CellKey, CellRequestScheduler.CellLoad > inFlight = new HashMap<>();
+
+	/**
+	 * Cells that have been sent (or started) recently.
+	 */
+	private final Set< CellKey > sent = Collections.newSetFromMap( new LinkedHashMap< CellKey, Boolean >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< CellKey, Boolean > eldest )
+		{
+			return size() > Constants.STREAM_MAX_REMEMBERED_CELLS;
+		}
+	} );
+
+	private int viewId;
+
+	private boolean viewComplete = true;
+
+	private boolean retryScheduled;
+
+	/**
+	 * @param datasetName
+	 *            name of the dataset.
+	 * @param version
+	 *            version of the dataset, to validate cached cells.
+	 * @param cells
+	 *            provides the image data.
+	 * @param registrations
+	 *            view registrations of the dataset.
+	 * @param scheduler
+	 *            schedules cell loads.
+	 * @param packedCells
+	 *            pre-encoded cells. May be null.
+	 * @param diskCellCache
+	 *            persistent cell cache. May be null.
+	 * @param heatmap
+	 *            records the cells that are sent.
+	 * @param cellLoads
+	 *            coalesces loads of the same cell with other sessions and
+	 *            requests.
+	 * @param breaker
+	 *            while open, cells are not loaded but retried later.
+	 * @param clientId
+	 *            identifies the client for fair scheduling.
+	 */
+	public CellStreamSocket(
+			final String datasetName,
+			final long version,
+			final CellAccess cells,
+			final ViewRegistrations registrations,
+			final CellRequestScheduler scheduler,
+			final PackedCellStore packedCells,
+			final DiskCellCache diskCellCache,
+			final AccessHeatmap heatmap,
+			final SingleFlight< CellKey, CellData > cellLoads,
+			final CircuitBreaker breaker,
+			final String clientId )
+	{
+		this.datasetName = datasetName;
+		this.version = version;
+		this.cells = cells;
+		this.registrations = registrations;
+		this.scheduler = scheduler;
+		this.packedCells = packedCells;
+		this.diskCellCache = diskCellCache;
+		this.heatmap = heatmap;
+		this.cellLoads = cellLoads;
+		this.breaker = breaker;
+		this.clientId = clientId;
+	}
+
+	@Override
+	public void onWebSocketConnect( final Session session )
+	{
+		this.session = session;
+	}
+
+	@Override
+	public void onWebSocketText( final String message )
+	{
+		final List< CellKey > keys;
+		final int id;
+		try
+		{
+			final View view = new Gson().fromJson( message, View.class );
+			if ( view == null || view.setups == null || view.transform == null || view.transform.length != 12 )
+				throw new IllegalArgumentException( "expected setups and 12 transform values" );
+			if ( view.width <= 0 || view.height <= 0 || view.width > Constants.SLICE_MAX_SIZE || view.height > Constants.SLICE_MAX_SIZE )
+				throw new IllegalArgumentException( "invalid screen size" );
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( view.transform );
+			keys = VisibleCells.find( datasetName, cells, registrations, view.timepoint, view.setups, transform, view.width, view.height, Constants.STREAM_MAX_CELLS_PER_VIEW );
+			id = view.id;
+		}
+		catch ( final JsonParseException | IllegalArgumentException e )
+		{
+			session.close( StatusCode.BAD_DATA, e.getMessage() );
+			return;
+		}
+		setView( id, keys );
+	}
+
+	@Override
+	public void onWebSocketBinary( final byte[] payload, final int offset, final int len )
+	{
+		session.close( StatusCode.BAD_DATA, "binary messages are not supported" );
+	}
+
+	@Override
+	public synchronized void onWebSocketClose( final int statusCode, final String reason )
+	{
+		pending.clear();
+		for ( final CellRequestScheduler.CellLoad load : inFlight.values() )
+			load.cancel();
+		inFlight.clear();
+	}
+
+	@Override
+	public void onWebSocketError( final Throwable cause )
+	{
+		LOG.debug( "Cell stream error", cause );
+	}
+
+	/**
+	 * Replace the current view.
+	 */
+	private synchronized void setView( final int id, final List< CellKey > keys )
+	{
+		final Set< CellKey > needed = new HashSet<>( keys );
+		final Iterator< Map.Entry< CellKey, CellRequestScheduler.CellLoad > > it = inFlight.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< CellKey, CellRequestScheduler.CellLoad > e = it.next();
+			if ( !needed.contains( e.getKey() ) && e.getValue().cancel() )
+			{
+				it.remove();
+				sent.remove( e.getKey() );
+			}
+		}
+
+		pending.clear();
+		for ( final CellKey key : keys )
+			if ( !sent.contains( key ) && !inFlight.containsKey( key ) )
+				pending.add( key );
+		viewId = id;
+		viewComplete = false;
+		pump();
+	}
+
+	/**
+	 * Start loading pending cells, up to {@link Constants#STREAM_MAX_IN_FLIGHT}
+	 * at a time.
+	 */
+	private synchronized void pump()
+	{
+		final Session s = session;
+		if ( s == null || !s.isOpen() )
+			return;
+
+		while ( inFlight.size() < Constants.STREAM_MAX_IN_FLIGHT && !pending.isEmpty() )
+		{
+			final CellKey key = pending.poll();
+			final CellRequestScheduler.CellLoad load = new CellRequestScheduler.CellLoad()
+			{
+				@Override
+				public void run()
+				{
+					ByteBuffer frame = null;
+					try
+					{
+						if ( s.isOpen() )
+							frame = loadFrame( key );
+					}
+					catch ( final RuntimeException e )
+					{
+						LOG.warn( "Could not load cell " + key, e );
+					}
+					if ( !finish() )
+						return;
+					if ( frame == null )
+					{
+						done( key );
+						return;
+					}
+					try
+					{
+						s.getRemote().sendBytes( frame, new WriteCallback()
+						{
+							@Override
+							public void writeSuccess()
+							{
+								done( key );
+							}
+
+							@Override
+							public void writeFailed( final Throwable x )
+							{
+								done( key );
+							}
+						} );
+					}
+					catch ( final RuntimeException e )
+					{
+						done( key );
+					}
+				}
+			};
+			inFlight.put( key, load );
+			sent.add( key );
+			if ( !breaker.allowRequest() || !scheduler.submit( datasetName, clientId, key.getLevel(), load ) )
+			{
+				inFlight.remove( key );
+				sent.remove( key );
+				pending.addFirst( key );
+				scheduleRetry();
+				break;
+			}
+		}
+
+		if ( pending.isEmpty() && inFlight.isEmpty() && !viewComplete )
+		{
+			viewComplete = true;
+			s.getRemote().sendString( "{\"complete\":" + viewId + "}", null );
+		}
+	}
+
+	/**
+	 * Called when a cell has been written (or has failed).
+	 */
+	private synchronized void done( final CellKey key )
+	{
+		inFlight.remove( key );
+		pump();
+	}
+
+	private void scheduleRetry()
+	{
+		if ( retryScheduled )
+			return;
+		retryScheduled = true;
+		retryTimer.schedule( () -> {
+			synchronized ( this )
+			{
+				retryScheduled = false;
+				pump();
+			}
+		}, Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * Build the binary message for a cell, from the {@link PackedCellStore} or
+	 * the {@link DiskCellCache} if possible. Concurrent loads of the same cell
+	 * are coalesced by {@link #cellLoads}.
+	 */
+	private ByteBuffer loadFrame( final CellKey key )
+	{
+		heatmap.record( key );
+		ByteBuffer data = null;
+		if ( packedCells != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			final PackedCellStore.Cell cell = packedCells.get( key.getTimepoint(), key.getSetup(), key.getLevel(), key.getIndex() );
+			lookup.finish( "packed", key, cell == null ? -1 : cell.getData().remaining() );
+			if ( cell != null )
+			{
+				try
+				{
+					data = cell.isGzipped() ? ByteBuffer.wrap( CellHandler.gunzip( key, cell ) ) : cell.getData().duplicate();
+				}
+				catch ( final IOException e )
+				{
+					LOG.warn( "Could not read packed cell " + key + ", loading it from the image", e );
+				}
+			}
+		}
+		if ( data == null && diskCellCache != null )
+		{
+			final ServerEvents.CacheLookup lookup = new ServerEvents.CacheLookup();
+			lookup.begin();
+			final CellData cached = diskCellCache.get( key, version );
+			lookup.finish( "disk", key, cached == null ? -1 : cached.getRaw().remaining() );
+			if ( cached != null )
+				data = cached.getRaw();
+		}
+		if ( data == null )
+		{
+			data = cellLoads.get( key, () -> {
+				final CellData cell = new CellData( key, cells.getCellData( key.getTimepoint(), key.getSetup(), key.getLevel(), key.getIndex() ) );
+				if ( diskCellCache != null && !cells.isSynthetic( key.getSetup(), key.getLevel() ) )
+					diskCellCache.put( key, version, cell );
+				return cell;
+			} ).getRaw();
+		}
+
+		final ByteBuffer frame = ByteBuffer.allocate( 16 + data.remaining() );
+		frame.putInt( ( int ) key.getIndex() );
+		frame.putInt( key.getTimepoint() );
+		frame.putInt( key.getSetup() );
+		frame.putInt( key.getLevel() );
+		frame.put( data );
+		frame.flip();
+		return frame;
+	}
+}
@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending cell loads to a dataset whose storage has become slow or
+ * broken, so that its requests fail fast instead of occupying the server.
+ * <p>
+ * Storage reads report their start and end. A read is bad if it fails or takes
+ * longer than {@code slowMillis}. The breaker opens if more than
+ * {@code maxBadFraction} of the last {@code windowSize} reads (and at least
+ * {@code minReads} reads) were bad, or if {@code maxStalled} reads have been
+ * running for longer than {@code slowMillis} (storage that stopped responding
+ * does not complete any reads at all). Only reads started since the breaker
+ * last closed count as stalled.
+ * <p>
+ * While the breaker is open, {@link #allowRequest()} returns {@code false} for
+ * {@code openMillis}. After that, it lets one trial request through. If the
+ * first read that completes after that is good, the breaker closes, otherwise
+ * it opens again. If the trial request does not read anything within
+ * {@code openMillis}, another one is let through.
+ */
+public class CircuitBreaker
+{
+	public enum State
+	{
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private final int windowSize;
+
+	private final int minReads;
+
+	private final double maxBadFraction;
+
+	private final long slowNanos;
+
+	private final int maxStalled;
+
+	private final long openNanos;
+
+	/**
+	 * Whether each of the last {@link #windowSize} reads was bad (ring
+	 * buffer).
+	 */
+	private final boolean[] window;
+
+	private int numReads;
+
+	private int numBad;
+
+	private int next;
+
+	/**
+	 * Start time of running reads, by id.
+	 */
+	private final HashMap< Long, Long > running = new HashMap<>();
+
+	private long nextId;
+
+	private State state = State.CLOSED;
+
+	/**
+	 * When the breaker was last closed. Reads that started before do not
+	 * count as stalled, they have opened the breaker already.
+	 */
+	private long closedSince = System.nanoTime();
+
+	/**
+	 * When the breaker was opened, or the last trial request was let through.
+	 */
+	private long since;
+
+	private long numTrips;
+
+	private long numRejected;
+
+	/**
+	 * @param windowSize
+	 *            number of recent reads to consider.
+	 * @param minReads
+	 *            minimum number of recorded reads to open the breaker because
+	 *            of bad reads.
+	 * @param maxBadFraction
+	 *            the breaker opens if more than this fraction of recent reads
+	 *            were bad.
+	 * @param slowMillis
+	 *            reads that take longer are bad.
+	 * @param maxStalled
+	 *            the breaker opens if this many reads are running for longer
+	 *            than {@code slowMillis}.
+	 * @param openMillis
+	 *            how long the breaker stays open before letting a trial request
+	 *            through.
+	 */
+	public CircuitBreaker( final int windowSize, final int minReads, final double maxBadFraction, final long slowMillis, final int maxStalled, final long openMillis )
+	{
+		this.windowSize = windowSize;
+		this.minReads = minReads;
+		this.maxBadFraction = maxBadFraction;
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos( slowMillis );
+		this.maxStalled = maxStalled;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos( openMillis );
+		window = new boolean[ windowSize ];
+	}
+
+	/**
+	 * Whether a request may start loading cells. Requests that are not allowed
+	 * should be rejected right away.
+	 */
+	public synchronized boolean allowRequest()
+	{
+		final long now = System.nanoTime();
+		if ( state == State.CLOSED && numStalled( now ) >= maxStalled )
+			open( now );
+		if ( state == State.CLOSED )
+			return true;
+		if ( now - since >= openNanos )
+		{
+			state = State.HALF_OPEN;
+			since = now;
+			return true;
+		}
+		++numRejected;
+		return false;
+	}
+
+	/**
+	 * Record the start of a storage read.
+	 *
+	 * @return id to pass to {@link #readFinished(long, boolean)}.
+	 */
+	public synchronized long readStarted()
+	{
+		final long id = nextId++;
+		running.put( id, System.nanoTime() );
+		return id;
+	}
+
+	/**
+	 * Record the end of a storage read.
+	 *
+	 * @param id
+	 *            returned by {@link #readStarted()}.
+	 * @param failed
+	 *            whether the read threw an exception.
+	 */
+	public synchronized void readFinished( final long id, final boolean failed )
+	{
+		final long now = System.nanoTime();
+		final Long start = running.remove( id );
+		final boolean bad = failed || start == null || now - start > slowNanos;
+		switch ( state )
+		{
+		case HALF_OPEN:
+			if ( bad )
+				open( now );
+			else
+				close();
+			break;
+		case OPEN:
+			break;
+		case CLOSED:
+			if ( numReads == windowSize && window[ next ] )
+				--numBad;
+			window[ next ] = bad;
+			next = ( next + 1 ) % windowSize;
+			numReads = Math.min( numReads + 1, windowSize );
+			if ( bad )
+				++numBad;
+			if ( numReads >= minReads && numBad > maxBadFraction * numReads )
+				open( now );
+			break;
+		}
+	}
+
+	private int numStalled( final long now )
+	{
+		int n = 0;
+		for ( final long start : running.values() )
+			if ( now - start > slowNanos && start - closedSince >= 0 )
+				++n;
+		return n;
+	}
+
+	private void open( final long now )
+	{
+		state = State.OPEN;
+		since = now;
+		++numTrips;
+	}
+
+	private void close()
+	{
+		state = State.CLOSED;
+		closedSince = System.nanoTime();
+		numReads = 0;
+		numBad = 0;
+		next = 0;
+	}
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Seconds until the next trial request may be let through, or 0 if the
+	 * breaker is closed.
+	 */
+	public synchronized int getRetryAfterSeconds()
+	{
+		if ( state == State.CLOSED )
+			return 0;
+		final long remaining = openNanos - ( System.nanoTime() - since );
+		return ( int ) Math.max( 1, TimeUnit.NANOSECONDS.toSeconds( remaining ) + 1 );
+	}
+
+	/**
+	 * Number of times the breaker has opened.
+	 */
+	public synchronized long getNumTrips()
+	{
+		return numTrips;
+	}
+
+	/**
+	 * Number of requests rejected while the breaker was open.
+	 */
+	public synchronized long getNumRejected()
+	{
+		return numRejected;
+	}
+
+	/**
+	 * Number of storage reads that are running.
+	 */
+	public synchronized int getNumRunning()
+	{
+		return running.size();
+	}
+}
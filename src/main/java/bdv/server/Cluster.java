@@ -0,0 +1,401 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Several {@link BigDataServer}s serving the same datasets, each responsible
+ * for (caching) a disjoint subset of the cells.
+ * <p>
+ * The nodes are listed in a plain text cluster file, one base URL per line
+ * (empty lines and lines starting with {@code #} are ignored). All nodes must
+ * use the same cluster file. The owner of each cell is determined by a
+ * {@link ConsistentHashRing}. A node receiving a request for a cell it does not
+ * own either proxies the request to the owner, or redirects the client to the
+ * owner. Proxied requests carry the {@value Constants#FORWARDED_HEADER} header
+ * and are always served locally, so requests are forwarded at most once.
+ * They also carry the {@value Constants#CLIENT_ID_HEADER} of the original
+ * client, so that the owner schedules them fairly per client.
+ * <p>
+ * Batched cell requests whose cells have several owners are split: the cells
+ * of other nodes are fetched from them with {@link #fetch}, and the rest is
+ * served locally.
+ * <p>
+ * At most {@value Constants#CLUSTER_MAX_FORWARDS_PER_DATASET} requests per
+ * dataset are proxied at the same time, so that an unresponsive owner cannot
+ * tie up all threads of this node. Further requests are answered with "503
+ * Service Unavailable".
+ */
+public class Cluster
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( Cluster.class );
+
+	private final ConsistentHashRing ring;
+
+	private final String self;
+
+	private final boolean redirect;
+
+	private final AtomicLong numForwarded = new AtomicLong();
+
+	private final AtomicLong numForwardFailures = new AtomicLong();
+
+	/**
+	 * Limits the number of concurrently proxied requests, per dataset name.
+	 */
+	private final ConcurrentHashMap< String, Semaphore > forwardPermits = new ConcurrentHashMap<>();
+
+	/**
+	 * Response of another node to a fetched request.
+	 */
+	public static final class Reply
+	{
+		private final int status;
+
+		private final String retryAfter;
+
+		private final byte[] data;
+
+		Reply( final int status, final String retryAfter, final byte[] data )
+		{
+			this.status = status;
+			this.retryAfter = retryAfter;
+			this.data = data;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * The {@code Retry-After} header of the response, or {@code null}.
+		 */
+		public String getRetryAfter()
+		{
+			return retryAfter;
+		}
+
+		/**
+		 * The response body, or {@code null} if the status is not 200.
+		 */
+		public byte[] getData()
+		{
+			return data;
+		}
+	}
+
+	/**
+	 * @param nodes
+	 *            base URLs of all nodes.
+	 * @param self
+	 *            base URL of this node. Must be one of {@code nodes}.
+	 * @param redirect
+	 *            whether to redirect clients to the owner of a cell instead of
+	 *            proxying.
+	 */
+	public Cluster( final List< String > nodes, final String self, final boolean redirect ) throws IllegalArgumentException
+	{
+		final List< String > normalized = new ArrayList<>();
+		for ( final String node : nodes )
+			normalized.add( normalize( node ) );
+		this.self = normalize( self );
+		if ( !normalized.contains( this.self ) )
+			throw new IllegalArgumentException( "Base URL \"" + this.self + "\" of this server is not listed in the cluster file." );
+		this.ring = new ConsistentHashRing( normalized, Constants.CLUSTER_VIRTUAL_NODES );
+		this.redirect = redirect;
+	}
+
+	/**
+	 * Read the node list from a cluster file.
+	 */
+	public static Cluster fromFile( final Path file, final String self, final boolean redirect ) throws IOException, IllegalArgumentException
+	{
+		final List< String > nodes = new ArrayList<>();
+		for ( final String line : Files.readAllLines( file, StandardCharsets.UTF_8 ) )
+		{
+			final String node = line.trim();
+			if ( !node.isEmpty() && !node.startsWith( "#" ) )
+				nodes.add( node );
+		}
+		if ( nodes.isEmpty() )
+			throw new IllegalArgumentException( "Cluster file \"" + file + "\" lists no nodes." );
+		return new Cluster( nodes, self, redirect );
+	}
+
+	public List< String > getNodes()
+	{
+		return ring.getNodes();
+	}
+
+	/**
+	 * Get the base URL of the node owning the given cell.
+	 */
+	public String getOwner( final CellKey key )
+	{
+		return ring.getOwner( key );
+	}
+
+	public boolean isSelf( final String node )
+	{
+		return self.equals( node );
+	}
+
+	/**
+	 * Number of cell requests proxied or redirected to other nodes.
+	 */
+	public long getNumForwarded()
+	{
+		return numForwarded.get();
+	}
+
+	/**
+	 * Number of cell requests that could not be proxied because the owner
+	 * was unreachable.
+	 */
+	public long getNumForwardFailures()
+	{
+		return numForwardFailures.get();
+	}
+
+	/**
+	 * Proxy or redirect a cell request to another node.
+	 *
+	 * @param owner
+	 *            base URL of the node owning the cell.
+	 * @param datasetName
+	 *            name of the dataset.
+	 * @param cellString
+	 *            the {@code p} parameter of the request.
+	 * @return {@code true} if the request was handled (possibly with "503
+	 *         Service Unavailable" if too many requests of the dataset are
+	 *         being proxied), {@code false} if the owner could not be reached
+	 *         and nothing has been sent yet. The caller should then serve the
+	 *         request locally.
+	 */
+	public boolean forward( final String owner, final String datasetName, final String cellString, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		final String url = getUrl( owner, datasetName, cellString );
+		numForwarded.incrementAndGet();
+
+		if ( redirect )
+		{
+			response.setHeader( "Location", url );
+			response.setStatus( HttpServletResponse.SC_TEMPORARY_REDIRECT );
+			baseRequest.setHandled( true );
+			return true;
+		}
+
+		final Semaphore permits = getForwardPermits( datasetName );
+		if ( !permits.tryAcquire() )
+		{
+			baseRequest.setHandled( true );
+			response.setHeader( "Retry-After", Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ) );
+			response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "too many forwarded requests" );
+			return true;
+		}
+		try
+		{
+			return proxy( owner, url, baseRequest, request, response );
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private boolean proxy( final String owner, final String url, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		final HttpURLConnection connection;
+		final int status;
+		try
+		{
+			connection = open( url, request );
+			status = connection.getResponseCode();
+		}
+		catch ( final IOException e )
+		{
+			numForwardFailures.incrementAndGet();
+			LOG.warn( "Could not reach cluster node \"" + owner + "\": " + e.getMessage() );
+			return false;
+		}
+
+		if ( status != HttpServletResponse.SC_OK )
+		{
+			final String retryAfter = connection.getHeaderField( "Retry-After" );
+			connection.disconnect();
+			baseRequest.setHandled( true );
+			if ( isPassedThrough( status ) )
+			{
+				if ( retryAfter != null )
+					response.setHeader( "Retry-After", retryAfter );
+				response.sendError( status, "cluster node " + owner + " responded with status " + status );
+			}
+			else
+				response.sendError( HttpServletResponse.SC_BAD_GATEWAY, "cluster node " + owner + " responded with status " + status );
+			return true;
+		}
+
+		response.setContentType( connection.getContentType() );
+		final long length = connection.getContentLengthLong();
+		if ( length >= 0 )
+			response.setContentLengthLong( length );
+		final String encoding = connection.getHeaderField( Constants.CELL_ENCODING_HEADER );
+		if ( encoding != null )
+			response.setHeader( Constants.CELL_ENCODING_HEADER, encoding );
+		response.setStatus( HttpServletResponse.SC_OK );
+		baseRequest.setHandled( true );
+
+		try ( final InputStream in = connection.getInputStream(); final OutputStream os = response.getOutputStream() )
+		{
+			final byte[] buf = new byte[ 8192 ];
+			int len;
+			while ( ( len = in.read( buf ) ) >= 0 )
+				os.write( buf, 0, len );
+		}
+		return true;
+	}
+
+	/**
+	 * Request cells from another node and read the whole response.
+	 *
+	 * @param owner
+	 *            base URL of the node owning the cells.
+	 * @param datasetName
+	 *            name of the dataset.
+	 * @param cellString
+	 *            the {@code p} parameter of the request.
+	 * @param request
+	 *            the client request, whose encoding and client id headers are
+	 *            passed on.
+	 * @return the response, or {@code null} if the owner could not be reached.
+	 *         The caller should then serve the cells locally. Statuses other
+	 *         than 200 that should not be passed through to the client are
+	 *         replaced by "502 Bad Gateway". If too many requests of the
+	 *         dataset are being proxied, the status is "503 Service
+	 *         Unavailable".
+	 */
+	public Reply fetch( final String owner, final String datasetName, final String cellString, final HttpServletRequest request )
+	{
+		numForwarded.incrementAndGet();
+		final Semaphore permits = getForwardPermits( datasetName );
+		if ( !permits.tryAcquire() )
+			return new Reply( HttpServletResponse.SC_SERVICE_UNAVAILABLE, Integer.toString( Constants.CELL_SCHEDULER_RETRY_AFTER_SECONDS ), null );
+		try
+		{
+			final HttpURLConnection connection = open( getUrl( owner, datasetName, cellString ), request );
+			final int status = connection.getResponseCode();
+			if ( status != HttpServletResponse.SC_OK )
+			{
+				final String retryAfter = connection.getHeaderField( "Retry-After" );
+				connection.disconnect();
+				return new Reply( isPassedThrough( status ) ? status : HttpServletResponse.SC_BAD_GATEWAY, retryAfter, null );
+			}
+			try ( final InputStream in = connection.getInputStream() )
+			{
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				final byte[] buf = new byte[ 8192 ];
+				int len;
+				while ( ( len = in.read( buf ) ) >= 0 )
+					bos.write( buf, 0, len );
+				return new Reply( status, null, bos.toByteArray() );
+			}
+		}
+		catch ( final IOException e )
+		{
+			numForwardFailures.incrementAndGet();
+			LOG.warn( "Could not reach cluster node \"" + owner + "\": " + e.getMessage() );
+			return null;
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private Semaphore getForwardPermits( final String datasetName )
+	{
+		return forwardPermits.computeIfAbsent( datasetName, k -> new Semaphore( Constants.CLUSTER_MAX_FORWARDS_PER_DATASET ) );
+	}
+
+	private static String getUrl( final String owner, final String datasetName, final String cellString )
+	{
+		return owner + "/" + datasetName + "/?p=" + cellString;
+	}
+
+	/**
+	 * Open a connection for a forwarded request. It carries the
+	 * {@value Constants#FORWARDED_HEADER}, and the cell encodings and client id
+	 * of the original {@code request}.
+	 */
+	private HttpURLConnection open( final String url, final HttpServletRequest request ) throws IOException
+	{
+		final HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
+		connection.setConnectTimeout( Constants.CLUSTER_CONNECT_TIMEOUT_MILLIS );
+		connection.setReadTimeout( Constants.CLUSTER_READ_TIMEOUT_MILLIS );
+		connection.setRequestProperty( Constants.FORWARDED_HEADER, self );
+		connection.setRequestProperty( Constants.CLIENT_ID_HEADER, CellHandler.getClientId( request ) );
+		final String accept = request.getHeader( Constants.ACCEPT_CELL_ENCODING_HEADER );
+		if ( accept != null )
+			connection.setRequestProperty( Constants.ACCEPT_CELL_ENCODING_HEADER, accept );
+		return connection;
+	}
+
+	/**
+	 * Whether an error status of the owner is passed through to the client:
+	 * client errors, and "503 Service Unavailable" (the owner is busy or its
+	 * storage is unavailable, and the client should retry later). Other
+	 * statuses become "502 Bad Gateway".
+	 */
+	private static boolean isPassedThrough( final int status )
+	{
+		return ( status >= 400 && status < 500 ) || status == HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+	}
+
+	private static String normalize( final String url )
+	{
+		String s = url.trim();
+		while ( s.endsWith( "/" ) )
+			s = s.substring( 0, s.length() - 1 );
+		return s;
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring assigning {@link CellKey}s to nodes.
+ * <p>
+ * Each node is placed on the ring at {@code virtualNodes} pseudo-random
+ * positions derived from its name. A cell is owned by the first node position
+ * at or after the hash of the cell. Adding or removing a node only moves the
+ * cells adjacent to its positions, and all nodes with the same node list agree
+ * on the owner of every cell.
+ */
+public class ConsistentHashRing
+{
+	private final List< String > nodes;
+
+	private final TreeMap< Long, String > ring;
+
+	/**
+	 * @param nodes
+	 *            node names (e.g., base URLs).
+	 * @param virtualNodes
+	 *            number of positions of each node on the ring.
+	 */
+	public ConsistentHashRing( final List< String > nodes, final int virtualNodes )
+	{
+		if ( nodes.isEmpty() )
+			throw new IllegalArgumentException( "no nodes" );
+		this.nodes = Collections.unmodifiableList( nodes );
+		ring = new TreeMap<>();
+		for ( final String node : nodes )
+		{
+			final long h = hash( node );
+			for ( int i = 0; i < virtualNodes; ++i )
+				ring.put( mix( h + mix( i ) ), node );
+		}
+	}
+
+	public List< String > getNodes()
+	{
+		return nodes;
+	}
+
+	/**
+	 * Get the node owning the given cell.
+	 */
+	public String getOwner( final CellKey key )
+	{
+		long h = hash( key.getDataset() );
+		h = mix( h ^ key.getSetup() );
+		h = mix( h ^ key.getTimepoint() );
+		h = mix( h ^ key.getLevel() );
+		h = mix( h ^ key.getIndex() );
+		final Map.Entry< Long, String > e = ring.ceilingEntry( h );
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes of {@code s}.
+	 */
+	private static long hash( final String s )
+	{
+		long h = 0xcbf29ce484222325L;
+		for ( final byte b : s.getBytes( StandardCharsets.UTF_8 ) )
+		{
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return mix( h );
+	}
+
+	/**
+	 * MurmurHash3 64-bit finalizer.
+	 */
+	private static long mix( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
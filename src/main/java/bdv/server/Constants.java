@@ -27,15 +27,385 @@ public class Constants
 
 	public static final String MANAGER_CONTEXT_NAME = "manager";
 
+	public static final String METRICS_CONTEXT_NAME = "metrics";
+
+	public static final String HEATMAP_CONTEXT_NAME = "heatmap";
+
 	public static final String[] RESERVED_CONTEXT_NAMES = new String[]
 	{
 			DATASETLIST_CONTEXT_NAME,
-			MANAGER_CONTEXT_NAME
+			MANAGER_CONTEXT_NAME,
+			METRICS_CONTEXT_NAME,
+			HEATMAP_CONTEXT_NAME
 	};
 
+	/**
+	 * Request header in which clients list the cell encodings they accept, in
+	 * addition to plain big-endian unsigned shorts. Comma-separated.
+	 */
+	public static final String ACCEPT_CELL_ENCODING_HEADER = "X-BDV-Accept-Cell-Encoding";
+
+	/**
+	 * Response header naming the encoding of a cell, if it is not plain
+	 * big-endian unsigned shorts.
+	 */
+	public static final String CELL_ENCODING_HEADER = "X-BDV-Cell-Encoding";
+
+	/**
+	 * Request header marking cell requests proxied by another cluster node.
+	 * Contains the base URL of that node.
+	 */
+	public static final String FORWARDED_HEADER = "X-BDV-Forwarded-By";
+
+	/**
+	 * Request header identifying the client for fair scheduling of cell
+	 * requests. Clients that do not send it are identified by their address.
+	 */
+	public static final String CLIENT_ID_HEADER = "X-BDV-Client-Id";
+
+	/**
+	 * Response header of {@code p=init} in which the server lists optional
+	 * protocol features. Comma-separated. Older servers do not send it.
+	 */
+	public static final String SERVER_CAPABILITIES_HEADER = "X-BDV-Server-Capabilities";
+
+	/**
+	 * Capability: batched cell requests ({@code p=cells/...}).
+	 */
+	public static final String CAPABILITY_CELL_BATCHES = "cells";
+
+	/**
+	 * Maximum number of cells in one batched cell request.
+	 */
+	public static final int CELL_BATCH_MAX_CELLS = 64;
+
+	/**
+	 * Encoding of a cell in a batch: big-endian unsigned shorts.
+	 */
+	public static final int CELL_BATCH_ENCODING_RAW = 0;
+
+	/**
+	 * Encoding of a cell in a batch: one big-endian unsigned short, the value
+	 * of all voxels.
+	 */
+	public static final int CELL_BATCH_ENCODING_CONSTANT = 1;
+
+	/**
+	 * Encoding of a cell in a batch: gzipped big-endian unsigned shorts.
+	 */
+	public static final int CELL_BATCH_ENCODING_GZIP = 2;
+
+	/**
+	 * Encoding of a cell in a batch: packed at less than 16 bits per voxel, see
+	 * {@link BitPackedCellCodec}.
+	 */
+	public static final int CELL_BATCH_ENCODING_PACKED = 3;
+
 	public static final int THUMBNAIL_WIDTH = 100;
 
 	public static final int THUMBNAIL_HEIGHT = 100;
 
+	/**
+	 * Maximum number of {@code SliceRenderer}s per dataset.
+	 */
+	public static final int SLICE_RENDERER_POOL_SIZE = 4;
+
+	/**
+	 * Maximum number of {@code /slice} requests per dataset waiting for a
+	 * renderer. Further requests are answered with "503 Service Unavailable".
+	 */
+	public static final int SLICE_RENDER_QUEUE_SIZE = 16;
+
+	/**
+	 * How long (in milliseconds) a {@code /slice} request waits for a renderer.
+	 */
+	public static final long SLICE_RENDER_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Maximum width and height of images rendered by {@code /slice}.
+	 */
+	public static final int SLICE_MAX_SIZE = 4096;
+
+	/**
+	 * Width and height of {@code /tile} images.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * Maximum size in bytes of the in-memory tile cache of each dataset.
+	 */
+	public static final long TILE_MEMORY_CACHE_BYTES = 64L << 20;
+
+	/**
+	 * Maximum size in bytes of the on-disk tile cache of each dataset.
+	 */
+	public static final long TILE_DISK_CACHE_BYTES = 1L << 30;
+
+	/**
+	 * Maximum size in bytes of the projection cache of each dataset.
+	 */
+	public static final long PROJECTION_CACHE_BYTES = 64L << 20;
+
+	/**
+	 * Maximum width and height of {@code /projection} images. Larger
+	 * projections must be requested at a coarser level.
+	 */
+	public static final int PROJECTION_MAX_SIZE = 4096;
+
+	/**
+	 * How long (in milliseconds) a {@code /projection} request waits for the
+	 * projection to be computed.
+	 */
+	public static final long PROJECTION_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * Default budget in megabytes of the in-memory cell cache shared by all
+	 * datasets.
+	 */
+	public static final long CELL_MEMORY_CACHE_DEFAULT_SIZE_MB = 1024;
+
+	/**
+	 * Default maximum size in megabytes of the persistent cell cache.
+	 */
+	public static final long DISK_CELL_CACHE_DEFAULT_SIZE_MB = 10240;
+
+	/**
+	 * Maximum size in bytes of one segment file of the persistent cell cache.
+	 */
+	public static final long DISK_CELL_CACHE_SEGMENT_BYTES = 256L << 20;
+
+	/**
+	 * Maximum number of cells waiting to be written to the persistent cell
+	 * cache. Further cells are not cached.
+	 */
+	public static final int DISK_CELL_CACHE_WRITE_QUEUE_SIZE = 1024;
+
+	/**
+	 * Number of positions of each cluster node on the consistent-hash ring.
+	 */
+	public static final int CLUSTER_VIRTUAL_NODES = 128;
+
+	/**
+	 * Timeout (in milliseconds) for connecting to another cluster node.
+	 */
+	public static final int CLUSTER_CONNECT_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * Timeout (in milliseconds) for reading a proxied response from another
+	 * cluster node.
+	 */
+	public static final int CLUSTER_READ_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Maximum number of requests per dataset that are concurrently proxied to
+	 * other cluster nodes. Further requests are answered with "503 Service
+	 * Unavailable".
+	 */
+	public static final int CLUSTER_MAX_FORWARDS_PER_DATASET = 32;
+
+	/**
+	 * Maximum number of cell loads running concurrently.
+	 */
+	public static final int CELL_SCHEDULER_MAX_ACTIVE = 16;
+
+	/**
+	 * Maximum number of cell loads waiting to run. Further requests are
+	 * answered with "503 Service Unavailable". This should be well below the
+	 * size of the server thread pool.
+	 */
+	public static final int CELL_SCHEDULER_MAX_QUEUED = 128;
+
+	/**
+	 * Maximum number of cell loads of one dataset running concurrently. Keeps
+	 * a dataset on stalled storage from occupying all of
+	 * {@link #CELL_SCHEDULER_MAX_ACTIVE}.
+	 */
+	public static final int CELL_SCHEDULER_MAX_ACTIVE_PER_DATASET = 8;
+
+	/**
+	 * Maximum number of cell loads of one dataset waiting to run. Further
+	 * requests for the dataset are answered with "503 Service Unavailable".
+	 */
+	public static final int CELL_SCHEDULER_MAX_QUEUED_PER_DATASET = 64;
+
+	/**
+	 * Number of recent storage reads of a dataset considered by its
+	 * {@link CircuitBreaker}.
+	 */
+	public static final int CIRCUIT_BREAKER_WINDOW = 50;
+
+	/**
+	 * Minimum number of recent storage reads to open a {@link CircuitBreaker}
+	 * because of slow or failed reads.
+	 */
+	public static final int CIRCUIT_BREAKER_MIN_READS = 20;
+
+	/**
+	 * A {@link CircuitBreaker} opens if more than this fraction of recent
+	 * storage reads were slow or failed.
+	 */
+	public static final double CIRCUIT_BREAKER_MAX_BAD_FRACTION = 0.5;
+
+	/**
+	 * Storage reads of a cell that take longer than this are slow.
+	 */
+	public static final long CIRCUIT_BREAKER_SLOW_MILLIS = 2000;
+
+	/**
+	 * A {@link CircuitBreaker} opens if this many storage reads are running
+	 * for longer than {@link #CIRCUIT_BREAKER_SLOW_MILLIS}.
+	 */
+	public static final int CIRCUIT_BREAKER_MAX_STALLED = 4;
+
+	/**
+	 * How long an open {@link CircuitBreaker} rejects requests before letting
+	 * a trial request through.
+	 */
+	public static final long CIRCUIT_BREAKER_OPEN_MILLIS = 10000;
+
+	/**
+	 * How long (in milliseconds) a cell request may wait for and run its load.
+	 * Requests that take longer are cancelled and answered with "503 Service
+	 * Unavailable". This is also how long the load of a client that has closed
+	 * its connection may occupy the scheduler, because closed connections of
+	 * suspended requests are usually not noticed earlier.
+	 */
+	public static final long CELL_REQUEST_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Number of priority classes of cell loads. Mipmap levels beyond the last
+	 * class share the last class.
+	 */
+	public static final int CELL_SCHEDULER_PRIORITY_CLASSES = 8;
+
+	/**
+	 * Cell loads are rejected instead of queued if more than this fraction of
+	 * the tenured generation is still in use after its last collection.
+	 */
+	public static final double CELL_SCHEDULER_MAX_MEMORY_FRACTION = 0.9;
+
+	/**
+	 * Value (in seconds) of the "Retry-After" header of rejected cell
+	 * requests.
+	 */
+	public static final int CELL_SCHEDULER_RETRY_AFTER_SECONDS = 1;
+
+	/**
+	 * Number of cells per dataset whose access counts are tracked by the
+	 * {@link AccessHeatmap}.
+	 */
+	public static final int ACCESS_HEATMAP_CAPACITY = 8192;
+
+	/**
+	 * Interval at which {@link AccessHeatmap}s are saved.
+	 */
+	public static final int ACCESS_HEATMAP_SAVE_INTERVAL_SECONDS = 300;
+
+	/**
+	 * Half-life of {@link AccessHeatmap} counts.
+	 */
+	public static final double ACCESS_HEATMAP_HALF_LIFE_HOURS = 24;
+
+	/**
+	 * Number of accesses an {@link AccessHeatmap} buffers before they are
+	 * counted. Must be a power of two.
+	 */
+	public static final int ACCESS_HEATMAP_BUFFER_SIZE = 1024;
+
+	/**
+	 * Number of buffered accesses that an {@link AccessHeatmap} counts at once.
+	 */
+	public static final int ACCESS_HEATMAP_DRAIN_BATCH = 64;
+
+	/**
+	 * Number of hottest cells per dataset that are loaded into the caches when
+	 * the dataset is served.
+	 */
+	public static final int ACCESS_HEATMAP_WARMUP_CELLS = 1024;
+
+	/**
+	 * Maximum number of files of a {@link PackedCellStore} that are kept open
+	 * (and mapped) per dataset.
+	 */
+	public static final int PACKED_CELL_STORE_MAX_OPEN_FILES = 256;
+
+	/**
+	 * Maximum number of synthetic mipmap levels added below the coarsest
+	 * native level of a setup. 0 disables synthetic levels.
+	 */
+	public static final int SYNTHETIC_LEVELS_MAX = 8;
+
+	/**
+	 * Maximum number of cells per {@code /stream} session that are being
+	 * loaded or written at any time.
+	 */
+	public static final int STREAM_MAX_IN_FLIGHT = 4;
+
+	/**
+	 * Maximum number of cells sent for one view on a {@code /stream} session.
+	 * The finest levels are truncated first.
+	 */
+	public static final int STREAM_MAX_CELLS_PER_VIEW = 4096;
+
+	/**
+	 * Number of recently sent cells a {@code /stream} session remembers, so as
+	 * not to send them again.
+	 */
+	public static final int STREAM_MAX_REMEMBERED_CELLS = 65536;
+
+	/**
+	 * Maximum number of concurrent {@code /export} requests of all datasets.
+	 * Further requests are answered with "503 Service Unavailable".
+	 */
+	public static final int EXPORT_MAX_CONCURRENT = 4;
+
+	/**
+	 * Maximum number of concurrent {@code /slice}, {@code /tile} and
+	 * {@code /projection} requests per dataset. These read from storage
+	 * outside the {@code CellRequestScheduler}. Further requests are answered
+	 * with "503 Service Unavailable".
+	 */
+	public static final int DATASET_MAX_CONCURRENT_RENDERS = 8;
+
+	/**
+	 * Maximum number of concurrent {@code /export} requests per dataset (in
+	 * addition to {@link #EXPORT_MAX_CONCURRENT} for all datasets). Further
+	 * requests are answered with "503 Service Unavailable".
+	 */
+	public static final int DATASET_MAX_CONCURRENT_EXPORTS = 2;
+
+	/**
+	 * Number of threads reading cells for {@code /export} requests of all
+	 * datasets.
+	 */
+	public static final int EXPORT_READ_THREADS = 8;
+
+	/**
+	 * Maximum number of cells per {@code /export} request that are read ahead
+	 * of the cell being sent.
+	 */
+	public static final int EXPORT_READ_AHEAD_CELLS = 32;
+
+	/**
+	 * Maximum size of the slab of cells (one layer of cells along Z) that is
+	 * assembled for {@code /export} requests with {@code format=raw}.
+	 */
+	public static final long EXPORT_MAX_SLAB_BYTES = 256L << 20;
+
+	/**
+	 * Whether to read uncompressed HDF5 images directly from the memory-mapped
+	 * file, see {@link DirectCellReader}.
+	 */
+	public static final boolean DIRECT_HDF5_READS = true;
+
+	/**
+	 * Maximum number of 1 GiB windows of HDF5 files that
+	 * {@link DirectCellReader}s map into memory, over all datasets. Every
+	 * window takes one entry of the process' memory map table (limited by
+	 * {@code vm.max_map_count}, 65530 by default on Linux). Once this many
+	 * windows are mapped, further regions are read with positional reads.
+	 */
+	public static final int DIRECT_READ_MAX_MAPPED_WINDOWS = 8192;
+
 	public static final boolean ENABLE_EXPERIMENTAL_FEATURES = false;
 }
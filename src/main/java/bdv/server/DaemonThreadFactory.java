@@ -0,0 +1,49 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, such that worker pools do not keep the JVM
+ * alive.
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+	private final String name;
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	DaemonThreadFactory( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread( final Runnable r )
+	{
+		final Thread t = new Thread( r, name + "-" + count.incrementAndGet() );
+		t.setDaemon( true );
+		return t;
+	}
+}
@@ -0,0 +1,624 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.util.log.Log;
+
+import bdv.img.hdf5.DimsAndExistence;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.MipmapInfo;
+import bdv.img.hdf5.ViewLevelId;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Metadata derived from a dataset that is expensive to compute: the remote
+ * dataset XML (plain and for the batched loader), the metadata JSON for
+ * {@code init} requests, the mipmap levels of every setup (including
+ * {@link SyntheticLevels synthetic levels}), the image and cell dimensions
+ * of every (timepoint, setup, level), and the raw data locations of the
+ * images for the {@link DirectCellReader}.
+ * <p>
+ * Computing these requires parsing and pretty-printing the XML, querying
+ * the HDF5 file for the dimensions of every image, and walking the chunk
+ * B-trees of every image, which takes long for datasets with many views. So the index is persisted to
+ * {@code <baseFilename>.bdvindex}, next to the dataset XML. The file records
+ * the modification times of the XML and HDF5 files and the base URL it was
+ * built for, and is rebuilt if any of these change.
+ * <p>
+ * The index also keeps what is needed to serve a dataset without parsing its
+ * XML: the timepoint and setup ids, the view registrations, and the HDF5 file.
+ */
+public class DatasetIndex
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( DatasetIndex.class );
+
+	private static final int MAGIC = 0x42445649; // "BDVI"
+
+	private static final int FILE_VERSION = 5;
+
+	/**
+	 * Source of the remote dataset XML, to be called if the index has to be
+	 * rebuilt.
+	 */
+	@FunctionalInterface
+	public interface DocumentBuilder
+	{
+		/**
+		 * @param batched
+		 *            whether to build the XML for the batched remote loader.
+		 */
+		byte[] build( boolean batched ) throws IOException, SpimDataException;
+	}
+
+	/**
+	 * Mipmap levels of one setup.
+	 */
+	private static final class SetupLevels
+	{
+		/**
+		 * Number of levels stored in the dataset. Further levels are
+		 * synthetic.
+		 */
+		final int numNativeLevels;
+
+		/**
+		 * Resolution of each level, relative to full resolution.
+		 */
+		final double[][] resolutions;
+
+		/**
+		 * Cell dimensions of each level.
+		 */
+		final int[][] cellDimensions;
+
+		final MipmapInfo mipmapInfo;
+
+		SetupLevels( final int numNativeLevels, final double[][] resolutions, final int[][] cellDimensions )
+		{
+			this.numNativeLevels = numNativeLevels;
+			this.resolutions = resolutions;
+			this.cellDimensions = cellDimensions;
+			final AffineTransform3D[] transforms = new AffineTransform3D[ resolutions.length ];
+			for ( int level = 0; level < resolutions.length; ++level )
+				transforms[ level ] = SyntheticLevels.getMipmapTransform( resolutions[ level ] );
+			mipmapInfo = new MipmapInfo( resolutions, transforms, cellDimensions );
+		}
+	}
+
+	/**
+	 * HDF5 file of the dataset, or {@code null} if the images are split over
+	 * partitions, which can only be opened from the dataset XML.
+	 */
+	private final File hdf5File;
+
+	/**
+	 * Timepoints and setups of the dataset. If the index was loaded from file,
+	 * the setups only have ids.
+	 */
+	private final SequenceDescriptionMinimal seq;
+
+	private final ViewRegistrations registrations;
+
+	private final byte[] datasetXml;
+
+	private final byte[] batchedDatasetXml;
+
+	private final byte[] metadataJson;
+
+	/**
+	 * Image dimensions of all existing (timepoint, setup, level).
+	 */
+	private final Map< ViewLevelId, long[] > dimensions;
+
+	private final Map< Integer, SetupLevels > setups;
+
+	/**
+	 * Raw data locations of the native images that can be read directly, see
+	 * {@link DirectCellReader#resolve(File, java.util.Collection)}.
+	 */
+	private final Map< ViewLevelId, DirectCellReader.Image > directReadImages;
+
+	private DatasetIndex(
+			final File hdf5File,
+			final SequenceDescriptionMinimal seq,
+			final ViewRegistrations registrations,
+			final byte[] datasetXml,
+			final byte[] batchedDatasetXml,
+			final byte[] metadataJson,
+			final Map< ViewLevelId, long[] > dimensions,
+			final Map< Integer, SetupLevels > setups,
+			final Map< ViewLevelId, DirectCellReader.Image > directReadImages )
+	{
+		this.hdf5File = hdf5File;
+		this.seq = seq;
+		this.registrations = registrations;
+		this.datasetXml = datasetXml;
+		this.batchedDatasetXml = batchedDatasetXml;
+		this.metadataJson = metadataJson;
+		this.dimensions = dimensions;
+		this.setups = setups;
+		this.directReadImages = directReadImages;
+	}
+
+	/**
+	 * Load the index from {@code <baseFilename>.bdvindex}.
+	 *
+	 * @param baseFilename
+	 *            full path of dataset xml file, without the ".xml" extension.
+	 * @param xmlFile
+	 *            the dataset XML file.
+	 * @param baseUrl
+	 *            URL under which the dataset is served.
+	 * @return the index, or {@code null} if there is no index or it is out of
+	 *         date.
+	 */
+	public static DatasetIndex load( final String baseFilename, final File xmlFile, final String baseUrl )
+	{
+		return tryLoad( new File( baseFilename + ".bdvindex" ), xmlFile.lastModified(), baseUrl );
+	}
+
+	/**
+	 * Build the index and try to save it to {@code <baseFilename>.bdvindex}.
+	 *
+	 * @param baseFilename
+	 *            full path of dataset xml file, without the ".xml" extension.
+	 * @param xmlFile
+	 *            the dataset XML file.
+	 * @param spimData
+	 *            the dataset, with an {@link Hdf5ImageLoader}.
+	 * @param baseUrl
+	 *            URL under which the dataset is served.
+	 * @param datasetXmlBuilder
+	 *            builds the remote dataset XMLs (UTF-8).
+	 */
+	public static DatasetIndex build(
+			final String baseFilename,
+			final File xmlFile,
+			final SpimDataMinimal spimData,
+			final String baseUrl,
+			final DocumentBuilder datasetXmlBuilder ) throws IOException, SpimDataException
+	{
+		final File file = new File( baseFilename + ".bdvindex" );
+		final long xmlModified = xmlFile.lastModified();
+		final SequenceDescriptionMinimal seq = spimData.getSequenceDescription();
+		final Hdf5ImageLoader imgLoader = ( Hdf5ImageLoader ) seq.getImgLoader();
+		final File hdf5File = imgLoader.getHdf5File().getAbsoluteFile();
+		final boolean partitioned = !imgLoader.getPartitions().isEmpty();
+
+		final Map< ViewLevelId, long[] > dimensions = new HashMap<>();
+		final Map< Integer, SetupLevels > setups = new HashMap<>();
+		final List< ViewLevelId > nativeImages = new ArrayList<>();
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+		{
+			final int s = setup.getId();
+			final MipmapInfo info = imgLoader.getMipmapInfo( s );
+			if ( info == null )
+				continue;
+			final int numNativeLevels = info.getResolutions().length;
+			final int coarsest = numNativeLevels - 1;
+			long[] coarsestDims = null;
+			for ( final TimePoint timepoint : timepoints )
+			{
+				for ( int level = 0; level < numNativeLevels; ++level )
+				{
+					final ViewLevelId id = new ViewLevelId( timepoint.getId(), s, level );
+					final DimsAndExistence dims = imgLoader.getDimsAndExistence( id );
+					if ( dims != null && dims.exists() )
+					{
+						dimensions.put( id, dims.getDimensions().clone() );
+						nativeImages.add( id );
+						if ( level == coarsest && coarsestDims == null )
+							coarsestDims = dims.getDimensions().clone();
+					}
+				}
+			}
+
+			// extend the pyramid with synthetic levels if it is too shallow
+			final int[][] factors = coarsestDims == null
+					? new int[ 0 ][]
+					: SyntheticLevels.proposeFactors( coarsestDims, info.getSubdivisions()[ coarsest ], Constants.SYNTHETIC_LEVELS_MAX );
+			final int numLevels = numNativeLevels + factors.length;
+			final double[][] resolutions = Arrays.copyOf( info.getResolutions(), numLevels );
+			final int[][] cellDimensions = Arrays.copyOf( info.getSubdivisions(), numLevels );
+			for ( int level = numNativeLevels; level < numLevels; ++level )
+			{
+				final int[] f = factors[ level - numNativeLevels ];
+				resolutions[ level ] = new double[ f.length ];
+				for ( int d = 0; d < f.length; ++d )
+					resolutions[ level ][ d ] = resolutions[ level - 1 ][ d ] * f[ d ];
+				cellDimensions[ level ] = cellDimensions[ coarsest ];
+				for ( final TimePoint timepoint : timepoints )
+				{
+					final long[] finer = dimensions.get( new ViewLevelId( timepoint.getId(), s, level - 1 ) );
+					if ( finer == null )
+						continue;
+					final long[] dims = new long[ finer.length ];
+					for ( int d = 0; d < dims.length; ++d )
+						dims[ d ] = ( finer[ d ] + f[ d ] - 1 ) / f[ d ];
+					dimensions.put( new ViewLevelId( timepoint.getId(), s, level ), dims );
+				}
+			}
+			if ( factors.length > 0 )
+				LOG.info( "Adding " + factors.length + " synthetic mipmap levels to setup " + s + " of \"" + xmlFile + "\"" );
+			setups.put( s, new SetupLevels( numNativeLevels, resolutions, cellDimensions ) );
+		}
+		final Map< ViewLevelId, DirectCellReader.Image > directReadImages = Constants.DIRECT_HDF5_READS
+				? DirectCellReader.resolve( hdf5File, nativeImages )
+				: new HashMap<>();
+		final DatasetIndex levels = new DatasetIndex( null, null, null, null, null, null, dimensions, setups, null );
+		final DatasetIndex index = new DatasetIndex(
+				partitioned ? null : hdf5File,
+				seq,
+				spimData.getViewRegistrations(),
+				datasetXmlBuilder.build( false ),
+				datasetXmlBuilder.build( true ),
+				MetadataJsonWriter.toBytes( levels, seq ),
+				dimensions,
+				setups,
+				directReadImages );
+
+		try
+		{
+			index.save( file, xmlModified, hdf5File, baseUrl );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not write dataset index \"" + file + "\": " + e.getMessage() );
+		}
+		return index;
+	}
+
+	/**
+	 * Get the HDF5 file of the dataset.
+	 *
+	 * @return the HDF5 file, or {@code null} if the images are split over
+	 *         partitions, which can only be opened from the dataset XML.
+	 */
+	public File getHdf5File()
+	{
+		return hdf5File;
+	}
+
+	/**
+	 * Get the timepoints and setups of the dataset. If the index was loaded
+	 * from file, the setups only have ids, and there is no image loader.
+	 */
+	public SequenceDescriptionMinimal getSequenceDescription()
+	{
+		return seq;
+	}
+
+	public ViewRegistrations getViewRegistrations()
+	{
+		return registrations;
+	}
+
+	/**
+	 * Get the remote dataset XML (UTF-8).
+	 */
+	public byte[] getDatasetXml()
+	{
+		return datasetXml;
+	}
+
+	/**
+	 * Get the remote dataset XML for the batched remote loader (UTF-8).
+	 */
+	public byte[] getBatchedDatasetXml()
+	{
+		return batchedDatasetXml;
+	}
+
+	/**
+	 * Get the metadata JSON (UTF-8).
+	 */
+	public byte[] getMetadataJson()
+	{
+		return metadataJson;
+	}
+
+	/**
+	 * Get the image dimensions of a (timepoint, setup, level).
+	 *
+	 * @return dimensions, or {@code null} if the image does not exist. The
+	 *         array must not be modified.
+	 */
+	public long[] getDimensions( final int timepoint, final int setup, final int level )
+	{
+		return dimensions.get( new ViewLevelId( timepoint, setup, level ) );
+	}
+
+	/**
+	 * Get the cell dimensions of a (setup, level).
+	 *
+	 * @return dimensions, or {@code null} if the setup or level does not
+	 *         exist. The array must not be modified.
+	 */
+	public int[] getCellDimensions( final int setup, final int level )
+	{
+		final SetupLevels levels = setups.get( setup );
+		return levels == null || level < 0 || level >= levels.cellDimensions.length ? null : levels.cellDimensions[ level ];
+	}
+
+	/**
+	 * Get the mipmap levels of a setup, including synthetic levels.
+	 *
+	 * @return mipmap info, or {@code null} if the setup does not exist.
+	 */
+	public MipmapInfo getMipmapInfo( final int setup )
+	{
+		final SetupLevels levels = setups.get( setup );
+		return levels == null ? null : levels.mipmapInfo;
+	}
+
+	/**
+	 * Get the number of levels of a setup that are stored in the dataset.
+	 * Further levels are synthetic.
+	 *
+	 * @return number of native levels, or 0 if the setup does not exist.
+	 */
+	public int getNumNativeLevels( final int setup )
+	{
+		final SetupLevels levels = setups.get( setup );
+		return levels == null ? 0 : levels.numNativeLevels;
+	}
+
+	/**
+	 * Get the raw data locations of the native images that can be read
+	 * directly from the HDF5 file.
+	 */
+	Map< ViewLevelId, DirectCellReader.Image > getDirectReadImages()
+	{
+		return directReadImages;
+	}
+
+	private static DatasetIndex tryLoad( final File file, final long xmlModified, final String baseUrl )
+	{
+		if ( !file.isFile() )
+			return null;
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new GZIPInputStream( new FileInputStream( file ) ) ) ) )
+		{
+			if ( in.readInt() != MAGIC
+					|| in.readInt() != FILE_VERSION
+					|| in.readLong() != xmlModified )
+			{
+				LOG.info( "Dataset index \"" + file + "\" is outdated, rebuilding." );
+				return null;
+			}
+			final File hdf5File = new File( in.readUTF() );
+			final long hdf5Modified = in.readLong();
+			if ( hdf5File.lastModified() != hdf5Modified || !in.readUTF().equals( baseUrl ) )
+			{
+				LOG.info( "Dataset index \"" + file + "\" is outdated, rebuilding." );
+				return null;
+			}
+			final boolean partitioned = in.readBoolean();
+
+			final List< TimePoint > timepoints = new ArrayList<>();
+			for ( final int id : readInts( in ) )
+				timepoints.add( new TimePoint( id ) );
+			final Map< Integer, BasicViewSetup > viewSetups = new HashMap<>();
+			for ( final int id : readInts( in ) )
+				viewSetups.put( id, new BasicViewSetup( id, null, null, null ) );
+			final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( timepoints ), viewSetups, null, null );
+
+			final Map< ViewId, ViewRegistration > registrations = new HashMap<>();
+			final int numRegistrations = in.readInt();
+			final double[] model = new double[ 12 ];
+			for ( int i = 0; i < numRegistrations; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				for ( int j = 0; j < model.length; ++j )
+					model[ j ] = in.readDouble();
+				final AffineTransform3D transform = new AffineTransform3D();
+				transform.set( model );
+				registrations.put( new ViewId( timepoint, setup ), new ViewRegistration( timepoint, setup, transform ) );
+			}
+
+			final byte[] datasetXml = new byte[ in.readInt() ];
+			in.readFully( datasetXml );
+			final byte[] batchedDatasetXml = new byte[ in.readInt() ];
+			in.readFully( batchedDatasetXml );
+			final byte[] metadataJson = new byte[ in.readInt() ];
+			in.readFully( metadataJson );
+
+			final Map< Integer, SetupLevels > setups = new HashMap<>();
+			final int numSetups = in.readInt();
+			for ( int i = 0; i < numSetups; ++i )
+			{
+				final int setup = in.readInt();
+				final int numNativeLevels = in.readInt();
+				final int numLevels = in.readInt();
+				final double[][] resolutions = new double[ numLevels ][];
+				final int[][] cellDimensions = new int[ numLevels ][];
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					resolutions[ level ] = new double[ in.readInt() ];
+					for ( int d = 0; d < resolutions[ level ].length; ++d )
+						resolutions[ level ][ d ] = in.readDouble();
+					cellDimensions[ level ] = readInts( in );
+				}
+				setups.put( setup, new SetupLevels( numNativeLevels, resolutions, cellDimensions ) );
+			}
+
+			final Map< ViewLevelId, long[] > dimensions = new HashMap<>();
+			final int numImages = in.readInt();
+			for ( int i = 0; i < numImages; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				final int level = in.readInt();
+				final long[] dims = new long[ in.readInt() ];
+				for ( int d = 0; d < dims.length; ++d )
+					dims[ d ] = in.readLong();
+				dimensions.put( new ViewLevelId( timepoint, setup, level ), dims );
+			}
+
+			final Map< ViewLevelId, DirectCellReader.Image > directReadImages = new HashMap<>();
+			final int numDirectReadImages = in.readInt();
+			for ( int i = 0; i < numDirectReadImages; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				final int level = in.readInt();
+				directReadImages.put( new ViewLevelId( timepoint, setup, level ), DirectCellReader.Image.read( in ) );
+			}
+			return new DatasetIndex(
+					partitioned ? null : hdf5File,
+					seq,
+					new ViewRegistrations( registrations ),
+					datasetXml,
+					batchedDatasetXml,
+					metadataJson,
+					dimensions,
+					setups,
+					directReadImages );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not read dataset index \"" + file + "\": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	private void save( final File file, final long xmlModified, final File hdf5File, final String baseUrl ) throws IOException
+	{
+		final File tmp = new File( file.getPath() + ".tmp" );
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( tmp ) ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( FILE_VERSION );
+			out.writeLong( xmlModified );
+			out.writeUTF( hdf5File.getPath() );
+			out.writeLong( hdf5File.lastModified() );
+			out.writeUTF( baseUrl );
+			out.writeBoolean( this.hdf5File == null );
+
+			final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+			out.writeInt( timepoints.size() );
+			for ( final TimePoint timepoint : timepoints )
+				out.writeInt( timepoint.getId() );
+			final List< ? extends BasicViewSetup > viewSetups = seq.getViewSetupsOrdered();
+			out.writeInt( viewSetups.size() );
+			for ( final BasicViewSetup setup : viewSetups )
+				out.writeInt( setup.getId() );
+
+			final Map< ViewId, ViewRegistration > views = registrations.getViewRegistrations();
+			out.writeInt( views.size() );
+			for ( final ViewRegistration view : views.values() )
+			{
+				out.writeInt( view.getTimePointId() );
+				out.writeInt( view.getViewSetupId() );
+				for ( final double v : view.getModel().getRowPackedCopy() )
+					out.writeDouble( v );
+			}
+
+			out.writeInt( datasetXml.length );
+			out.write( datasetXml );
+			out.writeInt( batchedDatasetXml.length );
+			out.write( batchedDatasetXml );
+			out.writeInt( metadataJson.length );
+			out.write( metadataJson );
+
+			out.writeInt( setups.size() );
+			for ( final Map.Entry< Integer, SetupLevels > e : setups.entrySet() )
+			{
+				final SetupLevels levels = e.getValue();
+				out.writeInt( e.getKey() );
+				out.writeInt( levels.numNativeLevels );
+				out.writeInt( levels.resolutions.length );
+				for ( int level = 0; level < levels.resolutions.length; ++level )
+				{
+					out.writeInt( levels.resolutions[ level ].length );
+					for ( final double r : levels.resolutions[ level ] )
+						out.writeDouble( r );
+					writeInts( out, levels.cellDimensions[ level ] );
+				}
+			}
+
+			out.writeInt( dimensions.size() );
+			for ( final Map.Entry< ViewLevelId, long[] > e : dimensions.entrySet() )
+			{
+				out.writeInt( e.getKey().getTimepointId() );
+				out.writeInt( e.getKey().getViewSetupId() );
+				out.writeInt( e.getKey().getLevel() );
+				out.writeInt( e.getValue().length );
+				for ( final long d : e.getValue() )
+					out.writeLong( d );
+			}
+
+			out.writeInt( directReadImages.size() );
+			for ( final Map.Entry< ViewLevelId, DirectCellReader.Image > e : directReadImages.entrySet() )
+			{
+				out.writeInt( e.getKey().getTimepointId() );
+				out.writeInt( e.getKey().getViewSetupId() );
+				out.writeInt( e.getKey().getLevel() );
+				e.getValue().write( out );
+			}
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private static int[] readInts( final DataInputStream in ) throws IOException
+	{
+		final int[] values = new int[ in.readInt() ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = in.readInt();
+		return values;
+	}
+
+	private static void writeInts( final DataOutputStream out, final int[] values ) throws IOException
+	{
+		out.writeInt( values.length );
+		for ( final int v : values )
+			out.writeInt( v );
+	}
+}
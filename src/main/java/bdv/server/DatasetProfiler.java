@@ -0,0 +1,601 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.eclipse.jetty.util.log.Log;
+
+import com.google.gson.stream.JsonWriter;
+
+import bdv.img.hdf5.DimsAndExistence;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.MipmapInfo;
+import bdv.img.hdf5.Util;
+import bdv.img.hdf5.ViewLevelId;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5StorageLayout;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Benchmarks how fast cells can be read from the XML/HDF5 datasets of a
+ * catalogue, and flags storage layouts that are likely to perform badly.
+ * <p>
+ * For every setup and mipmap level, the HDF5 storage layout (chunk sizes) is
+ * compared with the BigDataViewer cell size. A random sample of cells is read
+ * sequentially, and a disjoint sample with several threads. The report lists
+ * latency and throughput per level, the multi-threaded speedup, and
+ * warnings. It is written as JSON, and summarized on standard output.
+ * <p>
+ * Note that cells are read through the operating system's page cache, so a
+ * dataset that was read recently will appear faster than it is when cold.
+ */
+public class DatasetProfiler
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( DatasetProfiler.class );
+
+	/**
+	 * Cells with fewer voxels than this make per-request overhead dominate.
+	 */
+	private static final int MIN_CELL_VOXELS = 16 * 16 * 16;
+
+	/**
+	 * If the coarsest level has more cells than this, clients have to load
+	 * many cells to show an overview.
+	 */
+	private static final int MAX_COARSEST_LEVEL_CELLS = 64;
+
+	/**
+	 * Levels whose throughput is below this fraction of the best level of the
+	 * same setup are flagged as slow.
+	 */
+	private static final double SLOW_LEVEL_FRACTION = 0.25;
+
+	/**
+	 * Multi-threaded speedups below this are flagged.
+	 */
+	private static final double MIN_SPEEDUP = 1.5;
+
+	/**
+	 * Profile of one mipmap level of one setup.
+	 */
+	static final class LevelProfile
+	{
+		int setup;
+
+		int level;
+
+		long[] dimensions;
+
+		int[] cellDimensions;
+
+		long numCells;
+
+		/**
+		 * HDF5 storage layout and chunk size (X first), of the first timepoint.
+		 */
+		String storageLayout;
+
+		int[] chunkDimensions;
+
+		int numSampled;
+
+		long bytesRead;
+
+		double latencyMedianMillis;
+
+		double latency95Millis;
+
+		double throughputMBps;
+
+		double parallelThroughputMBps;
+
+		final List< String > warnings = new ArrayList<>();
+	}
+
+	/**
+	 * Profile of one dataset.
+	 */
+	static final class DatasetProfile
+	{
+		String name;
+
+		String xml;
+
+		long fileBytes;
+
+		long rawBytes;
+
+		final List< LevelProfile > levels = new ArrayList<>();
+
+		final List< String > warnings = new ArrayList<>();
+	}
+
+	private final int numSamples;
+
+	private final int numThreads;
+
+	private final Random random = new Random( 1 );
+
+	/**
+	 * @param numSamples
+	 *            number of cells to read per level (for each of the sequential
+	 *            and parallel runs).
+	 * @param numThreads
+	 *            number of threads for the parallel run.
+	 */
+	public DatasetProfiler( final int numSamples, final int numThreads )
+	{
+		this.numSamples = numSamples;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Profile one dataset.
+	 */
+	DatasetProfile profile( final String name, final String xmlFilename ) throws Exception
+	{
+		final SpimDataMinimal spimData = new XmlIoSpimDataMinimal().load( xmlFilename );
+		final SequenceDescriptionMinimal seq = spimData.getSequenceDescription();
+		final Hdf5ImageLoader imgLoader = ( Hdf5ImageLoader ) seq.getImgLoader();
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+
+		final DatasetProfile profile = new DatasetProfile();
+		profile.name = name;
+		profile.xml = xmlFilename;
+		profile.fileBytes = imgLoader.getHdf5File().length();
+
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads, new DaemonThreadFactory( "profiler" ) );
+		try ( final IHDF5Reader reader = HDF5Factory.openForReading( imgLoader.getHdf5File() ) )
+		{
+			for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+			{
+				final int s = setup.getId();
+				final MipmapInfo info = imgLoader.getMipmapInfo( s );
+				final int numLevels = info.getResolutions().length;
+				final List< LevelProfile > setupLevels = new ArrayList<>();
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					final LevelProfile lp = new LevelProfile();
+					lp.setup = s;
+					lp.level = level;
+					lp.cellDimensions = info.getSubdivisions()[ level ];
+
+					// images of all timepoints, to sample cells from
+					final List< ViewLevelId > images = new ArrayList<>();
+					for ( final TimePoint timepoint : timepoints )
+					{
+						final ViewLevelId id = new ViewLevelId( timepoint.getId(), s, level );
+						final DimsAndExistence dims = imgLoader.getDimsAndExistence( id );
+						if ( !dims.exists() )
+							continue;
+						images.add( id );
+						if ( lp.dimensions == null )
+							lp.dimensions = dims.getDimensions();
+						profile.rawBytes += 2 * numElements( dims.getDimensions() );
+					}
+					if ( images.isEmpty() )
+						continue;
+
+					final CellGrid grid = new CellGrid( lp.dimensions, lp.cellDimensions );
+					lp.numCells = numElements( grid.getGridDimensions() );
+					readLayout( reader, images.get( 0 ), lp );
+					benchmark( imgLoader, images, grid, lp, executor );
+					checkLevel( lp );
+					setupLevels.add( lp );
+				}
+				checkPyramid( setupLevels );
+				profile.levels.addAll( setupLevels );
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			imgLoader.close();
+		}
+
+		if ( profile.rawBytes > 0 && profile.fileBytes > profile.rawBytes )
+			profile.warnings.add( "HDF5 file is larger than the uncompressed image data; consider re-exporting with compression or repacking the file." );
+		return profile;
+	}
+
+	/**
+	 * Read the HDF5 storage layout of an image.
+	 */
+	private static void readLayout( final IHDF5Reader reader, final ViewLevelId id, final LevelProfile lp )
+	{
+		final String path = Util.getCellsPath( id.getTimepointId(), id.getViewSetupId(), id.getLevel() );
+		if ( !reader.object().exists( path ) )
+			return;
+		final HDF5DataSetInformation info = reader.object().getDataSetInformation( path );
+		lp.storageLayout = info.getStorageLayout().toString();
+		final int[] chunks = info.tryGetChunkSizes();
+		if ( chunks != null )
+		{
+			// HDF5 dimensions are ordered Z, Y, X
+			lp.chunkDimensions = new int[ chunks.length ];
+			for ( int d = 0; d < chunks.length; ++d )
+				lp.chunkDimensions[ d ] = chunks[ chunks.length - 1 - d ];
+		}
+	}
+
+	/**
+	 * Read a random sample of cells sequentially, and a disjoint sample in
+	 * parallel, so that the parallel run does not read cells that the
+	 * sequential run has just brought into the page cache.
+	 */
+	private void benchmark( final Hdf5ImageLoader imgLoader, final List< ViewLevelId > images, final CellGrid grid, final LevelProfile lp, final ExecutorService executor ) throws Exception
+	{
+		final long numTotal = images.size() * lp.numCells;
+		final int n = ( int ) Math.min( numSamples, ( numTotal + 1 ) / 2 );
+		final int numParallel = ( int ) Math.min( numSamples, numTotal - n );
+		final long[] samples = sampleCells( numTotal, n + numParallel );
+		lp.numSampled = n;
+
+		final double[] latencies = new double[ n ];
+		long bytes = 0;
+		final long start = System.nanoTime();
+		for ( int i = 0; i < n; ++i )
+		{
+			final long t0 = System.nanoTime();
+			bytes += readCell( imgLoader, images, grid, samples[ i ] );
+			latencies[ i ] = ( System.nanoTime() - t0 ) / 1e6;
+		}
+		final double seconds = ( System.nanoTime() - start ) / 1e9;
+		lp.bytesRead = bytes;
+		lp.throughputMBps = bytes / 1e6 / seconds;
+		Arrays.sort( latencies );
+		lp.latencyMedianMillis = latencies[ n / 2 ];
+		lp.latency95Millis = latencies[ Math.min( n - 1, ( int ) ( 0.95 * n ) ) ];
+
+		if ( numParallel == 0 )
+			return;
+		final List< Future< Long > > futures = new ArrayList<>();
+		final long parallelStart = System.nanoTime();
+		for ( int i = n; i < samples.length; ++i )
+		{
+			final long sample = samples[ i ];
+			futures.add( executor.submit( () -> readCell( imgLoader, images, grid, sample ) ) );
+		}
+		long parallelBytes = 0;
+		for ( final Future< Long > future : futures )
+			parallelBytes += future.get();
+		lp.parallelThroughputMBps = parallelBytes / 1e6 / ( ( System.nanoTime() - parallelStart ) / 1e9 );
+	}
+
+	/**
+	 * Pick {@code count} distinct random cells out of {@code numTotal}.
+	 *
+	 * @return the cells, as {@code imageIndex * numCells + cellIndex}.
+	 */
+	private long[] sampleCells( final long numTotal, final int count )
+	{
+		final Set< Long > picked = new LinkedHashSet<>();
+		while ( picked.size() < count )
+			picked.add( ( long ) ( random.nextDouble() * numTotal ) );
+		final long[] samples = new long[ count ];
+		int i = 0;
+		for ( final long sample : picked )
+			samples[ i++ ] = sample;
+		return samples;
+	}
+
+	/**
+	 * Read a cell, given as {@code imageIndex * numCells + cellIndex}.
+	 *
+	 * @return the number of bytes read.
+	 */
+	private static long readCell( final Hdf5ImageLoader imgLoader, final List< ViewLevelId > images, final CellGrid grid, final long sample ) throws InterruptedException
+	{
+		final long numCells = numElements( grid.getGridDimensions() );
+		final ViewLevelId id = images.get( ( int ) ( sample / numCells ) );
+		final long index = sample % numCells;
+		final int n = grid.numDimensions();
+		final long[] gridpos = new long[ n ];
+		final long[] min = new long[ n ];
+		final int[] dims = new int[ n ];
+		grid.getCellGridPositionFlat( index, gridpos );
+		grid.getCellDimensions( gridpos, min, dims );
+		final short[] data = imgLoader.getShortArrayLoader().loadArray( id.getTimepointId(), id.getViewSetupId(), id.getLevel(), dims, min ).getCurrentStorageArray();
+		return 2L * data.length;
+	}
+
+	/**
+	 * Flag layout problems of a single level.
+	 */
+	private void checkLevel( final LevelProfile lp )
+	{
+		if ( HDF5StorageLayout.CONTIGUOUS.toString().equals( lp.storageLayout ) )
+			lp.warnings.add( "not chunked: every cell read gathers many small strided pieces" );
+		else if ( lp.chunkDimensions != null && !Arrays.equals( lp.chunkDimensions, lp.cellDimensions ) )
+		{
+			boolean aligned = true;
+			for ( int d = 0; d < lp.cellDimensions.length; ++d )
+				aligned &= lp.cellDimensions[ d ] % lp.chunkDimensions[ d ] == 0;
+			lp.warnings.add( "chunk size " + Arrays.toString( lp.chunkDimensions ) + " differs from cell size " + Arrays.toString( lp.cellDimensions ) +
+					( aligned
+							? ": every cell read decodes several chunks"
+							: ": chunks straddle cells, so neighbouring cell reads decode the same chunks repeatedly" ) );
+		}
+
+		if ( numElements( lp.cellDimensions ) < MIN_CELL_VOXELS )
+			lp.warnings.add( "tiny cells (" + numElements( lp.cellDimensions ) + " voxels): per-request overhead dominates" );
+
+		if ( numThreads > 1 && lp.parallelThroughputMBps > 0 && lp.parallelThroughputMBps < MIN_SPEEDUP * lp.throughputMBps )
+			lp.warnings.add( String.format( "reads do not scale with threads (speedup %.1f with %d threads); consider a packed cell store", lp.parallelThroughputMBps / lp.throughputMBps, numThreads ) );
+	}
+
+	/**
+	 * Flag problems of the pyramid of a setup.
+	 */
+	private static void checkPyramid( final List< LevelProfile > levels )
+	{
+		if ( levels.isEmpty() )
+			return;
+
+		double best = 0;
+		for ( final LevelProfile lp : levels )
+			best = Math.max( best, lp.throughputMBps );
+		for ( final LevelProfile lp : levels )
+			if ( lp.throughputMBps < SLOW_LEVEL_FRACTION * best )
+				lp.warnings.add( String.format( "throughput %.1f MB/s is far below the best level of this setup (%.1f MB/s)", lp.throughputMBps, best ) );
+
+		final LevelProfile coarsest = levels.get( levels.size() - 1 );
+		if ( coarsest.numCells > MAX_COARSEST_LEVEL_CELLS )
+			coarsest.warnings.add( "pyramid too shallow: coarsest level has " + coarsest.numCells + " cells (missing levels are synthesized by the server)" );
+
+		int singleCellLevels = 0;
+		for ( final LevelProfile lp : levels )
+			if ( lp.numCells == 1 )
+				++singleCellLevels;
+		if ( singleCellLevels > 1 )
+			coarsest.warnings.add( "pyramid too deep: " + singleCellLevels + " levels fit into a single cell" );
+	}
+
+	private static long numElements( final long[] dims )
+	{
+		long n = 1;
+		for ( final long d : dims )
+			n *= d;
+		return n;
+	}
+
+	private static long numElements( final int[] dims )
+	{
+		long n = 1;
+		for ( final int d : dims )
+			n *= d;
+		return n;
+	}
+
+	static void writeReport( final List< DatasetProfile > profiles, final Writer out ) throws IOException
+	{
+		final JsonWriter writer = new JsonWriter( out );
+		writer.setIndent( "\t" );
+		writer.beginObject();
+		writer.name( "datasets" ).beginArray();
+		for ( final DatasetProfile p : profiles )
+		{
+			writer.beginObject();
+			writer.name( "name" ).value( p.name );
+			writer.name( "xml" ).value( p.xml );
+			writer.name( "fileBytes" ).value( p.fileBytes );
+			writer.name( "rawBytes" ).value( p.rawBytes );
+			writeWarnings( writer, p.warnings );
+			writer.name( "levels" ).beginArray();
+			for ( final LevelProfile lp : p.levels )
+			{
+				writer.beginObject();
+				writer.name( "setup" ).value( lp.setup );
+				writer.name( "level" ).value( lp.level );
+				writeArray( writer, "dimensions", lp.dimensions );
+				writeArray( writer, "cellDimensions", lp.cellDimensions );
+				writer.name( "numCells" ).value( lp.numCells );
+				writer.name( "storageLayout" ).value( lp.storageLayout );
+				writeArray( writer, "chunkDimensions", lp.chunkDimensions );
+				writer.name( "sampledCells" ).value( lp.numSampled );
+				writer.name( "bytesRead" ).value( lp.bytesRead );
+				writer.name( "latencyMedianMillis" ).value( lp.latencyMedianMillis );
+				writer.name( "latency95Millis" ).value( lp.latency95Millis );
+				writer.name( "throughputMBps" ).value( lp.throughputMBps );
+				writer.name( "parallelThroughputMBps" ).value( lp.parallelThroughputMBps );
+				writeWarnings( writer, lp.warnings );
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.flush();
+	}
+
+	private static void writeWarnings( final JsonWriter writer, final List< String > warnings ) throws IOException
+	{
+		writer.name( "warnings" ).beginArray();
+		for ( final String w : warnings )
+			writer.value( w );
+		writer.endArray();
+	}
+
+	private static void writeArray( final JsonWriter writer, final String name, final long[] values ) throws IOException
+	{
+		writer.name( name ).beginArray();
+		for ( final long v : values )
+			writer.value( v );
+		writer.endArray();
+	}
+
+	private static void writeArray( final JsonWriter writer, final String name, final int[] values ) throws IOException
+	{
+		if ( values == null )
+		{
+			writer.name( name ).nullValue();
+			return;
+		}
+		writer.name( name ).beginArray();
+		for ( final int v : values )
+			writer.value( v );
+		writer.endArray();
+	}
+
+	static void printSummary( final List< DatasetProfile > profiles )
+	{
+		for ( final DatasetProfile p : profiles )
+		{
+			System.out.println( p.name + " (" + p.xml + ")" );
+			for ( final String w : p.warnings )
+				System.out.println( "  ! " + w );
+			for ( final LevelProfile lp : p.levels )
+			{
+				System.out.println( String.format( "  setup %d level %d: cells %s, chunks %s, median %.2f ms, p95 %.2f ms, %.1f MB/s, %.1f MB/s parallel",
+						lp.setup, lp.level, Arrays.toString( lp.cellDimensions ),
+						lp.chunkDimensions == null ? lp.storageLayout : Arrays.toString( lp.chunkDimensions ),
+						lp.latencyMedianMillis, lp.latency95Millis, lp.throughputMBps, lp.parallelThroughputMBps ) );
+				for ( final String w : lp.warnings )
+					System.out.println( "    ! " + w );
+			}
+		}
+	}
+
+	@SuppressWarnings( "static-access" )
+	public static void main( final String[] args ) throws Exception
+	{
+		final Options options = new Options();
+
+		final String cmdLineSyntax = "DatasetProfiler [OPTIONS] [NAME XML] ...\n";
+
+		final String description =
+				"Benchmarks cell reads of XML/HDF5 datasets and flags storage layouts that are likely to perform badly.\n" +
+						"Provide (NAME XML) pairs on the command line or in a dataset file, as for BigDataServer.";
+
+		options.addOption( OptionBuilder
+				.withDescription( "Dataset file: A plain text file specifying one dataset per line. Each line is formatted as \"NAME <TAB> XML\"." )
+				.hasArg()
+				.withArgName( "FILE" )
+				.create( "d" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Report file (JSON).\n(default: dataset-profile.json)" )
+				.hasArg()
+				.withArgName( "FILE" )
+				.create( "o" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Number of cells to read per level.\n(default: 64)" )
+				.hasArg()
+				.withArgName( "COUNT" )
+				.create( "n" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Number of threads for parallel reads.\n(default: number of processors)" )
+				.hasArg()
+				.withArgName( "THREADS" )
+				.create( "j" ) );
+
+		try
+		{
+			final CommandLineParser parser = new BasicParser();
+			final CommandLine cmd = parser.parse( options, args );
+
+			final HashMap< String, String > datasets = new HashMap<>();
+			if ( cmd.hasOption( "d" ) )
+				BigDataServer.readDatasetFile( cmd.getOptionValue( "d" ), datasets );
+			final String[] leftoverArgs = cmd.getArgs();
+			if ( leftoverArgs.length % 2 != 0 )
+				throw new IllegalArgumentException( "Dataset list has an error while processing." );
+			for ( int i = 0; i < leftoverArgs.length; i += 2 )
+				BigDataServer.tryAddDataset( datasets, leftoverArgs[ i ], leftoverArgs[ i + 1 ] );
+			if ( datasets.isEmpty() )
+				throw new IllegalArgumentException( "Dataset list is empty." );
+
+			final String reportFile = cmd.getOptionValue( "o", "dataset-profile.json" );
+			final int numSamples = Integer.parseInt( cmd.getOptionValue( "n", "64" ) );
+			final int numThreads = Integer.parseInt( cmd.getOptionValue( "j", Integer.toString( Runtime.getRuntime().availableProcessors() ) ) );
+			if ( numSamples <= 0 || numThreads <= 0 )
+				throw new IllegalArgumentException( "Number of cells and threads must be positive." );
+
+			final DatasetProfiler profiler = new DatasetProfiler( numSamples, numThreads );
+			final List< DatasetProfile > profiles = new ArrayList<>();
+			for ( final Map.Entry< String, String > e : new TreeMap<>( datasets ).entrySet() )
+			{
+				LOG.info( "Profiling dataset \"" + e.getKey() + "\"" );
+				final long t0 = System.nanoTime();
+				try
+				{
+					profiles.add( profiler.profile( e.getKey(), e.getValue() ) );
+				}
+				catch ( final Exception ex )
+				{
+					LOG.warn( "Could not profile dataset \"" + e.getKey() + "\": " + ex.getMessage() );
+				}
+				LOG.info( "Profiled dataset \"" + e.getKey() + "\" in " + TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - t0 ) + " s" );
+			}
+
+			try ( final Writer out = Files.newBufferedWriter( Paths.get( reportFile ), StandardCharsets.UTF_8 ) )
+			{
+				writeReport( profiles, out );
+			}
+			printSummary( profiles );
+			System.out.println( "Report written to " + new File( reportFile ).getAbsolutePath() );
+		}
+		catch ( final ParseException | IllegalArgumentException e )
+		{
+			LOG.warn( e.getMessage() );
+			System.out.println();
+			final HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( cmdLineSyntax, description, options, null );
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jetty.util.log.Log;
+
+import bdv.img.hdf5.Util;
+import bdv.img.hdf5.ViewLevelId;
+
+/**
+ * Reads cells of uncompressed HDF5 datasets directly from a memory-mapped
+ * file, bypassing the HDF5 library (and its global lock).
+ * <p>
+ * The file offsets of the raw data of every image (contiguous data, or the
+ * chunks of chunked data) are resolved once using {@link Hdf5DataLayout}, see
+ * {@link #resolve(File, Collection)}, and persisted in the
+ * {@link DatasetIndex}, so that the chunk B-trees are not walked again on
+ * every start. Images that are compressed or stored in a way
+ * {@link Hdf5DataLayout} does not understand are skipped; for these,
+ * {@link #read(int, int, int, int[], long[])} returns {@code null} and cells
+ * have to be loaded through the {@code Hdf5ImageLoader} as usual. This is
+ * also the case for images that live in other files (partitions linked from
+ * the main HDF5 file).
+ * <p>
+ * Unallocated chunks are read as 0, which is the fill value of BigDataViewer
+ * HDF5 files.
+ * <p>
+ * The file is mapped in windows of 1 GiB when they are first read from. The
+ * number of mapped windows over all readers is bounded by
+ * {@link Constants#DIRECT_READ_MAX_MAPPED_WINDOWS}; beyond that, or if mapping
+ * fails, rows are read with positional {@link FileChannel#read(ByteBuffer, long)
+ * reads}.
+ */
+public class DirectCellReader
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( DirectCellReader.class );
+
+	/**
+	 * The file is mapped in windows of this size.
+	 */
+	private static final long MAP_WINDOW_BYTES = 1L << 30;
+
+	/**
+	 * Windows overlap by this many bytes, so that rows of cells up to this
+	 * size never straddle two windows.
+	 */
+	private static final long MAP_WINDOW_OVERLAP_BYTES = 1L << 20;
+
+	/**
+	 * Number of windows mapped by all readers.
+	 */
+	private static final AtomicInteger numMappedWindows = new AtomicInteger();
+
+	/**
+	 * Location of an image in the file, with dimensions in X, Y, Z order.
+	 */
+	static final class Image
+	{
+		final long[] dimensions;
+
+		final ByteOrder byteOrder;
+
+		final long address;
+
+		final int[] chunkDimensions;
+
+		final long[] chunkGridDimensions;
+
+		final long[] chunkAddresses;
+
+		Image( final Hdf5DataLayout.Dataset dataset )
+		{
+			this(
+					reversed( dataset.getDimensions() ),
+					dataset.getByteOrder(),
+					dataset.getAddress(),
+					dataset.isChunked() ? reversed( dataset.getChunkDimensions() ) : null,
+					dataset.getChunkAddresses() );
+		}
+
+		private Image( final long[] dimensions, final ByteOrder byteOrder, final long address, final int[] chunkDimensions, final long[] chunkAddresses )
+		{
+			this.dimensions = dimensions;
+			this.byteOrder = byteOrder;
+			this.address = address;
+			this.chunkDimensions = chunkDimensions;
+			this.chunkAddresses = chunkAddresses;
+			if ( chunkDimensions != null )
+			{
+				chunkGridDimensions = new long[ chunkDimensions.length ];
+				for ( int d = 0; d < chunkDimensions.length; ++d )
+					chunkGridDimensions[ d ] = ( dimensions[ d ] + chunkDimensions[ d ] - 1 ) / chunkDimensions[ d ];
+			}
+			else
+				chunkGridDimensions = null;
+		}
+
+		void write( final DataOutputStream out ) throws IOException
+		{
+			writeLongs( out, dimensions );
+			out.writeBoolean( byteOrder == ByteOrder.BIG_ENDIAN );
+			out.writeLong( address );
+			out.writeBoolean( chunkDimensions != null );
+			if ( chunkDimensions != null )
+			{
+				out.writeInt( chunkDimensions.length );
+				for ( final int c : chunkDimensions )
+					out.writeInt( c );
+				writeLongs( out, chunkAddresses );
+			}
+		}
+
+		static Image read( final DataInputStream in ) throws IOException
+		{
+			final long[] dimensions = readLongs( in );
+			final ByteOrder byteOrder = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			final long address = in.readLong();
+			int[] chunkDimensions = null;
+			long[] chunkAddresses = null;
+			if ( in.readBoolean() )
+			{
+				chunkDimensions = new int[ in.readInt() ];
+				for ( int d = 0; d < chunkDimensions.length; ++d )
+					chunkDimensions[ d ] = in.readInt();
+				chunkAddresses = readLongs( in );
+			}
+			return new Image( dimensions, byteOrder, address, chunkDimensions, chunkAddresses );
+		}
+
+		private static long[] readLongs( final DataInputStream in ) throws IOException
+		{
+			final long[] values = new long[ in.readInt() ];
+			for ( int i = 0; i < values.length; ++i )
+				values[ i ] = in.readLong();
+			return values;
+		}
+
+		private static void writeLongs( final DataOutputStream out, final long[] values ) throws IOException
+		{
+			out.writeInt( values.length );
+			for ( final long v : values )
+				out.writeLong( v );
+		}
+
+		private static long[] reversed( final long[] a )
+		{
+			final long[] r = new long[ a.length ];
+			for ( int i = 0; i < a.length; ++i )
+				r[ i ] = a[ a.length - 1 - i ];
+			return r;
+		}
+
+		private static int[] reversed( final int[] a )
+		{
+			final int[] r = new int[ a.length ];
+			for ( int i = 0; i < a.length; ++i )
+				r[ i ] = a[ a.length - 1 - i ];
+			return r;
+		}
+	}
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	private final Map< ViewLevelId, Image > images;
+
+	/**
+	 * Read-only mappings of the file. Window {@code w} starts at
+	 * {@code w * MAP_WINDOW_BYTES}. Windows are mapped when they are first read
+	 * from, and stay {@code null} if mapping fails or too many windows are
+	 * mapped already.
+	 */
+	private final AtomicReferenceArray< ByteBuffer > windows;
+
+	/**
+	 * Set when mapping a window failed, after which no more windows are
+	 * mapped.
+	 */
+	private volatile boolean mapFailed;
+
+	private final AtomicLong numReads = new AtomicLong();
+
+	private DirectCellReader( final File file, final FileChannel channel, final Map< ViewLevelId, Image > images ) throws IOException
+	{
+		this.file = file;
+		this.channel = channel;
+		this.images = images;
+		size = channel.size();
+		windows = new AtomicReferenceArray<>( ( int ) ( ( size + MAP_WINDOW_BYTES - 1 ) / MAP_WINDOW_BYTES ) );
+	}
+
+	/**
+	 * Open an HDF5 file and resolve the raw data locations of the given images.
+	 *
+	 * @param hdf5File
+	 *            the HDF5 file of the dataset.
+	 * @param ids
+	 *            the (timepoint, setup, level) images to resolve.
+	 * @return a reader, or {@code null} if none of the images can be read
+	 *         directly.
+	 */
+	public static DirectCellReader open( final File hdf5File, final Collection< ViewLevelId > ids )
+	{
+		return open( hdf5File, resolve( hdf5File, ids ) );
+	}
+
+	/**
+	 * Open an HDF5 file for reading images whose raw data locations have been
+	 * resolved already.
+	 *
+	 * @param hdf5File
+	 *            the HDF5 file of the dataset.
+	 * @param images
+	 *            the images, as returned by {@link #resolve(File, Collection)}.
+	 * @return a reader, or {@code null} if there are no images or the file
+	 *         cannot be opened.
+	 */
+	static DirectCellReader open( final File hdf5File, final Map< ViewLevelId, Image > images )
+	{
+		if ( images.isEmpty() )
+			return null;
+		FileChannel channel = null;
+		try
+		{
+			channel = FileChannel.open( hdf5File.toPath(), StandardOpenOption.READ );
+			return new DirectCellReader( hdf5File, channel, images );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not open " + hdf5File + " for direct reads: " + e.getMessage() );
+			close( channel );
+			return null;
+		}
+	}
+
+	/**
+	 * Resolve the raw data locations of the given images.
+	 *
+	 * @param hdf5File
+	 *            the HDF5 file of the dataset.
+	 * @param ids
+	 *            the (timepoint, setup, level) images to resolve.
+	 * @return the images that can be read directly. Empty if the file cannot
+	 *         be read.
+	 */
+	static Map< ViewLevelId, Image > resolve( final File hdf5File, final Collection< ViewLevelId > ids )
+	{
+		FileChannel channel = null;
+		try
+		{
+			channel = FileChannel.open( hdf5File.toPath(), StandardOpenOption.READ );
+			final Hdf5DataLayout layout = new Hdf5DataLayout( channel );
+			final Map< ViewLevelId, Image > images = new HashMap<>();
+			String reason = null;
+			for ( final ViewLevelId id : ids )
+			{
+				try
+				{
+					final Hdf5DataLayout.Dataset dataset = layout.getDataset( Util.getCellsPath( id.getTimepointId(), id.getViewSetupId(), id.getLevel() ) );
+					if ( dataset == null )
+						reason = "not stored in this file";
+					else if ( dataset.getElementSize() != 2 || dataset.getDimensions().length != 3 )
+						reason = "unexpected data type or dimensionality";
+					else
+						images.put( id, new Image( dataset ) );
+				}
+				catch ( final IOException e )
+				{
+					reason = e.getMessage();
+				}
+			}
+
+			if ( images.size() < ids.size() )
+				LOG.info( "Direct reads of " + hdf5File + ": " + ( ids.size() - images.size() ) + " of " + ids.size() + " images are read through HDF5 (" + reason + ")" );
+			return images;
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not open " + hdf5File + " for direct reads: " + e.getMessage() );
+			return new HashMap<>();
+		}
+		finally
+		{
+			close( channel );
+		}
+	}
+
+	private static void close( final FileChannel channel )
+	{
+		if ( channel == null )
+			return;
+		try
+		{
+			channel.close();
+		}
+		catch ( final IOException e )
+		{
+			LOG.ignore( e );
+		}
+	}
+
+	/**
+	 * Read a block of an image.
+	 *
+	 * @param cellDims
+	 *            dimensions of the block, in X, Y, Z order.
+	 * @param cellMin
+	 *            minimum of the block, in X, Y, Z order.
+	 * @return the data of the block with X varying fastest, or {@code null}
+	 *         if the image cannot be read directly.
+	 */
+	public short[] read( final int timepoint, final int setup, final int level, final int[] cellDims, final long[] cellMin )
+	{
+		final Image image = images.get( new ViewLevelId( timepoint, setup, level ) );
+		if ( image == null || 2L * cellDims[ 0 ] > MAP_WINDOW_OVERLAP_BYTES )
+			return null;
+
+		final short[] data = new short[ cellDims[ 0 ] * cellDims[ 1 ] * cellDims[ 2 ] ];
+		try
+		{
+			if ( image.chunkDimensions == null )
+				readContiguous( image, cellDims, cellMin, data );
+			else
+				readChunked( image, cellDims, cellMin, data );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Direct read from " + file + " failed: " + e.getMessage() );
+			return null;
+		}
+		numReads.incrementAndGet();
+		return data;
+	}
+
+	private void readContiguous( final Image image, final int[] cellDims, final long[] cellMin, final short[] data ) throws IOException
+	{
+		final long w = image.dimensions[ 0 ];
+		final long h = image.dimensions[ 1 ];
+		int i = 0;
+		for ( int z = 0; z < cellDims[ 2 ]; ++z )
+		{
+			for ( int y = 0; y < cellDims[ 1 ]; ++y )
+			{
+				final long offset = image.address + 2 * ( ( ( cellMin[ 2 ] + z ) * h + cellMin[ 1 ] + y ) * w + cellMin[ 0 ] );
+				readRow( offset, image.byteOrder, data, i, cellDims[ 0 ] );
+				i += cellDims[ 0 ];
+			}
+		}
+	}
+
+	/**
+	 * Copy the intersection of the block with every chunk it overlaps.
+	 */
+	private void readChunked( final Image image, final int[] cellDims, final long[] cellMin, final short[] data ) throws IOException
+	{
+		final int[] c = image.chunkDimensions;
+		final long[] g = image.chunkGridDimensions;
+		final long[] gmin = new long[ 3 ];
+		final long[] gmax = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			gmin[ d ] = cellMin[ d ] / c[ d ];
+			gmax[ d ] = ( cellMin[ d ] + cellDims[ d ] - 1 ) / c[ d ];
+		}
+
+		for ( long gz = gmin[ 2 ]; gz <= gmax[ 2 ]; ++gz )
+		{
+			for ( long gy = gmin[ 1 ]; gy <= gmax[ 1 ]; ++gy )
+			{
+				for ( long gx = gmin[ 0 ]; gx <= gmax[ 0 ]; ++gx )
+				{
+					final long chunk = image.chunkAddresses[ ( int ) ( ( gz * g[ 1 ] + gy ) * g[ 0 ] + gx ) ];
+					if ( chunk < 0 )
+						continue; // unallocated, leave 0
+
+					// intersection of block and chunk, in image coordinates
+					final long x0 = Math.max( cellMin[ 0 ], gx * c[ 0 ] );
+					final long x1 = Math.min( cellMin[ 0 ] + cellDims[ 0 ], ( gx + 1 ) * c[ 0 ] );
+					final long y0 = Math.max( cellMin[ 1 ], gy * c[ 1 ] );
+					final long y1 = Math.min( cellMin[ 1 ] + cellDims[ 1 ], ( gy + 1 ) * c[ 1 ] );
+					final long z0 = Math.max( cellMin[ 2 ], gz * c[ 2 ] );
+					final long z1 = Math.min( cellMin[ 2 ] + cellDims[ 2 ], ( gz + 1 ) * c[ 2 ] );
+					final int n = ( int ) ( x1 - x0 );
+					for ( long z = z0; z < z1; ++z )
+					{
+						for ( long y = y0; y < y1; ++y )
+						{
+							final long src = chunk + 2 * ( ( ( z - gz * c[ 2 ] ) * c[ 1 ] + ( y - gy * c[ 1 ] ) ) * c[ 0 ] + ( x0 - gx * c[ 0 ] ) );
+							final int dst = ( int ) ( ( ( z - cellMin[ 2 ] ) * cellDims[ 1 ] + ( y - cellMin[ 1 ] ) ) * cellDims[ 0 ] + ( x0 - cellMin[ 0 ] ) );
+							readRow( src, image.byteOrder, data, dst, n );
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read {@code n} shorts at file offset {@code offset} into {@code data}.
+	 */
+	private void readRow( final long offset, final ByteOrder byteOrder, final short[] data, final int dst, final int n ) throws IOException
+	{
+		if ( offset < 0 || offset + 2L * n > size )
+			throw new IOException( "offset " + offset + " beyond end of file" );
+		final int w = ( int ) ( offset / MAP_WINDOW_BYTES );
+		final ByteBuffer window = getWindow( w );
+		if ( window == null )
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate( 2 * n ).order( byteOrder );
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer, offset + buffer.position() ) < 0 )
+					throw new IOException( "unexpected end of file at offset " + ( offset + buffer.position() ) );
+			buffer.flip();
+			buffer.asShortBuffer().get( data, dst, n );
+			return;
+		}
+		int pos = ( int ) ( offset - w * MAP_WINDOW_BYTES );
+		if ( byteOrder == ByteOrder.BIG_ENDIAN )
+			for ( int i = 0; i < n; ++i, pos += 2 )
+				data[ dst + i ] = window.getShort( pos );
+		else
+			for ( int i = 0; i < n; ++i, pos += 2 )
+				data[ dst + i ] = Short.reverseBytes( window.getShort( pos ) );
+	}
+
+	/**
+	 * Get window {@code w}, mapping it on the first read from it.
+	 *
+	 * @return the window, or {@code null} if it cannot be mapped.
+	 */
+	private ByteBuffer getWindow( final int w )
+	{
+		final ByteBuffer window = windows.get( w );
+		if ( window != null || mapFailed )
+			return window;
+		if ( numMappedWindows.incrementAndGet() > Constants.DIRECT_READ_MAX_MAPPED_WINDOWS )
+		{
+			numMappedWindows.decrementAndGet();
+			return null;
+		}
+		final ByteBuffer mapped;
+		try
+		{
+			final long start = w * MAP_WINDOW_BYTES;
+			mapped = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( MAP_WINDOW_BYTES + MAP_WINDOW_OVERLAP_BYTES, size - start ) );
+		}
+		catch ( final IOException e )
+		{
+			numMappedWindows.decrementAndGet();
+			mapFailed = true;
+			LOG.warn( "Could not map " + file + ", falling back to positional reads: " + e.getMessage() );
+			return null;
+		}
+		if ( windows.compareAndSet( w, null, mapped ) )
+			return mapped;
+		// another thread mapped the window first
+		numMappedWindows.decrementAndGet();
+		return windows.get( w );
+	}
+
+	/**
+	 * Number of images that are read directly.
+	 */
+	public int getNumImages()
+	{
+		return images.size();
+	}
+
+	/**
+	 * Number of blocks read directly.
+	 */
+	public long getNumReads()
+	{
+		return numReads.get();
+	}
+
+	/**
+	 * Close the file. Mapped windows are released when they are garbage
+	 * collected.
+	 */
+	public void close()
+	{
+		for ( int w = 0; w < windows.length(); ++w )
+			if ( windows.getAndSet( w, null ) != null )
+				numMappedWindows.decrementAndGet();
+		close( channel );
+	}
+}
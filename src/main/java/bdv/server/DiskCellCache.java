@@ -0,0 +1,548 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Persistent cache of cell data, shared by all datasets of a
+ * {@link BigDataServer} and surviving server restarts.
+ * <p>
+ * Cells are appended to segment files of (at most)
+ * {@link Constants#DISK_CELL_CACHE_SEGMENT_BYTES} bytes. Each record consists
+ * of a header (the {@link CellKey}, the version of the dataset the cell was
+ * read from, and the lengths of the raw and packed data) followed by the cell
+ * data as big-endian unsigned shorts and its {@link CellData#getPacked()
+ * packed encoding}. The encoding is built on the writer thread if needed, so
+ * hits never pack the cell again. The index maps
+ * {@link CellKey}s to positions in the segments. It is kept in memory only,
+ * and rebuilt from the record headers on startup.
+ * <p>
+ * Full segments are memory-mapped, so cached cells can be sent to the client
+ * without copying. When the total size exceeds the limit, the oldest segment
+ * is deleted. Cells that are read from the oldest segment are appended again
+ * (once, however often they are read until the writer gets to them), so that
+ * frequently requested cells are not evicted.
+ * <p>
+ * Writes happen asynchronously on a single background thread. If writes
+ * cannot keep up with requests, cells are simply not cached.
+ */
+public class DiskCellCache
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( DiskCellCache.class );
+
+	private static final int RECORD_MAGIC = 0x42444332; // "BDC2"
+
+	/**
+	 * Size of the fixed part of a record header: magic, dataset name length,
+	 * setup, timepoint, level, index, version, raw data length, packed data
+	 * length ({@code -1} if the cell needs all 16 bits). The dataset name
+	 * follows the name length.
+	 */
+	private static final int HEADER_BYTES = 4 + 2 + 4 + 4 + 4 + 8 + 8 + 4 + 4;
+
+	private static final String SEGMENT_SUFFIX = ".cells";
+
+	private static final class Segment
+	{
+		final int id;
+
+		final Path path;
+
+		final FileChannel channel;
+
+		/**
+		 * Mapping of the whole segment, once it is full. {@code null} while
+		 * the segment is being appended to.
+		 */
+		volatile MappedByteBuffer mapped;
+
+		/**
+		 * Current size in bytes. Modified on the writer thread only.
+		 */
+		long size;
+
+		Segment( final int id, final Path path, final FileChannel channel, final long size )
+		{
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+		}
+
+		void seal() throws IOException
+		{
+			mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+		}
+
+		/**
+		 * Get {@code length} bytes starting at {@code offset}.
+		 */
+		ByteBuffer read( final long offset, final int length ) throws IOException
+		{
+			final MappedByteBuffer m = mapped;
+			if ( m != null )
+			{
+				final ByteBuffer b = m.duplicate();
+				b.position( ( int ) offset );
+				b.limit( ( int ) offset + length );
+				return b.slice();
+			}
+
+			final ByteBuffer b = ByteBuffer.allocate( length );
+			while ( b.hasRemaining() )
+				if ( channel.read( b, offset + b.position() ) < 0 )
+					throw new IOException( "unexpected end of segment " + path );
+			b.flip();
+			return b;
+		}
+	}
+
+	private static final class Entry
+	{
+		final Segment segment;
+
+		final long offset;
+
+		final int length;
+
+		/**
+		 * Length of the packed data following the raw data, or {@code -1}.
+		 */
+		final int packedLength;
+
+		final long version;
+
+		/**
+		 * Whether the cell has been queued to be appended again, see
+		 * {@link DiskCellCache#get(CellKey, long)}.
+		 */
+		final AtomicBoolean reappending = new AtomicBoolean();
+
+		Entry( final Segment segment, final long offset, final int length, final int packedLength, final long version )
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.packedLength = packedLength;
+			this.version = version;
+		}
+	}
+
+	private final Path directory;
+
+	private final long maxBytes;
+
+	private final long segmentBytes;
+
+	private final ConcurrentHashMap< CellKey, Entry > index;
+
+	/**
+	 * All segments by id. The last segment is the one being appended to.
+	 * Modified on the writer thread only (and in the constructor).
+	 */
+	private final TreeMap< Integer, Segment > segments;
+
+	private volatile int oldestSegmentId;
+
+	private volatile long totalBytes;
+
+	private final ThreadPoolExecutor writer;
+
+	private final AtomicLong numHits = new AtomicLong();
+
+	private final AtomicLong numMisses = new AtomicLong();
+
+	private final AtomicLong numStale = new AtomicLong();
+
+	private final AtomicLong numDroppedWrites = new AtomicLong();
+
+	/**
+	 * Open the cache in {@code directory}, reusing the segments that are
+	 * already there.
+	 *
+	 * @param directory
+	 *            where to store the segment files. Created if necessary.
+	 * @param maxBytes
+	 *            maximum total size of the segment files.
+	 */
+	public DiskCellCache( final Path directory, final long maxBytes ) throws IOException
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		segmentBytes = Math.max( 1 << 20, Math.min( Constants.DISK_CELL_CACHE_SEGMENT_BYTES, maxBytes / 4 ) );
+		index = new ConcurrentHashMap<>();
+		segments = new TreeMap<>();
+		writer = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>( Constants.DISK_CELL_CACHE_WRITE_QUEUE_SIZE ),
+				new DaemonThreadFactory( "cellcache" ),
+				new ThreadPoolExecutor.AbortPolicy() );
+
+		Files.createDirectories( directory );
+		openSegments();
+		evict();
+		LOG.info( "Cell cache \"" + directory + "\": " + index.size() + " cells, " + ( totalBytes >> 20 ) + " MB" );
+	}
+
+	/**
+	 * Get the data of a cached cell.
+	 *
+	 * @param key
+	 *            the cell.
+	 * @param version
+	 *            the current version of the dataset. Cells cached from another
+	 *            version are discarded.
+	 * @return the cell data, or {@code null} if the cell is not cached.
+	 */
+	public CellData get( final CellKey key, final long version )
+	{
+		final Entry entry = index.get( key );
+		if ( entry == null )
+		{
+			numMisses.incrementAndGet();
+			return null;
+		}
+		if ( entry.version != version )
+		{
+			index.remove( key, entry );
+			numStale.incrementAndGet();
+			numMisses.incrementAndGet();
+			return null;
+		}
+
+		final ByteBuffer data;
+		try
+		{
+			data = entry.segment.read( entry.offset, entry.length + Math.max( 0, entry.packedLength ) );
+		}
+		catch ( final IOException e )
+		{
+			// the segment was evicted concurrently
+			index.remove( key, entry );
+			numMisses.incrementAndGet();
+			return null;
+		}
+
+		numHits.incrementAndGet();
+		final ByteBuffer raw = data.duplicate();
+		raw.limit( entry.length );
+		ByteBuffer packed = null;
+		if ( entry.packedLength >= 0 )
+		{
+			packed = data.duplicate();
+			packed.position( entry.length );
+			packed = packed.slice();
+		}
+		if ( entry.segment.id == oldestSegmentId && entry.segment.mapped != null && entry.reappending.compareAndSet( false, true ) )
+		{
+			final ByteBuffer copy = ByteBuffer.allocate( data.remaining() );
+			copy.put( data.duplicate() ).flip();
+			final ByteBuffer copyRaw = copy.duplicate();
+			copyRaw.limit( entry.length );
+			ByteBuffer copyPacked = null;
+			if ( packed != null )
+			{
+				copyPacked = copy.duplicate();
+				copyPacked.position( entry.length );
+			}
+			if ( !write( key, version, new CellData( key, copyRaw, copyPacked ) ) )
+				entry.reappending.set( false );
+		}
+		return new CellData( key, raw, packed );
+	}
+
+	/**
+	 * Add a cell to the cache. This returns immediately, the cell is written
+	 * in the background.
+	 *
+	 * @param key
+	 *            the cell.
+	 * @param version
+	 *            the version of the dataset the cell was read from.
+	 * @param cell
+	 *            the cell data. Its packed encoding is built on the writer
+	 *            thread if it has not been built yet.
+	 */
+	public void put( final CellKey key, final long version, final CellData cell )
+	{
+		write( key, version, cell );
+	}
+
+	/**
+	 * Queue a cell to be written.
+	 *
+	 * @return {@code false} if the write was dropped because the writer is
+	 *         busy.
+	 */
+	private boolean write( final CellKey key, final long version, final CellData cell )
+	{
+		try
+		{
+			writer.execute( () -> {
+				try
+				{
+					append( key, version, cell );
+					evict();
+				}
+				catch ( final IOException e )
+				{
+					LOG.warn( "Could not write to cell cache \"" + directory + "\": " + e.getMessage() );
+				}
+			} );
+			return true;
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			numDroppedWrites.incrementAndGet();
+			return false;
+		}
+	}
+
+	public long getNumHits()
+	{
+		return numHits.get();
+	}
+
+	public long getNumMisses()
+	{
+		return numMisses.get();
+	}
+
+	/**
+	 * Number of cells that were found in the cache, but were cached from an
+	 * outdated version of their dataset.
+	 */
+	public long getNumStale()
+	{
+		return numStale.get();
+	}
+
+	/**
+	 * Number of cells that were not cached because the writer was busy.
+	 */
+	public long getNumDroppedWrites()
+	{
+		return numDroppedWrites.get();
+	}
+
+	public long getSizeBytes()
+	{
+		return totalBytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public int getNumCells()
+	{
+		return index.size();
+	}
+
+	/**
+	 * Append a record to the current segment. Called on the writer thread
+	 * only.
+	 */
+	private void append( final CellKey key, final long version, final CellData cell ) throws IOException
+	{
+		final ByteBuffer raw = cell.getRaw();
+		final ByteBuffer packed = cell.getPacked();
+		final int length = raw.remaining();
+		final int packedLength = packed == null ? -1 : packed.remaining();
+		final int dataBytes = length + Math.max( 0, packedLength );
+		final byte[] name = key.getDataset().getBytes( StandardCharsets.UTF_8 );
+		final int recordBytes = HEADER_BYTES + name.length + dataBytes;
+
+		Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if ( segment == null || ( segment.size > 0 && segment.size + recordBytes > segmentBytes ) )
+		{
+			if ( segment != null )
+				segment.seal();
+			segment = createSegment( segment == null ? 0 : segment.id + 1 );
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate( recordBytes );
+		buf.putInt( RECORD_MAGIC );
+		buf.putShort( ( short ) name.length );
+		buf.put( name );
+		buf.putInt( key.getSetup() );
+		buf.putInt( key.getTimepoint() );
+		buf.putInt( key.getLevel() );
+		buf.putLong( key.getIndex() );
+		buf.putLong( version );
+		buf.putInt( length );
+		buf.putInt( packedLength );
+		buf.put( raw );
+		if ( packed != null )
+			buf.put( packed );
+		buf.flip();
+
+		final long offset = segment.size;
+		while ( buf.hasRemaining() )
+			segment.channel.write( buf, offset + buf.position() );
+		segment.size += recordBytes;
+		totalBytes += recordBytes;
+
+		index.put( key, new Entry( segment, offset + recordBytes - dataBytes, length, packedLength, version ) );
+	}
+
+	/**
+	 * Delete the oldest segments until the total size is within the limit.
+	 * Called on the writer thread only (and in the constructor).
+	 */
+	private void evict()
+	{
+		while ( totalBytes > maxBytes && segments.size() > 1 )
+		{
+			final Segment oldest = segments.pollFirstEntry().getValue();
+			oldestSegmentId = segments.firstKey();
+			index.values().removeIf( e -> e.segment == oldest );
+			totalBytes -= oldest.size;
+			try
+			{
+				oldest.channel.close();
+				Files.deleteIfExists( oldest.path );
+			}
+			catch ( final IOException e )
+			{
+				LOG.warn( "Could not delete cell cache segment \"" + oldest.path + "\": " + e.getMessage() );
+			}
+		}
+	}
+
+	private Segment createSegment( final int id ) throws IOException
+	{
+		final Path path = directory.resolve( String.format( "%08d", id ) + SEGMENT_SUFFIX );
+		final FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		final Segment segment = new Segment( id, path, channel, 0 );
+		segments.put( id, segment );
+		if ( segments.size() == 1 )
+			oldestSegmentId = id;
+		return segment;
+	}
+
+	/**
+	 * Open existing segments and rebuild the index from their record headers.
+	 * Incomplete records at the end of a segment (from an interrupted write)
+	 * are truncated.
+	 */
+	private void openSegments() throws IOException
+	{
+		final TreeMap< Integer, Path > paths = new TreeMap<>();
+		try ( final DirectoryStream< Path > stream = Files.newDirectoryStream( directory, "*" + SEGMENT_SUFFIX ) )
+		{
+			for ( final Path path : stream )
+			{
+				final String name = path.getFileName().toString();
+				try
+				{
+					paths.put( Integer.parseInt( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ) ), path );
+				}
+				catch ( final NumberFormatException e )
+				{
+					LOG.warn( "Ignoring unexpected file in cell cache: \"" + path + "\"" );
+				}
+			}
+		}
+
+		for ( final Map.Entry< Integer, Path > e : paths.entrySet() )
+		{
+			final int id = e.getKey();
+			final Path path = e.getValue();
+			final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE );
+			final long fileSize = channel.size();
+			if ( fileSize > Integer.MAX_VALUE )
+			{
+				LOG.warn( "Deleting oversized cell cache segment \"" + path + "\"" );
+				channel.close();
+				Files.delete( path );
+				continue;
+			}
+
+			final Segment segment = new Segment( id, path, channel, 0 );
+			final MappedByteBuffer m = channel.map( FileChannel.MapMode.READ_ONLY, 0, fileSize );
+			int pos = 0;
+			while ( pos + HEADER_BYTES <= fileSize )
+			{
+				m.position( pos );
+				if ( m.getInt() != RECORD_MAGIC )
+					break;
+				final int nameLength = m.getShort() & 0xffff;
+				if ( pos + HEADER_BYTES + nameLength > fileSize )
+					break;
+				final byte[] name = new byte[ nameLength ];
+				m.get( name );
+				final int setup = m.getInt();
+				final int timepoint = m.getInt();
+				final int level = m.getInt();
+				final long cellIndex = m.getLong();
+				final long version = m.getLong();
+				final int length = m.getInt();
+				final int packedLength = m.getInt();
+				final int dataBytes = length + Math.max( 0, packedLength );
+				final int end = pos + HEADER_BYTES + nameLength + dataBytes;
+				if ( length < 0 || packedLength < -1 || dataBytes < 0 || end > fileSize || end < 0 )
+					break;
+				final CellKey key = new CellKey( new String( name, StandardCharsets.UTF_8 ), setup, timepoint, level, cellIndex );
+				index.put( key, new Entry( segment, end - dataBytes, length, packedLength, version ) );
+				pos = end;
+			}
+			if ( pos < fileSize )
+			{
+				LOG.warn( "Truncating cell cache segment \"" + path + "\" at " + pos + " (of " + fileSize + ") bytes" );
+				channel.truncate( pos );
+			}
+			segment.size = pos;
+			segments.put( id, segment );
+			totalBytes += pos;
+		}
+
+		if ( !segments.isEmpty() )
+		{
+			oldestSegmentId = segments.firstKey();
+			final Segment last = segments.lastEntry().getValue();
+			for ( final Segment segment : segments.values() )
+				if ( segment != last || segment.size >= segmentBytes )
+					segment.seal();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+
+/**
+ * A fixed text document (dataset XML, metadata JSON, ...) that is served
+ * repeatedly. It is encoded to UTF-8 and gzipped once, so that requests only
+ * copy bytes. Responses have a {@code Content-Length} and an {@code ETag},
+ * and conditional requests with a matching {@code If-None-Match} are answered
+ * with "304 Not Modified". The gzipped variant has its own {@code ETag} (with
+ * a {@code -gz} suffix), as strong validators must differ between content
+ * codings.
+ */
+public class EncodedResponse
+{
+	private final String contentType;
+
+	private final byte[] data;
+
+	/**
+	 * Gzipped {@link #data}, or {@code null} if gzip does not make it smaller.
+	 */
+	private final byte[] gzipData;
+
+	private final String etag;
+
+	/**
+	 * {@code ETag} of {@link #gzipData}.
+	 */
+	private final String gzipEtag;
+
+	/**
+	 * @param contentType
+	 *            MIME type, without charset.
+	 * @param text
+	 *            the document.
+	 */
+	public EncodedResponse( final String contentType, final String text )
+	{
+		this( contentType, text.getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	/**
+	 * @param contentType
+	 *            MIME type, without charset.
+	 * @param utf8
+	 *            the document, encoded as UTF-8.
+	 */
+	public EncodedResponse( final String contentType, final byte[] utf8 )
+	{
+		this.contentType = contentType + "; charset=UTF-8";
+		data = utf8;
+		final byte[] gz = gzip( data );
+		gzipData = gz.length < data.length ? gz : null;
+		final String digest = digest( data );
+		etag = "\"" + digest + "\"";
+		gzipEtag = "\"" + digest + "-gz\"";
+	}
+
+	/**
+	 * Answer a request with the document, gzipped if the client accepts it.
+	 */
+	public void respond( final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+	{
+		baseRequest.setHandled( true );
+		final boolean gzipped = gzipData != null && acceptsGzip( request.getHeader( "Accept-Encoding" ) );
+		response.setHeader( "ETag", gzipped ? gzipEtag : etag );
+		response.setHeader( "Vary", "Accept-Encoding" );
+
+		if ( matchesETag( request.getHeader( "If-None-Match" ) ) )
+		{
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+			return;
+		}
+
+		final byte[] body;
+		if ( gzipped )
+		{
+			response.setHeader( "Content-Encoding", "gzip" );
+			body = gzipData;
+		}
+		else
+			body = data;
+
+		response.setContentType( contentType );
+		response.setContentLength( body.length );
+		response.setStatus( HttpServletResponse.SC_OK );
+
+		final OutputStream os = response.getOutputStream();
+		os.write( body );
+		os.close();
+	}
+
+	/**
+	 * Get the number of bytes held by the encoded document.
+	 */
+	public long getMemoryBytes()
+	{
+		return data.length + ( gzipData == null ? 0 : gzipData.length );
+	}
+
+	/**
+	 * Whether {@code If-None-Match} lists the tag of either variant. Both
+	 * represent the same document, so the client's copy is up to date.
+	 */
+	private boolean matchesETag( final String ifNoneMatch )
+	{
+		if ( ifNoneMatch == null )
+			return false;
+		for ( final String tag : ifNoneMatch.split( "," ) )
+		{
+			String t = tag.trim();
+			if ( t.startsWith( "W/" ) )
+				t = t.substring( 2 );
+			if ( t.equals( "*" ) || t.equals( etag ) || t.equals( gzipEtag ) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether an {@code Accept-Encoding} request header value includes gzip.
+	 */
+	static boolean acceptsGzip( final String acceptEncoding )
+	{
+		if ( acceptEncoding == null )
+			return false;
+		for ( final String coding : acceptEncoding.split( "," ) )
+		{
+			final String[] params = coding.split( ";" );
+			if ( !params[ 0 ].trim().equalsIgnoreCase( "gzip" ) )
+				continue;
+			for ( int i = 1; i < params.length; ++i )
+			{
+				final String p = params[ i ].trim();
+				if ( p.startsWith( "q=" ) )
+				{
+					try
+					{
+						return Double.parseDouble( p.substring( 2 ) ) > 0;
+					}
+					catch ( final NumberFormatException e )
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static byte[] gzip( final byte[] data )
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( data.length / 4 + 64 );
+		try ( final GZIPOutputStream gz = new GZIPOutputStream( bos ) )
+		{
+			gz.write( data );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return bos.toByteArray();
+	}
+
+	private static String digest( final byte[] data )
+	{
+		try
+		{
+			final byte[] hash = MessageDigest.getInstance( "SHA-1" ).digest( data );
+			final StringBuilder sb = new StringBuilder();
+			for ( int i = 0; i < 12; ++i )
+				sb.append( String.format( "%02x", hash[ i ] ) );
+			return sb.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
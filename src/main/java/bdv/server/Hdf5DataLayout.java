@@ -0,0 +1,622 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal reader of HDF5 file metadata, to locate the raw data of
+ * uncompressed datasets in the file, without going through the HDF5 library.
+ * <p>
+ * Supports superblock versions 0 to 3, object header versions 1 and 2, groups
+ * with symbol tables or compact link storage, and datasets with contiguous
+ * layout, or chunked layout (layout message version 3) indexed by a version 1
+ * B-tree. This covers files written by the HDF5 library with default (earliest
+ * format) settings, such as BigDataViewer HDF5 files. Anything else, including
+ * datasets with filters (compression), is reported as unsupported by an
+ * {@link IOException}.
+ * <p>
+ * See the HDF5 File Format Specification, version 3.0.
+ */
+public class Hdf5DataLayout
+{
+	/**
+	 * Location of the raw data of a dataset. Dimensions are in HDF5 order
+	 * (slowest varying first), addresses are absolute file offsets.
+	 */
+	public static final class Dataset
+	{
+		private final long[] dimensions;
+
+		private final int elementSize;
+
+		private final ByteOrder byteOrder;
+
+		private final long address;
+
+		private final int[] chunkDimensions;
+
+		private final long[] chunkAddresses;
+
+		Dataset( final long[] dimensions, final int elementSize, final ByteOrder byteOrder, final long address, final int[] chunkDimensions, final long[] chunkAddresses )
+		{
+			this.dimensions = dimensions;
+			this.elementSize = elementSize;
+			this.byteOrder = byteOrder;
+			this.address = address;
+			this.chunkDimensions = chunkDimensions;
+			this.chunkAddresses = chunkAddresses;
+		}
+
+		public long[] getDimensions()
+		{
+			return dimensions;
+		}
+
+		public int getElementSize()
+		{
+			return elementSize;
+		}
+
+		public ByteOrder getByteOrder()
+		{
+			return byteOrder;
+		}
+
+		public boolean isChunked()
+		{
+			return chunkDimensions != null;
+		}
+
+		/**
+		 * Get the file offset of the data of a contiguous dataset.
+		 */
+		public long getAddress()
+		{
+			return address;
+		}
+
+		/**
+		 * Get the chunk dimensions of a chunked dataset, or {@code null}.
+		 */
+		public int[] getChunkDimensions()
+		{
+			return chunkDimensions;
+		}
+
+		/**
+		 * Get the file offsets of the chunks of a chunked dataset, indexed by
+		 * flattened chunk grid position (slowest varying dimension first).
+		 * Unallocated chunks have offset {@code -1}.
+		 */
+		public long[] getChunkAddresses()
+		{
+			return chunkAddresses;
+		}
+	}
+
+	private static final long SIGNATURE = 0x0a1a0a0d46444889L; // "\211HDF\r\n\032\n", little-endian
+
+	private static final int OHDR = 0x5244484f; // "OHDR", little-endian
+
+	private static final int OCHK = 0x4b48434f; // "OCHK", little-endian
+
+	private static final int TREE = 0x45455254; // "TREE", little-endian
+
+	private static final int SNOD = 0x444f4e53; // "SNOD", little-endian
+
+	private static final int HEAP = 0x50414548; // "HEAP", little-endian
+
+	private static final int MSG_DATASPACE = 0x0001;
+
+	private static final int MSG_LINK_INFO = 0x0002;
+
+	private static final int MSG_DATATYPE = 0x0003;
+
+	private static final int MSG_LINK = 0x0006;
+
+	private static final int MSG_LAYOUT = 0x0008;
+
+	private static final int MSG_FILTER_PIPELINE = 0x000b;
+
+	private static final int MSG_CONTINUATION = 0x0010;
+
+	private static final int MSG_SYMBOL_TABLE = 0x0011;
+
+	private static final long UNDEFINED = -1;
+
+	private static final class Message
+	{
+		final int type;
+
+		final int flags;
+
+		final ByteBuffer data;
+
+		Message( final int type, final int flags, final ByteBuffer data )
+		{
+			this.type = type;
+			this.flags = flags;
+			this.data = data;
+		}
+	}
+
+	private final FileChannel channel;
+
+	private final long baseAddress;
+
+	private final int sizeOfOffsets;
+
+	private final int sizeOfLengths;
+
+	private final long rootAddress;
+
+	/**
+	 * Read the superblock of an HDF5 file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a supported HDF5 file.
+	 */
+	public Hdf5DataLayout( final FileChannel channel ) throws IOException
+	{
+		this.channel = channel;
+
+		// the superblock is at 0, 512, 1024, 2048, ...
+		long superblock = 0;
+		while ( true )
+		{
+			final ByteBuffer signature = readAbsolute( superblock, 8 );
+			if ( signature.remaining() == 8 && signature.getLong() == SIGNATURE )
+				break;
+			superblock = superblock == 0 ? 512 : 2 * superblock;
+			if ( superblock + 8 > channel.size() )
+				throw new IOException( "not an HDF5 file" );
+		}
+
+		final ByteBuffer b = readAbsolute( superblock, 128 );
+		final int version = b.get( 8 );
+		final long base;
+		if ( version == 0 || version == 1 )
+		{
+			sizeOfOffsets = b.get( 13 );
+			sizeOfLengths = b.get( 14 );
+			b.position( version == 0 ? 24 : 28 );
+			base = readUnsigned( b, sizeOfOffsets );
+			// skip free-space, end of file, and driver info addresses
+			b.position( b.position() + 3 * sizeOfOffsets );
+			// root group symbol table entry: link name offset, object header address
+			readUnsigned( b, sizeOfOffsets );
+			rootAddress = readUnsigned( b, sizeOfOffsets );
+		}
+		else if ( version == 2 || version == 3 )
+		{
+			sizeOfOffsets = b.get( 9 );
+			sizeOfLengths = b.get( 10 );
+			b.position( 12 );
+			base = readUnsigned( b, sizeOfOffsets );
+			// skip superblock extension and end of file addresses
+			b.position( b.position() + 2 * sizeOfOffsets );
+			rootAddress = readUnsigned( b, sizeOfOffsets );
+		}
+		else
+			throw new IOException( "unsupported superblock version " + version );
+		baseAddress = base == UNDEFINED ? superblock : base;
+	}
+
+	/**
+	 * Locate the raw data of a dataset.
+	 *
+	 * @param path
+	 *            path of the dataset, relative to the root group.
+	 * @return the dataset layout, or {@code null} if there is no such dataset.
+	 * @throws IOException
+	 *             if the file cannot be read, or the dataset (or a group on
+	 *             its path) is stored in an unsupported way.
+	 */
+	public Dataset getDataset( final String path ) throws IOException
+	{
+		long address = rootAddress;
+		for ( final String name : path.split( "/" ) )
+		{
+			if ( name.isEmpty() )
+				continue;
+			address = findChild( address, name );
+			if ( address == UNDEFINED )
+				return null;
+		}
+
+		long[] dimensions = null;
+		int elementSize = 0;
+		ByteOrder byteOrder = null;
+		ByteBuffer layout = null;
+		for ( final Message m : readObjectHeader( address ) )
+		{
+			if ( ( m.flags & 0x02 ) != 0 && ( m.type == MSG_DATATYPE || m.type == MSG_LAYOUT ) )
+				throw new IOException( "shared messages are not supported" );
+			switch ( m.type )
+			{
+			case MSG_DATASPACE:
+			{
+				final int version = m.data.get( 0 );
+				final int rank = m.data.get( 1 );
+				m.data.position( version == 1 ? 8 : 4 );
+				dimensions = new long[ rank ];
+				for ( int d = 0; d < rank; ++d )
+					dimensions[ d ] = readUnsigned( m.data, sizeOfLengths );
+				break;
+			}
+			case MSG_DATATYPE:
+			{
+				final int typeClass = m.data.get( 0 ) & 0x0f;
+				if ( typeClass != 0 )
+					throw new IOException( "unsupported datatype class " + typeClass );
+				byteOrder = ( m.data.get( 1 ) & 0x01 ) == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+				elementSize = m.data.getInt( 4 );
+				break;
+			}
+			case MSG_FILTER_PIPELINE:
+				if ( m.data.get( 1 ) != 0 )
+					throw new IOException( "filtered (compressed) datasets are not supported" );
+				break;
+			case MSG_LAYOUT:
+				layout = m.data;
+				break;
+			}
+		}
+		if ( dimensions == null || byteOrder == null || layout == null )
+			throw new IOException( "not a dataset" );
+
+		final int version = layout.get( 0 );
+		final int layoutClass = layout.get( 1 );
+		if ( version < 3 || version > 4 )
+			throw new IOException( "unsupported layout message version " + version );
+		layout.position( 2 );
+		if ( layoutClass == 1 )
+		{
+			final long dataAddress = readUnsigned( layout, sizeOfOffsets );
+			if ( dataAddress == UNDEFINED )
+				throw new IOException( "dataset storage is not allocated" );
+			return new Dataset( dimensions, elementSize, byteOrder, baseAddress + dataAddress, null, null );
+		}
+		else if ( layoutClass == 2 && version == 3 )
+		{
+			final int dimensionality = layout.get();
+			final long btree = readUnsigned( layout, sizeOfOffsets );
+			final int[] chunkDimensions = new int[ dimensionality - 1 ];
+			for ( int d = 0; d < chunkDimensions.length; ++d )
+				chunkDimensions[ d ] = layout.getInt();
+			if ( chunkDimensions.length != dimensions.length )
+				throw new IOException( "chunk and dataset dimensionality differ" );
+			return new Dataset( dimensions, elementSize, byteOrder, UNDEFINED, chunkDimensions, readChunkIndex( btree, dimensions, chunkDimensions ) );
+		}
+		else
+			throw new IOException( "unsupported layout class " + layoutClass + " (layout message version " + version + ")" );
+	}
+
+	/**
+	 * Find the object header address of the child {@code name} of a group.
+	 *
+	 * @return the address, or {@link #UNDEFINED} if there is no such child.
+	 */
+	private long findChild( final long groupAddress, final String name ) throws IOException
+	{
+		final List< Message > messages = readObjectHeader( groupAddress );
+		for ( final Message m : messages )
+		{
+			if ( m.type == MSG_SYMBOL_TABLE )
+			{
+				final long btree = readUnsigned( m.data, sizeOfOffsets );
+				final long heap = readUnsigned( m.data, sizeOfOffsets );
+				return findInSymbolTable( btree, readLocalHeap( heap ), name );
+			}
+		}
+
+		for ( final Message m : messages )
+		{
+			if ( m.type == MSG_LINK )
+			{
+				final ByteBuffer b = m.data;
+				b.get(); // version
+				final int flags = b.get();
+				final int linkType = ( flags & 0x08 ) != 0 ? b.get() : 0;
+				if ( ( flags & 0x04 ) != 0 )
+					b.getLong(); // creation order
+				if ( ( flags & 0x10 ) != 0 )
+					b.get(); // character set
+				final int length = ( int ) readUnsigned( b, 1 << ( flags & 0x03 ) );
+				final byte[] linkName = new byte[ length ];
+				b.get( linkName );
+				if ( linkType == 0 && name.equals( new String( linkName, StandardCharsets.UTF_8 ) ) )
+					return readUnsigned( b, sizeOfOffsets );
+			}
+			else if ( m.type == MSG_LINK_INFO )
+			{
+				final ByteBuffer b = m.data;
+				b.get(); // version
+				final int flags = b.get();
+				if ( ( flags & 0x01 ) != 0 )
+					b.getLong(); // maximum creation index
+				if ( readUnsigned( b, sizeOfOffsets ) != UNDEFINED )
+					throw new IOException( "dense link storage is not supported" );
+			}
+		}
+		return UNDEFINED;
+	}
+
+	/**
+	 * Search the symbol table (version 1 B-tree of symbol table nodes) of a
+	 * group for {@code name}.
+	 */
+	private long findInSymbolTable( final long btree, final ByteBuffer heap, final String name ) throws IOException
+	{
+		final int entrySize = 2 * sizeOfOffsets + 24;
+		for ( final long node : readBTreeChildren( btree, 0, sizeOfLengths ) )
+		{
+			final ByteBuffer header = read( node, 8 );
+			if ( header.getInt() != SNOD )
+				throw new IOException( "corrupt symbol table node" );
+			header.getShort(); // version, reserved
+			final int numSymbols = header.getShort() & 0xffff;
+			final ByteBuffer entries = read( node + 8, numSymbols * entrySize );
+			for ( int i = 0; i < numSymbols; ++i )
+			{
+				entries.position( i * entrySize );
+				final long nameOffset = readUnsigned( entries, sizeOfOffsets );
+				final long objectAddress = readUnsigned( entries, sizeOfOffsets );
+				if ( name.equals( readString( heap, ( int ) nameOffset ) ) )
+					return objectAddress;
+			}
+		}
+		return UNDEFINED;
+	}
+
+	/**
+	 * Read the data segment of a local heap.
+	 */
+	private ByteBuffer readLocalHeap( final long address ) throws IOException
+	{
+		final ByteBuffer header = read( address, 8 + 2 * sizeOfLengths + sizeOfOffsets );
+		if ( header.getInt() != HEAP )
+			throw new IOException( "corrupt local heap" );
+		header.position( 8 );
+		final long size = readUnsigned( header, sizeOfLengths );
+		readUnsigned( header, sizeOfLengths ); // free list
+		final long data = readUnsigned( header, sizeOfOffsets );
+		return read( data, ( int ) size );
+	}
+
+	private static String readString( final ByteBuffer heap, final int offset )
+	{
+		int end = offset;
+		while ( end < heap.limit() && heap.get( end ) != 0 )
+			++end;
+		final byte[] bytes = new byte[ end - offset ];
+		for ( int i = 0; i < bytes.length; ++i )
+			bytes[ i ] = heap.get( offset + i );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Read the chunk index (version 1 B-tree of raw data chunks) of a chunked
+	 * dataset.
+	 */
+	private long[] readChunkIndex( final long btree, final long[] dimensions, final int[] chunkDimensions ) throws IOException
+	{
+		final int n = dimensions.length;
+		final long[] gridDimensions = new long[ n ];
+		long numChunks = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			gridDimensions[ d ] = ( dimensions[ d ] + chunkDimensions[ d ] - 1 ) / chunkDimensions[ d ];
+			numChunks *= gridDimensions[ d ];
+		}
+		if ( numChunks > Integer.MAX_VALUE )
+			throw new IOException( "too many chunks" );
+
+		final long[] addresses = new long[ ( int ) numChunks ];
+		Arrays.fill( addresses, UNDEFINED );
+		if ( btree == UNDEFINED )
+			return addresses;
+
+		// key: chunk size, filter mask, chunk offset for each dimension plus one for the element
+		final int keySize = 8 + 8 * ( n + 1 );
+		final ArrayDeque< Long > nodes = new ArrayDeque<>();
+		nodes.add( btree );
+		while ( !nodes.isEmpty() )
+		{
+			final long node = nodes.poll();
+			final ByteBuffer header = read( node, 8 + 2 * sizeOfOffsets );
+			if ( header.getInt() != TREE || header.get() != 1 )
+				throw new IOException( "corrupt chunk index" );
+			final int level = header.get();
+			final int numEntries = header.getShort() & 0xffff;
+			final ByteBuffer entries = read( node + 8 + 2 * sizeOfOffsets, numEntries * ( keySize + sizeOfOffsets ) + keySize );
+			for ( int i = 0; i < numEntries; ++i )
+			{
+				entries.position( i * ( keySize + sizeOfOffsets ) + 8 );
+				long index = 0;
+				for ( int d = 0; d < n; ++d )
+					index = index * gridDimensions[ d ] + entries.getLong() / chunkDimensions[ d ];
+				entries.getLong(); // element offset
+				final long child = readUnsigned( entries, sizeOfOffsets );
+				if ( level > 0 )
+					nodes.add( child );
+				else if ( index < addresses.length )
+					addresses[ ( int ) index ] = baseAddress + child;
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Get the child addresses of all leaf nodes of a version 1 B-tree.
+	 *
+	 * @param nodeType
+	 *            0 for group nodes, 1 for raw data chunk nodes.
+	 * @param keySize
+	 *            size of a key in bytes.
+	 */
+	private List< Long > readBTreeChildren( final long btree, final int nodeType, final int keySize ) throws IOException
+	{
+		final List< Long > children = new ArrayList<>();
+		final ArrayDeque< Long > nodes = new ArrayDeque<>();
+		nodes.add( btree );
+		while ( !nodes.isEmpty() )
+		{
+			final long node = nodes.poll();
+			final ByteBuffer header = read( node, 8 + 2 * sizeOfOffsets );
+			if ( header.getInt() != TREE || header.get() != nodeType )
+				throw new IOException( "corrupt B-tree" );
+			final int level = header.get();
+			final int numEntries = header.getShort() & 0xffff;
+			final ByteBuffer entries = read( node + 8 + 2 * sizeOfOffsets, numEntries * ( keySize + sizeOfOffsets ) + keySize );
+			for ( int i = 0; i < numEntries; ++i )
+			{
+				entries.position( i * ( keySize + sizeOfOffsets ) + keySize );
+				final long child = readUnsigned( entries, sizeOfOffsets );
+				( level > 0 ? nodes : children ).add( child );
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Read all messages of an object header, following continuation
+	 * messages.
+	 */
+	private List< Message > readObjectHeader( final long address ) throws IOException
+	{
+		final List< Message > messages = new ArrayList<>();
+		final ArrayDeque< long[] > blocks = new ArrayDeque<>();
+		final ByteBuffer prefix = read( address, 32 );
+		final boolean v2 = prefix.getInt( 0 ) == OHDR;
+		boolean trackCreationOrder = false;
+		if ( v2 )
+		{
+			final int flags = prefix.get( 5 );
+			trackCreationOrder = ( flags & 0x04 ) != 0;
+			int pos = 6;
+			if ( ( flags & 0x20 ) != 0 )
+				pos += 16; // times
+			if ( ( flags & 0x10 ) != 0 )
+				pos += 4; // attribute phase change values
+			prefix.position( pos );
+			final int sizeOfSize = 1 << ( flags & 0x03 );
+			final long size = readUnsigned( prefix, sizeOfSize );
+			blocks.add( new long[] { address + pos + sizeOfSize, size } );
+		}
+		else if ( prefix.get( 0 ) == 1 )
+			blocks.add( new long[] { address + 16, prefix.getInt( 8 ) & 0xffffffffL } );
+		else
+			throw new IOException( "unsupported object header version " + prefix.get( 0 ) );
+
+		final int messageHeaderSize = v2 ? ( trackCreationOrder ? 6 : 4 ) : 8;
+		while ( !blocks.isEmpty() )
+		{
+			final long[] block = blocks.poll();
+			final ByteBuffer b = read( block[ 0 ], ( int ) block[ 1 ] );
+			while ( b.remaining() >= messageHeaderSize )
+			{
+				final int type = v2 ? b.get() & 0xff : b.getShort() & 0xffff;
+				final int size = b.getShort() & 0xffff;
+				final int flags = b.get();
+				b.position( b.position() + ( v2 ? ( trackCreationOrder ? 2 : 0 ) : 3 ) );
+				if ( size > b.remaining() )
+					throw new IOException( "corrupt object header" );
+				final ByteBuffer data = b.slice().order( ByteOrder.LITTLE_ENDIAN );
+				data.limit( size );
+				b.position( b.position() + size );
+
+				if ( type == MSG_CONTINUATION )
+				{
+					final long offset = readUnsigned( data, sizeOfOffsets );
+					final long length = readUnsigned( data, sizeOfLengths );
+					if ( v2 )
+					{
+						if ( read( offset, 4 ).getInt() != OCHK )
+							throw new IOException( "corrupt object header continuation" );
+						// skip signature and checksum
+						blocks.add( new long[] { offset + 4, length - 8 } );
+					}
+					else
+						blocks.add( new long[] { offset, length } );
+				}
+				else if ( type != 0 )
+					messages.add( new Message( type, flags, data ) );
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Read an unsigned little-endian value of {@code size} bytes.
+	 *
+	 * @return the value, or {@link #UNDEFINED} if all bits are set.
+	 */
+	private static long readUnsigned( final ByteBuffer b, final int size )
+	{
+		long value = 0;
+		boolean undefined = true;
+		for ( int i = 0; i < size; ++i )
+		{
+			final int v = b.get() & 0xff;
+			undefined &= v == 0xff;
+			value |= ( long ) v << ( 8 * i );
+		}
+		return undefined ? UNDEFINED : value;
+	}
+
+	/**
+	 * Read {@code length} bytes at an address relative to the base address.
+	 */
+	private ByteBuffer read( final long address, final int length ) throws IOException
+	{
+		return readAbsolute( baseAddress + address, length );
+	}
+
+	private ByteBuffer readAbsolute( final long position, final int length ) throws IOException
+	{
+		final ByteBuffer b = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( b.hasRemaining() )
+		{
+			final int n = channel.read( b, position + b.position() );
+			if ( n < 0 )
+			{
+				// prefixes and the superblock may be read beyond the end of small files
+				if ( b.position() == 0 )
+					throw new EOFException();
+				break;
+			}
+		}
+		b.flip();
+		return b;
+	}
+}
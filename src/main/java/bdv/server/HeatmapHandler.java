@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ContextHandler;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Provides the {@link AccessHeatmap}s of all datasets as JSON.
+ * <p>
+ * {@code /heatmap} lists, for every dataset, the number of recorded accesses
+ * and tracked cells, and the summed counts of the tracked cells per
+ * (timepoint, setup, level). {@code /heatmap/<dataset>?n=<count>} lists the
+ * {@code count} (default 100) hottest cells of a dataset.
+ * <p>
+ * The heatmaps reveal what clients look at, so this context is only served
+ * together with the manager context.
+ */
+public class HeatmapHandler extends ContextHandler
+{
+	private static final int DEFAULT_NUM_CELLS = 100;
+
+	public HeatmapHandler()
+	{
+		setContextPath( "/" + Constants.HEATMAP_CONTEXT_NAME );
+	}
+
+	@Override
+	public void doHandle( final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException, ServletException
+	{
+		final String datasetName = target.startsWith( "/" ) ? target.substring( 1 ) : target;
+		if ( !datasetName.isEmpty() )
+		{
+			final CellHandler handler = getCellHandler( datasetName );
+			if ( handler == null )
+			{
+				baseRequest.setHandled( true );
+				response.sendError( HttpServletResponse.SC_NOT_FOUND, "unknown dataset" );
+				return;
+			}
+
+			int n = DEFAULT_NUM_CELLS;
+			final String nString = request.getParameter( "n" );
+			if ( nString != null )
+			{
+				try
+				{
+					n = Math.max( 0, Integer.parseInt( nString ) );
+				}
+				catch ( final NumberFormatException e )
+				{
+					baseRequest.setHandled( true );
+					response.sendError( HttpServletResponse.SC_BAD_REQUEST, "invalid n" );
+					return;
+				}
+			}
+
+			final JsonWriter writer = beginResponse( baseRequest, response );
+			writeHottest( writer, datasetName, handler.getHeatmap(), n );
+			endResponse( writer );
+			return;
+		}
+
+		final JsonWriter writer = beginResponse( baseRequest, response );
+		writer.name( "datasets" ).beginObject();
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+		{
+			final CellHandler cellHandler = ( CellHandler ) handler;
+			writeSummary( writer, cellHandler.getDatasetName(), cellHandler.getHeatmap() );
+		}
+		writer.endObject();
+		endResponse( writer );
+	}
+
+	private CellHandler getCellHandler( final String datasetName )
+	{
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+			if ( ( ( CellHandler ) handler ).getDatasetName().equals( datasetName ) )
+				return ( CellHandler ) handler;
+		return null;
+	}
+
+	private static JsonWriter beginResponse( final Request baseRequest, final HttpServletResponse response ) throws IOException
+	{
+		response.setContentType( "application/json" );
+		response.setStatus( HttpServletResponse.SC_OK );
+		baseRequest.setHandled( true );
+
+		final JsonWriter writer = new JsonWriter( response.getWriter() );
+		writer.setIndent( "\t" );
+		writer.beginObject();
+		return writer;
+	}
+
+	private static void endResponse( final JsonWriter writer ) throws IOException
+	{
+		writer.endObject();
+		writer.flush();
+		writer.close();
+	}
+
+	private static void writeSummary( final JsonWriter writer, final String datasetName, final AccessHeatmap heatmap ) throws IOException
+	{
+		final List< AccessHeatmap.CellCount > cells = heatmap.getHottest( heatmap.getCapacity() );
+
+		// summed counts by timepoint, setup, level
+		final Map< String, Double > byImage = new TreeMap<>();
+		for ( final AccessHeatmap.CellCount c : cells )
+		{
+			final CellKey key = c.getKey();
+			byImage.merge( key.getTimepoint() + "/" + key.getSetup() + "/" + key.getLevel(), c.getCount(), Double::sum );
+		}
+
+		writer.name( datasetName ).beginObject();
+		writer.name( "accesses" ).value( heatmap.getNumAccesses() );
+		writer.name( "trackedCells" ).value( cells.size() );
+		writer.name( "capacity" ).value( heatmap.getCapacity() );
+		writer.name( "images" ).beginObject();
+		for ( final Map.Entry< String, Double > e : byImage.entrySet() )
+			writer.name( e.getKey() ).value( e.getValue() );
+		writer.endObject();
+		writer.endObject();
+	}
+
+	private static void writeHottest( final JsonWriter writer, final String datasetName, final AccessHeatmap heatmap, final int n ) throws IOException
+	{
+		writer.name( "dataset" ).value( datasetName );
+		writer.name( "cells" ).beginArray();
+		for ( final AccessHeatmap.CellCount c : heatmap.getHottest( n ) )
+		{
+			final CellKey key = c.getKey();
+			writer.beginObject();
+			writer.name( "timepoint" ).value( key.getTimepoint() );
+			writer.name( "setup" ).value( key.getSetup() );
+			writer.name( "level" ).value( key.getLevel() );
+			writer.name( "index" ).value( key.getIndex() );
+			writer.name( "count" ).value( c.getCount() );
+			writer.name( "error" ).value( c.getError() );
+			writer.endObject();
+		}
+		writer.endArray();
+	}
+}
@@ -70,13 +70,16 @@ public class ManagerHandler extends ContextHandler
 
 	private final String thumbnailsDirectoryName;
 
+	private final ServerResources resources;
+
 	public ManagerHandler(
 			final String baseURL,
 			final Server server,
 			final ConnectorStatistics connectorStats,
 			final StatisticsHandler statHandler,
 			final ContextHandlerCollection handlers,
-			final String thumbnailsDirectoryName )
+			final String thumbnailsDirectoryName,
+			final ServerResources resources )
 					throws IOException, URISyntaxException
 	{
 		this.baseURL = baseURL;
@@ -85,6 +88,7 @@ public class ManagerHandler extends ContextHandler
 		this.statHandler = statHandler;
 		this.connectorStats = connectorStats;
 		this.thumbnailsDirectoryName = thumbnailsDirectoryName;
+		this.resources = resources;
 		setContextPath( "/" + Constants.MANAGER_CONTEXT_NAME );
 	}
 
@@ -196,7 +200,7 @@ public class ManagerHandler extends ContextHandler
 			CellHandler ctx = null;
 			try
 			{
-				ctx = new CellHandler( baseURL + context + "/", fileLocation, datasetName, thumbnailsDirectoryName );
+				ctx = new CellHandler( baseURL + context + "/", fileLocation, datasetName, thumbnailsDirectoryName, resources );
 			}
 			catch ( final SpimDataException e )
 			{
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+import bdv.img.hdf5.DimsAndExistence;
+import bdv.img.hdf5.MipmapInfo;
+import bdv.img.hdf5.ViewLevelId;
+import bdv.img.remote.AffineTransform3DJsonSerializer;
+import bdv.img.remote.RemoteImageLoaderMetaData;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Writes the JSON representation of the {@link RemoteImageLoaderMetaData}
+ * (image sizes and resolutions) of a dataset incrementally.
+ * <p>
+ * The output has the format of a {@link RemoteImageLoaderMetaData} serialized
+ * with Gson, but neither the metadata object nor the JSON tree or string are
+ * built in memory. Each setup's {@link MipmapInfo} and each image's
+ * {@link DimsAndExistence} is written as soon as it is obtained, so memory
+ * use (besides the output) is independent of the number of timepoints and
+ * setups.
+ * <p>
+ * Mipmap levels and image sizes are taken from the {@link DatasetIndex}, so
+ * {@link SyntheticLevels synthetic levels} are advertised like native levels.
+ */
+public class MetadataJsonWriter
+{
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter( AffineTransform3D.class, new AffineTransform3DJsonSerializer() )
+			.enableComplexMapKeySerialization()
+			.create();
+
+	private static final DimsAndExistence MISSING = new DimsAndExistence( new long[] { 1, 1, 1 }, false );
+
+	/**
+	 * Build the metadata JSON as UTF-8.
+	 */
+	public static byte[] toBytes( final DatasetIndex index, final SequenceDescriptionMinimal seq ) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( 1 << 16 );
+		write( index, seq, bos );
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Write the metadata JSON as UTF-8 to {@code out}. Setups that are not in
+	 * the {@code index} (because they have no mipmap info) are left out.
+	 */
+	public static void write( final DatasetIndex index, final SequenceDescriptionMinimal seq, final OutputStream out ) throws IOException
+	{
+		final Writer w = new OutputStreamWriter( out, StandardCharsets.UTF_8 );
+		final JsonWriter writer = new JsonWriter( w );
+
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+		final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
+
+		writer.beginObject();
+
+		// Integer keys: serialized as a JSON object
+		int maxNumLevels = 0;
+		writer.name( "perSetupMipmapInfo" ).beginObject();
+		for ( final BasicViewSetup setup : setups )
+		{
+			final MipmapInfo info = index.getMipmapInfo( setup.getId() );
+			if ( info == null )
+				continue;
+			maxNumLevels = Math.max( maxNumLevels, info.getResolutions().length );
+			writer.name( Integer.toString( setup.getId() ) );
+			gson.toJson( info, MipmapInfo.class, writer );
+		}
+		writer.endObject();
+
+		// complex keys: serialized as an array of [key, value] arrays
+		writer.name( "dimsAndExistence" ).beginArray();
+		for ( final BasicViewSetup setup : setups )
+		{
+			final int s = setup.getId();
+			final MipmapInfo info = index.getMipmapInfo( s );
+			if ( info == null )
+				continue;
+			final int numLevels = info.getResolutions().length;
+			for ( final TimePoint timepoint : timepoints )
+			{
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					final ViewLevelId id = new ViewLevelId( timepoint.getId(), s, level );
+					final long[] dims = index.getDimensions( timepoint.getId(), s, level );
+					writer.beginArray();
+					gson.toJson( id, ViewLevelId.class, writer );
+					gson.toJson( dims != null ? new DimsAndExistence( dims, true ) : MISSING, DimsAndExistence.class, writer );
+					writer.endArray();
+				}
+			}
+		}
+		writer.endArray();
+
+		writer.name( "maxNumTimepoints" ).value( timepoints.isEmpty() ? 0 : timepoints.get( timepoints.size() - 1 ).getId() + 1 );
+		writer.name( "maxNumSetups" ).value( setups.isEmpty() ? 0 : setups.get( setups.size() - 1 ).getId() + 1 );
+		writer.name( "maxNumLevels" ).value( maxNumLevels );
+
+		writer.endObject();
+		writer.flush();
+	}
+}
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ContextHandler;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Provides runtime metrics of the server-wide {@link ServerResources} (cell
+ * request scheduler, cell caches, cluster) and memory use as JSON.
+ */
+public class MetricsHandler extends ContextHandler
+{
+	private final ServerResources resources;
+
+	public MetricsHandler( final ServerResources resources )
+	{
+		this.resources = resources;
+		setContextPath( "/" + Constants.METRICS_CONTEXT_NAME );
+	}
+
+	@Override
+	public void doHandle( final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException, ServletException
+	{
+		response.setContentType( "application/json" );
+		response.setStatus( HttpServletResponse.SC_OK );
+		baseRequest.setHandled( true );
+
+		final PrintWriter ow = response.getWriter();
+		final JsonWriter writer = new JsonWriter( ow );
+		writer.setIndent( "\t" );
+		writer.beginObject();
+		writeMemory( writer );
+		writeScheduler( writer, resources.getCellRequestScheduler() );
+		writeBulkheads( writer, resources.getCellRequestScheduler() );
+		writeCellMemoryCache( writer, resources.getCellMemoryCache() );
+		writePackedCellStores( writer );
+		writeCellLoads( writer );
+		writeDirectCellReaders( writer );
+		if ( resources.getDiskCellCache() != null )
+			writeDiskCellCache( writer, resources.getDiskCellCache() );
+		if ( resources.getCluster() != null )
+			writeCluster( writer, resources.getCluster() );
+		writer.endObject();
+		writer.flush();
+		writer.close();
+	}
+
+	private void writeMemory( final JsonWriter writer ) throws IOException
+	{
+		long encodedResponseBytes = 0;
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+			encodedResponseBytes += ( ( CellHandler ) handler ).getEncodedResponseBytes();
+
+		final Runtime runtime = Runtime.getRuntime();
+		writer.name( "memory" ).beginObject();
+		writer.name( "heapUsed" ).value( runtime.totalMemory() - runtime.freeMemory() );
+		writer.name( "heapMax" ).value( runtime.maxMemory() );
+		writer.name( "encodedResponses" ).value( encodedResponseBytes );
+		writer.endObject();
+	}
+
+	private static void writeScheduler( final JsonWriter writer, final CellRequestScheduler scheduler ) throws IOException
+	{
+		writer.name( "cellRequestScheduler" ).beginObject();
+		writer.name( "active" ).value( scheduler.getNumActive() );
+		writer.name( "maxActive" ).value( scheduler.getMaxActive() );
+		writer.name( "queued" ).value( scheduler.getNumQueued() );
+		writer.name( "queueDepthByLevel" ).beginArray();
+		for ( final int depth : scheduler.getQueueDepths() )
+			writer.value( depth );
+		writer.endArray();
+		writer.name( "rejected" ).value( scheduler.getNumRejected() );
+		writer.name( "cancelledQueued" ).value( scheduler.getNumCancelledQueued() );
+		writer.name( "cancelledRunning" ).value( scheduler.getNumCancelledRunning() );
+		writer.endObject();
+	}
+
+	private void writeBulkheads( final JsonWriter writer, final CellRequestScheduler scheduler ) throws IOException
+	{
+		writer.name( "bulkheads" ).beginObject();
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+		{
+			final CellHandler cellHandler = ( CellHandler ) handler;
+			final String name = cellHandler.getDatasetName();
+			final CircuitBreaker breaker = cellHandler.getCircuitBreaker();
+			writer.name( name ).beginObject();
+			writer.name( "active" ).value( scheduler.getNumActive( name ) );
+			writer.name( "maxActive" ).value( scheduler.getMaxActivePerGroup() );
+			writer.name( "queued" ).value( scheduler.getNumQueued( name ) );
+			writer.name( "rejected" ).value( scheduler.getNumRejected( name ) );
+			writer.name( "breaker" ).value( breaker.getState().name().toLowerCase() );
+			writer.name( "breakerTrips" ).value( breaker.getNumTrips() );
+			writer.name( "breakerRejected" ).value( breaker.getNumRejected() );
+			writer.name( "runningReads" ).value( breaker.getNumRunning() );
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	private static void writeCellMemoryCache( final JsonWriter writer, final CellMemoryCache cache ) throws IOException
+	{
+		writer.name( "cellMemoryCache" ).beginObject();
+		writer.name( "cells" ).value( cache.getNumCells() );
+		writer.name( "bytes" ).value( cache.getSizeBytes() );
+		writer.name( "maxBytes" ).value( cache.getMaxBytes() );
+		writer.name( "evicted" ).value( cache.getNumEvicted() );
+		writer.name( "datasets" ).beginObject();
+		for ( final Map.Entry< String, CellMemoryCache.DatasetStats > e : cache.getDatasetStats().entrySet() )
+		{
+			final CellMemoryCache.DatasetStats stats = e.getValue();
+			final long requests = stats.getHits() + stats.getMisses();
+			writer.name( e.getKey() ).beginObject();
+			writer.name( "cells" ).value( stats.getCells() );
+			writer.name( "bytes" ).value( stats.getBytes() );
+			writer.name( "hits" ).value( stats.getHits() );
+			writer.name( "misses" ).value( stats.getMisses() );
+			writer.name( "hitRate" ).value( requests == 0 ? 0 : ( double ) stats.getHits() / requests );
+			writer.endObject();
+		}
+		writer.endObject();
+		writer.endObject();
+	}
+
+	private void writePackedCellStores( final JsonWriter writer ) throws IOException
+	{
+		writer.name( "packedCellStores" ).beginObject();
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+		{
+			final CellHandler cellHandler = ( CellHandler ) handler;
+			final PackedCellStore store = cellHandler.getPackedCellStore();
+			if ( store == null )
+				continue;
+			writer.name( cellHandler.getDatasetName() ).beginObject();
+			writer.name( "hits" ).value( store.getNumHits() );
+			writer.name( "misses" ).value( store.getNumMisses() );
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	private void writeCellLoads( final JsonWriter writer ) throws IOException
+	{
+		writer.name( "cellLoads" ).beginObject();
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+		{
+			final CellHandler cellHandler = ( CellHandler ) handler;
+			final SingleFlight< CellKey, CellData > loads = cellHandler.getCellLoads();
+			final long requests = loads.getNumLoads() + loads.getNumCoalesced();
+			writer.name( cellHandler.getDatasetName() ).beginObject();
+			writer.name( "loads" ).value( loads.getNumLoads() );
+			writer.name( "coalesced" ).value( loads.getNumCoalesced() );
+			writer.name( "coalescedRate" ).value( requests == 0 ? 0 : ( double ) loads.getNumCoalesced() / requests );
+			writer.name( "inFlight" ).value( loads.getNumInFlight() );
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	private void writeDirectCellReaders( final JsonWriter writer ) throws IOException
+	{
+		writer.name( "directReads" ).beginObject();
+		for ( final Handler handler : getServer().getChildHandlersByClass( CellHandler.class ) )
+		{
+			final CellHandler cellHandler = ( CellHandler ) handler;
+			final DirectCellReader reader = cellHandler.getDirectCellReader();
+			if ( reader == null )
+				continue;
+			writer.name( cellHandler.getDatasetName() ).beginObject();
+			writer.name( "images" ).value( reader.getNumImages() );
+			writer.name( "reads" ).value( reader.getNumReads() );
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	private static void writeDiskCellCache( final JsonWriter writer, final DiskCellCache cache ) throws IOException
+	{
+		writer.name( "diskCellCache" ).beginObject();
+		writer.name( "cells" ).value( cache.getNumCells() );
+		writer.name( "bytes" ).value( cache.getSizeBytes() );
+		writer.name( "maxBytes" ).value( cache.getMaxBytes() );
+		writer.name( "hits" ).value( cache.getNumHits() );
+		writer.name( "misses" ).value( cache.getNumMisses() );
+		writer.name( "stale" ).value( cache.getNumStale() );
+		writer.name( "droppedWrites" ).value( cache.getNumDroppedWrites() );
+		writer.endObject();
+	}
+
+	private static void writeCluster( final JsonWriter writer, final Cluster cluster ) throws IOException
+	{
+		writer.name( "cluster" ).beginObject();
+		writer.name( "nodes" ).beginArray();
+		for ( final String node : cluster.getNodes() )
+			writer.value( node );
+		writer.endArray();
+		writer.name( "forwarded" ).value( cluster.getNumForwarded() );
+		writer.name( "forwardFailures" ).value( cluster.getNumForwardFailures() );
+		writer.endObject();
+	}
+}
@@ -0,0 +1,449 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Read access to a packed cell store written by
+ * {@link PackedCellStoreConverter}: cells of a dataset pre-encoded in the
+ * wire format of {@code cell} requests, so that they can be served without
+ * touching the HDF5 file.
+ * <p>
+ * The store is a directory with one file per (timepoint, setup, level),
+ * named {@code t<timepoint>-s<setup>-l<level>.cells}. Each file (big-endian)
+ * consists of
+ * <ul>
+ * <li>a header: magic, format version, dataset version, number of cells, and
+ * a reserved int,</li>
+ * <li>a fixed-size index with one entry per cell (by flattened cell index):
+ * offset of the cell data in the file, its length, and its encoding
+ * ({@link #ENCODING_RAW} or {@link #ENCODING_GZIP}),</li>
+ * <li>the cell data, contiguously in cell index order.</li>
+ * </ul>
+ * Files are memory-mapped, and cell data is handed to Jetty as slices of the
+ * mapping, so it is written to the socket without being copied on the heap.
+ * <p>
+ * Files that are missing or were written from another version of the
+ * dataset are ignored, and the corresponding cells are loaded from the HDF5
+ * file as usual.
+ */
+public class PackedCellStore
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( PackedCellStore.class );
+
+	static final int MAGIC = 0x42445043; // "BDPC"
+
+	static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Size of the file header: magic, format version, dataset version, number
+	 * of cells, reserved.
+	 */
+	static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+
+	/**
+	 * Size of an index entry: offset, length, encoding.
+	 */
+	static final int INDEX_ENTRY_BYTES = 8 + 4 + 4;
+
+	/**
+	 * Big-endian unsigned shorts, as in responses to {@code cell} requests.
+	 */
+	static final int ENCODING_RAW = 0;
+
+	/**
+	 * Gzipped {@link #ENCODING_RAW}.
+	 */
+	static final int ENCODING_GZIP = 1;
+
+	/**
+	 * Cell data is mapped in windows of this size.
+	 */
+	private static final long MAP_WINDOW_BYTES = 1L << 30;
+
+	/**
+	 * The data of one cell.
+	 */
+	public static final class Cell
+	{
+		private final ByteBuffer data;
+
+		private final int encoding;
+
+		Cell( final ByteBuffer data, final int encoding )
+		{
+			this.data = data;
+			this.encoding = encoding;
+		}
+
+		/**
+		 * Get the encoded cell data. The buffer is a slice of a read-only
+		 * mapping.
+		 */
+		public ByteBuffer getData()
+		{
+			return data;
+		}
+
+		public boolean isGzipped()
+		{
+			return encoding == ENCODING_GZIP;
+		}
+
+		/**
+		 * Get the cell data as big-endian unsigned shorts, decompressing it if
+		 * necessary.
+		 */
+		public byte[] getRawBytes() throws IOException
+		{
+			final ByteBuffer b = data.duplicate();
+			if ( !isGzipped() )
+			{
+				final byte[] bytes = new byte[ b.remaining() ];
+				b.get( bytes );
+				return bytes;
+			}
+
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream( 4 * b.remaining() );
+			try ( final InputStream in = new GZIPInputStream( new ByteBufferInputStream( b ) ) )
+			{
+				final byte[] buf = new byte[ 8192 ];
+				int n;
+				while ( ( n = in.read( buf ) ) > 0 )
+					bos.write( buf, 0, n );
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	/**
+	 * An open file of the store.
+	 */
+	private static final class LevelFile
+	{
+		final Path path;
+
+		final FileChannel channel;
+
+		final long size;
+
+		final int numCells;
+
+		/**
+		 * Mapping of the header and index.
+		 */
+		final MappedByteBuffer index;
+
+		/**
+		 * Mappings of the file in windows of {@link #MAP_WINDOW_BYTES}, created
+		 * on demand.
+		 */
+		final MappedByteBuffer[] windows;
+
+		LevelFile( final Path path, final FileChannel channel, final int numCells ) throws IOException
+		{
+			this.path = path;
+			this.channel = channel;
+			this.numCells = numCells;
+			size = channel.size();
+			index = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + ( long ) INDEX_ENTRY_BYTES * numCells );
+			windows = new MappedByteBuffer[ ( int ) ( ( size + MAP_WINDOW_BYTES - 1 ) / MAP_WINDOW_BYTES ) ];
+		}
+
+		Cell get( final long cellIndex ) throws IOException
+		{
+			if ( cellIndex < 0 || cellIndex >= numCells )
+				return null;
+			final int entry = HEADER_BYTES + INDEX_ENTRY_BYTES * ( int ) cellIndex;
+			final long offset = index.getLong( entry );
+			final int length = index.getInt( entry + 8 );
+			final int encoding = index.getInt( entry + 12 );
+			if ( length <= 0 || offset + length > size )
+				throw new IOException( "corrupt index entry " + cellIndex + " in " + path );
+
+			final int w = ( int ) ( offset / MAP_WINDOW_BYTES );
+			if ( ( offset + length - 1 ) / MAP_WINDOW_BYTES != w )
+				// cell straddles two windows
+				return new Cell( channel.map( FileChannel.MapMode.READ_ONLY, offset, length ), encoding );
+
+			final ByteBuffer b = getWindow( w ).duplicate();
+			final int start = ( int ) ( offset - w * MAP_WINDOW_BYTES );
+			b.position( start );
+			b.limit( start + length );
+			return new Cell( b.slice(), encoding );
+		}
+
+		private synchronized MappedByteBuffer getWindow( final int w ) throws IOException
+		{
+			if ( windows[ w ] == null )
+			{
+				final long start = w * MAP_WINDOW_BYTES;
+				windows[ w ] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( MAP_WINDOW_BYTES, size - start ) );
+			}
+			return windows[ w ];
+		}
+
+		void close()
+		{
+			try
+			{
+				channel.close();
+			}
+			catch ( final IOException e )
+			{
+				LOG.ignore( e );
+			}
+		}
+	}
+
+	private static final class FileKey
+	{
+		final int timepoint;
+
+		final int setup;
+
+		final int level;
+
+		FileKey( final int timepoint, final int setup, final int level )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof FileKey ) )
+				return false;
+			final FileKey k = ( FileKey ) obj;
+			return timepoint == k.timepoint && setup == k.setup && level == k.level;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( timepoint * 31 + setup ) * 31 + level;
+		}
+	}
+
+	private final Path directory;
+
+	private final long version;
+
+	/**
+	 * Open files. Files that exist but cannot be used are remembered as
+	 * {@link Optional#empty()}, so that they are not opened again.
+	 */
+	private final WeightedLruCache< FileKey, Optional< LevelFile > > files;
+
+	private final AtomicLong numHits = new AtomicLong();
+
+	private final AtomicLong numMisses = new AtomicLong();
+
+	/**
+	 * @param directory
+	 *            the store directory.
+	 * @param version
+	 *            the current version of the dataset. Files written from
+	 *            another version are ignored.
+	 */
+	public PackedCellStore( final Path directory, final long version )
+	{
+		this.directory = directory;
+		this.version = version;
+		files = new WeightedLruCache<>( Constants.PACKED_CELL_STORE_MAX_OPEN_FILES, f -> 1, ( k, f ) -> f.ifPresent( LevelFile::close ) );
+	}
+
+	/**
+	 * Get the default store directory of a dataset: next to the XML file, with
+	 * the ".xml" suffix replaced by ".cells".
+	 *
+	 * @param baseFilename
+	 *            full path of the dataset XML file, without the ".xml" suffix.
+	 */
+	public static Path getDefaultDirectory( final String baseFilename )
+	{
+		return Paths.get( baseFilename + ".cells" );
+	}
+
+	static String getFileName( final int timepoint, final int setup, final int level )
+	{
+		return "t" + timepoint + "-s" + setup + "-l" + level + ".cells";
+	}
+
+	/**
+	 * Get the data of a cell.
+	 *
+	 * @return the cell, or {@code null} if the store does not contain it.
+	 */
+	public Cell get( final int timepoint, final int setup, final int level, final long cellIndex )
+	{
+		final LevelFile file = getFile( new FileKey( timepoint, setup, level ) );
+		Cell cell = null;
+		if ( file != null )
+		{
+			try
+			{
+				cell = file.get( cellIndex );
+			}
+			catch ( final IOException e )
+			{
+				LOG.warn( "Could not read packed cell: " + e.getMessage() );
+			}
+		}
+		( cell == null ? numMisses : numHits ).incrementAndGet();
+		return cell;
+	}
+
+	private LevelFile getFile( final FileKey key )
+	{
+		final Optional< LevelFile > cached = files.get( key );
+		if ( cached != null )
+			return cached.orElse( null );
+
+		final Path path = directory.resolve( getFileName( key.timepoint, key.setup, key.level ) );
+		if ( !Files.isRegularFile( path ) )
+			return null;
+
+		synchronized ( this )
+		{
+			final Optional< LevelFile > other = files.get( key );
+			if ( other != null )
+				return other.orElse( null );
+
+			LevelFile file = null;
+			try
+			{
+				file = open( path );
+			}
+			catch ( final IOException e )
+			{
+				LOG.warn( "Could not open packed cell file: " + e.getMessage() );
+			}
+			files.put( key, Optional.ofNullable( file ) );
+			return file;
+		}
+	}
+
+	/**
+	 * Open a file of the store.
+	 *
+	 * @return the file, or {@code null} if it was written from another
+	 *         version of the dataset.
+	 */
+	private LevelFile open( final Path path ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ );
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+			while ( header.hasRemaining() )
+				if ( channel.read( header, header.position() ) < 0 )
+					throw new IOException( "truncated header in " + path );
+			header.flip();
+			if ( header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION )
+				throw new IOException( "not a packed cell file: " + path );
+			final long fileVersion = header.getLong();
+			final int numCells = header.getInt();
+			if ( fileVersion != version )
+			{
+				LOG.warn( "Ignoring outdated packed cell file " + path );
+				channel.close();
+				return null;
+			}
+			return new LevelFile( path, channel, numCells );
+		}
+		catch ( final IOException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all open files.
+	 */
+	public void close()
+	{
+		files.clear();
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	public long getNumHits()
+	{
+		return numHits.get();
+	}
+
+	public long getNumMisses()
+	{
+		return numMisses.get();
+	}
+
+	/**
+	 * Reads the remaining bytes of a {@link ByteBuffer}.
+	 */
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream( final ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len )
+		{
+			if ( !buffer.hasRemaining() )
+				return -1;
+			final int n = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, n );
+			return n;
+		}
+	}
+}
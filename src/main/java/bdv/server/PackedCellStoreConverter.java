@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import static bdv.server.PackedCellStore.ENCODING_GZIP;
+import static bdv.server.PackedCellStore.ENCODING_RAW;
+import static bdv.server.PackedCellStore.FORMAT_VERSION;
+import static bdv.server.PackedCellStore.HEADER_BYTES;
+import static bdv.server.PackedCellStore.INDEX_ENTRY_BYTES;
+import static bdv.server.PackedCellStore.MAGIC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.eclipse.jetty.util.log.Log;
+
+import bdv.img.hdf5.DimsAndExistence;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.MipmapInfo;
+import bdv.img.hdf5.ViewLevelId;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Converts an XML/HDF5 dataset into a {@link PackedCellStore}.
+ * <p>
+ * Each (timepoint, setup, level) is converted by a separate task, and tasks
+ * run in parallel. Conversion is resumable: complete files that match the
+ * current version of the dataset are skipped, and a partially written file
+ * (left behind by an interrupted conversion) is continued after its last
+ * complete cell. Files are written under a temporary name and renamed when
+ * complete, so a server never sees partial files.
+ */
+public class PackedCellStoreConverter
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( PackedCellStoreConverter.class );
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final Hdf5ImageLoader imgLoader;
+
+	private final SequenceDescriptionMinimal seq;
+
+	private final long version;
+
+	private final Path directory;
+
+	private final boolean compress;
+
+	/**
+	 * @param xmlFilename
+	 *            the dataset XML file.
+	 * @param directory
+	 *            the store directory. Created if necessary.
+	 * @param compress
+	 *            whether to gzip cells (if that makes them smaller).
+	 */
+	public PackedCellStoreConverter( final String xmlFilename, final Path directory, final boolean compress ) throws Exception
+	{
+		final SpimDataMinimal spimData = new XmlIoSpimDataMinimal().load( xmlFilename );
+		seq = spimData.getSequenceDescription();
+		imgLoader = ( Hdf5ImageLoader ) seq.getImgLoader();
+		version = Math.max( new File( xmlFilename ).lastModified(), imgLoader.getHdf5File().lastModified() );
+		this.directory = directory;
+		this.compress = compress;
+	}
+
+	/**
+	 * Convert all images of the dataset.
+	 *
+	 * @param numThreads
+	 *            number of images to convert in parallel.
+	 */
+	public void run( final int numThreads ) throws IOException, InterruptedException
+	{
+		Files.createDirectories( directory );
+
+		final List< ViewLevelId > images = new ArrayList<>();
+		for ( final TimePoint timepoint : seq.getTimePoints().getTimePointsOrdered() )
+			for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+			{
+				final int numLevels = imgLoader.getMipmapInfo( setup.getId() ).getResolutions().length;
+				for ( int level = 0; level < numLevels; ++level )
+					images.add( new ViewLevelId( timepoint.getId(), setup.getId(), level ) );
+			}
+
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads, new DaemonThreadFactory( "packcells" ) );
+		final AtomicInteger numDone = new AtomicInteger();
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( final ViewLevelId id : images )
+			futures.add( executor.submit( () -> {
+				final String result = convert( id );
+				LOG.info( "(" + numDone.incrementAndGet() + "/" + images.size() + ") " + getFileName( id ) + ": " + result );
+				return null;
+			} ) );
+		executor.shutdown();
+
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			executor.shutdownNow();
+			final Throwable cause = e.getCause();
+			if ( cause instanceof IOException )
+				throw ( IOException ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Convert one (timepoint, setup, level).
+	 *
+	 * @return a short description of what was done, for logging.
+	 */
+	private String convert( final ViewLevelId id ) throws IOException
+	{
+		final Path file = directory.resolve( getFileName( id ) );
+		final Path tmp = directory.resolve( getFileName( id ) + TMP_SUFFIX );
+
+		final DimsAndExistence dims = imgLoader.getDimsAndExistence( id );
+		if ( !dims.exists() )
+		{
+			Files.deleteIfExists( file );
+			return "missing in dataset";
+		}
+		final MipmapInfo info = imgLoader.getMipmapInfo( id.getViewSetupId() );
+		final CellGrid grid = new CellGrid( dims.getDimensions(), info.getSubdivisions()[ id.getLevel() ] );
+		long n = 1;
+		for ( final long d : grid.getGridDimensions() )
+			n *= d;
+		if ( n > ( Integer.MAX_VALUE - HEADER_BYTES ) / INDEX_ENTRY_BYTES )
+			throw new IOException( "too many cells in " + getFileName( id ) );
+		final int numCells = ( int ) n;
+
+		if ( Files.exists( file ) )
+		{
+			try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+			{
+				if ( hasValidHeader( channel, numCells ) )
+					return "up to date";
+			}
+		}
+
+		int first = 0;
+		try ( final FileChannel channel = FileChannel.open( tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+		{
+			final long dataStart = HEADER_BYTES + ( long ) INDEX_ENTRY_BYTES * numCells;
+			long end = dataStart;
+			if ( hasValidHeader( channel, numCells ) )
+			{
+				// resume after the last complete cell
+				final ByteBuffer index = ByteBuffer.allocate( INDEX_ENTRY_BYTES * numCells );
+				readFully( channel, index, HEADER_BYTES );
+				index.flip();
+				for ( ; first < numCells; ++first )
+				{
+					final long offset = index.getLong();
+					final int length = index.getInt();
+					index.getInt();
+					if ( length <= 0 || offset != end || offset + length > channel.size() )
+						break;
+					end = offset + length;
+				}
+			}
+			else
+			{
+				channel.truncate( 0 );
+				final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+				header.putInt( MAGIC ).putInt( FORMAT_VERSION ).putLong( version ).putInt( numCells ).putInt( 0 );
+				header.flip();
+				writeFully( channel, header, 0 );
+				writeFully( channel, ByteBuffer.allocate( INDEX_ENTRY_BYTES * numCells ), HEADER_BYTES );
+			}
+
+			final long[] gridpos = new long[ grid.numDimensions() ];
+			final long[] cellMin = new long[ grid.numDimensions() ];
+			final int[] cellDims = new int[ grid.numDimensions() ];
+			final ByteBuffer entry = ByteBuffer.allocate( INDEX_ENTRY_BYTES );
+			for ( int i = first; i < numCells; ++i )
+			{
+				grid.getCellGridPositionFlat( i, gridpos );
+				grid.getCellDimensions( gridpos, cellMin, cellDims );
+				final short[] data = loadCell( id, cellMin, cellDims );
+				final byte[] raw = new byte[ 2 * data.length ];
+				ByteBuffer.wrap( raw ).asShortBuffer().put( data );
+				final byte[] gz = compress ? gzip( raw ) : null;
+				final boolean useGzip = gz != null && gz.length < raw.length;
+				final byte[] bytes = useGzip ? gz : raw;
+
+				// data before index entry, so that a resumed conversion never
+				// sees an entry without its data
+				writeFully( channel, ByteBuffer.wrap( bytes ), end );
+				entry.clear();
+				entry.putLong( end ).putInt( bytes.length ).putInt( useGzip ? ENCODING_GZIP : ENCODING_RAW );
+				entry.flip();
+				writeFully( channel, entry, HEADER_BYTES + ( long ) INDEX_ENTRY_BYTES * i );
+				end += bytes.length;
+			}
+			channel.truncate( end );
+			channel.force( true );
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		return first == 0 ? numCells + " cells" : "resumed at cell " + first + " of " + numCells;
+	}
+
+	private short[] loadCell( final ViewLevelId id, final long[] cellMin, final int[] cellDims ) throws IOException
+	{
+		try
+		{
+			return imgLoader.getShortArrayLoader().loadArray( id.getTimepointId(), id.getViewSetupId(), id.getLevel(), cellDims, cellMin ).getCurrentStorageArray();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "interrupted" );
+		}
+	}
+
+	/**
+	 * Whether {@code channel} starts with a header for the current version of
+	 * the dataset and {@code numCells} cells.
+	 */
+	private boolean hasValidHeader( final FileChannel channel, final int numCells ) throws IOException
+	{
+		if ( channel.size() < HEADER_BYTES + ( long ) INDEX_ENTRY_BYTES * numCells )
+			return false;
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+		readFully( channel, header, 0 );
+		header.flip();
+		return header.getInt() == MAGIC
+				&& header.getInt() == FORMAT_VERSION
+				&& header.getLong() == version
+				&& header.getInt() == numCells;
+	}
+
+	private static String getFileName( final ViewLevelId id )
+	{
+		return PackedCellStore.getFileName( id.getTimepointId(), id.getViewSetupId(), id.getLevel() );
+	}
+
+	private static void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "unexpected end of file" );
+	}
+
+	private static void writeFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+			p += channel.write( buffer, p );
+	}
+
+	private static byte[] gzip( final byte[] data ) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream( data.length / 4 + 64 );
+		try ( final GZIPOutputStream gz = new GZIPOutputStream( bos ) )
+		{
+			gz.write( data );
+		}
+		return bos.toByteArray();
+	}
+
+	@SuppressWarnings( "static-access" )
+	public static void main( final String[] args ) throws Exception
+	{
+		final Options options = new Options();
+
+		final String cmdLineSyntax = "PackedCellStoreConverter [OPTIONS] XML\n";
+
+		final String description =
+				"Converts an XML/HDF5 dataset into a packed cell store, from which BigDataServer serves cells without reading the HDF5 file.\n" +
+						"An interrupted conversion is resumed by running the same command again.";
+
+		options.addOption( OptionBuilder
+				.withDescription( "Store directory. BigDataServer uses the store if it is in the default location.\n(default: XML with \".xml\" replaced by \".cells\")" )
+				.hasArg()
+				.withArgName( "DIRECTORY" )
+				.create( "o" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Gzip cells. Compressed cells are sent as is to clients that accept gzip." )
+				.create( "z" ) );
+
+		options.addOption( OptionBuilder
+				.withDescription( "Number of images to convert in parallel.\n(default: number of processors)" )
+				.hasArg()
+				.withArgName( "THREADS" )
+				.create( "j" ) );
+
+		try
+		{
+			final CommandLineParser parser = new BasicParser();
+			final CommandLine cmd = parser.parse( options, args );
+
+			final String[] leftoverArgs = cmd.getArgs();
+			if ( leftoverArgs.length != 1 )
+				throw new IllegalArgumentException( "Expected one dataset XML file." );
+			final String xmlFilename = leftoverArgs[ 0 ];
+			final String baseFilename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() ) : xmlFilename;
+
+			final Path directory = cmd.hasOption( "o" )
+					? Paths.get( cmd.getOptionValue( "o" ) )
+					: PackedCellStore.getDefaultDirectory( baseFilename );
+			final int numThreads = Integer.parseInt( cmd.getOptionValue( "j", Integer.toString( Runtime.getRuntime().availableProcessors() ) ) );
+			if ( numThreads <= 0 )
+				throw new IllegalArgumentException( "Number of threads must be positive." );
+
+			new PackedCellStoreConverter( xmlFilename, directory, cmd.hasOption( "z" ) ).run( numThreads );
+		}
+		catch ( final ParseException | IllegalArgumentException e )
+		{
+			LOG.warn( e.getMessage() );
+			System.out.println();
+			final HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( cmdLineSyntax, description, options, null );
+		}
+	}
+}
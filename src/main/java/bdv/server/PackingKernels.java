@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+/**
+ * Vectorized loops of {@link BitPackedCellCodec}. The kernels that move data
+ * process a prefix of the cell and return the number of values they handled;
+ * the codec's scalar loops do the rest.
+ * <p>
+ * The implementation, {@code VectorPackingKernels}, uses the incubating
+ * Vector API and is compiled from {@code src/main/java17}. It is only loaded
+ * on Java 17 or later with {@code --add-modules jdk.incubator.vector}.
+ */
+interface PackingKernels
+{
+	/**
+	 * Bitwise or of all values of {@code data}.
+	 */
+	int or( short[] data );
+
+	/**
+	 * Pack values at 8 bits into {@code packed}, starting at byte 1.
+	 *
+	 * @return the number of values packed.
+	 */
+	int encode8( short[] data, byte[] packed );
+
+	/**
+	 * Unpack 8-bit values from {@code packed}, starting at byte 1.
+	 *
+	 * @return the number of values unpacked.
+	 */
+	int decode8( byte[] packed, short[] data );
+
+	/**
+	 * Pack values at 12 bits into {@code packed}, starting at byte 1.
+	 *
+	 * @return the number of values packed, an even number.
+	 */
+	int encode12( short[] data, byte[] packed );
+
+	/**
+	 * Unpack 12-bit values from {@code packed}, starting at byte 1.
+	 *
+	 * @return the number of values unpacked, an even number.
+	 */
+	int decode12( byte[] packed, short[] data );
+}
@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+/**
+ * Axis-aligned 2D section plane. The image X and Y axes of the section are
+ * the {@code u} and {@code v} dimensions of the 3D image, {@code normal} is
+ * the dimension along which the section is taken (or projected).
+ */
+public enum Plane
+{
+	XY( 0, 1, 2 ),
+	XZ( 0, 2, 1 ),
+	YZ( 1, 2, 0 );
+
+	final int u;
+
+	final int v;
+
+	final int normal;
+
+	Plane( final int u, final int v, final int normal )
+	{
+		this.u = u;
+		this.v = v;
+		this.normal = normal;
+	}
+
+	/**
+	 * Get the plane perpendicular to the given axis.
+	 *
+	 * @param axis
+	 *            one of "x", "y", "z".
+	 * @throws IllegalArgumentException
+	 *             if {@code axis} is not one of "x", "y", "z".
+	 */
+	public static Plane normalTo( final String axis ) throws IllegalArgumentException
+	{
+		switch ( axis )
+		{
+		case "x":
+			return YZ;
+		case "y":
+			return XZ;
+		case "z":
+			return XY;
+		default:
+			throw new IllegalArgumentException( "unknown axis \"" + axis + "\"" );
+		}
+	}
+}
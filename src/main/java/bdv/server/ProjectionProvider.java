@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Computes maximum, mean, and sum projections of a (setup, timepoint, level)
+ * image along one of the image axes.
+ * <p>
+ * The projection is computed cell by cell, in parallel over the columns of the
+ * cell grid along the projection axis. Each column writes a disjoint region of
+ * the result, so no synchronization is needed between tasks. Results are
+ * cached, and concurrent requests for the same projection share a single
+ * computation.
+ * <p>
+ * Projections larger than {@code maxSize} in either dimension are rejected,
+ * and computations that take longer than {@code timeoutMillis} are cancelled.
+ */
+public class ProjectionProvider
+{
+	public enum Mode
+	{
+		MAX,
+		MEAN,
+		SUM
+	}
+
+	/**
+	 * A projection image. Values are stored with X varying fastest.
+	 */
+	public static final class Projection
+	{
+		private final int width;
+
+		private final int height;
+
+		private final float[] values;
+
+		Projection( final int width, final int height, final float[] values )
+		{
+			this.width = width;
+			this.height = height;
+			this.values = values;
+		}
+
+		public int getWidth()
+		{
+			return width;
+		}
+
+		public int getHeight()
+		{
+			return height;
+		}
+
+		public float[] getValues()
+		{
+			return values;
+		}
+	}
+
+	private static final class ProjectionKey
+	{
+		final int setup;
+
+		final int timepoint;
+
+		final int level;
+
+		final Plane plane;
+
+		final Mode mode;
+
+		final long from;
+
+		final long to;
+
+		ProjectionKey( final int setup, final int timepoint, final int level, final Plane plane, final Mode mode, final long from, final long to )
+		{
+			this.setup = setup;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.plane = plane;
+			this.mode = mode;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof ProjectionKey ) )
+				return false;
+			final ProjectionKey k = ( ProjectionKey ) obj;
+			return setup == k.setup && timepoint == k.timepoint && level == k.level && plane == k.plane && mode == k.mode && from == k.from && to == k.to;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = setup;
+			h = 31 * h + timepoint;
+			h = 31 * h + level;
+			h = 31 * h + plane.hashCode();
+			h = 31 * h + mode.hashCode();
+			h = 31 * h + Long.hashCode( from );
+			h = 31 * h + Long.hashCode( to );
+			return h;
+		}
+	}
+
+	/**
+	 * Shared by the {@link ProjectionProvider}s of all datasets.
+	 */
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new DaemonThreadFactory( "projection" ) );
+
+	private final CellAccess cells;
+
+	private final WeightedLruCache< ProjectionKey, Projection > cache;
+
+	private final ConcurrentHashMap< ProjectionKey, CompletableFuture< Projection > > inFlight;
+
+	private final int maxSize;
+
+	private final long timeoutNanos;
+
+	/**
+	 * @param cells
+	 *            provides the image data.
+	 * @param cacheBytes
+	 *            maximum size of the projection cache.
+	 * @param maxSize
+	 *            maximum width and height of projections.
+	 * @param timeoutMillis
+	 *            how long to wait for a projection.
+	 */
+	public ProjectionProvider( final CellAccess cells, final long cacheBytes, final int maxSize, final long timeoutMillis )
+	{
+		this.cells = cells;
+		this.maxSize = maxSize;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+		cache = new WeightedLruCache<>( cacheBytes, p -> 4L * p.values.length );
+		inFlight = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Get a projection, computing it if necessary.
+	 *
+	 * @param setup
+	 *            setup id.
+	 * @param timepoint
+	 *            timepoint index.
+	 * @param level
+	 *            mipmap level.
+	 * @param plane
+	 *            the projection is along {@link Plane#normal}.
+	 * @param mode
+	 *            how to combine values along the projection axis.
+	 * @param from
+	 *            first position along the projection axis (in voxel
+	 *            coordinates of {@code level}) to include.
+	 * @param to
+	 *            last position along the projection axis (in voxel coordinates
+	 *            of {@code level}) to include.
+	 * @throws IllegalArgumentException
+	 *             if {@code setup}, {@code level}, or the range are invalid,
+	 *             or the projection is larger than {@code maxSize}.
+	 * @throws TimeoutException
+	 *             if the projection is not computed within
+	 *             {@code timeoutMillis}.
+	 */
+	public Projection getProjection( final int setup, final int timepoint, final int level, final Plane plane, final Mode mode, final long from, final long to ) throws IllegalArgumentException, InterruptedException, ExecutionException, TimeoutException
+	{
+		if ( level < 0 || level >= cells.numLevels( setup ) )
+			throw new IllegalArgumentException( "level out of range" );
+		final CellGrid grid = cells.getCellGrid( timepoint, setup, level );
+		final long depth = grid.imgDimension( plane.normal );
+		final long min = Math.max( 0, from );
+		final long max = Math.min( depth - 1, to );
+		if ( min > max )
+			throw new IllegalArgumentException( "empty projection range" );
+		if ( grid.imgDimension( plane.u ) > maxSize || grid.imgDimension( plane.v ) > maxSize )
+			throw new IllegalArgumentException( "projection too large, use a coarser level" );
+
+		final ProjectionKey key = new ProjectionKey( setup, timepoint, level, plane, mode, min, max );
+		final Projection cached = cache.get( key );
+		if ( cached != null )
+			return cached;
+
+		final CompletableFuture< Projection > future = new CompletableFuture<>();
+		final CompletableFuture< Projection > existing = inFlight.putIfAbsent( key, future );
+		if ( existing != null )
+			return existing.get( timeoutNanos, TimeUnit.NANOSECONDS );
+
+		try
+		{
+			final Projection projection = project( timepoint, setup, level, grid, plane, mode, min, max );
+			cache.put( key, projection );
+			future.complete( projection );
+			return projection;
+		}
+		catch ( final InterruptedException | ExecutionException | TimeoutException | RuntimeException e )
+		{
+			future.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove( key );
+		}
+	}
+
+	private Projection project( final int timepoint, final int setup, final int level, final CellGrid grid, final Plane plane, final Mode mode, final long from, final long to ) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		final long deadline = System.nanoTime() + timeoutNanos;
+		final int w = ( int ) grid.imgDimension( plane.u );
+		final int h = ( int ) grid.imgDimension( plane.v );
+		final long size = ( long ) w * h;
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "projection too large, use a coarser level" );
+		final double[] accumulator = new double[ ( int ) size ];
+
+		final long gridMin = from / grid.cellDimension( plane.normal );
+		final long gridMax = to / grid.cellDimension( plane.normal );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( long gv = 0; gv < grid.gridDimension( plane.v ); ++gv )
+		{
+			for ( long gu = 0; gu < grid.gridDimension( plane.u ); ++gu )
+			{
+				final long[] gridpos = new long[ 3 ];
+				gridpos[ plane.u ] = gu;
+				gridpos[ plane.v ] = gv;
+				futures.add( executor.submit( () -> {
+					for ( long gn = gridMin; gn <= gridMax; ++gn )
+					{
+						gridpos[ plane.normal ] = gn;
+						projectCell( timepoint, setup, level, grid, gridpos, plane, mode, from, to, w, accumulator );
+					}
+				} ) );
+			}
+		}
+		try
+		{
+			for ( final Future< ? > f : futures )
+				f.get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS );
+		}
+		finally
+		{
+			for ( final Future< ? > f : futures )
+				f.cancel( true );
+		}
+
+		final float[] values = new float[ ( int ) size ];
+		final double scale = mode == Mode.MEAN ? 1.0 / ( to - from + 1 ) : 1.0;
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = ( float ) ( accumulator[ i ] * scale );
+		return new Projection( w, h, values );
+	}
+
+	/**
+	 * Accumulate the voxels of one cell, in the range {@code [from, to]} along
+	 * the projection axis, into {@code accumulator}.
+	 */
+	private void projectCell( final int timepoint, final int setup, final int level, final CellGrid grid, final long[] gridpos, final Plane plane, final Mode mode, final long from, final long to, final int w, final double[] accumulator )
+	{
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+		grid.getCellDimensions( gridpos, cellMin, cellDims );
+		final short[] data = cells.readCellData( timepoint, setup, level, grid, gridpos );
+
+		// output offset for each local cell dimension
+		final int[] stride = new int[ 3 ];
+		stride[ plane.u ] = 1;
+		stride[ plane.v ] = w;
+		stride[ plane.normal ] = 0;
+		final int base = ( int ) ( cellMin[ plane.u ] + w * cellMin[ plane.v ] );
+
+		// restrict the local range along the projection axis
+		final int[] lo = new int[ 3 ];
+		final int[] hi = cellDims.clone();
+		lo[ plane.normal ] = ( int ) Math.max( 0, from - cellMin[ plane.normal ] );
+		hi[ plane.normal ] = ( int ) Math.min( cellDims[ plane.normal ], to + 1 - cellMin[ plane.normal ] );
+
+		final boolean max = mode == Mode.MAX;
+		for ( int z = lo[ 2 ]; z < hi[ 2 ]; ++z )
+		{
+			for ( int y = lo[ 1 ]; y < hi[ 1 ]; ++y )
+			{
+				int i = cellDims[ 0 ] * ( y + cellDims[ 1 ] * z ) + lo[ 0 ];
+				int o = base + y * stride[ 1 ] + z * stride[ 2 ] + lo[ 0 ] * stride[ 0 ];
+				for ( int x = lo[ 0 ]; x < hi[ 0 ]; ++x, ++i, o += stride[ 0 ] )
+				{
+					final int value = data[ i ] & 0xffff;
+					if ( max )
+					{
+						if ( value > accumulator[ o ] )
+							accumulator[ o ] = value;
+					}
+					else
+						accumulator[ o ] += value;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the cell-serving pipeline, such that request
+ * latency can be matched against GC and I/O in one recording.
+ * <p>
+ * Events are emitted with the usual pattern: create, {@code begin()}, do the
+ * work, then {@code finish(...)}, which only fills in the fields and commits
+ * if the event is enabled and above its threshold. With the events disabled,
+ * this costs a (scalar-replaced) allocation and a flag check.
+ * <p>
+ * All events can be enabled, disabled and given thresholds through JFR
+ * settings, e.g.
+ * {@code -XX:StartFlightRecording:bdv.server.CellRequest#threshold=10ms}.
+ * {@link CacheLookup} events are frequent and disabled by default.
+ */
+public final class ServerEvents
+{
+	private ServerEvents()
+	{}
+
+	/**
+	 * Base of events that concern one cell.
+	 */
+	@Category( { "BigDataServer" } )
+	@StackTrace( false )
+	static abstract class CellEvent extends Event
+	{
+		@Label( "Dataset" )
+		String dataset;
+
+		@Label( "Timepoint" )
+		int timepoint;
+
+		@Label( "Setup" )
+		int setup;
+
+		@Label( "Level" )
+		int level;
+
+		@Label( "Index" )
+		@Description( "Flattened cell index, -1 for batches" )
+		long index;
+
+		void setCell( final String dataset, final int timepoint, final int setup, final int level, final long index )
+		{
+			this.dataset = dataset;
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.index = index;
+		}
+
+		void setCell( final CellKey key )
+		{
+			setCell( key.getDataset(), key.getTimepoint(), key.getSetup(), key.getLevel(), key.getIndex() );
+		}
+	}
+
+	/**
+	 * A {@code p=cell}, {@code p=cells}, or {@code p=celldelta} request, from
+	 * arrival until the response is complete.
+	 */
+	@Name( "bdv.server.CellRequest" )
+	@Label( "Cell Request" )
+	public static final class CellRequest extends CellEvent
+	{
+		@Label( "Request" )
+		String request;
+
+		@Label( "Cells" )
+		int cells;
+
+		@Label( "Status" )
+		int status;
+
+		@Label( "Bytes" )
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Set the requested cells, once the request has been parsed.
+		 */
+		void set( final String request, final String dataset, final int timepoint, final int setup, final int level, final long index, final int cells )
+		{
+			this.request = request;
+			setCell( dataset, timepoint, setup, level, index );
+			this.cells = cells;
+		}
+
+		void finish( final int status, final long bytes )
+		{
+			end();
+			if ( request != null && shouldCommit() )
+			{
+				this.status = status;
+				this.bytes = bytes;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * A request for the dataset XML, {@code p=init} metadata, or settings.
+	 */
+	@Name( "bdv.server.MetadataRequest" )
+	@Label( "Metadata Request" )
+	@Category( { "BigDataServer" } )
+	@StackTrace( false )
+	public static final class MetadataRequest extends Event
+	{
+		@Label( "Dataset" )
+		String dataset;
+
+		@Label( "Document" )
+		String document;
+
+		@Label( "Status" )
+		int status;
+
+		@Label( "Bytes" )
+		@DataAmount
+		long bytes;
+
+		void finish( final String dataset, final String document, final int status, final long bytes )
+		{
+			end();
+			if ( shouldCommit() )
+			{
+				this.dataset = dataset;
+				this.document = document;
+				this.status = status;
+				this.bytes = bytes;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Reading a cell from the HDF5 file, directly from the mapped file or
+	 * through the HDF5 library.
+	 */
+	@Name( "bdv.server.StorageRead" )
+	@Label( "Storage Read" )
+	public static final class StorageRead extends CellEvent
+	{
+		@Label( "Direct" )
+		@Description( "Read from the mapped file without the HDF5 library" )
+		boolean direct;
+
+		@Label( "Bytes" )
+		@DataAmount
+		long bytes;
+
+		void finish( final CellKey key, final boolean direct, final long bytes )
+		{
+			end();
+			if ( shouldCommit() )
+			{
+				setCell( key );
+				this.direct = direct;
+				this.bytes = bytes;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Looking up a cell in the memory cache, the {@link DiskCellCache}, or the
+	 * {@link PackedCellStore}.
+	 */
+	@Name( "bdv.server.CacheLookup" )
+	@Label( "Cache Lookup" )
+	@Enabled( false )
+	public static final class CacheLookup extends CellEvent
+	{
+		@Label( "Cache" )
+		String cache;
+
+		@Label( "Hit" )
+		boolean hit;
+
+		@Label( "Bytes" )
+		@DataAmount
+		long bytes;
+
+		/**
+		 * @param bytes
+		 *            size of the cell found, or a negative value for a miss.
+		 */
+		void finish( final String cache, final CellKey key, final long bytes )
+		{
+			end();
+			if ( shouldCommit() )
+			{
+				this.cache = cache;
+				setCell( key );
+				this.hit = bytes >= 0;
+				this.bytes = Math.max( 0, bytes );
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Compressing or decompressing cell data.
+	 */
+	@Name( "bdv.server.Compression" )
+	@Label( "Compression" )
+	public static final class Compression extends CellEvent
+	{
+		@Label( "Codec" )
+		@Description( "gzip, gunzip, delta, or pack" )
+		String codec;
+
+		@Label( "Input Bytes" )
+		@DataAmount
+		long inputBytes;
+
+		@Label( "Output Bytes" )
+		@DataAmount
+		long outputBytes;
+
+		void finish( final String codec, final CellKey key, final long inputBytes, final long outputBytes )
+		{
+			end();
+			if ( shouldCommit() )
+			{
+				this.codec = codec;
+				setCell( key );
+				this.inputBytes = inputBytes;
+				this.outputBytes = outputBytes;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Rendering the dataset thumbnail or a {@code /slice} image.
+	 */
+	@Name( "bdv.server.Render" )
+	@Label( "Render" )
+	@Category( { "BigDataServer" } )
+	@StackTrace( false )
+	public static final class Render extends Event
+	{
+		@Label( "Dataset" )
+		String dataset;
+
+		@Label( "Kind" )
+		@Description( "thumbnail or slice" )
+		String kind;
+
+		@Label( "Width" )
+		int width;
+
+		@Label( "Height" )
+		int height;
+
+		@Label( "Timepoint" )
+		int timepoint;
+
+		void finish( final String dataset, final String kind, final int width, final int height, final int timepoint )
+		{
+			end();
+			if ( shouldCommit() )
+			{
+				this.dataset = dataset;
+				this.kind = kind;
+				this.width = width;
+				this.height = height;
+				this.timepoint = timepoint;
+				commit();
+			}
+		}
+	}
+}
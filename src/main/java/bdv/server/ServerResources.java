@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+/**
+ * Resources shared by the {@link CellHandler}s of all datasets served by a
+ * {@link BigDataServer}.
+ */
+public class ServerResources
+{
+	private final CellMemoryCache cellMemoryCache;
+
+	private final DiskCellCache diskCellCache;
+
+	private final Cluster cluster;
+
+	private final CellRequestScheduler cellRequestScheduler;
+
+	/**
+	 * @param cellMemoryCache
+	 *            in-memory cell cache shared by all datasets.
+	 * @param diskCellCache
+	 *            persistent cell cache, or {@code null} to disable it.
+	 * @param cluster
+	 *            cluster this server is part of, or {@code null} if it runs
+	 *            stand-alone.
+	 * @param cellRequestScheduler
+	 *            schedules cell loads of all datasets.
+	 */
+	public ServerResources( final CellMemoryCache cellMemoryCache, final DiskCellCache diskCellCache, final Cluster cluster, final CellRequestScheduler cellRequestScheduler )
+	{
+		this.cellMemoryCache = cellMemoryCache;
+		this.diskCellCache = diskCellCache;
+		this.cluster = cluster;
+		this.cellRequestScheduler = cellRequestScheduler;
+	}
+
+	public CellMemoryCache getCellMemoryCache()
+	{
+		return cellMemoryCache;
+	}
+
+	/**
+	 * Get the persistent cell cache.
+	 *
+	 * @return the cell cache, or {@code null} if it is disabled.
+	 */
+	public DiskCellCache getDiskCellCache()
+	{
+		return diskCellCache;
+	}
+
+	/**
+	 * Get the cluster this server is part of.
+	 *
+	 * @return the cluster, or {@code null} if the server runs stand-alone.
+	 */
+	public Cluster getCluster()
+	{
+		return cluster;
+	}
+
+	public CellRequestScheduler getCellRequestScheduler()
+	{
+		return cellRequestScheduler;
+	}
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same value: while a value is being loaded
+ * for a key, other callers asking for the same key wait for that load instead
+ * of starting their own.
+ * <p>
+ * The first caller to {@link #join(Object)} a key becomes the leader of the
+ * flight and must {@link Flight#complete(Object) complete} or
+ * {@link Flight#fail(Throwable) fail} it. Later callers become followers and
+ * receive the leader's result. A flight completed with {@code null} means that
+ * the leader gave up; followers may then retry. Values are not retained after
+ * the flight lands, caching is up to the caller.
+ * <p>
+ * A leader may queue its load (e.g., on the {@link CellRequestScheduler})
+ * before it starts loading. Asynchronous followers can join such a flight, but
+ * {@link #get(Object, Supplier)} blocks the calling thread, so it only waits
+ * for flights whose leader has {@link Flight#start() started} loading, and
+ * loads the value itself otherwise.
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public class SingleFlight< K, V >
+{
+	private final class Call
+	{
+		final K key;
+
+		final CompletableFuture< V > result = new CompletableFuture<>();
+
+		final AtomicInteger numFollowers = new AtomicInteger();
+
+		volatile boolean started;
+
+		Call( final K key, final boolean started )
+		{
+			this.key = key;
+			this.started = started;
+		}
+	}
+
+	/**
+	 * Participation of one caller in a flight.
+	 */
+	public final class Flight
+	{
+		private final Call call;
+
+		private final boolean leader;
+
+		private Flight( final Call call, final boolean leader )
+		{
+			this.call = call;
+			this.leader = leader;
+		}
+
+		/**
+		 * Whether the caller has to load the value and complete the flight.
+		 */
+		public boolean isLeader()
+		{
+			return leader;
+		}
+
+		/**
+		 * Whether other callers are waiting for the result of this flight.
+		 */
+		public boolean hasFollowers()
+		{
+			return call.numFollowers.get() > 0;
+		}
+
+		/**
+		 * Mark that the leader has started loading. Until then,
+		 * {@link SingleFlight#get(Object, Supplier)} does not wait for this
+		 * flight.
+		 */
+		public void start()
+		{
+			call.started = true;
+		}
+
+		/**
+		 * Completes with the loaded value, or {@code null} if the leader gave
+		 * up.
+		 */
+		public CompletableFuture< V > getResult()
+		{
+			return call.result;
+		}
+
+		/**
+		 * Hand the loaded value (or {@code null}) to all followers. Only the
+		 * first completion of a flight has an effect.
+		 */
+		public void complete( final V value )
+		{
+			calls.remove( call.key, call );
+			call.result.complete( value );
+		}
+
+		/**
+		 * Hand a load failure to all followers.
+		 */
+		public void fail( final Throwable t )
+		{
+			calls.remove( call.key, call );
+			call.result.completeExceptionally( t );
+		}
+	}
+
+	private final ConcurrentHashMap< K, Call > calls = new ConcurrentHashMap<>();
+
+	private final AtomicLong numLoads = new AtomicLong();
+
+	private final AtomicLong numCoalesced = new AtomicLong();
+
+	/**
+	 * Join the flight for {@code key}, starting a new one if none is in
+	 * flight.
+	 */
+	public Flight join( final K key )
+	{
+		final Call call = new Call( key, false );
+		final Call existing = calls.putIfAbsent( key, call );
+		if ( existing == null )
+		{
+			numLoads.incrementAndGet();
+			return new Flight( call, true );
+		}
+		existing.numFollowers.incrementAndGet();
+		numCoalesced.incrementAndGet();
+		return new Flight( existing, false );
+	}
+
+	/**
+	 * Get the value for {@code key}, blocking until it is loaded. If another
+	 * caller is loading it, wait for its result. Otherwise (or if the other
+	 * caller gave up, or has not started loading yet), run {@code load} in the
+	 * calling thread.
+	 *
+	 * @throws RuntimeException
+	 *             if {@code load} (in this or the leading caller) failed.
+	 */
+	public V get( final K key, final Supplier< V > load )
+	{
+		final Call call = new Call( key, true );
+		final Call existing = calls.putIfAbsent( key, call );
+		final Flight flight;
+		if ( existing == null )
+		{
+			numLoads.incrementAndGet();
+			flight = new Flight( call, true );
+		}
+		else if ( !existing.started )
+		{
+			// the leader is still queued, don't block this thread on it
+			numLoads.incrementAndGet();
+			return load.get();
+		}
+		else
+		{
+			existing.numFollowers.incrementAndGet();
+			numCoalesced.incrementAndGet();
+			flight = new Flight( existing, false );
+		}
+
+		if ( !flight.isLeader() )
+		{
+			try
+			{
+				final V value = flight.getResult().get();
+				if ( value != null )
+					return value;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof RuntimeException )
+					throw ( RuntimeException ) e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
+			return load.get();
+		}
+
+		try
+		{
+			final V value = load.get();
+			flight.complete( value );
+			return value;
+		}
+		catch ( final RuntimeException | Error e )
+		{
+			flight.fail( e );
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of loads performed by leaders, or by callers of
+	 * {@link #get(Object, Supplier)} that did not wait for a queued leader.
+	 */
+	public long getNumLoads()
+	{
+		return numLoads.get();
+	}
+
+	/**
+	 * Number of callers that joined a flight in progress instead of loading.
+	 */
+	public long getNumCoalesced()
+	{
+		return numCoalesced.get();
+	}
+
+	/**
+	 * Number of flights in progress.
+	 */
+	public int getNumInFlight()
+	{
+		return calls.size();
+	}
+}
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import bdv.util.SliceRenderer;
+
+/**
+ * A bounded pool of {@link SliceRenderer}s for one dataset.
+ * <p>
+ * At most {@code poolSize} renderers are created (lazily, because setting up
+ * a renderer reads data to initialize brightness). At most {@code poolSize}
+ * requests render concurrently and at most {@code queueSize} requests wait
+ * for a renderer. Further requests are rejected immediately, such that the
+ * rendering cost stays bounded under load.
+ * <p>
+ * Renderers read cells through the image loader's cache, which keeps them
+ * after the render. Whenever the last running render finishes, the pool calls
+ * {@code onIdle} to release them, so that the renderers only hold the cells
+ * of the renders in progress.
+ */
+public class SliceRendererPool
+{
+	private final Supplier< SliceRenderer > factory;
+
+	private final int poolSize;
+
+	private final int maxPending;
+
+	private final long timeoutMillis;
+
+	private final Runnable onIdle;
+
+	/**
+	 * Idle renderers.
+	 */
+	private final BlockingQueue< SliceRenderer > idle;
+
+	/**
+	 * Admits at most {@code poolSize + queueSize} concurrent requests.
+	 */
+	private final Semaphore admission;
+
+	/**
+	 * Number of renderers that have been acquired and not released yet.
+	 */
+	private final AtomicInteger numActive = new AtomicInteger();
+
+	private int numCreated;
+
+	/**
+	 * @param factory
+	 *            creates new renderers.
+	 * @param poolSize
+	 *            maximum number of renderers.
+	 * @param queueSize
+	 *            maximum number of requests waiting for a renderer.
+	 * @param timeoutMillis
+	 *            how long a request waits for a renderer at most.
+	 * @param onIdle
+	 *            called when the last running render has finished.
+	 */
+	public SliceRendererPool( final Supplier< SliceRenderer > factory, final int poolSize, final int queueSize, final long timeoutMillis, final Runnable onIdle )
+	{
+		this.onIdle = onIdle;
+		this.factory = factory;
+		this.poolSize = poolSize;
+		this.timeoutMillis = timeoutMillis;
+		maxPending = poolSize + queueSize;
+		idle = new ArrayBlockingQueue<>( poolSize );
+		admission = new Semaphore( maxPending );
+		numCreated = 0;
+	}
+
+	/**
+	 * Get a renderer. A renderer obtained from this method must be given back
+	 * via {@link #release(SliceRenderer)}.
+	 *
+	 * @return a renderer, or {@code null} if the render queue is full or no
+	 *         renderer became available within the timeout.
+	 */
+	public SliceRenderer acquire() throws InterruptedException
+	{
+		if ( !admission.tryAcquire() )
+			return null;
+
+		SliceRenderer renderer = null;
+		try
+		{
+			renderer = idle.poll();
+			if ( renderer == null )
+			{
+				if ( tryReserve() )
+				{
+					try
+					{
+						renderer = factory.get();
+					}
+					finally
+					{
+						if ( renderer == null )
+							unreserve();
+					}
+				}
+				else
+					renderer = idle.poll( timeoutMillis, TimeUnit.MILLISECONDS );
+			}
+			return renderer;
+		}
+		finally
+		{
+			if ( renderer == null )
+				admission.release();
+			else
+				numActive.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Give back a renderer obtained by {@link #acquire()}.
+	 */
+	public void release( final SliceRenderer renderer )
+	{
+		if ( numActive.decrementAndGet() == 0 )
+			onIdle.run();
+		idle.offer( renderer );
+		admission.release();
+	}
+
+	/**
+	 * Number of requests currently rendering or waiting for a renderer.
+	 */
+	public int getNumPending()
+	{
+		return maxPending - admission.availablePermits();
+	}
+
+	private synchronized boolean tryReserve()
+	{
+		if ( numCreated < poolSize )
+		{
+			++numCreated;
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void unreserve()
+	{
+		--numCreated;
+	}
+}
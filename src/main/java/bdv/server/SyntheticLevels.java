@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Mipmap levels that are not stored in the dataset, but computed by the
+ * server.
+ * <p>
+ * If the coarsest native level of a setup is larger than one cell, the
+ * pyramid is extended with levels downsampled by a factor of 2 in every
+ * dimension that is larger than a cell, until the coarsest level fits into
+ * one cell (or {@link Constants#SYNTHETIC_LEVELS_MAX} levels have been
+ * added). Synthetic levels have the cell size of the coarsest native level.
+ * <p>
+ * Cells of synthetic levels are computed on demand by averaging the
+ * corresponding cells of the next finer level (which may be synthetic
+ * itself). Native source cells are loaded in parallel.
+ */
+public class SyntheticLevels
+{
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new DaemonThreadFactory( "synthlevels" ) );
+
+	/**
+	 * Propose synthetic levels to be added below the coarsest native level.
+	 *
+	 * @param coarsestDims
+	 *            image dimensions of the coarsest native level.
+	 * @param cellDims
+	 *            cell dimensions of the coarsest native level.
+	 * @param maxLevels
+	 *            maximum number of levels to add.
+	 * @return downsampling factors of each synthetic level relative to the
+	 *         previous level. Empty, if the coarsest native level fits into
+	 *         one cell.
+	 */
+	public static int[][] proposeFactors( final long[] coarsestDims, final int[] cellDims, final int maxLevels )
+	{
+		final List< int[] > factors = new ArrayList<>();
+		final long[] dims = coarsestDims.clone();
+		while ( factors.size() < maxLevels )
+		{
+			final int[] f = new int[ dims.length ];
+			boolean downsample = false;
+			for ( int d = 0; d < dims.length; ++d )
+			{
+				f[ d ] = dims[ d ] > cellDims[ d ] ? 2 : 1;
+				downsample |= f[ d ] > 1;
+			}
+			if ( !downsample )
+				break;
+			for ( int d = 0; d < dims.length; ++d )
+				dims[ d ] = ( dims[ d ] + f[ d ] - 1 ) / f[ d ];
+			factors.add( f );
+		}
+		return factors.toArray( new int[ 0 ][] );
+	}
+
+	/**
+	 * Get the transform from a mipmap level to full resolution voxel
+	 * coordinates, for a level with the given resolution, aligned as in
+	 * BigDataViewer's native pyramids.
+	 */
+	public static AffineTransform3D getMipmapTransform( final double[] resolution )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		for ( int d = 0; d < 3; ++d )
+		{
+			transform.set( resolution[ d ], d, d );
+			transform.set( 0.5 * ( resolution[ d ] - 1 ), d, 3 );
+		}
+		return transform;
+	}
+
+	/**
+	 * Compute a cell of a synthetic level from the next finer level.
+	 *
+	 * @param cells
+	 *            provides the cells of the next finer level.
+	 * @param grid
+	 *            cell grid of the synthetic level.
+	 * @param gridpos
+	 *            grid position of the cell to compute.
+	 * @param factor
+	 *            downsampling factor relative to the next finer level.
+	 * @param sourceIsNative
+	 *            whether the next finer level is native. If so, its cells are
+	 *            loaded in parallel.
+	 */
+	public static short[] downsample(
+			final CellAccess cells,
+			final int timepoint,
+			final int setup,
+			final int level,
+			final CellGrid grid,
+			final long[] gridpos,
+			final int[] factor,
+			final boolean sourceIsNative )
+	{
+		final int n = gridpos.length;
+		final long[] min = new long[ n ];
+		final int[] dims = new int[ n ];
+		grid.getCellDimensions( gridpos, min, dims );
+
+		// range of source cells
+		final CellGrid sourceGrid = cells.getCellGrid( timepoint, setup, level - 1 );
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceMax = new long[ n ];
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			sourceMin[ d ] = min[ d ] * factor[ d ];
+			sourceMax[ d ] = Math.min( sourceGrid.imgDimension( d ), ( min[ d ] + dims[ d ] ) * factor[ d ] ) - 1;
+			gridMin[ d ] = sourceMin[ d ] / sourceGrid.cellDimension( d );
+			gridMax[ d ] = sourceMax[ d ] / sourceGrid.cellDimension( d );
+		}
+
+		final List< long[] > sourcePositions = new ArrayList<>();
+		for ( long gz = gridMin[ 2 ]; gz <= gridMax[ 2 ]; ++gz )
+			for ( long gy = gridMin[ 1 ]; gy <= gridMax[ 1 ]; ++gy )
+				for ( long gx = gridMin[ 0 ]; gx <= gridMax[ 0 ]; ++gx )
+					sourcePositions.add( new long[] { gx, gy, gz } );
+
+		final List< Future< short[] > > futures = new ArrayList<>();
+		if ( sourceIsNative )
+			for ( final long[] pos : sourcePositions )
+				futures.add( executor.submit( () -> cells.getCellData( timepoint, setup, level - 1, sourceGrid, pos ) ) );
+
+		final int numElements = dims[ 0 ] * dims[ 1 ] * dims[ 2 ];
+		final long[] sums = new long[ numElements ];
+		final int[] counts = new int[ numElements ];
+		final long[] cellMin = new long[ n ];
+		final int[] cellDims = new int[ n ];
+		try
+		{
+			for ( int i = 0; i < sourcePositions.size(); ++i )
+			{
+				final long[] pos = sourcePositions.get( i );
+				final short[] data = sourceIsNative
+						? futures.get( i ).get()
+						: cells.getCellData( timepoint, setup, level - 1, sourceGrid, pos );
+				sourceGrid.getCellDimensions( pos, cellMin, cellDims );
+				int j = 0;
+				for ( int z = 0; z < cellDims[ 2 ]; ++z )
+				{
+					final int tz = ( int ) ( ( cellMin[ 2 ] + z ) / factor[ 2 ] - min[ 2 ] );
+					for ( int y = 0; y < cellDims[ 1 ]; ++y )
+					{
+						final int ty = ( int ) ( ( cellMin[ 1 ] + y ) / factor[ 1 ] - min[ 1 ] );
+						for ( int x = 0; x < cellDims[ 0 ]; ++x, ++j )
+						{
+							final int tx = ( int ) ( ( cellMin[ 0 ] + x ) / factor[ 0 ] - min[ 0 ] );
+							if ( tx < 0 || ty < 0 || tz < 0 || tx >= dims[ 0 ] || ty >= dims[ 1 ] || tz >= dims[ 2 ] )
+								continue;
+							final int t = tx + dims[ 0 ] * ( ty + dims[ 1 ] * tz );
+							sums[ t ] += data[ j ] & 0xffff;
+							++counts[ t ];
+						}
+					}
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			for ( final Future< ? > f : futures )
+				f.cancel( false );
+		}
+
+		final short[] result = new short[ numElements ];
+		for ( int t = 0; t < numElements; ++t )
+			if ( counts[ t ] > 0 )
+				result[ t ] = ( short ) ( ( sums[ t ] + counts[ t ] / 2 ) / counts[ t ] );
+		return result;
+	}
+}
@@ -0,0 +1,569 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.eclipse.jetty.util.log.Log;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Provides 2D section tiles of a dataset in a z/x/y tiling scheme, for
+ * map-style web viewers.
+ * <p>
+ * Zoom level {@code z = 0} corresponds to the coarsest mipmap level, the
+ * highest zoom level to full resolution. Tiles are {@link Constants#TILE_SIZE}
+ * pixels squared (smaller at the border of the image) and are encoded as
+ * 16-bit grayscale PNG, i.e., the display range is applied by the client.
+ * <p>
+ * Tiles are rendered on demand and cached in memory and on disk. Each cache
+ * tier is bounded by its total size in bytes. To share the work of loading
+ * cells between neighbouring tiles, a requested tile is rendered together with
+ * all tiles that overlap the same source cells, in a single pass over those
+ * cells.
+ */
+public class TileProvider
+{
+	private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger( TileProvider.class );
+
+	/**
+	 * Identifies a tile. {@code slice} is given in voxel coordinates of the
+	 * mipmap level corresponding to {@code zoom}.
+	 */
+	public static final class TileKey
+	{
+		final Plane plane;
+
+		final int setup;
+
+		final int timepoint;
+
+		final int zoom;
+
+		final long slice;
+
+		final long x;
+
+		final long y;
+
+		private final int hashcode;
+
+		TileKey( final Plane plane, final int setup, final int timepoint, final int zoom, final long slice, final long x, final long y )
+		{
+			this.plane = plane;
+			this.setup = setup;
+			this.timepoint = timepoint;
+			this.zoom = zoom;
+			this.slice = slice;
+			this.x = x;
+			this.y = y;
+
+			int h = plane.hashCode();
+			h = 31 * h + setup;
+			h = 31 * h + timepoint;
+			h = 31 * h + zoom;
+			h = 31 * h + Long.hashCode( slice );
+			h = 31 * h + Long.hashCode( x );
+			h = 31 * h + Long.hashCode( y );
+			hashcode = h;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof TileKey ) )
+				return false;
+			final TileKey k = ( TileKey ) obj;
+			return plane == k.plane && setup == k.setup && timepoint == k.timepoint && zoom == k.zoom && slice == k.slice && x == k.x && y == k.y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+
+		/**
+		 * Relative path of the cached tile file.
+		 */
+		String path()
+		{
+			return plane.name().toLowerCase() + "/" + setup + "/" + timepoint + "/" + zoom + "/" + slice + "/" + x + "/" + y + ".png";
+		}
+	}
+
+	/**
+	 * An encoded tile.
+	 */
+	public static final class Tile
+	{
+		private final byte[] data;
+
+		private final String etag;
+
+		Tile( final byte[] data )
+		{
+			this.data = data;
+			final CRC32 crc = new CRC32();
+			crc.update( data );
+			etag = "\"" + Long.toHexString( crc.getValue() ) + "-" + Integer.toHexString( data.length ) + "\"";
+		}
+
+		/**
+		 * PNG encoded tile.
+		 */
+		public byte[] getData()
+		{
+			return data;
+		}
+
+		public String getETag()
+		{
+			return etag;
+		}
+	}
+
+	private final CellAccess cells;
+
+	private final WeightedLruCache< TileKey, Tile > memoryCache;
+
+	/**
+	 * Maps tiles on disk to their size in bytes. Evicting an entry deletes the
+	 * file.
+	 */
+	private final WeightedLruCache< TileKey, Long > diskCache;
+
+	/**
+	 * Directory of the disk cache for the current version of the dataset
+	 * files.
+	 */
+	private final Path diskCacheDirectory;
+
+	/**
+	 * Tile groups that are currently rendered. Used to make concurrent
+	 * requests for tiles of the same group wait for the rendering that is
+	 * already in progress.
+	 */
+	private final ConcurrentHashMap< TileGroup, CompletableFuture< Map< TileKey, Tile > > > inFlight;
+
+	/**
+	 * @param cells
+	 *            provides the image data.
+	 * @param diskCacheDirectory
+	 *            directory to store cached tiles. Tiles are stored in a
+	 *            subdirectory named by {@code version}, tiles of other versions
+	 *            are deleted.
+	 * @param version
+	 *            identifies the current version of the dataset files.
+	 * @param memoryCacheBytes
+	 *            maximum size of the in-memory tile cache.
+	 * @param diskCacheBytes
+	 *            maximum size of the on-disk tile cache.
+	 */
+	public TileProvider( final CellAccess cells, final Path diskCacheDirectory, final String version, final long memoryCacheBytes, final long diskCacheBytes ) throws IOException
+	{
+		this.cells = cells;
+		this.diskCacheDirectory = diskCacheDirectory.resolve( version );
+		memoryCache = new WeightedLruCache<>( memoryCacheBytes, tile -> tile.data.length );
+		diskCache = new WeightedLruCache<>( diskCacheBytes, size -> size, ( key, size ) -> deleteTileFile( key ) );
+		inFlight = new ConcurrentHashMap<>();
+		Files.createDirectories( this.diskCacheDirectory );
+		scanDiskCache( diskCacheDirectory );
+	}
+
+	/**
+	 * Get a tile, rendering it if necessary.
+	 *
+	 * @param plane
+	 *            section plane.
+	 * @param setup
+	 *            setup id.
+	 * @param timepoint
+	 *            timepoint index.
+	 * @param zoom
+	 *            zoom level, 0 is the coarsest mipmap level.
+	 * @param slice
+	 *            position of the section, in full resolution voxel
+	 *            coordinates.
+	 * @param x
+	 *            tile column.
+	 * @param y
+	 *            tile row.
+	 * @return the tile.
+	 * @throws IllegalArgumentException
+	 *             if the tile is out of bounds.
+	 */
+	public Tile getTile( final Plane plane, final int setup, final int timepoint, final int zoom, final long slice, final long x, final long y ) throws IOException, IllegalArgumentException
+	{
+		final int numLevels = cells.numLevels( setup );
+		if ( zoom < 0 || zoom >= numLevels )
+			throw new IllegalArgumentException( "zoom level out of range" );
+		final int level = numLevels - 1 - zoom;
+		final long levelSlice = ( long ) Math.floor( slice / cells.getResolution( setup, level )[ plane.normal ] );
+		final TileKey key = new TileKey( plane, setup, timepoint, zoom, levelSlice, x, y );
+
+		Tile tile = memoryCache.get( key );
+		if ( tile != null )
+			return tile;
+
+		tile = readFromDisk( key );
+		if ( tile != null )
+		{
+			memoryCache.put( key, tile );
+			return tile;
+		}
+
+		final CellGrid grid = cells.getCellGrid( timepoint, setup, level );
+		final TileGroup group = new TileGroup( key, grid );
+
+		final CompletableFuture< Map< TileKey, Tile > > future = new CompletableFuture<>();
+		final CompletableFuture< Map< TileKey, Tile > > existing = inFlight.putIfAbsent( group, future );
+		if ( existing != null )
+		{
+			tile = waitFor( existing ).get( key );
+			return tile != null ? tile : renderAndCache( group, level, grid ).get( key );
+		}
+
+		try
+		{
+			final Map< TileKey, Tile > tiles = renderAndCache( group, level, grid );
+			future.complete( tiles );
+			return tiles.get( key );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			future.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove( group );
+		}
+	}
+
+	/**
+	 * Render all tiles of a group and put them into the memory and disk
+	 * caches.
+	 */
+	private Map< TileKey, Tile > renderAndCache( final TileGroup group, final int level, final CellGrid grid ) throws IOException
+	{
+		final Map< TileKey, Tile > tiles = renderTiles( group, level, grid );
+		for ( final Map.Entry< TileKey, Tile > entry : tiles.entrySet() )
+		{
+			memoryCache.put( entry.getKey(), entry.getValue() );
+			writeToDisk( entry.getKey(), entry.getValue() );
+		}
+		return tiles;
+	}
+
+	/**
+	 * A block of tiles that is rendered in one pass: the requested tile
+	 * expanded to cell boundaries, then to tile boundaries. If the cell size
+	 * does not divide {@link Constants#TILE_SIZE}, neighbouring tiles can give
+	 * groups that start at the same tile but differ in extent, so groups are
+	 * equal only if their keys and extents are.
+	 */
+	private static final class TileGroup
+	{
+		/**
+		 * Key of the first tile in the group.
+		 */
+		final TileKey key;
+
+		final long uMin;
+
+		final long uMax;
+
+		final long vMin;
+
+		final long vMax;
+
+		TileGroup( final TileKey tile, final CellGrid grid ) throws IllegalArgumentException
+		{
+			final Plane plane = tile.plane;
+			final int tileSize = Constants.TILE_SIZE;
+			final long[] dims = new long[ 3 ];
+			grid.getImgDimensions( dims );
+
+			final long u0 = tile.x * tileSize;
+			final long v0 = tile.y * tileSize;
+			if ( tile.slice < 0 || tile.slice >= dims[ plane.normal ] || u0 < 0 || u0 >= dims[ plane.u ] || v0 < 0 || v0 >= dims[ plane.v ] )
+				throw new IllegalArgumentException( "tile out of bounds" );
+
+			final int cu = grid.cellDimension( plane.u );
+			final int cv = grid.cellDimension( plane.v );
+			uMin = ( u0 / cu * cu ) / tileSize * tileSize;
+			vMin = ( v0 / cv * cv ) / tileSize * tileSize;
+			uMax = Math.min( dims[ plane.u ], ceil( ceil( u0 + tileSize, cu ), tileSize ) );
+			vMax = Math.min( dims[ plane.v ], ceil( ceil( v0 + tileSize, cv ), tileSize ) );
+			key = new TileKey( plane, tile.setup, tile.timepoint, tile.zoom, tile.slice, uMin / tileSize, vMin / tileSize );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof TileGroup ) )
+				return false;
+			final TileGroup g = ( TileGroup ) obj;
+			return key.equals( g.key ) && uMin == g.uMin && uMax == g.uMax && vMin == g.vMin && vMax == g.vMax;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = key.hashCode();
+			h = 31 * h + Long.hashCode( uMin );
+			h = 31 * h + Long.hashCode( uMax );
+			h = 31 * h + Long.hashCode( vMin );
+			h = 31 * h + Long.hashCode( vMax );
+			return h;
+		}
+	}
+
+	private static Map< TileKey, Tile > waitFor( final CompletableFuture< Map< TileKey, Tile > > future ) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof IllegalArgumentException )
+				throw ( IllegalArgumentException ) cause;
+			throw new IOException( cause );
+		}
+	}
+
+	/**
+	 * Render all tiles of a group, in a single pass over the cells that
+	 * intersect the group.
+	 */
+	private Map< TileKey, Tile > renderTiles( final TileGroup group, final int level, final CellGrid grid ) throws IOException
+	{
+		final TileKey key = group.key;
+		final Plane plane = key.plane;
+		final int tileSize = Constants.TILE_SIZE;
+		final int cu = grid.cellDimension( plane.u );
+		final int cv = grid.cellDimension( plane.v );
+		final long uMin = group.uMin;
+		final long uMax = group.uMax;
+		final long vMin = group.vMin;
+		final long vMax = group.vMax;
+		final int w = ( int ) ( uMax - uMin );
+		final int h = ( int ) ( vMax - vMin );
+		final short[] section = new short[ w * h ];
+
+		// copy the section from all cells that intersect it
+		final long[] gridpos = new long[ 3 ];
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+		final long[] pos = new long[ 3 ];
+		gridpos[ plane.normal ] = key.slice / grid.cellDimension( plane.normal );
+		pos[ plane.normal ] = key.slice;
+		for ( long gv = vMin / cv; gv * cv < vMax; ++gv )
+		{
+			for ( long gu = uMin / cu; gu * cu < uMax; ++gu )
+			{
+				gridpos[ plane.u ] = gu;
+				gridpos[ plane.v ] = gv;
+				grid.getCellDimensions( gridpos, cellMin, cellDims );
+				final short[] data = cells.getCellData( key.timepoint, key.setup, level, grid, gridpos );
+				final long cuMin = Math.max( uMin, cellMin[ plane.u ] );
+				final long cuMax = Math.min( uMax, cellMin[ plane.u ] + cellDims[ plane.u ] );
+				final long cvMin = Math.max( vMin, cellMin[ plane.v ] );
+				final long cvMax = Math.min( vMax, cellMin[ plane.v ] + cellDims[ plane.v ] );
+				final int stepU = plane.u == 0 ? 1 : plane.u == 1 ? cellDims[ 0 ] : cellDims[ 0 ] * cellDims[ 1 ];
+				for ( long v = cvMin; v < cvMax; ++v )
+				{
+					pos[ plane.u ] = cuMin;
+					pos[ plane.v ] = v;
+					int i = ( int ) ( ( pos[ 0 ] - cellMin[ 0 ] ) + cellDims[ 0 ] * ( ( pos[ 1 ] - cellMin[ 1 ] ) + cellDims[ 1 ] * ( pos[ 2 ] - cellMin[ 2 ] ) ) );
+					int o = ( int ) ( ( v - vMin ) * w + ( cuMin - uMin ) );
+					for ( long u = cuMin; u < cuMax; ++u, i += stepU, ++o )
+						section[ o ] = data[ i ];
+				}
+			}
+		}
+
+		// cut into tiles
+		final Map< TileKey, Tile > tiles = new HashMap<>();
+		for ( long tv = vMin; tv < vMax; tv += tileSize )
+		{
+			for ( long tu = uMin; tu < uMax; tu += tileSize )
+			{
+				final int tw = ( int ) Math.min( tileSize, uMax - tu );
+				final int th = ( int ) Math.min( tileSize, vMax - tv );
+				final BufferedImage img = new BufferedImage( tw, th, BufferedImage.TYPE_USHORT_GRAY );
+				final short[] pixels = ( ( DataBufferUShort ) img.getRaster().getDataBuffer() ).getData();
+				for ( int y = 0; y < th; ++y )
+					System.arraycopy( section, ( int ) ( ( tv - vMin + y ) * w + ( tu - uMin ) ), pixels, y * tw, tw );
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				ImageIO.write( img, "png", bos );
+				final TileKey k = new TileKey( plane, key.setup, key.timepoint, key.zoom, key.slice, tu / tileSize, tv / tileSize );
+				tiles.put( k, new Tile( bos.toByteArray() ) );
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Smallest multiple of {@code m} that is {@code >= x}.
+	 */
+	private static long ceil( final long x, final long m )
+	{
+		return ( x + m - 1 ) / m * m;
+	}
+
+	private Tile readFromDisk( final TileKey key )
+	{
+		if ( diskCache.get( key ) == null )
+			return null;
+		try
+		{
+			final Path path = diskCacheDirectory.resolve( key.path() );
+			return new Tile( Files.readAllBytes( path ) );
+		}
+		catch ( final IOException e )
+		{
+			diskCache.remove( key );
+			return null;
+		}
+	}
+
+	private void writeToDisk( final TileKey key, final Tile tile )
+	{
+		try
+		{
+			final Path path = diskCacheDirectory.resolve( key.path() );
+			Files.createDirectories( path.getParent() );
+			final Path tmp = Files.createTempFile( path.getParent(), "tile", ".tmp" );
+			Files.write( tmp, tile.data );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			diskCache.put( key, ( long ) tile.data.length );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not write tile to disk cache: " + e.getMessage() );
+		}
+	}
+
+	private void deleteTileFile( final TileKey key )
+	{
+		try
+		{
+			Files.deleteIfExists( diskCacheDirectory.resolve( key.path() ) );
+		}
+		catch ( final IOException e )
+		{
+			LOG.warn( "Could not delete tile from disk cache: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Register tiles that are already on disk with the disk cache, oldest
+	 * first. Tiles of outdated dataset versions are deleted.
+	 */
+	private void scanDiskCache( final Path root ) throws IOException
+	{
+		final List< Path > outdated = new ArrayList<>();
+		try ( Stream< Path > versions = Files.list( root ) )
+		{
+			versions.filter( p -> !p.equals( diskCacheDirectory ) ).forEach( outdated::add );
+		}
+		for ( final Path p : outdated )
+			deleteRecursively( p );
+
+		final List< Path > files;
+		try ( Stream< Path > s = Files.walk( diskCacheDirectory ) )
+		{
+			files = s.filter( p -> p.toString().endsWith( ".png" ) ).collect( Collectors.toList() );
+		}
+		files.sort( Comparator.comparingLong( p -> p.toFile().lastModified() ) );
+		for ( final Path p : files )
+		{
+			final TileKey key = parseKey( diskCacheDirectory.relativize( p ) );
+			if ( key == null )
+				Files.deleteIfExists( p );
+			else
+				diskCache.put( key, p.toFile().length() );
+		}
+	}
+
+	private static TileKey parseKey( final Path relative )
+	{
+		if ( relative.getNameCount() != 7 )
+			return null;
+		try
+		{
+			final Plane plane = Plane.valueOf( relative.getName( 0 ).toString().toUpperCase() );
+			final int setup = Integer.parseInt( relative.getName( 1 ).toString() );
+			final int timepoint = Integer.parseInt( relative.getName( 2 ).toString() );
+			final int zoom = Integer.parseInt( relative.getName( 3 ).toString() );
+			final long slice = Long.parseLong( relative.getName( 4 ).toString() );
+			final long x = Long.parseLong( relative.getName( 5 ).toString() );
+			final String yName = relative.getName( 6 ).toString();
+			final long y = Long.parseLong( yName.substring( 0, yName.length() - ".png".length() ) );
+			return new TileKey( plane, setup, timepoint, zoom, slice, x, y );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			return null;
+		}
+	}
+
+	private static void deleteRecursively( final Path path ) throws IOException
+	{
+		final List< Path > paths;
+		try ( Stream< Path > s = Files.walk( path ) )
+		{
+			paths = s.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() );
+		}
+		for ( final Path p : paths )
+			Files.deleteIfExists( p );
+	}
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import bdv.img.hdf5.MipmapInfo;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Determines the cells needed to render a view of a dataset.
+ * <p>
+ * A view is given by a viewer transform (from global coordinates to screen
+ * pixel coordinates), the screen size, a timepoint, and the visible setups,
+ * as in BigDataViewer. The needed cells are those intersecting the screen
+ * rectangle in the {@code z = 0} plane of the viewer. For each setup, the
+ * finest needed level is the coarsest level whose voxels are not larger than
+ * a screen pixel. Levels are listed coarse-to-fine, and within a level cells
+ * are ordered by distance from the screen center.
+ */
+public class VisibleCells
+{
+	/**
+	 * Half thickness, in screen pixels, of the slab around the
+	 * {@code z = 0} plane that is considered visible.
+	 */
+	private static final double SLAB_HALF_THICKNESS = 1.0;
+
+	private static final class Candidate
+	{
+		final CellKey key;
+
+		final double distance;
+
+		Candidate( final CellKey key, final double distance )
+		{
+			this.key = key;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * @param dataset
+	 *            dataset name, for the returned {@link CellKey}s.
+	 * @param cells
+	 *            provides the image pyramid.
+	 * @param registrations
+	 *            view registrations of the dataset.
+	 * @param timepoint
+	 *            timepoint id.
+	 * @param setups
+	 *            visible setup ids.
+	 * @param viewerTransform
+	 *            transform from global coordinates to screen coordinates.
+	 * @param width
+	 *            screen width.
+	 * @param height
+	 *            screen height.
+	 * @param maxCells
+	 *            maximum number of cells to return. The finest levels are
+	 *            truncated first.
+	 * @return needed cells, coarse-to-fine. Setups without a registration for
+	 *         {@code timepoint} (missing views) contribute no cells.
+	 * @throws IllegalArgumentException
+	 *             if a setup does not exist.
+	 */
+	public static List< CellKey > find(
+			final String dataset,
+			final CellAccess cells,
+			final ViewRegistrations registrations,
+			final int timepoint,
+			final int[] setups,
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height,
+			final int maxCells ) throws IllegalArgumentException
+	{
+		// per setup: transform from level-0 voxels to screen, and finest needed level
+		final AffineTransform3D[] setupToScreen = new AffineTransform3D[ setups.length ];
+		final int[] finestLevel = new int[ setups.length ];
+		int maxLevel = 0;
+		for ( int i = 0; i < setups.length; ++i )
+		{
+			final MipmapInfo info = cells.getMipmapInfo( setups[ i ] );
+			final ViewRegistration registration = registrations.getViewRegistration( timepoint, setups[ i ] );
+			if ( registration == null )
+				continue;
+			setupToScreen[ i ] = viewerTransform.copy().concatenate( registration.getModel() );
+			final AffineTransform3D[] transforms = info.getTransforms();
+			finestLevel[ i ] = 0;
+			for ( int level = transforms.length - 1; level > 0; --level )
+			{
+				if ( screenVoxelSize( setupToScreen[ i ].copy().concatenate( transforms[ level ] ) ) <= 1.0 )
+				{
+					finestLevel[ i ] = level;
+					break;
+				}
+			}
+			maxLevel = Math.max( maxLevel, transforms.length - 1 );
+		}
+
+		final List< CellKey > result = new ArrayList<>();
+		for ( int level = maxLevel; level >= 0 && result.size() < maxCells; --level )
+		{
+			final List< Candidate > candidates = new ArrayList<>();
+			for ( int i = 0; i < setups.length; ++i )
+			{
+				if ( setupToScreen[ i ] == null )
+					continue;
+				final MipmapInfo info = cells.getMipmapInfo( setups[ i ] );
+				if ( level >= info.getTransforms().length || level < finestLevel[ i ] )
+					continue;
+				if ( !cells.exists( timepoint, setups[ i ], level ) )
+					continue;
+				final CellGrid grid = cells.getCellGrid( timepoint, setups[ i ], level );
+				final AffineTransform3D sourceToScreen = setupToScreen[ i ].copy().concatenate( info.getTransforms()[ level ] );
+				addCells( dataset, setups[ i ], timepoint, level, grid.getImgDimensions(), grid.getCellDimensions(), sourceToScreen, width, height, candidates );
+			}
+			candidates.sort( Comparator.comparingDouble( c -> c.distance ) );
+			for ( final Candidate c : candidates )
+			{
+				if ( result.size() >= maxCells )
+					break;
+				result.add( c.key );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add all cells of one (setup, level) that intersect the visible slab.
+	 */
+	private static void addCells(
+			final String dataset,
+			final int setup,
+			final int timepoint,
+			final int level,
+			final long[] imgDims,
+			final int[] cellDims,
+			final AffineTransform3D sourceToScreen,
+			final int width,
+			final int height,
+			final List< Candidate > candidates )
+	{
+		// bounding box of the visible slab in voxel coordinates
+		final double[] min = new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] max = new double[] { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		final double[] screen = new double[ 3 ];
+		final double[] source = new double[ 3 ];
+		for ( int corner = 0; corner < 8; ++corner )
+		{
+			screen[ 0 ] = ( corner & 1 ) == 0 ? 0 : width;
+			screen[ 1 ] = ( corner & 2 ) == 0 ? 0 : height;
+			screen[ 2 ] = ( corner & 4 ) == 0 ? -SLAB_HALF_THICKNESS : SLAB_HALF_THICKNESS;
+			sourceToScreen.applyInverse( source, screen );
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], source[ d ] );
+				max[ d ] = Math.max( max[ d ], source[ d ] );
+			}
+		}
+
+		// range of intersecting cells, with half a voxel margin
+		final long[] gridMin = new long[ 3 ];
+		final long[] gridMax = new long[ 3 ];
+		final long[] gridDims = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long lo = Math.max( 0, ( long ) Math.floor( min[ d ] - 0.5 ) );
+			final long hi = Math.min( imgDims[ d ] - 1, ( long ) Math.ceil( max[ d ] + 0.5 ) );
+			if ( lo > hi )
+				return;
+			gridMin[ d ] = lo / cellDims[ d ];
+			gridMax[ d ] = hi / cellDims[ d ];
+			gridDims[ d ] = ( imgDims[ d ] - 1 ) / cellDims[ d ] + 1;
+		}
+
+		// half extent of a cell in screen coordinates
+		final double[] halfExtent = new double[ 3 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int d = 0; d < 3; ++d )
+				halfExtent[ r ] += 0.5 * Math.abs( sourceToScreen.get( r, d ) ) * cellDims[ d ];
+
+		final double cx = width / 2.0;
+		final double cy = height / 2.0;
+		for ( long gz = gridMin[ 2 ]; gz <= gridMax[ 2 ]; ++gz )
+		{
+			for ( long gy = gridMin[ 1 ]; gy <= gridMax[ 1 ]; ++gy )
+			{
+				for ( long gx = gridMin[ 0 ]; gx <= gridMax[ 0 ]; ++gx )
+				{
+					source[ 0 ] = ( gx + 0.5 ) * cellDims[ 0 ] - 0.5;
+					source[ 1 ] = ( gy + 0.5 ) * cellDims[ 1 ] - 0.5;
+					source[ 2 ] = ( gz + 0.5 ) * cellDims[ 2 ] - 0.5;
+					sourceToScreen.apply( source, screen );
+					if ( Math.abs( screen[ 2 ] ) > SLAB_HALF_THICKNESS + halfExtent[ 2 ]
+							|| screen[ 0 ] < -halfExtent[ 0 ] || screen[ 0 ] > width + halfExtent[ 0 ]
+							|| screen[ 1 ] < -halfExtent[ 1 ] || screen[ 1 ] > height + halfExtent[ 1 ] )
+						continue;
+					final double dx = screen[ 0 ] - cx;
+					final double dy = screen[ 1 ] - cy;
+					final long index = gx + gridDims[ 0 ] * ( gy + gridDims[ 1 ] * gz );
+					candidates.add( new Candidate( new CellKey( dataset, setup, timepoint, level, index ), dx * dx + dy * dy ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Size of a voxel on the screen: the largest in-plane extent of the
+	 * transformed voxel axes.
+	 */
+	private static double screenVoxelSize( final AffineTransform3D sourceToScreen )
+	{
+		double size = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double x = sourceToScreen.get( 0, d );
+			final double y = sourceToScreen.get( 1, d );
+			size = Math.max( size, Math.sqrt( x * x + y * y ) );
+		}
+		return size;
+	}
+}
@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Streams a complete (timepoint, setup, level) image.
+ * <p>
+ * Cells are read in flattened cell index order by a shared pool of
+ * {@link Constants#EXPORT_READ_THREADS} threads, at most
+ * {@link Constants#EXPORT_READ_AHEAD_CELLS} ahead of the cell being written.
+ * Writing to the (blocking) output stream stalls while the client does not
+ * keep up, which in turn stalls reading, so memory use does not depend on the
+ * size of the image. Cells are read without adding them to the
+ * {@link CellMemoryCache}.
+ * <p>
+ * Two formats are supported, see {@link Format}. All values are big-endian.
+ */
+public class VolumeExporter
+{
+	public enum Format
+	{
+		/**
+		 * A header of {@code int numDimensions}, {@code long[numDimensions]}
+		 * image dimensions and {@code int[numDimensions]} cell dimensions,
+		 * followed by the data of all cells in flattened cell index order.
+		 * The data of each cell are unsigned shorts with X varying fastest;
+		 * the size of each cell follows from the cell grid.
+		 */
+		CELLS,
+
+		/**
+		 * The image as one contiguous array of unsigned shorts, with X varying
+		 * fastest. Cells are assembled one layer of cells along Z at a time,
+		 * which must not exceed {@link Constants#EXPORT_MAX_SLAB_BYTES}.
+		 */
+		RAW
+	}
+
+	/**
+	 * Shared by the {@link VolumeExporter}s of all datasets.
+	 */
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+			Constants.EXPORT_READ_THREADS,
+			new DaemonThreadFactory( "export" ) );
+
+	/**
+	 * Limits the number of concurrent exports of all datasets.
+	 */
+	private static final Semaphore permits = new Semaphore( Constants.EXPORT_MAX_CONCURRENT );
+
+	private final CellAccess cells;
+
+	/**
+	 * @param cells
+	 *            provides the image data.
+	 */
+	public VolumeExporter( final CellAccess cells )
+	{
+		this.cells = cells;
+	}
+
+	/**
+	 * Get the cell grid of an image to export.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code setup} or {@code level} are invalid, the image does
+	 *             not exist, or its slabs are too large for {@code format}.
+	 */
+	public CellGrid getCellGrid( final int timepoint, final int setup, final int level, final Format format ) throws IllegalArgumentException
+	{
+		if ( level < 0 || level >= cells.numLevels( setup ) )
+			throw new IllegalArgumentException( "level out of range" );
+		if ( !cells.exists( timepoint, setup, level ) )
+			throw new IllegalArgumentException( "no such image" );
+		final CellGrid grid = cells.getCellGrid( timepoint, setup, level );
+		if ( format == Format.RAW && slabSize( grid ) * 2 > Constants.EXPORT_MAX_SLAB_BYTES )
+			throw new IllegalArgumentException( "image too large for format=raw, use format=cells" );
+		return grid;
+	}
+
+	/**
+	 * Number of bytes written by
+	 * {@link #export(int, int, int, CellGrid, Format, OutputStream)}.
+	 */
+	public static long getContentLength( final CellGrid grid, final Format format )
+	{
+		final int n = grid.numDimensions();
+		long voxels = 1;
+		for ( int d = 0; d < n; ++d )
+			voxels *= grid.imgDimension( d );
+		return ( format == Format.CELLS ? 4 + 12 * n : 0 ) + 2 * voxels;
+	}
+
+	/**
+	 * Try to start an export. If this returns {@code true},
+	 * {@link #release()} must be called when the export is done.
+	 */
+	public static boolean tryAcquire()
+	{
+		return permits.tryAcquire();
+	}
+
+	public static void release()
+	{
+		permits.release();
+	}
+
+	/**
+	 * Write an image to {@code out}.
+	 *
+	 * @param grid
+	 *            the cell grid of the image, see
+	 *            {@link #getCellGrid(int, int, int, Format)}.
+	 * @throws IOException
+	 *             if writing fails, for example because the client went away,
+	 *             or reading a cell failed. In the latter case, the output is
+	 *             incomplete.
+	 */
+	public void export( final int timepoint, final int setup, final int level, final CellGrid grid, final Format format, final OutputStream out ) throws IOException, InterruptedException
+	{
+		final int n = grid.numDimensions();
+		final long[] gridDims = grid.getGridDimensions();
+		long numCells = 1;
+		for ( final long d : gridDims )
+			numCells *= d;
+
+		final short[] slab;
+		if ( format == Format.CELLS )
+		{
+			slab = null;
+			final DataOutputStream header = new DataOutputStream( out );
+			header.writeInt( n );
+			for ( int d = 0; d < n; ++d )
+				header.writeLong( grid.imgDimension( d ) );
+			for ( int d = 0; d < n; ++d )
+				header.writeInt( grid.cellDimension( d ) );
+			header.flush();
+		}
+		else
+			slab = new short[ ( int ) slabSize( grid ) ];
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 );
+		final ArrayDeque< Future< short[] > > readAhead = new ArrayDeque<>();
+		long nextToRead = 0;
+		final long[] gridpos = new long[ n ];
+		final long[] cellMin = new long[ n ];
+		final int[] cellDims = new int[ n ];
+		try
+		{
+			for ( long i = 0; i < numCells; ++i )
+			{
+				while ( nextToRead < numCells && readAhead.size() < Constants.EXPORT_READ_AHEAD_CELLS )
+				{
+					final long[] pos = new long[ n ];
+					grid.getCellGridPositionFlat( nextToRead++, pos );
+					readAhead.add( executor.submit( () -> cells.readCellData( timepoint, setup, level, grid, pos ) ) );
+				}
+
+				final short[] data;
+				try
+				{
+					data = readAhead.poll().get();
+				}
+				catch ( final ExecutionException e )
+				{
+					throw new IOException( "could not read cell " + i, e.getCause() );
+				}
+
+				if ( format == Format.CELLS )
+					write( data, 0, data.length, buffer, out );
+				else
+				{
+					grid.getCellGridPositionFlat( i, gridpos );
+					grid.getCellDimensions( gridpos, cellMin, cellDims );
+					copyToSlab( data, cellMin, cellDims, grid, slab );
+					if ( isLastInSlab( gridpos, gridDims ) )
+					{
+						final int slabLength = ( int ) ( grid.imgDimension( 0 ) * grid.imgDimension( 1 ) * ( n > 2 ? cellDims[ 2 ] : 1 ) );
+						write( slab, 0, slabLength, buffer, out );
+					}
+				}
+			}
+			flush( buffer, out );
+		}
+		finally
+		{
+			for ( final Future< short[] > f : readAhead )
+				f.cancel( true );
+		}
+	}
+
+	/**
+	 * Number of voxels in one layer of cells along Z.
+	 */
+	private static long slabSize( final CellGrid grid )
+	{
+		long size = grid.imgDimension( 0 ) * grid.imgDimension( 1 );
+		if ( grid.numDimensions() > 2 )
+			size *= grid.cellDimension( 2 );
+		return size;
+	}
+
+	private static boolean isLastInSlab( final long[] gridpos, final long[] gridDims )
+	{
+		return gridpos[ 0 ] == gridDims[ 0 ] - 1 && gridpos[ 1 ] == gridDims[ 1 ] - 1;
+	}
+
+	/**
+	 * Copy a cell into the slab it is part of. The slab is an array with the
+	 * image width and height, and X varying fastest.
+	 */
+	private static void copyToSlab( final short[] data, final long[] cellMin, final int[] cellDims, final CellGrid grid, final short[] slab )
+	{
+		final int width = ( int ) grid.imgDimension( 0 );
+		final int height = ( int ) grid.imgDimension( 1 );
+		final int depth = cellDims.length > 2 ? cellDims[ 2 ] : 1;
+		int i = 0;
+		for ( int z = 0; z < depth; ++z )
+		{
+			for ( int y = 0; y < cellDims[ 1 ]; ++y )
+			{
+				final int o = ( z * height + ( int ) cellMin[ 1 ] + y ) * width + ( int ) cellMin[ 0 ];
+				System.arraycopy( data, i, slab, o, cellDims[ 0 ] );
+				i += cellDims[ 0 ];
+			}
+		}
+	}
+
+	/**
+	 * Write {@code length} shorts from {@code data} to {@code out} through
+	 * {@code buffer}.
+	 */
+	private static void write( final short[] data, final int offset, final int length, final ByteBuffer buffer, final OutputStream out ) throws IOException
+	{
+		int i = offset;
+		final int end = offset + length;
+		while ( i < end )
+		{
+			// view of the remaining space in buffer
+			final ShortBuffer shorts = buffer.asShortBuffer();
+			final int n = Math.min( shorts.remaining(), end - i );
+			shorts.put( data, i, n );
+			buffer.position( buffer.position() + 2 * n );
+			i += n;
+			if ( !buffer.hasRemaining() )
+				flush( buffer, out );
+		}
+	}
+
+	private static void flush( final ByteBuffer buffer, final OutputStream out ) throws IOException
+	{
+		out.write( buffer.array(), 0, buffer.position() );
+		buffer.clear();
+	}
+}
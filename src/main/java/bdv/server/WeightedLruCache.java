@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe LRU cache that is bounded by the total weight (e.g., size in
+ * bytes) of its values rather than by the number of entries.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+public class WeightedLruCache< K, V >
+{
+	private final long maxWeight;
+
+	private final ToLongFunction< V > weigher;
+
+	private final BiConsumer< K, V > evictionListener;
+
+	private final LinkedHashMap< K, V > map;
+
+	private long weight;
+
+	private long numHits;
+
+	private long numMisses;
+
+	/**
+	 * @param maxWeight
+	 *            maximum total weight of all values.
+	 * @param weigher
+	 *            computes the weight of a value.
+	 */
+	public WeightedLruCache( final long maxWeight, final ToLongFunction< V > weigher )
+	{
+		this( maxWeight, weigher, null );
+	}
+
+	/**
+	 * @param maxWeight
+	 *            maximum total weight of all values.
+	 * @param weigher
+	 *            computes the weight of a value.
+	 * @param evictionListener
+	 *            is notified about entries that are evicted or removed (but not
+	 *            about entries that are replaced by {@link #put}). May be
+	 *            {@code null}.
+	 */
+	public WeightedLruCache( final long maxWeight, final ToLongFunction< V > weigher, final BiConsumer< K, V > evictionListener )
+	{
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.evictionListener = evictionListener;
+		map = new LinkedHashMap<>( 16, 0.75f, true );
+		weight = 0;
+	}
+
+	/**
+	 * Get the value for {@code key} and mark it as most recently used.
+	 *
+	 * @return the value, or {@code null} if {@code key} is not in the cache.
+	 */
+	public synchronized V get( final K key )
+	{
+		final V value = map.get( key );
+		if ( value == null )
+			++numMisses;
+		else
+			++numHits;
+		return value;
+	}
+
+	/**
+	 * Put a value into the cache, evicting least recently used entries until
+	 * the total weight is below the maximum. Values heavier than the maximum
+	 * weight are not cached.
+	 */
+	public synchronized void put( final K key, final V value )
+	{
+		final long w = weigher.applyAsLong( value );
+		if ( w > maxWeight )
+			return;
+		final V previous = map.put( key, value );
+		weight += w;
+		if ( previous != null )
+			weight -= weigher.applyAsLong( previous );
+		evict();
+	}
+
+	/**
+	 * Remove {@code key} from the cache.
+	 */
+	public synchronized void remove( final K key )
+	{
+		final V previous = map.remove( key );
+		if ( previous != null )
+			removed( key, previous );
+	}
+
+	/**
+	 * Remove all entries from the cache.
+	 */
+	public synchronized void clear()
+	{
+		final Iterator< Map.Entry< K, V > > it = map.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< K, V > entry = it.next();
+			it.remove();
+			removed( entry.getKey(), entry.getValue() );
+		}
+	}
+
+	public synchronized int size()
+	{
+		return map.size();
+	}
+
+	public synchronized long getWeight()
+	{
+		return weight;
+	}
+
+	public long getMaxWeight()
+	{
+		return maxWeight;
+	}
+
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+
+	private void evict()
+	{
+		final Iterator< Map.Entry< K, V > > it = map.entrySet().iterator();
+		while ( weight > maxWeight && it.hasNext() )
+		{
+			final Map.Entry< K, V > entry = it.next();
+			it.remove();
+			removed( entry.getKey(), entry.getValue() );
+		}
+	}
+
+	private void removed( final K key, final V value )
+	{
+		weight -= weigher.applyAsLong( value );
+		if ( evictionListener != null )
+			evictionListener.accept( key, value );
+	}
+}
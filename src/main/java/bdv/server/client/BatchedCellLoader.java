@@ -0,0 +1,466 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+
+import bdv.img.remote.RemoteVolatileShortArrayLoader;
+import bdv.server.BitPackedCellCodec;
+import bdv.server.Constants;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Loads cells from a BigDataServer with batched requests
+ * ({@code p=cells/...}).
+ * <p>
+ * The fetcher threads of the viewer's cache call
+ * {@link #loadArray(int, int, int, int[], long[])}, which queues the cell and
+ * waits. {@link #NUM_CONNECTIONS} dispatcher threads take as many queued
+ * cells of the same (timepoint, setup, level) as possible (up to
+ * {@link Constants#CELL_BATCH_MAX_CELLS}) and request them together, over
+ * persistent connections that are kept alive between requests. There is
+ * no artificial delay: cells queue up while all connections are busy, and are
+ * sent together on the next free connection. The client accepts constant,
+ * bit-packed, and gzipped cells.
+ * <p>
+ * The cache does not tell loaders which cells are still visible. Cells that
+ * have been queued for longer than {@link #MAX_QUEUED_MILLIS} were requested
+ * for a view that the user has most likely left. They are dropped from the
+ * queue and returned as invalid, such that the viewer requests them again if
+ * they are still needed.
+ * <p>
+ * Before the first cell is loaded, the server's capabilities are queried from
+ * the {@value Constants#SERVER_CAPABILITIES_HEADER} header of a {@code HEAD}
+ * request for {@code p=init}, which does not download the metadata again.
+ * If the server does not support batches (or a batch request is answered with
+ * "404 Not Found" or "400 Bad Request"), all cells are loaded one by one, as
+ * by {@link RemoteVolatileShortArrayLoader}.
+ */
+public class BatchedCellLoader extends RemoteVolatileShortArrayLoader
+{
+	/**
+	 * Number of dispatcher threads, and thus concurrent batch requests and
+	 * connections to the server. This should not exceed the number of idle
+	 * connections kept alive by {@link HttpURLConnection} (system property
+	 * {@code http.maxConnections}, 5 by default).
+	 */
+	private static final int NUM_CONNECTIONS = 4;
+
+	/**
+	 * Cells that have been waiting in the queue for longer than this are
+	 * dropped.
+	 */
+	private static final long MAX_QUEUED_MILLIS = 1000;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Completes requests that have to be loaded one by one.
+	 */
+	private static final short[] FALLBACK = new short[ 0 ];
+
+	private static final class CellRequest
+	{
+		final int timepoint;
+
+		final int setup;
+
+		final int level;
+
+		final int index;
+
+		final int numElements;
+
+		final long queuedNanos = System.nanoTime();
+
+		/**
+		 * Completes with the cell data, {@code null} if the cell could not be
+		 * loaded, or {@link #FALLBACK}.
+		 */
+		final CompletableFuture< short[] > data = new CompletableFuture<>();
+
+		CellRequest( final int timepoint, final int setup, final int level, final int index, final int numElements )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.index = index;
+			this.numElements = numElements;
+		}
+
+		boolean isSameImage( final CellRequest other )
+		{
+			return timepoint == other.timepoint && setup == other.setup && level == other.level;
+		}
+	}
+
+	private final BatchedRemoteImageLoader imgLoader;
+
+	/**
+	 * Identifies this client for fair scheduling on the server.
+	 */
+	private final String clientId = UUID.randomUUID().toString();
+
+	/**
+	 * Cells waiting to be sent, in request order. Guarded by itself.
+	 */
+	private final ArrayDeque< CellRequest > queue = new ArrayDeque<>();
+
+	/**
+	 * Whether the server supports batches. {@code null} until it has been
+	 * queried.
+	 */
+	private volatile Boolean batched;
+
+	/**
+	 * Dispatcher threads, stopped by {@link #close()}. Guarded by
+	 * {@code this}.
+	 */
+	private final List< Thread > dispatchers = new ArrayList<>();
+
+	public BatchedCellLoader( final BatchedRemoteImageLoader imgLoader )
+	{
+		super( imgLoader );
+		this.imgLoader = imgLoader;
+	}
+
+	@Override
+	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+	{
+		if ( !isBatched() )
+			return super.loadArray( timepoint, setup, level, dimensions, min );
+
+		int numElements = 1;
+		for ( final int d : dimensions )
+			numElements *= d;
+		final CellRequest request = new CellRequest( timepoint, setup, level, imgLoader.getCellIndex( timepoint, setup, level, min ), numElements );
+		synchronized ( queue )
+		{
+			queue.add( request );
+			queue.notify();
+		}
+
+		short[] data;
+		try
+		{
+			data = request.data.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			synchronized ( queue )
+			{
+				queue.remove( request );
+			}
+			throw e;
+		}
+		catch ( final ExecutionException e )
+		{
+			data = null;
+		}
+
+		if ( data == FALLBACK )
+			return super.loadArray( timepoint, setup, level, dimensions, min );
+		return data == null ? new VolatileShortArray( numElements, false ) : new VolatileShortArray( data, true );
+	}
+
+	/**
+	 * Whether the server supports batches. Queries the server and starts the
+	 * dispatcher threads on the first call.
+	 */
+	private boolean isBatched()
+	{
+		Boolean b = batched;
+		if ( b == null )
+		{
+			synchronized ( this )
+			{
+				b = batched;
+				if ( b == null )
+				{
+					b = queryBatchSupport();
+					if ( b )
+					{
+						for ( int i = 0; i < NUM_CONNECTIONS; ++i )
+						{
+							final Thread thread = new Thread( this::dispatch, "bdv-batched-cells-" + ( i + 1 ) );
+							thread.setDaemon( true );
+							thread.start();
+							dispatchers.add( thread );
+						}
+					}
+					batched = b;
+				}
+			}
+		}
+		return b;
+	}
+
+	private boolean queryBatchSupport()
+	{
+		try
+		{
+			final HttpURLConnection connection = openConnection( imgLoader.getBaseUrl() + "?p=init" );
+			connection.setRequestMethod( "HEAD" );
+			final boolean ok = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+			final String capabilities = connection.getHeaderField( Constants.SERVER_CAPABILITIES_HEADER );
+			drain( connection );
+			if ( ok && capabilities != null )
+				for ( final String capability : capabilities.split( "," ) )
+					if ( capability.trim().equals( Constants.CAPABILITY_CELL_BATCHES ) )
+						return true;
+		}
+		catch ( final IOException e )
+		{
+			// use the plain protocol, which reports its own errors
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the dispatcher threads. Queued cells, and cells requested later,
+	 * are loaded one by one.
+	 */
+	public synchronized void close()
+	{
+		for ( final Thread thread : dispatchers )
+			thread.interrupt();
+		dispatchers.clear();
+		fallBack();
+	}
+
+	/**
+	 * Switch to loading cells one by one.
+	 */
+	private void fallBack()
+	{
+		batched = false;
+		synchronized ( queue )
+		{
+			for ( final CellRequest request : queue )
+				request.data.complete( FALLBACK );
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Dispatcher thread loop.
+	 */
+	private void dispatch()
+	{
+		while ( !Thread.currentThread().isInterrupted() )
+		{
+			try
+			{
+				send( takeBatch() );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Take the oldest queued cell, and all queued cells of the same image, up
+	 * to {@link Constants#CELL_BATCH_MAX_CELLS}. Drop cells that have been
+	 * queued for longer than {@link #MAX_QUEUED_MILLIS}.
+	 */
+	private List< CellRequest > takeBatch() throws InterruptedException
+	{
+		final List< CellRequest > batch = new ArrayList<>();
+		synchronized ( queue )
+		{
+			while ( batch.isEmpty() )
+			{
+				while ( queue.isEmpty() )
+					queue.wait();
+
+				final long staleNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos( MAX_QUEUED_MILLIS );
+				final Iterator< CellRequest > it = queue.iterator();
+				while ( it.hasNext() && batch.size() < Constants.CELL_BATCH_MAX_CELLS )
+				{
+					final CellRequest request = it.next();
+					if ( request.queuedNanos - staleNanos < 0 )
+					{
+						it.remove();
+						request.data.complete( null );
+					}
+					else if ( batch.isEmpty() || request.isSameImage( batch.get( 0 ) ) )
+					{
+						it.remove();
+						batch.add( request );
+					}
+				}
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Request a batch of cells and complete the requests. Requests that are not
+	 * answered by the server are completed with {@code null}.
+	 */
+	private void send( final List< CellRequest > batch )
+	{
+		final CellRequest first = batch.get( 0 );
+		final StringJoiner indices = new StringJoiner( "," );
+		for ( final CellRequest request : batch )
+			indices.add( Integer.toString( request.index ) );
+		final String url = String.format( "%s?p=cells/%d/%d/%d/%s",
+				imgLoader.getBaseUrl(), first.timepoint, first.setup, first.level, indices );
+
+		try
+		{
+			final HttpURLConnection connection = openConnection( url );
+			connection.setRequestProperty( Constants.ACCEPT_CELL_ENCODING_HEADER, "constant, packed, gzip" );
+			connection.setRequestProperty( Constants.CLIENT_ID_HEADER, clientId );
+			final int status = connection.getResponseCode();
+			if ( status != HttpURLConnection.HTTP_OK )
+			{
+				drain( connection );
+				if ( status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_REQUEST )
+				{
+					for ( final CellRequest request : batch )
+						request.data.complete( FALLBACK );
+					fallBack();
+				}
+				return;
+			}
+
+			try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( connection.getInputStream() ) ) )
+			{
+				for ( int i = 0; i < batch.size(); ++i )
+				{
+					final int index = in.readInt();
+					final int encoding = in.readUnsignedByte();
+					final byte[] bytes = new byte[ in.readInt() ];
+					in.readFully( bytes );
+					for ( final CellRequest request : batch )
+						if ( request.index == index )
+							request.data.complete( decode( encoding, bytes, request.numElements ) );
+				}
+			}
+		}
+		catch ( final IOException e )
+		{
+			// the cells are returned as invalid, and requested again if needed
+		}
+		finally
+		{
+			for ( final CellRequest request : batch )
+				request.data.complete( null );
+		}
+	}
+
+	/**
+	 * Decode one cell of a batch.
+	 *
+	 * @return the cell data, or {@code null} if it does not match the
+	 *         expected size.
+	 */
+	private static short[] decode( final int encoding, final byte[] bytes, final int numElements ) throws IOException
+	{
+		final short[] data = new short[ numElements ];
+		final byte[] raw;
+		switch ( encoding )
+		{
+		case Constants.CELL_BATCH_ENCODING_CONSTANT:
+			Arrays.fill( data, ByteBuffer.wrap( bytes ).getShort() );
+			return data;
+		case Constants.CELL_BATCH_ENCODING_PACKED:
+			try
+			{
+				return BitPackedCellCodec.decode( bytes, numElements );
+			}
+			catch ( final DataFormatException e )
+			{
+				return null;
+			}
+		case Constants.CELL_BATCH_ENCODING_GZIP:
+			raw = new byte[ 2 * numElements ];
+			try ( final DataInputStream in = new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( bytes ) ) ) )
+			{
+				in.readFully( raw );
+			}
+			break;
+		case Constants.CELL_BATCH_ENCODING_RAW:
+			if ( bytes.length != 2 * numElements )
+				return null;
+			raw = bytes;
+			break;
+		default:
+			return null;
+		}
+		ByteBuffer.wrap( raw ).asShortBuffer().get( data );
+		return data;
+	}
+
+	private static HttpURLConnection openConnection( final String url ) throws IOException
+	{
+		final HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
+		connection.setConnectTimeout( CONNECT_TIMEOUT_MILLIS );
+		connection.setReadTimeout( READ_TIMEOUT_MILLIS );
+		return connection;
+	}
+
+	/**
+	 * Read and close the response body, such that the connection is kept
+	 * alive for the next request.
+	 */
+	private static void drain( final HttpURLConnection connection ) throws IOException
+	{
+		final InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if ( in == null )
+			return;
+		try
+		{
+			final byte[] buf = new byte[ 4096 ];
+			while ( in.read( buf ) >= 0 )
+			{}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server.client;
+
+import java.io.IOException;
+
+import bdv.img.remote.RemoteImageLoader;
+
+/**
+ * A {@link RemoteImageLoader} that loads cells with a
+ * {@link BatchedCellLoader}: several cells per request, over a small pool of
+ * persistent connections, with compressed and constant cells if the server
+ * offers them. Against servers that do not support batched cell requests, it
+ * behaves exactly like {@link RemoteImageLoader}.
+ * <p>
+ * A BigDataServer advertises this loader (format {@code bdv.remote.batched})
+ * in the dataset XML if the XML is requested with {@code ?loader=batched}.
+ */
+public class BatchedRemoteImageLoader extends RemoteImageLoader
+{
+	private BatchedCellLoader cellLoader;
+
+	public BatchedRemoteImageLoader( final String baseUrl ) throws IOException
+	{
+		this( baseUrl, true );
+	}
+
+	public BatchedRemoteImageLoader( final String baseUrl, final boolean doOpen ) throws IOException
+	{
+		super( baseUrl, doOpen );
+	}
+
+	public String getBaseUrl()
+	{
+		return baseUrl;
+	}
+
+	/**
+	 * Images are created by the {@link SetupImgLoader}s, with the cell loader
+	 * that is set when the loader is opened. Replace it with a
+	 * {@link BatchedCellLoader} before handing out the first
+	 * {@link SetupImgLoader}.
+	 */
+	@Override
+	public SetupImgLoader getSetupImgLoader( final int setupId )
+	{
+		final SetupImgLoader setupImgLoader = super.getSetupImgLoader( setupId );
+		synchronized ( this )
+		{
+			if ( cellLoader == null )
+			{
+				cellLoader = new BatchedCellLoader( this );
+				shortLoader = cellLoader;
+			}
+		}
+		return setupImgLoader;
+	}
+
+	/**
+	 * Stop the threads of the {@link BatchedCellLoader}. Cells requested
+	 * afterwards are loaded one by one.
+	 */
+	public synchronized void close()
+	{
+		if ( cellLoader != null )
+			cellLoader.close();
+	}
+}
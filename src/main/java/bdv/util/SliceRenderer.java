@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.util;
+
+import bdv.BigDataViewer;
+import bdv.cache.CacheControl;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.tools.InitializeViewerState;
+import bdv.tools.brightness.ConverterSetup;
+import bdv.tools.brightness.SetupAssignments;
+import bdv.tools.transformation.ManualTransformation;
+import bdv.viewer.BasicViewerState;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import bdv.viewer.render.AccumulateProjectorARGB;
+import bdv.viewer.render.MultiResolutionRenderer;
+import bdv.viewer.render.RenderTarget;
+import bdv.viewer.render.awt.BufferedImageRenderResult;
+import bdv.viewer.state.XmlIoViewerState;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+
+import static bdv.viewer.DisplayMode.FUSED;
+import static bdv.viewer.DisplayMode.SINGLE;
+import static bdv.viewer.Interpolation.NEARESTNEIGHBOR;
+
+/**
+ * Headless rendering of arbitrary 2D sections of a dataset. This is the
+ * rendering path behind {@link ThumbnailGenerator}, generalized to arbitrary
+ * viewer transforms, image sizes, timepoints, and visible setups.
+ * <p>
+ * Rendering is not volatile, i.e., {@link #render} blocks until all required
+ * data is loaded. The {@link MultiResolutionRenderer} picks the best mipmap
+ * level for the requested viewer transform.
+ * <p>
+ * A {@link SliceRenderer} is not thread-safe. Use one instance per thread (or
+ * a pool of instances).
+ */
+public class SliceRenderer
+{
+	/**
+	 * Currently rendered state (visible sources, transformation, timepoint,
+	 * etc.)
+	 */
+	private final SynchronizedViewerState state;
+
+	/**
+	 * Maps setup id to the corresponding source.
+	 */
+	private final Map< Integer, SourceAndConverter< ? > > setupIdToSource;
+
+	private final SliceTarget renderTarget;
+
+	private final MultiResolutionRenderer renderer;
+
+	/**
+	 * Create a renderer for a dataset. If there is a settings.xml file for the
+	 * dataset, these settings are used for brightness and transformations.
+	 *
+	 * @param spimData
+	 *            the dataset.
+	 * @param baseFilename
+	 *            full path of dataset xml file, without the ".xml" extension.
+	 *            this is used to derive the name of the settings.xml file.
+	 */
+	public SliceRenderer( final SpimDataMinimal spimData, final String baseFilename )
+	{
+		final ArrayList< ConverterSetup > converterSetups = new ArrayList< ConverterSetup >();
+		final ArrayList< SourceAndConverter< ? > > sources = new ArrayList< SourceAndConverter< ? > >();
+		BigDataViewer.initSetups( spimData, converterSetups, sources );
+
+		setupIdToSource = new HashMap<>();
+		for ( int i = 0; i < converterSetups.size(); ++i )
+			setupIdToSource.put( converterSetups.get( i ).getSetupId(), sources.get( i ) );
+
+		final int numTimepoints = spimData.getSequenceDescription().getTimePoints().size();
+		final int numGroups = 10;
+		state = setupState( sources, numTimepoints, numGroups );
+
+		final SetupAssignments setupAssignments = new SetupAssignments( converterSetups, 0, 65535 );
+		if ( !tryLoadSettings( baseFilename, setupAssignments ) )
+			InitializeViewerState.initBrightness( 0.001, 0.999, state, setupAssignments );
+
+		renderTarget = new SliceTarget();
+		renderer = new MultiResolutionRenderer(
+				renderTarget, () -> {}, new double[] { 1 }, 0, 1, null, false,
+				AccumulateProjectorARGB.factory, new CacheControl.Dummy() );
+	}
+
+	/**
+	 * Get a viewer transform that shows the whole dataset (for the current
+	 * source and timepoint) in an image of the given size.
+	 */
+	public AffineTransform3D getDefaultTransform( final int width, final int height )
+	{
+		return InitializeViewerState.initTransform( width, height, false, state );
+	}
+
+	/**
+	 * Render the current state (as initialized from the settings.xml file).
+	 * <p>
+	 * The returned image is reused by subsequent calls to {@code render}.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates into screen coordinates.
+	 * @param width
+	 *            width of the rendered image.
+	 * @param height
+	 *            height of the rendered image.
+	 * @return rendered image.
+	 */
+	public BufferedImage render( final AffineTransform3D viewerTransform, final int width, final int height )
+	{
+		state.setViewerTransform( viewerTransform );
+		renderTarget.width = width;
+		renderTarget.height = height;
+		renderer.paint( state );
+		return renderTarget.renderResult.getBufferedImage();
+	}
+
+	/**
+	 * Render the given setups, fused, at the given timepoint.
+	 * <p>
+	 * The returned image is reused by subsequent calls to {@code render}.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates into screen coordinates.
+	 * @param width
+	 *            width of the rendered image.
+	 * @param height
+	 *            height of the rendered image.
+	 * @param timepoint
+	 *            timepoint index.
+	 * @param setupIds
+	 *            ids of the setups to show, or {@code null} to show all setups.
+	 * @return rendered image.
+	 * @throws IllegalArgumentException
+	 *             if the timepoint or a setup id is out of range.
+	 */
+	public BufferedImage render( final AffineTransform3D viewerTransform, final int width, final int height, final int timepoint, final int[] setupIds ) throws IllegalArgumentException
+	{
+		if ( timepoint < 0 || timepoint >= state.getNumTimepoints() )
+			throw new IllegalArgumentException( "timepoint " + timepoint + " out of range" );
+
+		final List< SourceAndConverter< ? > > visible = new ArrayList<>();
+		if ( setupIds == null )
+			visible.addAll( state.getSources() );
+		else
+			for ( final int setupId : setupIds )
+			{
+				final SourceAndConverter< ? > source = setupIdToSource.get( setupId );
+				if ( source == null )
+					throw new IllegalArgumentException( "unknown setup " + setupId );
+				visible.add( source );
+			}
+
+		state.setSourcesActive( state.getSources(), false );
+		state.setSourcesActive( visible, true );
+		state.setDisplayMode( FUSED );
+		state.setCurrentTimepoint( timepoint );
+		return render( viewerTransform, width, height );
+	}
+
+	/**
+	 * Initialize ViewerState with the given {@code sources} and {@code numTimepoints}.
+	 * Set up {@code numGroups} SourceGroups named "group 1", "group 2", etc. Add the
+	 * first source to the first group, the second source to the second group etc.
+	 *
+	 * TODO: Setting up groups like this doesn't make a lot of sense. This just
+	 *   replicates legacy behaviour. The remaining thing that stands in the way of
+	 *   removing it is ViewerState serialization, which assumes that there are always 10
+	 *   groups ... m(
+	 */
+	private static SynchronizedViewerState setupState( final List< SourceAndConverter< ? > > sources, final int numTimepoints, final int numGroups )
+	{
+		final SynchronizedViewerState state = new SynchronizedViewerState( new BasicViewerState() );
+		state.addSources( sources );
+		state.setSourcesActive( sources, true );
+		for ( int i = 0; i < numGroups; ++i ) {
+			final bdv.viewer.SourceGroup handle = new bdv.viewer.SourceGroup();
+			state.addGroup( handle );
+			state.setGroupName( handle,  "group " + ( i + 1 ) );
+			state.setGroupActive( handle, true );
+			if ( i < sources.size() )
+				state.addSourceToGroup( sources.get( i ), handle );
+		}
+		state.setNumTimepoints( numTimepoints );
+		state.setInterpolation( NEARESTNEIGHBOR );
+		state.setDisplayMode( SINGLE );
+		state.setCurrentSource( sources.isEmpty() ? null : sources.get( 0 ) );
+		state.setCurrentGroup( numGroups <= 0 ? null : state.getGroups().get( 0 ) );
+
+		return state;
+	}
+
+	private void stateFromXml( final Element parent )
+	{
+		final XmlIoViewerState io = new XmlIoViewerState();
+		final bdv.viewer.state.ViewerState deprecatedState = new bdv.viewer.state.ViewerState( state );
+		io.restoreFromXml( parent.getChild( io.getTagName() ), deprecatedState );
+	}
+
+	private boolean tryLoadSettings( final String baseFilename, final SetupAssignments setupAssignments )
+	{
+		final String settings = baseFilename + ".settings.xml";
+		if ( new File( settings ).isFile() )
+		{
+			try
+			{
+				final SAXBuilder sax = new SAXBuilder();
+				final Document doc = sax.build( settings );
+				final Element root = doc.getRootElement();
+				stateFromXml( root );
+				setupAssignments.restoreFromXml( root );
+				new ManualTransformation( state.getSources() ).restoreFromXml( root );
+				return true;
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+			}
+		}
+		return false;
+	}
+
+	private static class SliceTarget implements RenderTarget< BufferedImageRenderResult >
+	{
+		BufferedImageRenderResult renderResult = new BufferedImageRenderResult();
+
+		int width;
+
+		int height;
+
+		@Override
+		public BufferedImageRenderResult getReusableRenderResult()
+		{
+			return renderResult;
+		}
+
+		@Override
+		public BufferedImageRenderResult createRenderResult()
+		{
+			return new BufferedImageRenderResult();
+		}
+
+		@Override
+		public void setRenderResult( final BufferedImageRenderResult renderResult )
+		{
+			this.renderResult = renderResult;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PackingKernels} using the Vector API, at the preferred vector size of
+ * the platform.
+ * <p>
+ * The 12-bit kernels treat each pair of shorts as one {@code int} lane
+ * (little-endian, so the first value is in the low half), combine the pair
+ * into a 24-bit word, and move the three big-endian bytes of every word with
+ * one byte shuffle. Whole vectors are stored, so the last quarter of every
+ * store is overwritten by the next one, and the kernels stop a vector short
+ * of the end of the packed array.
+ */
+final class VectorPackingKernels implements PackingKernels
+{
+	private static final VectorSpecies< Short > SHORTS = ShortVector.SPECIES_PREFERRED;
+
+	private static final VectorSpecies< Byte > BYTES = ByteVector.SPECIES_PREFERRED;
+
+	/**
+	 * Bytes with as many lanes as {@link #SHORTS}.
+	 */
+	private static final VectorSpecies< Byte > HALF_BYTES = VectorSpecies.of( byte.class, VectorShape.forBitSize( SHORTS.vectorBitSize() / 2 ) );
+
+	private static final int LANES = SHORTS.length();
+
+	/**
+	 * Picks bytes 2, 1, 0 of every {@code int} lane.
+	 */
+	private static final VectorShuffle< Byte > PACK12 = VectorShuffle.fromOp( BYTES, t -> t < 3 * LANES / 2 ? 4 * ( t / 3 ) + 2 - t % 3 : 0 );
+
+	/**
+	 * Inverse of {@link #PACK12}. Byte 3 of every {@code int} lane is garbage.
+	 */
+	private static final VectorShuffle< Byte > UNPACK12 = VectorShuffle.fromOp( BYTES, t -> t % 4 == 3 ? 0 : 3 * ( t / 4 ) + 2 - t % 4 );
+
+	@Override
+	public int or( final short[] data )
+	{
+		ShortVector acc = ShortVector.zero( SHORTS );
+		int i = 0;
+		for ( final int m = SHORTS.loopBound( data.length ); i < m; i += LANES )
+			acc = acc.or( ShortVector.fromArray( SHORTS, data, i ) );
+		int or = acc.reduceLanes( VectorOperators.OR );
+		for ( ; i < data.length; ++i )
+			or |= data[ i ];
+		return or;
+	}
+
+	@Override
+	public int encode8( final short[] data, final byte[] packed )
+	{
+		int i = 0;
+		for ( final int m = SHORTS.loopBound( data.length ); i < m; i += LANES )
+			ShortVector.fromArray( SHORTS, data, i )
+					.convertShape( VectorOperators.S2B, HALF_BYTES, 0 )
+					.reinterpretAsBytes()
+					.intoArray( packed, 1 + i );
+		return i;
+	}
+
+	@Override
+	public int decode8( final byte[] packed, final short[] data )
+	{
+		int i = 0;
+		for ( final int m = SHORTS.loopBound( data.length ); i < m; i += LANES )
+			( ( ShortVector ) ByteVector.fromArray( HALF_BYTES, packed, 1 + i )
+					.convertShape( VectorOperators.B2S, SHORTS, 0 ) )
+					.and( ( short ) 0xff )
+					.intoArray( data, i );
+		return i;
+	}
+
+	@Override
+	public int encode12( final short[] data, final byte[] packed )
+	{
+		int i = 0;
+		for ( int j = 1; i + LANES <= data.length && j + 2 * LANES <= packed.length; i += LANES, j += 3 * LANES / 2 )
+		{
+			final IntVector pairs = ShortVector.fromArray( SHORTS, data, i ).reinterpretAsInts();
+			final IntVector a = pairs.and( 0xfff );
+			final IntVector c = pairs.lanewise( VectorOperators.LSHR, 16 ).and( 0xfff );
+			a.lanewise( VectorOperators.LSHL, 12 ).or( c )
+					.reinterpretAsBytes()
+					.rearrange( PACK12 )
+					.intoArray( packed, j );
+		}
+		return i;
+	}
+
+	@Override
+	public int decode12( final byte[] packed, final short[] data )
+	{
+		int i = 0;
+		for ( int j = 1; i + LANES <= data.length && j + 2 * LANES <= packed.length; i += LANES, j += 3 * LANES / 2 )
+		{
+			final IntVector p = ByteVector.fromArray( BYTES, packed, j )
+					.rearrange( UNPACK12 )
+					.reinterpretAsInts()
+					.and( 0xffffff );
+			final IntVector a = p.lanewise( VectorOperators.LSHR, 12 );
+			final IntVector c = p.and( 0xfff );
+			a.or( c.lanewise( VectorOperators.LSHL, 16 ) )
+					.reinterpretAsShorts()
+					.intoArray( data, i );
+		}
+		return i;
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link BitPackedCellCodec} with the plain 16-bit copy
+ * ({@code ByteBuffer.asShortBuffer().put}) that {@link CellHandler} uses for
+ * uncompressed cells, on a 64<sup>3</sup> cell with values of the given bit
+ * depth. Run with {@code mvn -Pjmh verify -DskipTests}. On JDK 17 or later,
+ * the {@code vector} profile is active and the codec runs on the Vector API
+ * kernels; add {@code -P!vector} to measure the scalar loops.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class BitPackedCellCodecBenchmark
+{
+	@Param( { "8", "10", "12", "16" } )
+	public int bits;
+
+	private short[] data;
+
+	private byte[] packed;
+
+	private byte[] copied;
+
+	@Setup
+	public void setup()
+	{
+		final Random random = new Random( 1 );
+		data = new short[ 64 * 64 * 64 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) random.nextInt( 1 << bits );
+		packed = BitPackedCellCodec.encode( data, bits );
+		copied = copy();
+	}
+
+	@Benchmark
+	public byte[] copy()
+	{
+		final byte[] bytes = new byte[ 2 * data.length ];
+		ByteBuffer.wrap( bytes ).asShortBuffer().put( data );
+		return bytes;
+	}
+
+	@Benchmark
+	public byte[] encode()
+	{
+		return BitPackedCellCodec.encode( data, bits );
+	}
+
+	@Benchmark
+	public byte[] bitsForAndEncode()
+	{
+		return BitPackedCellCodec.encode( data, BitPackedCellCodec.bitsFor( data ) );
+	}
+
+	@Benchmark
+	public short[] copyBack()
+	{
+		final short[] shorts = new short[ data.length ];
+		ByteBuffer.wrap( copied ).asShortBuffer().get( shorts );
+		return shorts;
+	}
+
+	@Benchmark
+	public short[] decode() throws DataFormatException
+	{
+		return BitPackedCellCodec.decode( packed, data.length );
+	}
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Round trips of {@link BitPackedCellCodec} at every bit depth, with lengths
+ * that exercise the 8-value, pair and single value tails of the 12-bit loops
+ * and partial last bytes of the generic loop. The encoded bytes are compared
+ * with a plain bit stream, so that the Vector API kernels (used if the tests
+ * run with {@code --add-modules jdk.incubator.vector}) and the scalar loops
+ * produce the same format.
+ */
+public class BitPackedCellCodecTest
+{
+	private static final int[] LENGTHS = { 0, 1, 2, 3, 7, 8, 9, 15, 17, 31, 33, 63, 65, 127, 129, 4097 };
+
+	@Test
+	public void testRoundTrip() throws DataFormatException
+	{
+		final Random random = new Random( 1 );
+		for ( int bits = 0; bits <= 16; ++bits )
+		{
+			for ( final int length : LENGTHS )
+			{
+				final short[] data = new short[ length ];
+				for ( int i = 0; i < length; ++i )
+					data[ i ] = ( short ) ( random.nextInt() & ( ( 1 << bits ) - 1 ) );
+				final String message = bits + " bits, " + length + " values";
+
+				final byte[] packed = BitPackedCellCodec.encode( data, bits );
+				assertEquals( message, BitPackedCellCodec.encodedSize( length, bits ), packed.length );
+				assertEquals( message, bits, packed[ 0 ] );
+				assertArrayEquals( message, data, BitPackedCellCodec.decode( packed, length ) );
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesBitStream()
+	{
+		final Random random = new Random( 2 );
+		for ( int bits = 0; bits <= 16; ++bits )
+		{
+			for ( final int length : LENGTHS )
+			{
+				final short[] data = new short[ length ];
+				for ( int i = 0; i < length; ++i )
+					data[ i ] = ( short ) random.nextInt();
+				assertArrayEquals( bits + " bits, " + length + " values", bitStream( data, bits ), BitPackedCellCodec.encode( data, bits ) );
+			}
+		}
+	}
+
+	/**
+	 * Pack {@code data} one bit at a time.
+	 */
+	private static byte[] bitStream( final short[] data, final int bits )
+	{
+		final byte[] packed = new byte[ ( int ) BitPackedCellCodec.encodedSize( data.length, bits ) ];
+		packed[ 0 ] = ( byte ) bits;
+		long pos = 8;
+		for ( final short value : data )
+		{
+			for ( int b = bits - 1; b >= 0; --b, ++pos )
+				if ( ( value >> b & 1 ) != 0 )
+					packed[ ( int ) ( pos >> 3 ) ] |= 0x80 >> ( pos & 7 );
+		}
+		return packed;
+	}
+
+	@Test
+	public void testMaximumValues() throws DataFormatException
+	{
+		for ( int bits = 1; bits <= 16; ++bits )
+		{
+			for ( final int length : LENGTHS )
+			{
+				final short[] data = new short[ length ];
+				for ( int i = 0; i < length; ++i )
+					data[ i ] = ( short ) ( i % 2 == 0 ? ( 1 << bits ) - 1 : 0 );
+				final String message = bits + " bits, " + length + " values";
+				assertArrayEquals( message, data, BitPackedCellCodec.decode( BitPackedCellCodec.encode( data, bits ), length ) );
+			}
+		}
+	}
+
+	@Test
+	public void testBitsFor()
+	{
+		assertEquals( 0, BitPackedCellCodec.bitsFor( new short[] { 0, 0, 0 } ) );
+		assertEquals( 1, BitPackedCellCodec.bitsFor( new short[] { 0, 1, 0 } ) );
+		assertEquals( 12, BitPackedCellCodec.bitsFor( new short[] { 4095, 17, 2048 } ) );
+		assertEquals( 13, BitPackedCellCodec.bitsFor( new short[] { 4096 } ) );
+		assertEquals( 16, BitPackedCellCodec.bitsFor( new short[] { 1, ( short ) 0x8000 } ) );
+	}
+
+	@Test
+	public void testHigherBitsDropped() throws DataFormatException
+	{
+		final short[] data = { 0x1234, ( short ) 0xffff, 0x0fff };
+		final short[] expected = { 0x0234, 0x0fff, 0x0fff };
+		assertArrayEquals( expected, BitPackedCellCodec.decode( BitPackedCellCodec.encode( data, 12 ), data.length ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidBits()
+	{
+		BitPackedCellCodec.encode( new short[ 1 ], 17 );
+	}
+
+	@Test( expected = DataFormatException.class )
+	public void testSizeMismatch() throws DataFormatException
+	{
+		BitPackedCellCodec.decode( BitPackedCellCodec.encode( new short[ 9 ], 12 ), 10 );
+	}
+
+	@Test( expected = DataFormatException.class )
+	public void testInvalidHeader() throws DataFormatException
+	{
+		BitPackedCellCodec.decode( new byte[] { 17, 0, 0 }, 1 );
+	}
+}
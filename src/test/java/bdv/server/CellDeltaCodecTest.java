@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Round trips of {@link CellDeltaCodec}, with small and large signed deltas,
+ * values at and above 2<sup>15</sup>, and deltas that wrap around modulo
+ * 2<sup>16</sup>.
+ */
+public class CellDeltaCodecTest
+{
+	private static final int[] LENGTHS = { 0, 1, 2, 3, 7, 9, 17, 33, 4097 };
+
+	@Test
+	public void testEmptyCell() throws DataFormatException
+	{
+		final short[] empty = new short[ 0 ];
+		assertArrayEquals( empty, CellDeltaCodec.decode( empty, CellDeltaCodec.encode( empty, empty ) ) );
+	}
+
+	@Test
+	public void testSmallDeltas() throws DataFormatException
+	{
+		final Random random = new Random( 1 );
+		for ( final int length : LENGTHS )
+		{
+			final short[] reference = randomCell( random, length );
+			final short[] data = new short[ length ];
+			for ( int i = 0; i < length; ++i )
+				data[ i ] = ( short ) ( reference[ i ] + random.nextInt( 9 ) - 4 );
+			assertRoundTrip( length + " values", reference, data );
+		}
+	}
+
+	@Test
+	public void testLargeDeltas() throws DataFormatException
+	{
+		final Random random = new Random( 2 );
+		for ( final int length : LENGTHS )
+			assertRoundTrip( length + " values", randomCell( random, length ), randomCell( random, length ) );
+	}
+
+	@Test
+	public void testExtremeValues() throws DataFormatException
+	{
+		final short[] values = { 0, 1, 0x7fff, ( short ) 0x8000, ( short ) 0x8001, ( short ) 0xfffe, ( short ) 0xffff };
+		final int n = values.length;
+		final short[] reference = new short[ n * n ];
+		final short[] data = new short[ n * n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int j = 0; j < n; ++j )
+			{
+				reference[ i * n + j ] = values[ i ];
+				data[ i * n + j ] = values[ j ];
+			}
+		}
+		assertRoundTrip( "extreme values", reference, data );
+		assertRoundTrip( "extreme values, reversed", data, reference );
+	}
+
+	@Test
+	public void testUnchanged() throws DataFormatException
+	{
+		final short[] reference = randomCell( new Random( 3 ), 4097 );
+		final byte[] delta = CellDeltaCodec.encode( reference, reference );
+		assertArrayEquals( reference, CellDeltaCodec.decode( reference, delta ) );
+		assertTrue( "unchanged cell compresses well", delta.length < 100 );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testSizeMismatch()
+	{
+		CellDeltaCodec.encode( new short[ 3 ], new short[ 4 ] );
+	}
+
+	@Test( expected = DataFormatException.class )
+	public void testWrongReferenceSize() throws DataFormatException
+	{
+		final byte[] delta = CellDeltaCodec.encode( new short[ 9 ], new short[ 9 ] );
+		CellDeltaCodec.decode( new short[ 10 ], delta );
+	}
+
+	@Test( expected = DataFormatException.class )
+	public void testTruncatedDelta() throws DataFormatException
+	{
+		final Random random = new Random( 4 );
+		final short[] reference = randomCell( random, 4097 );
+		final byte[] delta = CellDeltaCodec.encode( reference, randomCell( random, 4097 ) );
+		CellDeltaCodec.decode( reference, Arrays.copyOf( delta, delta.length / 2 ) );
+	}
+
+	private static short[] randomCell( final Random random, final int length )
+	{
+		final short[] data = new short[ length ];
+		for ( int i = 0; i < length; ++i )
+			data[ i ] = ( short ) random.nextInt( 1 << 16 );
+		return data;
+	}
+
+	private static void assertRoundTrip( final String message, final short[] reference, final short[] data ) throws DataFormatException
+	{
+		assertArrayEquals( message, data, CellDeltaCodec.decode( reference, CellDeltaCodec.encode( reference, data ) ) );
+	}
+}
@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * A web server for BigDataViewer datasets.
+ * %%
+ * Copyright (C) 2014 - 2023 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Util;
+import bdv.img.hdf5.ViewLevelId;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+
+/**
+ * Compares {@link DirectCellReader} with reads through the HDF5 library on a
+ * small fixture file with one image per storage layout: setup 0 is
+ * contiguous, setup 1 is chunked, and setup 2 is chunked with only its first
+ * chunk written.
+ */
+public class DirectCellReaderTest
+{
+	/**
+	 * Image size in HDF5 order (Z, Y, X). Not a multiple of the chunk size.
+	 */
+	private static final int[] DIMENSIONS = { 7, 11, 13 };
+
+	/**
+	 * Chunk size in HDF5 order (Z, Y, X).
+	 */
+	private static final int[] CHUNK_DIMENSIONS = { 4, 4, 4 };
+
+	private static final int CONTIGUOUS = 0;
+
+	private static final int CHUNKED = 1;
+
+	private static final int SPARSE = 2;
+
+	/**
+	 * Sizes of the blocks to compare, in X, Y, Z order.
+	 */
+	private static final int[][] BLOCK_DIMENSIONS = {
+			{ 13, 11, 7 },
+			{ 4, 4, 4 },
+			{ 5, 3, 2 },
+			{ 1, 1, 1 } };
+
+	/**
+	 * Minima of the blocks to compare, in X, Y, Z order.
+	 */
+	private static final long[][] BLOCK_MINS = {
+			{ 0, 0, 0 },
+			{ 9, 7, 3 },
+			{ 6, 7, 4 },
+			{ 12, 10, 6 } };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	private Hdf5ImageLoader imgLoader;
+
+	private DirectCellReader reader;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = new File( folder.getRoot(), "fixture.h5" );
+		writeFixture( file );
+
+		final Map< Integer, BasicViewSetup > setups = new HashMap<>();
+		for ( final int setup : new int[] { CONTIGUOUS, CHUNKED, SPARSE } )
+			setups.put( setup, new BasicViewSetup( setup, null, null, null ) );
+		final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( Collections.singletonList( new TimePoint( 0 ) ) ), setups, null, null );
+		imgLoader = new Hdf5ImageLoader( file, new ArrayList<>(), seq );
+
+		reader = DirectCellReader.open( file, getIds() );
+	}
+
+	private static List< ViewLevelId > getIds()
+	{
+		return Arrays.asList(
+				new ViewLevelId( 0, CONTIGUOUS, 0 ),
+				new ViewLevelId( 0, CHUNKED, 0 ),
+				new ViewLevelId( 0, SPARSE, 0 ) );
+	}
+
+	@After
+	public void tearDown()
+	{
+		if ( reader != null )
+			reader.close();
+		imgLoader.close();
+	}
+
+	@Test
+	public void testLayout() throws IOException
+	{
+		try ( final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+		{
+			final Hdf5DataLayout layout = new Hdf5DataLayout( channel );
+
+			final Hdf5DataLayout.Dataset contiguous = layout.getDataset( Util.getCellsPath( 0, CONTIGUOUS, 0 ) );
+			assertNotNull( contiguous );
+			assertFalse( contiguous.isChunked() );
+			assertEquals( 2, contiguous.getElementSize() );
+			assertArrayEquals( new long[] { 7, 11, 13 }, contiguous.getDimensions() );
+
+			final Hdf5DataLayout.Dataset chunked = layout.getDataset( Util.getCellsPath( 0, CHUNKED, 0 ) );
+			assertNotNull( chunked );
+			assertTrue( chunked.isChunked() );
+			assertEquals( 2, chunked.getElementSize() );
+			assertArrayEquals( new long[] { 7, 11, 13 }, chunked.getDimensions() );
+			assertArrayEquals( CHUNK_DIMENSIONS, chunked.getChunkDimensions() );
+			assertEquals( 2 * 3 * 4, chunked.getChunkAddresses().length );
+			for ( final long address : chunked.getChunkAddresses() )
+				assertTrue( address >= 0 );
+
+			final Hdf5DataLayout.Dataset sparse = layout.getDataset( Util.getCellsPath( 0, SPARSE, 0 ) );
+			assertNotNull( sparse );
+			final long[] addresses = sparse.getChunkAddresses();
+			assertTrue( addresses[ 0 ] >= 0 );
+			for ( int i = 1; i < addresses.length; ++i )
+				assertEquals( -1, addresses[ i ] );
+
+			assertNull( layout.getDataset( Util.getCellsPath( 1, CONTIGUOUS, 0 ) ) );
+		}
+	}
+
+	@Test
+	public void testReadContiguous() throws InterruptedException
+	{
+		assertReadsMatch( CONTIGUOUS );
+	}
+
+	@Test
+	public void testReadChunked() throws InterruptedException
+	{
+		assertReadsMatch( CHUNKED );
+	}
+
+	@Test
+	public void testReadUnallocatedChunks() throws InterruptedException
+	{
+		assertReadsMatch( SPARSE );
+	}
+
+	@Test
+	public void testPersistedLayout() throws IOException, InterruptedException
+	{
+		final Map< ViewLevelId, DirectCellReader.Image > images = DirectCellReader.resolve( file, getIds() );
+		assertEquals( 3, images.size() );
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( final DataOutputStream out = new DataOutputStream( bytes ) )
+		{
+			for ( final ViewLevelId id : getIds() )
+				images.get( id ).write( out );
+		}
+		final Map< ViewLevelId, DirectCellReader.Image > restored = new HashMap<>();
+		try ( final DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) )
+		{
+			for ( final ViewLevelId id : getIds() )
+				restored.put( id, DirectCellReader.Image.read( in ) );
+		}
+
+		reader.close();
+		reader = DirectCellReader.open( file, restored );
+		assertReadsMatch( CONTIGUOUS );
+		assertReadsMatch( CHUNKED );
+		assertReadsMatch( SPARSE );
+	}
+
+	@Test
+	public void testUnknownImage()
+	{
+		assertNull( reader.read( 1, CONTIGUOUS, 0, new int[] { 1, 1, 1 }, new long[] { 0, 0, 0 } ) );
+	}
+
+	private void assertReadsMatch( final int setup ) throws InterruptedException
+	{
+		assertNotNull( reader );
+		for ( int i = 0; i < BLOCK_DIMENSIONS.length; ++i )
+		{
+			final int[] dims = BLOCK_DIMENSIONS[ i ];
+			final long[] min = BLOCK_MINS[ i ];
+			final short[] expected = imgLoader.getShortArrayLoader().loadArray( 0, setup, 0, dims, min ).getCurrentStorageArray();
+			final short[] actual = reader.read( 0, setup, 0, dims, min );
+			assertArrayEquals( "block " + Arrays.toString( min ) + " of setup " + setup, expected, actual );
+		}
+	}
+
+	private static void writeFixture( final File file )
+	{
+		final short[] values = new short[ DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = ( short ) ( i * 4099 + 17 ); // covers values >= 2^15
+		final MDShortArray data = new MDShortArray( values, DIMENSIONS );
+
+		final short[] chunkValues = new short[ CHUNK_DIMENSIONS[ 0 ] * CHUNK_DIMENSIONS[ 1 ] * CHUNK_DIMENSIONS[ 2 ] ];
+		for ( int i = 0; i < chunkValues.length; ++i )
+			chunkValues[ i ] = ( short ) ( i + 1 );
+		final MDShortArray chunk = new MDShortArray( chunkValues, CHUNK_DIMENSIONS );
+
+		final long[] dimensions = { DIMENSIONS[ 0 ], DIMENSIONS[ 1 ], DIMENSIONS[ 2 ] };
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		try
+		{
+			for ( final int setup : new int[] { CONTIGUOUS, CHUNKED, SPARSE } )
+			{
+				writer.float64().writeMatrix( Util.getResolutionsPath( setup ), new double[][] { { 1, 1, 1 } } );
+				writer.int32().writeMatrix( Util.getSubdivisionsPath( setup ), new int[][] { { 4, 4, 4 } } );
+			}
+			writer.int16().writeMDArray( Util.getCellsPath( 0, CONTIGUOUS, 0 ), data, HDF5IntStorageFeatures.INT_CONTIGUOUS );
+			writer.int16().createMDArray( Util.getCellsPath( 0, CHUNKED, 0 ), dimensions, CHUNK_DIMENSIONS, HDF5IntStorageFeatures.INT_CHUNKED );
+			writer.int16().writeMDArrayBlockWithOffset( Util.getCellsPath( 0, CHUNKED, 0 ), data, new long[] { 0, 0, 0 } );
+			writer.int16().createMDArray( Util.getCellsPath( 0, SPARSE, 0 ), dimensions, CHUNK_DIMENSIONS, HDF5IntStorageFeatures.INT_CHUNKED );
+			writer.int16().writeMDArrayBlockWithOffset( Util.getCellsPath( 0, SPARSE, 0 ), chunk, new long[] { 0, 0, 0 } );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}